@@ -0,0 +1,546 @@
+package com.testlims.broker;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Context;
+
+import com.testlims.utilities.BinaryWriter;
+import com.testlims.utilities.BrokerWorker;
+import com.testlims.utilities.Envelope;
+import com.testlims.utilities.FieldWriter;
+import com.testlims.utilities.JsonWriter;
+import com.testlims.utilities.LogPublisher;
+import com.testlims.utilities.SocketFactory;
+import com.testlims.utilities.SocketStats;
+
+/**
+ * Implementation of a request broker after the Majordomo pattern, between the zeroMQcore gateway
+ * and the services, so a service is scaled out by starting more of its workers against the broker,
+ * on any host, with no change to the gateway's routes.
+ * <p>
+ * The broker binds two ROUTER sockets.  Clients, e.g. the gateway's REQ and DEALER sockets, connect
+ * to the clients socket and send each request as an {@link Envelope}, as they would to the service
+ * itself.  The broker reads the serviceName frame and nothing else, and passes the frames on as they
+ * came, so the reply that comes back is the service's own.  Workers connect to the workers socket and
+ * speak the protocol of {@link BrokerWorker}:  each registers for one service, and is handed the
+ * service's requests one at a time.
+ * <p>
+ * A service's requests are queued in the order they arrive, and each is handed to the service's
+ * worker that has waited longest.  A service is known from its first request or worker, so requests
+ * sent before any worker has registered, e.g. while the service restarts, wait for one.  A request
+ * waits in the queue at most {@link #QUEUE_TIMEOUT} milliseconds, after which its client has given up
+ * on it or sent it again, and it is dropped.  Requests beyond {@link #MAX_QUEUED} for a service, and
+ * requests with no serviceName when the broker has no default service, are answered at once with an
+ * error reply, flagged {@link Envelope#FLAG_ERROR}, in the form the services send.
+ * <p>
+ * The broker sends a heartbeat to each waiting worker every {@link BrokerWorker#HEARTBEAT_INTERVAL}
+ * milliseconds, and evicts a waiting worker it has heard nothing from for
+ * {@link BrokerWorker#HEARTBEAT_LIVENESS} intervals, so a worker that has died is handed no more
+ * requests.  A worker busy with a request sends no heartbeats, so it is not evicted however long the
+ * request takes, and its silence is timed again from its reply.  A reply from a worker the broker
+ * does not know, e.g. one registered with a broker since restarted, is passed on to the client all
+ * the same, and the worker is then told to disconnect, upon which it registers anew.
+ * <p>
+ * The broker is controlled out of band, as HelloService is, on a REP control socket bound to the URL
+ * set by <code>-Dbroker.controlURL</code> or otherwise to an inproc endpoint of its own, see
+ * {@link #getControlURL}.  It takes the commands stats, answered with the counts of requests and the
+ * services' workers and queues, and stop, upon which the broker tells its workers to disconnect, so
+ * they register with the next broker started on the same URL.
+ * <p>
+ * The broker's sockets are made in the JVM's shared context by the {@link SocketFactory}, with the
+ * broker tuning profile set in zeroMQsockets.properties.
+ *
+ * @author Marc Whitlow, Colabrativ, Inc.
+ */
+public class Broker extends Thread {
+	/** Milliseconds to wait at start for the logger to subscribe, before starting without it.  */
+	static final long	LOGGER_READY_TIMEOUT	= 1000;
+	/** Log messages kept until the logger has subscribed.  */
+	static final int	LOGGER_MAX_PENDING		= 1000;
+	/** Milliseconds a request waits in its service's queue for a worker before it is dropped.  */
+	static final long	QUEUE_TIMEOUT			= 5000;
+	/** Requests queued per service; further requests are answered with an error reply.  */
+	static final int	MAX_QUEUED				= 1000;
+	/** Milliseconds a worker may be silent before it is evicted.  */
+	static final long	HEARTBEAT_EXPIRY		= BrokerWorker.HEARTBEAT_INTERVAL * BrokerWorker.HEARTBEAT_LIVENESS;
+	/** The system property setting the URL the control socket is bound to.  */
+	public static final String	CONTROL_URL_PROPERTY	= "broker.controlURL";
+
+	private static final byte[]	EMPTY			= new byte[0];
+	private static final byte[]	VERSION_FRAME	= Envelope.VERSION.getBytes( ZMQ.CHARSET);
+	private static final byte[]	PROTOCOL_FRAME	= BrokerWorker.PROTOCOL.getBytes( ZMQ.CHARSET);
+	private static final byte[]	REQUEST_FRAME	= new byte[] { BrokerWorker.REQUEST };
+	private static final byte[]	HEARTBEAT_FRAME	= new byte[] { BrokerWorker.HEARTBEAT };
+	private static final byte[]	DISCONNECT_FRAME = new byte[] { BrokerWorker.DISCONNECT };
+
+	private Context		context			= null;
+	private ZMQ.Socket	clients			= null;
+	private ZMQ.Socket	workers			= null;
+	private ZMQ.Socket	control			= null;
+	private String		controlURL		= null;
+	private LogPublisher pub2Logger		= null;
+	private String		defaultService	= null;
+	private final Map<String,Service>	services	= new LinkedHashMap<String,Service>();
+	private final Map<String,Worker>	workerMap	= new HashMap<String,Worker>();
+	private long		heartbeatAt		= 0;
+	private long		dispatched		= 0;
+	private long		expired			= 0;
+	private long		rejected		= 0;
+	private long		evicted			= 0;
+
+	/**
+	 * Broker Constructor
+	 *
+	 * @param clientsURL The URL the clients socket will be bound to, e.g. tcp://localhost:5565.
+	 * @param workersURL The URL the workers socket will be bound to, e.g. tcp://localhost:5566.
+	 * @param loggerURL The URL of the logger.
+	 * @param loggerTopic the logger topic, e.g. Project_Log.
+	 * @param defaultService the service a request with no serviceName is handed to, e.g. a plain
+	 * single frame request, or null to answer such requests with an error reply.
+	 */
+	public Broker(String clientsURL, String workersURL, String loggerURL, String loggerTopic, String defaultService) {
+		setDaemon(true);
+		this.defaultService = (defaultService == null || defaultService.isEmpty()) ? null : defaultService;
+		context = SocketFactory.acquireContext();
+
+		pub2Logger = new LogPublisher( context, loggerURL, loggerTopic, LOGGER_MAX_PENDING);
+
+		clients = SocketFactory.socket( context, ZMQ.ROUTER, "broker", "Broker clients");
+		clients.bind( SocketFactory.endpoint( clientsURL));
+		workers = SocketFactory.socket( context, ZMQ.ROUTER, "broker", "Broker workers");
+		workers.bind( SocketFactory.endpoint( workersURL));
+		String url	= System.getProperty( CONTROL_URL_PROPERTY);
+		controlURL	= (url == null) ? "inproc://Broker-control-" + System.identityHashCode( this) : SocketFactory.endpoint( url);
+		control		= SocketFactory.socket( context, ZMQ.REP, "broker", "Broker control");
+		control.bind( controlURL);
+
+		if (!pub2Logger.awaitReady( LOGGER_READY_TIMEOUT)) {
+			System.err.println( "Broker: logger at " + loggerURL + " not subscribed after "
+					+ LOGGER_READY_TIMEOUT + " ms, log messages are kept until it is");
+		}
+		log( "0", "Started with clients on " + SocketFactory.endpoint( clientsURL) + " and workers on "
+				+ SocketFactory.endpoint( workersURL) + ((this.defaultService == null) ? "" : ", default service " + this.defaultService));
+	}
+
+	/** @return the endpoint the control socket is bound to, e.g. to send it commands with {@link #control}. */
+	public String getControlURL() {
+		return controlURL;
+	}
+
+	/**
+	 * Run the broker until it is stopped on its control socket, then tell the workers to disconnect,
+	 * close the sockets and release the context.
+	 */
+	public void run() {
+		ZMQ.Poller poller = context.poller( 3);
+		int workersIndex = poller.register( workers, ZMQ.Poller.POLLIN);
+		int clientsIndex = poller.register( clients, ZMQ.Poller.POLLIN);
+		int controlIndex = poller.register( control, ZMQ.Poller.POLLIN);
+		heartbeatAt = System.currentTimeMillis() + BrokerWorker.HEARTBEAT_INTERVAL;
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				if (poller.poll( Math.max( 1, heartbeatAt - System.currentTimeMillis())) < 0) {
+					break;
+				}
+				if (poller.pollin( workersIndex)) {
+					receiveFromWorkers();
+				}
+				if (poller.pollin( clientsIndex)) {
+					receiveRequests();
+				}
+				if (poller.pollin( controlIndex) && !control()) {
+					break;
+				}
+				if (System.currentTimeMillis() >= heartbeatAt) {
+					purge();
+					heartbeatAt = System.currentTimeMillis() + BrokerWorker.HEARTBEAT_INTERVAL;
+				}
+			}
+		}
+		finally {
+			poller.close();
+		}
+
+		for (Worker worker : workerMap.values()) {
+			send( worker.identity, DISCONNECT_FRAME);
+		}
+		log( "-1", "Closing clients, workers and logger sockets and terminate context." + socketStats());
+		SocketFactory.close( control);
+		SocketFactory.close( clients);
+		SocketFactory.close( workers);
+		pub2Logger.close();
+		SocketFactory.releaseContext();
+	}
+
+	/** Queue each request waiting on the clients socket for its service, and hand it to a worker if one is waiting.  */
+	private void receiveRequests() {
+		byte[][] request;
+		while ((request = recvFrames( clients)) != null) {
+			int body = delimiter( request) + 1;
+			if (body == 0 || body == request.length) {
+				continue;
+			}
+			String serviceName = (isVersioned( request, body)) ? new String( request[body + 2], ZMQ.CHARSET) : "";
+			if (serviceName.isEmpty()) {
+				serviceName = defaultService;
+			}
+			if (serviceName == null) {
+				reject( request, body, "No serviceName to route the request by");
+				continue;
+			}
+			Service service = service( serviceName);
+			if (service.requests.size() >= MAX_QUEUED) {
+				reject( request, body, serviceName + " has " + MAX_QUEUED + " requests waiting for a worker");
+				continue;
+			}
+			service.requests.add( new Request( request, System.currentTimeMillis() + QUEUE_TIMEOUT));
+			dispatch( service);
+		}
+	}
+
+	/** Act on each message waiting on the workers socket.  */
+	private void receiveFromWorkers() {
+		byte[][] message;
+		while ((message = recvFrames( workers)) != null) {
+			if (message.length < 4 || message[1].length != 0 || !Arrays.equals( message[2], PROTOCOL_FRAME)
+					|| message[3].length != 1) {
+				continue;
+			}
+			String	key		= hex( message[0]);
+			Worker	worker	= workerMap.get( key);
+			byte	command	= message[3][0];
+			if (command == BrokerWorker.READY) {
+				if (worker != null || message.length < 5) {
+					if (worker != null) delete( worker, "registered twice");
+					send( message[0], DISCONNECT_FRAME);
+				}
+				else {
+					register( message[0], key, new String( message[4], ZMQ.CHARSET));
+				}
+			}
+			else if (command == BrokerWorker.REPLY) {
+				for (int f=4; f<message.length; f++) {
+					if (f < message.length - 1) clients.sendMore( message[f]);
+					else clients.send( message[f], 0);
+				}
+				if (worker == null) {
+					send( message[0], DISCONNECT_FRAME);
+				}
+				else if (worker.busy) {
+					worker.busy		= false;
+					worker.expiry	= System.currentTimeMillis() + HEARTBEAT_EXPIRY;
+					worker.service.waiting.add( worker);
+					dispatch( worker.service);
+				}
+			}
+			else if (command == BrokerWorker.HEARTBEAT) {
+				if (worker == null) {
+					send( message[0], DISCONNECT_FRAME);
+				}
+				else {
+					worker.expiry = System.currentTimeMillis() + HEARTBEAT_EXPIRY;
+				}
+			}
+			else if (command == BrokerWorker.DISCONNECT && worker != null) {
+				delete( worker, "disconnected");
+			}
+		}
+	}
+
+	/** @return the service of the name, made the first time it is asked for. */
+	private Service service(String serviceName) {
+		Service service = services.get( serviceName);
+		if (service == null) {
+			service = new Service( serviceName);
+			services.put( serviceName, service);
+		}
+		return service;
+	}
+
+	private void register(byte[] identity, String key, String serviceName) {
+		Service service = service( serviceName);
+		Worker worker = new Worker( identity, key, service);
+		worker.expiry = System.currentTimeMillis() + HEARTBEAT_EXPIRY;
+		workerMap.put( key, worker);
+		service.workers++;
+		service.waiting.add( worker);
+		log( "0", "Worker " + key + " ready for " + serviceName + ", " + service);
+		dispatch( service);
+	}
+
+	private void delete(Worker worker, String reason) {
+		workerMap.remove( worker.key);
+		worker.service.waiting.remove( worker);
+		worker.service.workers--;
+		log( "0", "Worker " + worker.key + " of " + worker.service.name + " " + reason + ", " + worker.service);
+	}
+
+	/** Hand the service's queued requests to its waiting workers, dropping those that have waited too long.  */
+	private void dispatch(Service service) {
+		long now = System.currentTimeMillis();
+		while (!service.waiting.isEmpty() && !service.requests.isEmpty()) {
+			Request request = service.requests.poll();
+			if (request.expires < now) {
+				expired++;
+				continue;
+			}
+			Worker worker = service.waiting.poll();
+			worker.busy		= true;
+			worker.expiry	= now + HEARTBEAT_EXPIRY;
+			workers.sendMore( worker.identity);
+			workers.sendMore( EMPTY);
+			workers.sendMore( PROTOCOL_FRAME);
+			workers.sendMore( REQUEST_FRAME);
+			byte[][] frames = request.frames;
+			for (int f=0; f<frames.length - 1; f++) {
+				workers.sendMore( frames[f]);
+			}
+			workers.send( frames[frames.length - 1], 0);
+			dispatched++;
+		}
+	}
+
+	/**
+	 * Evict the waiting workers that have been silent too long, drop the requests that have waited
+	 * too long, and heartbeat the waiting workers.  A busy worker does not heartbeat until it has
+	 * replied, so it is left alone.
+	 */
+	private void purge() {
+		long now = System.currentTimeMillis();
+		Iterator<Worker> all = workerMap.values().iterator();
+		while (all.hasNext()) {
+			Worker worker = all.next();
+			if (!worker.busy && worker.expiry < now) {
+				all.remove();
+				worker.service.waiting.remove( worker);
+				worker.service.workers--;
+				evicted++;
+				log( "0", "Worker " + worker.key + " of " + worker.service.name + " evicted after "
+						+ HEARTBEAT_EXPIRY + " ms of silence, " + worker.service);
+			}
+		}
+		for (Service service : services.values()) {
+			while (!service.requests.isEmpty() && service.requests.peek().expires < now) {
+				service.requests.poll();
+				expired++;
+			}
+			for (Worker worker : service.waiting) {
+				send( worker.identity, HEARTBEAT_FRAME);
+			}
+		}
+	}
+
+	/** Send a command with no frames of its own to a worker.  */
+	private void send(byte[] identity, byte[] command) {
+		workers.sendMore( identity);
+		workers.sendMore( EMPTY);
+		workers.sendMore( PROTOCOL_FRAME);
+		workers.send( command, 0);
+	}
+
+	/**
+	 * Answer a request with an error reply, as a service would:  the request's header frames flagged
+	 * FLAG_ERROR and a body in the request's format, or a single JSON frame to a plain request.
+	 */
+	private void reject(byte[][] request, int body, String message) {
+		rejected++;
+		boolean versioned = isVersioned( request, body) && request.length > body + 4;
+		byte flags = (versioned && request[body + 4].length > 0) ? request[body + 4][0] : Envelope.FLAG_NONE;
+		String requestId	= versioned ? new String( request[body + 1], ZMQ.CHARSET) : "";
+		String serviceName	= versioned ? new String( request[body + 2], ZMQ.CHARSET) : "";
+		String requestType	= versioned ? new String( request[body + 3], ZMQ.CHARSET) : "";
+		FieldWriter writer = ((flags & Envelope.FLAG_BINARY) != 0) ? new BinaryWriter() : new JsonWriter();
+		byte[] errorBody = writer.beginObject()
+				.member( "requestId",	requestId)
+				.member( "serviceName",	serviceName)
+				.member( "requestType",	requestType)
+				.member( "error",		message)
+				.endObject().toByteArray();
+		for (int f=0; f<body; f++) {
+			clients.sendMore( request[f]);
+		}
+		if (versioned) {
+			for (int f=body; f<body + 4; f++) {
+				clients.sendMore( request[f]);
+			}
+			clients.sendMore( new byte[] { (byte) (flags | Envelope.FLAG_ERROR) });
+			if ((flags & Envelope.FLAG_TRACE) != 0 && request.length > body + 6) {
+				clients.sendMore( request[body + 5]);
+			}
+		}
+		clients.send( errorBody, 0);
+		pub2Logger.publish( requestId, "Broker", requestType, "error:" + message);
+	}
+
+	/**
+	 * Answer the command waiting on the control socket.
+	 *
+	 * @return false if the broker is to stop.
+	 */
+	private boolean control() {
+		String command = control.recvStr( ZMQ.DONTWAIT);
+		if (command == null) {
+			return true;
+		}
+		log( "-1", "control: " + command);
+		String[] words = command.trim().split( "\\s+");
+		if (words[0].equals( "stop")) {
+			control.send( "Broker being terminated");
+			return false;
+		}
+		else if (words[0].equals( "stats")) {
+			control.send( "Broker dispatched=" + dispatched + " expired=" + expired + " rejected=" + rejected
+					+ " evicted=" + evicted + " services=" + services.values() + socketStats());
+		}
+		else {
+			control.send( "Unknown command " + words[0] + ", expected stats or stop");
+		}
+		return true;
+	}
+
+	private void log(String requestId, String message) {
+		pub2Logger.publish( requestId, "Broker", "", message);
+	}
+
+	private static String socketStats() {
+		StringBuilder socketStats = new StringBuilder();
+		for (SocketStats stats : SocketFactory.allStats()) {
+			socketStats.append( "; ").append( stats);
+		}
+		return socketStats.toString();
+	}
+
+	/** @return every frame of the next message waiting on the socket, or null if there is none. */
+	private static byte[][] recvFrames(ZMQ.Socket socket) {
+		byte[] frame = socket.recv( ZMQ.DONTWAIT);
+		if (frame == null) {
+			return null;
+		}
+		byte[][] frames = new byte[8][];
+		int count = 0;
+		frames[count++] = frame;
+		while (socket.hasReceiveMore()) {
+			if (count == frames.length) {
+				frames = Arrays.copyOf( frames, 2 * count);
+			}
+			frames[count++] = socket.recv( 0);
+		}
+		return (count == frames.length) ? frames : Arrays.copyOf( frames, count);
+	}
+
+	/** @return the index of the empty frame that ends a client's routing frames, or -1 if there is none. */
+	private static int delimiter(byte[][] frames) {
+		for (int f=0; f<frames.length; f++) {
+			if (frames[f].length == 0) return f;
+		}
+		return -1;
+	}
+
+	/** @return true if the frames from the index on are an envelope with a serviceName frame. */
+	private static boolean isVersioned(byte[][] frames, int body) {
+		return frames.length > body + 2 && Arrays.equals( frames[body], VERSION_FRAME);
+	}
+
+	private static String hex(byte[] identity) {
+		StringBuilder hex = new StringBuilder( 2 * identity.length);
+		for (byte b : identity) {
+			hex.append( Character.forDigit( (b >> 4) & 0xF, 16)).append( Character.forDigit( b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	/** A service's queued requests and the workers waiting for them.  */
+	private static final class Service {
+		final String				name;
+		final ArrayDeque<Request>	requests	= new ArrayDeque<Request>();
+		final ArrayDeque<Worker>	waiting		= new ArrayDeque<Worker>();
+		int							workers		= 0;
+
+		Service(String name) {
+			this.name = name;
+		}
+
+		public String toString() {
+			return name + " workers=" + workers + " waiting=" + waiting.size() + " queued=" + requests.size();
+		}
+	}
+
+	/** A registered worker.  */
+	private static final class Worker {
+		final byte[]	identity;
+		final String	key;
+		final Service	service;
+		long			expiry;
+		boolean			busy	= false;
+
+		Worker(byte[] identity, String key, Service service) {
+			this.identity	= identity;
+			this.key		= key;
+			this.service	= service;
+		}
+	}
+
+	/** A client's request, as the frames it was received with, and when it is dropped if no worker has taken it.  */
+	private static final class Request {
+		final byte[][]	frames;
+		final long		expires;
+
+		Request(byte[][] frames, long expires) {
+			this.frames		= frames;
+			this.expires	= expires;
+		}
+	}
+
+	/**
+	 * Send a command to a Broker's control socket and wait for its answer.
+	 *
+	 * @param controlURL the URL the control socket is bound to.
+	 * @param command stats or stop.
+	 * @param timeout milliseconds to wait for the answer.
+	 *
+	 * @return the answer, or null if none came in time.
+	 */
+	public static String control(String controlURL, String command, long timeout) {
+		Context context = SocketFactory.acquireContext();
+		ZMQ.Socket request = SocketFactory.socket( context, ZMQ.REQ, "request", "Broker control client");
+		try {
+			request.setReceiveTimeOut( (int) timeout);
+			request.connect( SocketFactory.endpoint( controlURL));
+			request.send( command);
+			return request.recvStr();
+		}
+		finally {
+			SocketFactory.close( request);
+			SocketFactory.releaseContext();
+		}
+	}
+
+	/**
+	 * Main for Broker that creates and runs a broker, or with <code>control [controlURL] [command]</code>
+	 * sends a command to a running broker and prints its answer, e.g. <code>control tcp://localhost:5568 stats</code>.
+	 *
+	 * @param args The following arguments are required to start the broker:  <br>
+	 * args[0]:  The URL that the clients socket will be bound to, e.g. tcp://127.0.0.1:5565 <br>
+	 * args[1]:  The URL that the workers socket will be bound to, e.g. tcp://127.0.0.1:5566 <br>
+	 * args[2]:  The URL that the logger will be bound to, e.g. tcp://127.0.0.1:5556  <br>
+	 * args[3]:  The topic used by the logger, e.g. Project_Log.  <br>
+	 * args[4]:  Optional, the service requests with no serviceName are handed to, e.g. HelloService.
+	 */
+	public static void main( String[] args) {
+		if (args.length > 2 && args[0].equals( "control")) {
+			String command = String.join( " ", Arrays.copyOfRange( args, 2, args.length));
+			String answer = control( args[1], command, 5000);
+			System.out.println( (answer == null) ? "No answer from " + args[1] : answer);
+			System.exit( (answer == null) ? 1 : 0);
+		}
+		Broker broker = new Broker( args[0], args[1], args[2], args[3], (args.length > 4) ? args[4] : null);
+		broker.run();
+	}
+
+}
@@ -0,0 +1,154 @@
+package com.testlims.utilities;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * BinaryWriter writes a flat object of named members in the binary format read by
+ * {@link BinaryFields}, into a buffer that is kept and reused from one object to the next, as
+ * {@link JsonWriter} does for JSON.  Nothing is escaped:  each name and value is written as its
+ * UTF-8 bytes behind its length, so a large string value costs one copy.  A BinaryWriter is used
+ * by one thread at a time; a handler shared by several threads keeps one per thread.
+ *
+ * @author Marc Whitlow, Colabrativ, Inc.
+ */
+public final class BinaryWriter implements FieldWriter {
+	private static final byte[]	NULL		= "null".getBytes();
+
+	private byte[]				buffer;
+	private int					length		= 0;
+
+	/** BinaryWriter Constructor, with a buffer of 256 bytes.  */
+	public BinaryWriter() {
+		this( 256);
+	}
+
+	/**
+	 * BinaryWriter Constructor
+	 *
+	 * @param capacity the initial size of the buffer.
+	 */
+	public BinaryWriter(int capacity) {
+		buffer = new byte[Math.max( 16, capacity)];
+	}
+
+	/** @return this writer, emptied for the next object. */
+	public BinaryWriter reset() {
+		length = 0;
+		return this;
+	}
+
+	/** @return this writer, with the format's marker byte written. */
+	public BinaryWriter beginObject() {
+		ensure( 1);
+		buffer[length++] = BinaryFields.MAGIC;
+		return this;
+	}
+
+	/**
+	 * Write a member whose value is a string.
+	 *
+	 * @param name the member name.
+	 * @param value the member value, or null to write JSON null.
+	 *
+	 * @return this writer.
+	 */
+	public BinaryWriter member(String name, String value) {
+		if (value == null) {
+			return member( BinaryFields.KIND_JSON, name, NULL, 0, NULL.length);
+		}
+		kind( BinaryFields.KIND_STRING, name);
+		return bytes( value);
+	}
+
+	/**
+	 * Write a member whose string value is already encoded as UTF-8, e.g. a fixed piece of text.
+	 *
+	 * @param name the member name.
+	 * @param utf8 the member value's UTF-8 bytes.
+	 *
+	 * @return this writer.
+	 */
+	public BinaryWriter member(String name, byte[] utf8) {
+		return member( BinaryFields.KIND_STRING, name, utf8, 0, utf8.length);
+	}
+
+	/**
+	 * Write a member whose value is a JSON literal.
+	 *
+	 * @param name the member name.
+	 * @param json the value's JSON text.
+	 *
+	 * @return this writer.
+	 */
+	public BinaryWriter literal(String name, String json) {
+		kind( BinaryFields.KIND_JSON, name);
+		return bytes( json);
+	}
+
+	private BinaryWriter member(byte kind, String name, byte[] value, int offset, int count) {
+		kind( kind, name);
+		varint( count);
+		ensure( count);
+		System.arraycopy( value, offset, buffer, length, count);
+		length += count;
+		return this;
+	}
+
+	private void kind(byte kind, String name) {
+		ensure( 1);
+		buffer[length++] = kind;
+		bytes( name);
+	}
+
+	/** Write a string as its length and UTF-8 bytes, copying it a char to a byte while it is ASCII.  */
+	private BinaryWriter bytes(String value) {
+		int count = value.length();
+		for (int c=0; c<count; c++) {
+			if (value.charAt(c) >= 0x80) {
+				byte[] utf8 = value.getBytes( StandardCharsets.UTF_8);
+				varint( utf8.length);
+				ensure( utf8.length);
+				System.arraycopy( utf8, 0, buffer, length, utf8.length);
+				length += utf8.length;
+				return this;
+			}
+		}
+		varint( count);
+		ensure( count);
+		for (int c=0; c<count; c++) {
+			buffer[length++] = (byte) value.charAt(c);
+		}
+		return this;
+	}
+
+	/** Write a length as 7 bits a byte, low bits first, with the high bit set on all but the last byte.  */
+	private void varint(int value) {
+		ensure( 5);
+		while ((value & ~0x7F) != 0) {
+			buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[length++] = (byte) value;
+	}
+
+	/** @return this writer; the format has no end marker. */
+	public BinaryWriter endObject() {
+		return this;
+	}
+
+	private void ensure(int more) {
+		if (length + more > buffer.length) {
+			buffer = Arrays.copyOf( buffer, Math.max( length + more, 2 * buffer.length));
+		}
+	}
+
+	/** @return the buffer, whose first {@link #length} bytes are the object written. */
+	public byte[] getBuffer()		{ return buffer; }
+
+	/** @return the number of bytes written since the last reset. */
+	public int length()				{ return length; }
+
+	/** @return a copy of the bytes written since the last reset. */
+	public byte[] toByteArray()		{ return Arrays.copyOf( buffer, length); }
+}
@@ -0,0 +1,321 @@
+package com.testlims.utilities;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * JsonWriter writes a flat JSON object of string members as UTF-8 bytes into a buffer that is
+ * kept and reused from one object to the next, for the replies and log messages built on every
+ * request:
+ <pre>
+writer.reset().beginObject()
+      .member( "requestId",   requestId)
+      .member( "requestType", requestType)
+      .endObject();
+socket.send( writer.toByteArray(), 0);
+</pre>
+ * Strings are escaped as org.json's JSONObject.quote escapes them, so an object written here has
+ * the same bytes as a JSONObject with its members in the same order.  The buffer grows to the
+ * largest object written and is not shrunk.  A JsonWriter is used by one thread at a time; a
+ * handler shared by several threads keeps one per thread.  The {@link BinaryWriter} writes the
+ * same members in the binary format, and both are used through {@link FieldWriter}.
+ *
+ * @author Marc Whitlow, Colabrativ, Inc.
+ */
+public final class JsonWriter implements FieldWriter {
+	private static final byte[]	HEX			= "0123456789abcdef".getBytes();
+	private static final byte[]	NULL		= "null".getBytes();
+
+	private byte[]				buffer;
+	private int					length		= 0;
+	private boolean				firstMember	= true;
+
+	/** JsonWriter Constructor, with a buffer of 256 bytes.  */
+	public JsonWriter() {
+		this( 256);
+	}
+
+	/**
+	 * JsonWriter Constructor
+	 *
+	 * @param capacity the initial size of the buffer.
+	 */
+	public JsonWriter(int capacity) {
+		buffer = new byte[Math.max( 16, capacity)];
+	}
+
+	/** @return this writer, emptied for the next object. */
+	public JsonWriter reset() {
+		length		= 0;
+		firstMember	= true;
+		return this;
+	}
+
+	/** @return this writer, with the object opened. */
+	public JsonWriter beginObject() {
+		ensure( 1);
+		buffer[length++] = '{';
+		firstMember = true;
+		return this;
+	}
+
+	/**
+	 * Write a member of the object.
+	 *
+	 * @param name the member name.
+	 * @param value the member value, or null to write JSON null.
+	 *
+	 * @return this writer.
+	 */
+	public JsonWriter member(String name, String value) {
+		name( name);
+		return (value == null) ? raw( NULL) : string( value);
+	}
+
+	/**
+	 * Write a member whose value is already JSON text, e.g. a number.
+	 *
+	 * @param name the member name.
+	 * @param json the value's JSON text.
+	 *
+	 * @return this writer.
+	 */
+	public JsonWriter literal(String name, String json) {
+		name( name);
+		return raw( json.getBytes( StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Write the name of the next member, to be followed by its value, e.g. with {@link #raw}.
+	 *
+	 * @param name the member name.
+	 *
+	 * @return this writer.
+	 */
+	public JsonWriter name(String name) {
+		separate();
+		string( name);
+		ensure( 1);
+		buffer[length++] = ':';
+		return this;
+	}
+
+	/**
+	 * Write the name of the next member from its UTF-8 bytes.
+	 *
+	 * @param utf8 the array holding the name.
+	 * @param offset the index of the name's first byte.
+	 * @param count the number of bytes in the name.
+	 *
+	 * @return this writer.
+	 */
+	public JsonWriter name(byte[] utf8, int offset, int count) {
+		separate();
+		string( utf8, offset, count);
+		ensure( 1);
+		buffer[length++] = ':';
+		return this;
+	}
+
+	private void separate() {
+		ensure( 1);
+		if (!firstMember) {
+			buffer[length++] = ',';
+		}
+		firstMember = false;
+	}
+
+	/** @return this writer, with the object closed. */
+	public JsonWriter endObject() {
+		ensure( 1);
+		buffer[length++] = '}';
+		return this;
+	}
+
+	/**
+	 * Write a quoted, escaped string.
+	 *
+	 * @param value the string.
+	 *
+	 * @return this writer.
+	 */
+	public JsonWriter string(String value) {
+		ensure( 1);
+		buffer[length++] = '"';
+		characters( value);
+		ensure( 1);
+		buffer[length++] = '"';
+		return this;
+	}
+
+	/**
+	 * Write the escaped characters of a string, without its quotes, e.g. into a template.
+	 *
+	 * @param value the string.
+	 *
+	 * @return this writer.
+	 */
+	public JsonWriter characters(String value) {
+		int count = value.length();
+		ensure( count);
+		char previous = 0;
+		for (int c=0; c<count; c++) {
+			char ch = value.charAt(c);
+			if (ch >= 0x20 && ch < 0x80 && ch != '"' && ch != '\\' && ch != '/') {
+				buffer[length++] = (byte) ch;
+			}
+			else {
+				// An escape or a multi-byte character takes up to 12 bytes, the rest at least one each.
+				ensure( 12 + count - c);
+				if (ch < 0x80) {
+					escape( ch, previous);
+				}
+				else {
+					c = encode( value, c);
+				}
+			}
+			previous = ch;
+		}
+		return this;
+	}
+
+	/**
+	 * Write a quoted, escaped string from its UTF-8 bytes, without decoding it when it is ASCII.
+	 *
+	 * @param utf8 the array holding the string.
+	 * @param offset the index of the string's first byte.
+	 * @param count the number of bytes in the string.
+	 *
+	 * @return this writer.
+	 */
+	public JsonWriter string(byte[] utf8, int offset, int count) {
+		int end = offset + count;
+		for (int b=offset; b<end; b++) {
+			if (utf8[b] < 0) {
+				return string( new String( utf8, offset, count, StandardCharsets.UTF_8));
+			}
+		}
+		ensure( count + 2);
+		buffer[length++] = '"';
+		byte previous = 0;
+		for (int b=offset; b<end; b++) {
+			byte ch = utf8[b];
+			if (ch >= 0x20 && ch != '"' && ch != '\\' && ch != '/') {
+				buffer[length++] = ch;
+			}
+			else {
+				ensure( 7 + end - b);
+				escape( (char) ch, (char) previous);
+			}
+			previous = ch;
+		}
+		buffer[length++] = '"';
+		return this;
+	}
+
+	/** Write an ASCII character that is escaped, or not, as JSONObject.quote does.  */
+	private void escape(char ch, char previous) {
+		switch (ch) {
+			case '"':
+			case '\\':	buffer[length++] = '\\'; buffer[length++] = (byte) ch;	return;
+			case '/':
+				if (previous == '<') buffer[length++] = '\\';
+				buffer[length++] = '/';
+				return;
+			case '\b':	buffer[length++] = '\\'; buffer[length++] = 'b';	return;
+			case '\t':	buffer[length++] = '\\'; buffer[length++] = 't';	return;
+			case '\n':	buffer[length++] = '\\'; buffer[length++] = 'n';	return;
+			case '\f':	buffer[length++] = '\\'; buffer[length++] = 'f';	return;
+			case '\r':	buffer[length++] = '\\'; buffer[length++] = 'r';	return;
+			default:
+		}
+		if (ch < 0x20) {
+			unicode( ch);
+		}
+		else {
+			buffer[length++] = (byte) ch;
+		}
+	}
+
+	/** Write the non-ASCII character at index c, and return the index of the last character written.  */
+	private int encode(String value, int c) {
+		char ch = value.charAt(c);
+		if ((ch >= 0x80 && ch < 0xA0) || (ch >= 0x2000 && ch < 0x2100)) {
+			unicode( ch);
+		}
+		else if (ch < 0x800) {
+			buffer[length++] = (byte) (0xC0 | (ch >> 6));
+			buffer[length++] = (byte) (0x80 | (ch & 0x3F));
+		}
+		else if (Character.isHighSurrogate( ch) && c + 1 < value.length() && Character.isLowSurrogate( value.charAt( c + 1))) {
+			int code = Character.toCodePoint( ch, value.charAt( ++c));
+			buffer[length++] = (byte) (0xF0 | (code >> 18));
+			buffer[length++] = (byte) (0x80 | ((code >> 12) & 0x3F));
+			buffer[length++] = (byte) (0x80 | ((code >> 6) & 0x3F));
+			buffer[length++] = (byte) (0x80 | (code & 0x3F));
+		}
+		else if (Character.isSurrogate( ch)) {
+			buffer[length++] = '?';
+		}
+		else {
+			buffer[length++] = (byte) (0xE0 | (ch >> 12));
+			buffer[length++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+			buffer[length++] = (byte) (0x80 | (ch & 0x3F));
+		}
+		return c;
+	}
+
+	private void unicode(char ch) {
+		buffer[length++] = '\\';
+		buffer[length++] = 'u';
+		buffer[length++] = HEX[(ch >> 12) & 0xF];
+		buffer[length++] = HEX[(ch >> 8) & 0xF];
+		buffer[length++] = HEX[(ch >> 4) & 0xF];
+		buffer[length++] = HEX[ch & 0xF];
+	}
+
+	/**
+	 * Write bytes as they are, e.g. a part of a template that is already JSON.
+	 *
+	 * @param bytes the bytes.
+	 *
+	 * @return this writer.
+	 */
+	public JsonWriter raw(byte[] bytes) {
+		return raw( bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Write part of an array as it is, e.g. a member value that is already JSON.
+	 *
+	 * @param bytes the array.
+	 * @param offset the index of the first byte.
+	 * @param count the number of bytes.
+	 *
+	 * @return this writer.
+	 */
+	public JsonWriter raw(byte[] bytes, int offset, int count) {
+		ensure( count);
+		System.arraycopy( bytes, offset, buffer, length, count);
+		length += count;
+		return this;
+	}
+
+	private void ensure(int more) {
+		if (length + more > buffer.length) {
+			buffer = Arrays.copyOf( buffer, Math.max( length + more, 2 * buffer.length));
+		}
+	}
+
+	/** @return the buffer, whose first {@link #length} bytes are the object written. */
+	public byte[] getBuffer()		{ return buffer; }
+
+	/** @return the number of bytes written since the last reset. */
+	public int length()				{ return length; }
+
+	/** @return a copy of the bytes written since the last reset. */
+	public byte[] toByteArray()		{ return Arrays.copyOf( buffer, length); }
+
+	/** @return the bytes written since the last reset, as a string. */
+	public String toString()		{ return new String( buffer, 0, length, StandardCharsets.UTF_8); }
+}
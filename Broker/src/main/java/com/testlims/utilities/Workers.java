@@ -0,0 +1,97 @@
+package com.testlims.utilities;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Workers creates the threads that run blocking request handling:  a virtual thread per task
+ * when the JVM has virtual threads (Java 21 and later) and they are asked for, and otherwise
+ * named daemon platform threads, so the same Java 1.8 build runs unchanged on either JVM.
+ * <p>
+ * Virtual threads are reached by reflection, through Thread.ofVirtual() and
+ * Executors.newThreadPerTaskExecutor(), and are looked up once.  A thread blocked in a zeroMQ
+ * recv or a Thread.sleep on a virtual thread gives up its carrier thread, so handlers that wait
+ * need no tuned pool; each task simply gets its own thread.
+ *
+ * @author Marc Whitlow, Colabrativ, Inc.
+ */
+public final class Workers {
+
+	private static final ThreadFactory	VIRTUAL_FACTORY	= virtualFactory();
+
+	private Workers() {
+	}
+
+	/** @return true if this JVM can run virtual threads. */
+	public static boolean isVirtualAvailable() {
+		return VIRTUAL_FACTORY != null;
+	}
+
+	/**
+	 * @param name the name of the threads, numbered from 1, e.g. "ServiceBatch 3".
+	 * @param virtual true to create virtual threads when the JVM has them.
+	 *
+	 * @return a factory of virtual threads, or of daemon platform threads.
+	 */
+	public static ThreadFactory threadFactory(final String name, boolean virtual) {
+		final ThreadFactory virtualFactory = virtual ? VIRTUAL_FACTORY : null;
+		return new ThreadFactory() {
+			private final AtomicInteger threadCount = new AtomicInteger();
+			public Thread newThread(Runnable runnable) {
+				Thread thread = (virtualFactory == null) ? new Thread( runnable) : virtualFactory.newThread( runnable);
+				thread.setName( name + " " + threadCount.incrementAndGet());
+				if (virtualFactory == null) {
+					thread.setDaemon( true);
+				}
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * @param name the name of the threads.
+	 * @param virtual true to run each task on a virtual thread of its own when the JVM has them.
+	 * @param platformThreads the number of platform threads otherwise, or 0 to create them as
+	 * needed and keep idle ones for a minute.
+	 *
+	 * @return the executor.
+	 */
+	public static ExecutorService newExecutor(String name, boolean virtual, int platformThreads) {
+		ThreadFactory factory = threadFactory( name, virtual);
+		if (virtual && VIRTUAL_FACTORY != null) {
+			try {
+				Method perTask = Executors.class.getMethod( "newThreadPerTaskExecutor", ThreadFactory.class);
+				return (ExecutorService) perTask.invoke( null, factory);
+			}
+			catch (ReflectiveOperationException | RuntimeException e) {
+				System.err.print( StackTrace.asString( "Workers ERROR: Failed to create a virtual thread executor", e));
+			}
+		}
+		return (platformThreads > 0) ? Executors.newFixedThreadPool( platformThreads, factory)
+				: Executors.newCachedThreadPool( factory);
+	}
+
+	/**
+	 * @param virtual true if virtual threads were asked for.
+	 *
+	 * @return "virtual" or "platform", the kind of threads the executors run.
+	 */
+	public static String describe(boolean virtual) {
+		return (virtual && VIRTUAL_FACTORY != null) ? "virtual" : "platform";
+	}
+
+	/** @return Thread.ofVirtual().factory(), or null before Java 21 or when it is unusable. */
+	private static ThreadFactory virtualFactory() {
+		try {
+			Object builder = Thread.class.getMethod( "ofVirtual").invoke( null);
+			Method factory = Class.forName( "java.lang.Thread$Builder").getMethod( "factory");
+			return (ThreadFactory) factory.invoke( builder);
+		}
+		catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,252 @@
+package com.testlims.broker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.*;
+
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Context;
+
+import com.testlims.utilities.BrokerWorker;
+import com.testlims.utilities.Envelope;
+import com.testlims.utilities.SocketFactory;
+
+/**
+ * Unit tests for the Broker.
+ */
+public class BrokerTests
+{
+	static final String 	LOGGER_TOPIC		= "Project_Log";
+	static final String 	LOGGER_URL			= "tcp://localhost:5556";
+	static final String 	CLIENTS_URL			= "tcp://localhost:5565";
+	static final String 	WORKERS_URL			= "tcp://localhost:5566";
+	static final String		STOP_URL			= "inproc://BrokerTests-stop";
+
+	/**
+     * Test that the broker queues a request until a worker registers for its service, deals the
+     * requests to the service's workers in turn, and answers a request it cannot route with an
+     * error reply.
+	 *
+	 * @throws InterruptedException if there is an issue putting the thread to sleep.
+	 */
+	@Test
+    public void brokerShouldDispatchRequestsToWorkers() throws InterruptedException {
+		// Start the Broker
+		Broker broker = new Broker( CLIENTS_URL, WORKERS_URL, LOGGER_URL, LOGGER_TOPIC, null);
+		broker.start();
+
+		// Start Request Client, and send a request before there is a worker
+		Context clientContext = ZMQ.context(1);
+		ZMQ.Socket requestClient = clientContext.socket( ZMQ.REQ);
+		requestClient.setReceiveTimeOut( 2000);
+		requestClient.connect( CLIENTS_URL);
+		new Envelope( "1", "HelloService", "sayHello", Envelope.FLAG_NONE, "{\"name\":\"Tess\"}".getBytes()).send( requestClient);
+		Thread.sleep( 100);
+
+		// Start two workers
+		Context context = SocketFactory.acquireContext();
+		ZMQ.Socket stop = context.socket( ZMQ.PUB);
+		stop.bind( STOP_URL);
+		EchoWorker[] workers = { new EchoWorker( "worker1"), new EchoWorker( "worker2") };
+		for (EchoWorker worker : workers) {
+			worker.start();
+		}
+		Envelope reply1 = Envelope.recv( requestClient);
+
+		String[] replies = new String[4];
+		for (int r=0; r<replies.length; r++) {
+			new Envelope( String.valueOf( r + 2), "HelloService", "sayHello", Envelope.FLAG_NONE, new byte[0]).send( requestClient);
+			Envelope reply = Envelope.recv( requestClient);
+			replies[r] = (reply == null) ? null : reply.getRequestId() + ":" + reply.getBodyString();
+		}
+
+		// A plain single frame request names no service, and the broker has no default service
+		requestClient.send( "plain request".getBytes(), 0);
+		String reply6 = requestClient.recvStr();
+		String stats = Broker.control( broker.getControlURL(), "stats", 2000);
+
+		// Stop the workers and the broker
+		stop.send( "STOP");
+		for (EchoWorker worker : workers) {
+			worker.join( 2000);
+		}
+		String reply7 = Broker.control( broker.getControlURL(), "stop", 2000);
+		broker.join( 2000);
+
+		// ____________________ Check Results _____________________
+		assertNotNull( reply1);
+		assertEquals( "1",							reply1.getRequestId());
+		assertEquals( "HelloService",				reply1.getServiceName());
+		assertTrue( reply1.getBodyString(), reply1.getBodyString().endsWith( " sayHello {\"name\":\"Tess\"}"));
+		String all = Arrays.toString( replies);
+		assertTrue( all, all.contains( "2:worker") && all.contains( "5:worker"));
+		assertTrue( all, all.contains( "worker1 sayHello") && all.contains( "worker2 sayHello"));
+		assertNotNull( reply6);
+		assertTrue( reply6, reply6.contains( "\"error\":\"No serviceName to route the request by\""));
+		assertNotNull( stats);
+		assertTrue( stats, stats.startsWith( "Broker dispatched=5 expired=0 rejected=1 evicted=0 services=[HelloService workers=2 waiting=2 queued=0]"));
+		assertEquals( "Broker being terminated",	reply7);
+		assertTrue( !broker.isAlive());
+
+		stop.close();
+		SocketFactory.releaseContext();
+		requestClient.close();
+		clientContext.close();
+	}
+
+	/**
+     * Test that the broker heartbeats a waiting worker, evicts it once it has been silent for
+     * HEARTBEAT_LIVENESS heartbeats, and tells it to disconnect when it is heard from again.
+	 *
+	 * @throws InterruptedException if there is an issue putting the thread to sleep.
+	 */
+	@Test
+    public void brokerShouldEvictSilentWorkers() throws InterruptedException {
+		// Start the Broker
+		Broker broker = new Broker( CLIENTS_URL, WORKERS_URL, LOGGER_URL, LOGGER_TOPIC, "HelloService");
+		broker.start();
+
+		// Register a worker that never heartbeats
+		Context workerContext = ZMQ.context(1);
+		ZMQ.Socket worker = workerContext.socket( ZMQ.DEALER);
+		worker.setReceiveTimeOut( (int) (2 * BrokerWorker.HEARTBEAT_INTERVAL));
+		worker.connect( WORKERS_URL);
+		worker.sendMore( "");
+		worker.sendMore( BrokerWorker.PROTOCOL);
+		worker.sendMore( new byte[] { BrokerWorker.READY });
+		worker.send( "Silent");
+		String[] heartbeat = recvCommand( worker);
+		String stats1 = Broker.control( broker.getControlURL(), "stats", 2000);
+
+		Thread.sleep( Broker.HEARTBEAT_EXPIRY + BrokerWorker.HEARTBEAT_INTERVAL);
+		String stats2 = Broker.control( broker.getControlURL(), "stats", 2000);
+		while (worker.recv( ZMQ.DONTWAIT) != null) {
+			// Skip the heartbeats sent before the eviction.
+		}
+		worker.sendMore( "");
+		worker.sendMore( BrokerWorker.PROTOCOL);
+		worker.send( new byte[] { BrokerWorker.HEARTBEAT });
+		String[] disconnect = recvCommand( worker);
+
+		String reply = Broker.control( broker.getControlURL(), "stop", 2000);
+		broker.join( 2000);
+
+		// ____________________ Check Results _____________________
+		assertEquals( "[, MDPW01, 4]",			Arrays.toString( heartbeat));
+		assertNotNull( stats1);
+		assertTrue( stats1, stats1.contains( "evicted=0 services=[Silent workers=1 waiting=1 queued=0]"));
+		assertNotNull( stats2);
+		assertTrue( stats2, stats2.contains( "evicted=1 services=[Silent workers=0 waiting=0 queued=0]"));
+		assertEquals( "[, MDPW01, 5]",			Arrays.toString( disconnect));
+		assertEquals( "Broker being terminated",	reply);
+
+		worker.setLinger( 0);
+		worker.close();
+		workerContext.close();
+	}
+
+	/**
+     * Test that a worker busy with a request for longer than HEARTBEAT_EXPIRY, and so sending no
+     * heartbeats, is not evicted:  its reply reaches the client, and it waits for the next request.
+	 *
+	 * @throws InterruptedException if there is an issue putting the thread to sleep.
+	 */
+	@Test
+    public void brokerShouldKeepBusyWorkers() throws InterruptedException {
+		// Start the Broker
+		Broker broker = new Broker( CLIENTS_URL, WORKERS_URL, LOGGER_URL, LOGGER_TOPIC, null);
+		broker.start();
+
+		// Start a worker that takes longer over a request than a silent worker is allowed
+		Context context = SocketFactory.acquireContext();
+		ZMQ.Socket stop = context.socket( ZMQ.PUB);
+		stop.bind( STOP_URL);
+		long delay = Broker.HEARTBEAT_EXPIRY + BrokerWorker.HEARTBEAT_INTERVAL;
+		EchoWorker worker = new EchoWorker( "slowWorker", delay);
+		worker.start();
+
+		// Start Request Client
+		Context clientContext = ZMQ.context(1);
+		ZMQ.Socket requestClient = clientContext.socket( ZMQ.REQ);
+		requestClient.setReceiveTimeOut( (int) (2 * delay));
+		requestClient.connect( CLIENTS_URL);
+		new Envelope( "1", "HelloService", "sayHello", Envelope.FLAG_NONE, "{\"name\":\"Tess\"}".getBytes()).send( requestClient);
+		Envelope reply1 = Envelope.recv( requestClient);
+		String stats = Broker.control( broker.getControlURL(), "stats", 2000);
+
+		// Stop the worker and the broker
+		stop.send( "STOP");
+		worker.join( 2000);
+		String reply2 = Broker.control( broker.getControlURL(), "stop", 2000);
+		broker.join( 2000);
+
+		// ____________________ Check Results _____________________
+		assertNotNull( reply1);
+		assertEquals( "1",							reply1.getRequestId());
+		assertEquals( "slowWorker sayHello {\"name\":\"Tess\"}",	reply1.getBodyString());
+		assertNotNull( stats);
+		assertTrue( stats, stats.startsWith( "Broker dispatched=1 expired=0 rejected=0 evicted=0 services=[HelloService workers=1 waiting=1 queued=0]"));
+		assertEquals( "Broker being terminated",	reply2);
+		assertTrue( !broker.isAlive());
+
+		stop.close();
+		SocketFactory.releaseContext();
+		requestClient.close();
+		clientContext.close();
+	}
+
+	/** @return the frames of a command from the broker, the command as its number, or null if none came. */
+	private static String[] recvCommand(ZMQ.Socket worker) {
+		byte[] empty = worker.recv( 0);
+		if (empty == null) {
+			return null;
+		}
+		String protocol = worker.recvStr( 0);
+		byte[] command = worker.recv( 0);
+		while (worker.hasReceiveMore()) {
+			worker.recv( 0);
+		}
+		return new String[] { new String( empty), protocol, String.valueOf( command[0]) };
+	}
+
+	/** A worker answering each request with its name, the request type and the request body, after a delay. */
+	private static final class EchoWorker extends Thread {
+		private final String	name;
+		private final long		delay;
+
+		EchoWorker(String name) {
+			this( name, 0);
+		}
+
+		EchoWorker(String name, long delay) {
+			this.name	= name;
+			this.delay	= delay;
+		}
+
+		public void run() {
+			Context context = SocketFactory.acquireContext();
+			ZMQ.Socket stopped = context.socket( ZMQ.SUB);
+			stopped.subscribe( ZMQ.SUBSCRIPTION_ALL);
+			stopped.connect( STOP_URL);
+			BrokerWorker broker = new BrokerWorker( context, WORKERS_URL, "HelloService", name, stopped);
+			Envelope request;
+			while ((request = broker.receive()) != null) {
+				try {
+					Thread.sleep( delay);
+				}
+				catch (InterruptedException e) {
+					break;
+				}
+				request.reply( broker.getSocket(), Envelope.FLAG_NONE,
+						(name + " " + request.getRequestType() + " " + request.getBodyString()).getBytes());
+			}
+			broker.close();
+			stopped.close();
+			SocketFactory.releaseContext();
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package com.testlims.utilities;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH comparison of {@link JsonFields} and {@link JsonWriter} with org.json, and with the binary
+ * format's {@link BinaryFields} and {@link BinaryWriter}, for the work done on every sayHello
+ * request:  reading the header fields from the request body, and writing the reply.  The gateway's
+ * translation of a binary reply to JSON is measured as well.
+ * Run it with the jmh profile:
+ <pre>
+mvn -Pjmh test-compile exec:exec
+</pre>
+ *
+ * @author Marc Whitlow, Colabrativ, Inc.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JsonCodecBenchmark {
+
+	private final byte[]		request			= ("{\"requestId\":\"12\",\"serviceName\":\"HelloService\","
+												+ "\"requestType\":\"sayHello\",\"name\":\"Tess\"}").getBytes( StandardCharsets.UTF_8);
+	private final byte[]		binaryRequest	= BinaryFields.fromJson( request);
+	private final JsonWriter	writer			= new JsonWriter();
+	private final BinaryWriter	binaryWriter	= new BinaryWriter();
+	private final byte[]		binaryReply		= writeBinaryWriter();
+
+	@Benchmark
+	public String[] readJsonFields() {
+		return JsonFields.read( request, "requestId", "serviceName", "requestType");
+	}
+
+	@Benchmark
+	public String[] readBinaryFields() {
+		return BinaryFields.read( binaryRequest, "requestId", "serviceName", "requestType");
+	}
+
+	@Benchmark
+	public String[] readOrgJson() {
+		JSONObject requestJSON = new JSONObject( new String( request, StandardCharsets.UTF_8));
+		return new String[] { requestJSON.getString( "requestId"), requestJSON.getString( "serviceName"),
+				requestJSON.getString( "requestType") };
+	}
+
+	@Benchmark
+	public byte[] writeJsonWriter() {
+		return writer.reset().beginObject()
+				.member( "requestType",	"sayHello")
+				.member( "requestId",	"12")
+				.member( "response",	"Hello Tess")
+				.member( "serviceName",	"HelloService")
+				.endObject().toByteArray();
+	}
+
+	@Benchmark
+	public byte[] writeBinaryWriter() {
+		return binaryWriter.reset().beginObject()
+				.member( "requestType",	"sayHello")
+				.member( "requestId",	"12")
+				.member( "response",	"Hello Tess")
+				.member( "serviceName",	"HelloService")
+				.endObject().toByteArray();
+	}
+
+	@Benchmark
+	public byte[] translateBinaryToJson() {
+		return BinaryFields.toJson( binaryReply);
+	}
+
+	@Benchmark
+	public byte[] writeOrgJson() {
+		JSONObject responseJSON = new JSONObject();
+		responseJSON.put( "requestId",		"12");
+		responseJSON.put( "serviceName",	"HelloService");
+		responseJSON.put( "requestType",	"sayHello");
+		responseJSON.put( "response",		"Hello Tess");
+		return responseJSON.toString().getBytes( StandardCharsets.UTF_8);
+	}
+}
@@ -1,10 +1,25 @@
 package com.testlims.helloService;
 
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.json.JSONException;
-import org.json.JSONObject;
 import org.zeromq.ZMQ;
 import org.zeromq.ZMQ.Context;
 
+import com.testlims.utilities.BrokerWorker;
+import com.testlims.utilities.Envelope;
+import com.testlims.utilities.JsonFields;
+import com.testlims.utilities.LogPublisher;
+import com.testlims.utilities.SocketFactory;
+import com.testlims.utilities.SocketStats;
+import com.testlims.utilities.TraceContext;
+import com.testlims.utilities.Workers;
+
 /**
  * Implementation of a hello service using zeroMQ/jeroMQ REP (Response), where the constructor 
  * creates the HelloService with a response (REP) and a publisher to the logger (PUB) sockets. 
@@ -40,18 +55,113 @@ import org.zeromq.ZMQ.Context;
   "response":    "Hello Tess"
 } </pre> 
    </li>
-   <li>Text:  The only text string that is currently supported is TERMINATE_HELLO_SERVICE, 
-   which closing Hello service and logger sockets and terminate context.</li>
+   <li>Envelope:  The gateway sends the request as an {@link Envelope}, whose header frames 
+   carry the request ID, service name and request type, so the service dispatches without 
+   parsing the body, and the JSON body need not repeat them.  The reply is sent back in an 
+   envelope with the same header frames.  A gateway that passes the body through without 
+   looking inside it leaves the requestType frame empty, and the service reads it from the body. 
+   The service continues the request's {@link TraceContext} in a span of its own, adds the times 
+   it received the request and sent the reply, and logs with it.</li>
  </ol>
  * 
+ * The service is controlled out of band, on a REP control socket polled alongside the service 
+ * socket, so a client of the service cannot stop it and control costs the requests nothing. 
+ * The control socket is bound to the URL set by <code>-DhelloService.controlURL</code>, e.g. 
+ * tcp://localhost:5567, or otherwise to an inproc endpoint of its own, see {@link #getControlURL}. 
+ * It takes one command a message, and answers each with one line of text: 
+ <ul>
+   <li>drain [milliseconds]:  stop taking requests, finish those in flight, and close.  The answer 
+   is sent once they have finished, or the deadline, 5 seconds by default, has passed.  A single 
+   REP socket first handles the requests zeroMQ has already queued on it, as closing the socket 
+   would drop them.  Requests the service has not taken by the time it closes are left to the 
+   gateway, which retries them on the route's other endpoints, so a rolling restart drains each 
+   instance in turn without failing requests.</li>
+   <li>stop:  close at once, answering HelloService being terminated.</li>
+   <li>reload:  make the request handlers anew, see {@link #reload}.</li>
+   <li>stats:  the requests handled and in flight, the worker threads if any, the request types, and the socket statistics.</li>
+ </ul>
+ * A command is sent with {@link #control}, or from the command line with 
+ <pre>
+java com.testlims.helloService.HelloService control tcp://localhost:5567 drain 10000
+</pre>
+ * <p>
+ * Each request type is served by a {@link RequestHandler} registered in the service's 
+ * {@link RequestHandlers}, found with one lookup on the requestType and reused for every request. 
+ * sayHello and sendHTML are registered when the service is created, and further request types 
+ * with {@link #register}.  A request of a type with no handler, or that is not valid JSON, is 
+ * answered with an error reply, see {@link RequestHandlers#sendError}.  The header fields a request 
+ * carries in its body are read with {@link JsonFields}, without parsing the body into a JSONObject. 
+ * A request flagged {@link Envelope#FLAG_BINARY} has its body in the binary format of 
+ * {@link com.testlims.utilities.BinaryFields}, and is answered in the same format. 
+ * <p>
+ * By default one thread serves the REP socket and handles each request before receiving the next. 
+ * Started with a thread per request, the service binds a ROUTER socket instead, and the service 
+ * thread only receives requests and hands each to a handler thread of its own, a virtual thread 
+ * on Java 21 and later, see {@link Workers}.  A handler replies and logs on sockets leased for the 
+ * request, and the service thread forwards its reply from an inproc PULL socket to the ROUTER, so 
+ * a handler that blocks holds up no other request. 
+ * <p>
+ * Started with N workers, the service binds a ROUTER front end and an inproc DEALER back end, and 
+ * the service thread runs a zeroMQ proxy between them.  Each worker thread has a REP socket of its 
+ * own connected to the back end, its own publisher to the logger, and response handlers made once 
+ * and reused for every request, so requests are handled on N cores at once.  The DEALER deals the 
+ * requests to the workers in turn.  The service thread forwards the requests and replies itself, 
+ * counting those in flight, and stops the workers when it is stopped or drained. 
+ * <p>
+ * Started with N workers for a broker, the service binds no socket for requests.  Each worker 
+ * connects to the Broker instead, registers with the service name, e.g. HelloService, and is handed 
+ * requests by the broker one at a time, see {@link BrokerWorker}, so the service is scaled out by 
+ * starting more instances against the same broker, on any host.  A drain tells the workers to stop, 
+ * upon which each finishes the request in hand and tells the broker it is leaving. 
+ * <p>
+ * The service's sockets are made in the JVM's shared context by the {@link SocketFactory}, with the 
+ * service tuning profile set in zeroMQsockets.properties. 
+ * Log messages go through a {@link LogPublisher}, so the service starts as soon as the logger has 
+ * subscribed rather than after a fixed sleep, and messages logged before then are kept and sent. 
+ * 
  * @author Marc Whitlow, Colabrativ, Inc. 
  */
 public class HelloService extends Thread {
+	/** Milliseconds to wait at start for the logger to subscribe, before starting without it.  */
+	static final long	LOGGER_READY_TIMEOUT	= 1000;
+	/** Log messages kept per publisher until the logger has subscribed.  */
+	static final int	LOGGER_MAX_PENDING		= 1000;
+	/** Milliseconds to wait for each worker to stop once the service is terminated.  */
+	static final long	WORKER_STOP_TIMEOUT		= 1000;
+	/** Milliseconds a drain waits for the requests in flight when the command sets no deadline.  */
+	static final long	DRAIN_TIMEOUT			= 5000;
+	/** The system property setting the URL the control socket is bound to.  */
+	public static final String	CONTROL_URL_PROPERTY	= "helloService.controlURL";
+	/** The header fields read from the body of a request that does not carry them in its envelope.  */
+	private static final String[]	HEADER_FIELDS	= { "requestId", "serviceName", "requestType" };
+	
 	private Context 	context		= null; 
 	private ZMQ.Socket 	service		= null; 
-	private ZMQ.Socket 	pub2Logger	= null; 
+	private LogPublisher pub2Logger	= null; 
 	private String		loggerTopic	= null;
 	private String 		requestId	= "0";
+	private TraceContext trace		= null;
+	private String		loggerURL	= null;
+	private String		repliesURL	= null;
+	private ZMQ.Socket	replies		= null;
+	private ExecutorService handlers = null;
+	private ConcurrentLinkedQueue<HandlerSockets> handlerSockets = new ConcurrentLinkedQueue<HandlerSockets>();
+	private HandlerSockets serviceSockets = null;
+	private final RequestHandlers requestHandlers = defaultHandlers();
+	private Worker[]	workers		= null;
+	private String		workersURL	= null;
+	private String		stopURL		= null;
+	private ZMQ.Socket	backend		= null;
+	private ZMQ.Socket	stop		= null;
+	private String		brokerURL	= null;
+	private String		serviceName	= null;
+	private String		controlURL	= null;
+	private ZMQ.Socket	control		= null;
+	/** Requests received and not yet answered, counted by the service thread in the modes that forward replies.  */
+	private final AtomicInteger	inFlight		= new AtomicInteger();
+	private final AtomicLong	handledCount	= new AtomicLong();
+	/** When a drain must finish, or 0 when the service is not draining; used by the service thread only.  */
+	private long		drainDeadline	= 0;
 	
 	/**
 	 * HelloService Constructor 
@@ -61,88 +171,731 @@ public class HelloService extends Thread {
 	 * @param loggerTopic the logger topic, e.g. Project_Log. 
 	 */
 	public HelloService(String socketURL, String loggerURL, String loggerTopic) {
+		this( socketURL, loggerURL, loggerTopic, false);
+	}
+	
+	/**
+	 * HelloService Constructor 
+	 * 
+	 * @param socketURL The URL that the service will be bound to. 
+	 * @param loggerURL The URL of the logger.
+	 * @param loggerTopic the logger topic, e.g. Project_Log. 
+	 * @param threadPerRequest true to handle each request on a thread of its own, virtual when the JVM has them. 
+	 */
+	public HelloService(String socketURL, String loggerURL, String loggerTopic, boolean threadPerRequest) {
 		setDaemon(true);
 		this.loggerTopic = loggerTopic;
-		context = ZMQ.context(1);
+		this.loggerURL = loggerURL;
+		context = SocketFactory.acquireContext();
 		
-		pub2Logger = context.socket( ZMQ.PUB);
-		pub2Logger.connect( loggerURL); 
+		pub2Logger = new LogPublisher( context, loggerURL, loggerTopic, LOGGER_MAX_PENDING);
 		
-		service = context.socket( ZMQ.REP);
-		service.bind( socketURL);
-		try {
-			Thread.sleep( 20);
-		} catch (InterruptedException e) {
-			System.err.println( "HelloService InterruptedException Thread.sleep( 20)");
+		if (threadPerRequest) {
+			handlers	= Workers.newExecutor( "HelloService handler", true, 0);
+			repliesURL	= "inproc://HelloService-replies-" + System.identityHashCode( this);
+			replies		= SocketFactory.socket( context, ZMQ.PULL, "service", "HelloService replies");
+			replies.bind( repliesURL);
+		}
+		service = SocketFactory.socket( context, threadPerRequest ? ZMQ.ROUTER : ZMQ.REP, "service", "HelloService service");
+		service.bind( SocketFactory.endpoint( socketURL));
+		bindControl();
+		if (!threadPerRequest) {
+			serviceSockets = new HandlerSockets( service, pub2Logger);
+		}
+		awaitLogger();
+		log( "", "Started on socket " + SocketFactory.endpoint( socketURL) 
+				+ ((handlers == null) ? "" : " with a " + Workers.describe( true) + " thread per request"));
+	}
+	
+	/**
+	 * HelloService Constructor for a service handling requests on worker threads, each with a REP 
+	 * socket of its own, behind a ROUTER front end. 
+	 * 
+	 * @param socketURL The URL that the service will be bound to. 
+	 * @param loggerURL The URL of the logger.
+	 * @param loggerTopic the logger topic, e.g. Project_Log. 
+	 * @param workerCount the number of worker threads, or 0 for one per available processor. 
+	 */
+	public HelloService(String socketURL, String loggerURL, String loggerTopic, int workerCount) {
+		setDaemon(true);
+		this.loggerTopic = loggerTopic;
+		this.loggerURL = loggerURL;
+		context = SocketFactory.acquireContext();
+		
+		pub2Logger = new LogPublisher( context, loggerURL, loggerTopic, LOGGER_MAX_PENDING);
+		
+		String id	= "-" + System.identityHashCode( this);
+		workersURL	= "inproc://HelloService-workers" + id;
+		stopURL		= "inproc://HelloService-stop" + id;
+		backend		= SocketFactory.socket( context, ZMQ.DEALER, "service", "HelloService workers");
+		backend.bind( workersURL);
+		stop		= SocketFactory.socket( context, ZMQ.PUB, "service", "HelloService stop");
+		stop.bind( stopURL);
+		service = SocketFactory.socket( context, ZMQ.ROUTER, "service", "HelloService service");
+		service.bind( SocketFactory.endpoint( socketURL));
+		bindControl();
+		awaitLogger();
+		
+		workers = new Worker[(workerCount > 0) ? workerCount : Runtime.getRuntime().availableProcessors()];
+		for (int w=0; w<workers.length; w++) {
+			workers[w] = new Worker( w + 1);
+			workers[w].start();
+		}
+		log( "", "Started on socket " + SocketFactory.endpoint( socketURL) + " with " + workers.length + " workers");
+	}
+	
+	/** 
+	 * HelloService Constructor for a service whose worker threads take requests from a Broker, each 
+	 * on a socket of its own registered with the broker for the service name. 
+	 * 
+	 * @param brokerURL The URL of the broker's workers socket, e.g. tcp://localhost:5566. 
+	 * @param serviceName the service name the workers register with, e.g. HelloService. 
+	 * @param loggerURL The URL of the logger. 
+	 * @param loggerTopic the logger topic, e.g. Project_Log. 
+	 * @param workerCount the number of worker threads, or 0 for one per available processor. 
+	 */
+	public HelloService(String brokerURL, String serviceName, String loggerURL, String loggerTopic, int workerCount) {
+		setDaemon(true);
+		this.loggerTopic = loggerTopic;
+		this.loggerURL = loggerURL;
+		this.brokerURL = brokerURL;
+		this.serviceName = serviceName;
+		context = SocketFactory.acquireContext();
+		
+		pub2Logger = new LogPublisher( context, loggerURL, loggerTopic, LOGGER_MAX_PENDING);
+		
+		stopURL		= "inproc://HelloService-stop-" + System.identityHashCode( this);
+		stop		= SocketFactory.socket( context, ZMQ.PUB, "service", "HelloService stop");
+		stop.bind( stopURL);
+		bindControl();
+		awaitLogger();
+		
+		workers = new Worker[(workerCount > 0) ? workerCount : Runtime.getRuntime().availableProcessors()];
+		for (int w=0; w<workers.length; w++) {
+			workers[w] = new Worker( w + 1);
+			workers[w].start();
+		}
+		log( "", "Started " + workers.length + " workers for " + serviceName + " on broker " + SocketFactory.endpoint( brokerURL));
+	}
+	
+	/**
+	 * Register the handler of a request type, replacing any handler it had.  Requests of the type 
+	 * received from then on are handed to it. 
+	 * 
+	 * @param requestType the request type, e.g. sayHello. 
+	 * @param handler the handler, called for every request of the type from the threads that 
+	 * handle requests. 
+	 */
+	public void register(String requestType, RequestHandler handler) {
+		requestHandlers.register( requestType, handler);
+	}
+	
+	/** Bind the control socket, to the URL set by the helloService.controlURL property, or to an inproc endpoint of its own.  */
+	private void bindControl() {
+		String url	= System.getProperty( CONTROL_URL_PROPERTY);
+		controlURL	= (url == null) ? "inproc://HelloService-control-" + System.identityHashCode( this) : SocketFactory.endpoint( url);
+		control		= SocketFactory.socket( context, ZMQ.REP, "service", "HelloService control");
+		control.bind( controlURL);
+	}
+	
+	/** @return the endpoint the control socket is bound to, e.g. to send it commands with {@link #control}. */
+	public String getControlURL() {
+		return controlURL;
+	}
+	
+	/**
+	 * Reload the service, on the control socket's reload command.  HelloService makes its default 
+	 * request handlers anew, and keeps the handlers registered for other request types; a subclass 
+	 * may reload more, e.g. settings it reads at start.  Called on the service thread, between requests 
+	 * in the single thread mode, and while other threads may be handling requests in the others. 
+	 */
+	protected void reload() {
+		RequestHandlers defaults = defaultHandlers();
+		for (String requestType : defaults.requestTypes()) {
+			requestHandlers.register( requestType, defaults.get( requestType));
+		}
+	}
+	
+	/** @return the handlers of the request types every HelloService serves. */
+	private static RequestHandlers defaultHandlers() {
+		RequestHandlers requestHandlers = new RequestHandlers();
+		requestHandlers.register( "sayHello",	new SayHelloResponse());
+		requestHandlers.register( "sendHTML",	new SendHTMLResponse());
+		return requestHandlers;
+	}
+	
+	private void awaitLogger() {
+		if (!pub2Logger.awaitReady( LOGGER_READY_TIMEOUT)) {
+			System.err.println( "HelloService: logger at " + loggerURL + " not subscribed after " 
+					+ LOGGER_READY_TIMEOUT + " ms, log messages are kept until it is");
 		}
-		pub2Logger.send( loggerTopic + " 0:HelloService:Started on socket " + socketURL, 0);
 	}
 	
 	/** 
 	 * Run the Hello Service. 
 	 * <p>
-	 * If the service receives a TERMINATE_HELLO_SERVICE request, 
-	 * then the service and publisher to logger are closed and the context terminated. 
+	 * When the service is stopped or drained on its control socket, the service and publisher to 
+	 * logger are closed and the context released. 
 	 */
 	public void run()
 	{
-		while (!Thread.currentThread().isInterrupted()) {
-			String request = service.recvStr(); 
+		if (brokerURL != null) {
+			awaitWorkers();
+		}
+		else if (workers != null) {
+			proxyRequests();
+		}
+		else if (handlers == null) {
+			serveRequests();
+		}
+		else {
+			dispatchRequests();
+		}
+		
+		requestId	= "-1";
+		trace		= null;
+		log( "", "Closing service and logger sockets and terminate context." + socketStats());
+		if (handlers != null) {
+			handlers.shutdown();
+			try {
+				handlers.awaitTermination( 5, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			HandlerSockets sockets;
+			while ((sockets = handlerSockets.poll()) != null) {
+				SocketFactory.close( sockets.replies);
+				sockets.logger.close();
+			}
+			SocketFactory.close( replies);
+		}
+		if (workers != null) {
+			SocketFactory.close( stop);
+		}
+		if (backend != null) {
+			SocketFactory.close( backend);
+		}
+		SocketFactory.close( control);
+		if (service != null) {
+			SocketFactory.close( service);
+		}
+        pub2Logger.close();
+		SocketFactory.releaseContext();
+	}
+	
+	/** 
+	 * Receive each request on the REP socket, and handle it before receiving the next, until the 
+	 * service is stopped or drained.  No request is in flight between two, but zeroMQ may already 
+	 * have queued more on the socket, which closing it would drop:  a drain handles those first, 
+	 * see {@link #drainQueued}. 
+	 */
+	private void serveRequests() {
+		ZMQ.Poller poller = context.poller( 2);
+		int serviceIndex = poller.register( service, ZMQ.Poller.POLLIN);
+		int controlIndex = poller.register( control, ZMQ.Poller.POLLIN);
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				if (poller.poll() < 0) {
+					break;
+				}
+				if (poller.pollin( controlIndex) && (!control() || drainQueued())) {
+					break;
+				}
+				if (poller.pollin( serviceIndex)) {
+					serveNext();
+				}
+			}
+		}
+		finally {
+			poller.close();
+		}
+	}
+	
+	/** 
+	 * Handle the next request queued on the REP socket, if there is one. 
+	 * 
+	 * @return false if no request was waiting. 
+	 */
+	private boolean serveNext() {
+		Envelope request = Envelope.recv( service, ZMQ.DONTWAIT); 
+		if (request == null) {
+			return false;
+		}
+		trace = startTrace( request);
+		handle( request, serviceSockets);
+		requestId = request.getRequestId();
+		return true;
+	}
+	
+	/** 
+	 * While draining, handle the requests zeroMQ has already queued on the REP socket, until none 
+	 * is left or the drain's deadline has passed, then answer the drain. 
+	 * 
+	 * @return true once the drain has been answered, or false if the service is not draining. 
+	 */
+	private boolean drainQueued() {
+		if (drainDeadline == 0) {
+			return false;
+		}
+		while (System.currentTimeMillis() < drainDeadline && serveNext()) {
+			// Handle each queued request in turn.
+		}
+		return drained();
+	}
+	
+	/** 
+	 * Proxy requests from the ROUTER to the workers and their replies back, counting those in 
+	 * flight, until the service is stopped or drained, then forward the replies already sent and 
+	 * stop the workers. 
+	 */
+	private void proxyRequests() {
+		ZMQ.Poller poller = context.poller( 3);
+		int serviceIndex = poller.register( service, ZMQ.Poller.POLLIN);
+		int backendIndex = poller.register( backend, ZMQ.Poller.POLLIN);
+		int controlIndex = poller.register( control, ZMQ.Poller.POLLIN);
+		boolean serving = true;
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				if (poller.poll( pollTimeout()) < 0) {
+					break;
+				}
+				if (poller.pollin( backendIndex)) {
+					inFlight.addAndGet( -forward( backend, service));
+				}
+				if (poller.pollin( controlIndex) && !control()) {
+					break;
+				}
+				if (serving && drainDeadline != 0) {
+					poller.unregister( service);
+					serving = false;
+				}
+				if (drained()) {
+					break;
+				}
+				if (serving && poller.pollin( serviceIndex)) {
+					inFlight.addAndGet( forward( service, backend));
+				}
+			}
+		}
+		finally {
+			poller.close();
+		}
+		forward( backend, service);
+		stopWorkers( WORKER_STOP_TIMEOUT);
+	}
+	
+	/** 
+	 * Wait for commands on the control socket while the workers take requests from the broker, 
+	 * until the service is stopped or drained.  A drain stops the workers, and is answered once 
+	 * each has finished the request in hand, or the drain's deadline has passed. 
+	 */
+	private void awaitWorkers() {
+		ZMQ.Poller poller = context.poller( 1);
+		int controlIndex = poller.register( control, ZMQ.Poller.POLLIN);
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				if (poller.poll() < 0) {
+					break;
+				}
+				if (poller.pollin( controlIndex) && !control()) {
+					break;
+				}
+				if (drainDeadline != 0) {
+					stopWorkers( Math.max( 1, drainDeadline - System.currentTimeMillis()));
+					// The workers have finished, or had their time:  answer the drain either way.
+					drainDeadline = Math.min( drainDeadline, System.currentTimeMillis());
+					drained();
+					return;
+				}
+			}
+		}
+		finally {
+			poller.close();
+		}
+		stopWorkers( WORKER_STOP_TIMEOUT);
+	}
+	
+	/** 
+	 * Tell the workers to stop, and wait for each to finish its request in hand. 
+	 * 
+	 * @param timeout milliseconds to wait for each worker. 
+	 */
+	private void stopWorkers(long timeout) {
+		stop.send( "STOP");
+		for (Worker worker : workers) {
+			try {
+				worker.join( timeout);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	/** 
+	 * Receive each request on the ROUTER socket and hand it to a handler thread, and forward 
+	 * the handlers' replies to the ROUTER as they arrive, until the service is stopped or drained. 
+	 */
+	private void dispatchRequests() {
+		ZMQ.Poller poller = context.poller( 3);
+		int serviceIndex = poller.register( service, ZMQ.Poller.POLLIN);
+		int repliesIndex = poller.register( replies, ZMQ.Poller.POLLIN);
+		int controlIndex = poller.register( control, ZMQ.Poller.POLLIN);
+		boolean serving = true;
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				if (poller.poll( pollTimeout()) < 0) {
+					break;
+				}
+				if (poller.pollin( repliesIndex)) {
+					inFlight.addAndGet( -forward( replies, service));
+				}
+				if (poller.pollin( controlIndex) && !control()) {
+					break;
+				}
+				if (serving && drainDeadline != 0) {
+					poller.unregister( service);
+					serving = false;
+				}
+				if (drained()) {
+					break;
+				}
+				if (serving && poller.pollin( serviceIndex)) {
+					final Envelope request = Envelope.recvRouted( service, ZMQ.DONTWAIT);
+					if (request == null) {
+						continue;
+					}
+					trace = startTrace( request);
+					inFlight.incrementAndGet();
+					handlers.execute( new Runnable() {
+						public void run() {
+							HandlerSockets sockets = leaseSockets();
+							try {
+								handle( request, sockets);
+							}
+							finally {
+								handlerSockets.offer( sockets);
+							}
+						}
+					});
+				}
+			}
+		}
+		finally {
+			poller.close();
+		}
+	}
+	
+	/** @return milliseconds to poll for, until the drain deadline while draining, else -1 to wait for the next message. */
+	private long pollTimeout() {
+		return (drainDeadline == 0) ? -1 : Math.max( 1, drainDeadline - System.currentTimeMillis());
+	}
+	
+	/** 
+	 * Carry out the command waiting on the control socket, and answer it, but for a drain, which 
+	 * is answered by {@link #drained} once it has finished. 
+	 * 
+	 * @return false if the service is to stop at once. 
+	 */
+	private boolean control() {
+		String command = control.recvStr( ZMQ.DONTWAIT);
+		if (command == null) {
+			return true;
+		}
+		pub2Logger.publish( "-1", "HelloService", "", null, "control: " + command);
+		String[] words = command.trim().split( "\\s+");
+		if (words[0].equals( "drain")) {
+			try {
+				drainDeadline = System.currentTimeMillis() + ((words.length > 1) ? Long.parseLong( words[1]) : DRAIN_TIMEOUT);
+				return true;
+			}
+			catch (NumberFormatException e) {
+				control.send( "Invalid drain deadline " + words[1]);
+			}
+		}
+		else if (words[0].equals( "stop")) {
+			control.send( "HelloService being terminated");
+			return false;
+		}
+		else if (words[0].equals( "reload")) {
+			reload();
+			control.send( "HelloService reloaded " + requestHandlers.requestTypes());
+		}
+		else if (words[0].equals( "stats")) {
+			control.send( "HelloService handled=" + handledCount.get() + " inFlight=" + inFlight.get() 
+					+ ((workers == null) ? "" : " workers=" + workers.length) + " requestTypes=" + requestHandlers.requestTypes() + socketStats());
+		}
+		else {
+			control.send( "Unknown command " + words[0] + ", expected drain [milliseconds], stop, reload or stats");
+		}
+		return true;
+	}
+	
+	/** 
+	 * @return true, once the answer to the drain command has been sent, if the service is draining 
+	 * and no request is in flight or the drain's deadline has passed. 
+	 */
+	private boolean drained() {
+		if (drainDeadline == 0) {
+			return false;
+		}
+		int left = inFlight.get();
+		if (left > 0 && System.currentTimeMillis() < drainDeadline) {
+			return false;
+		}
+		control.send( (left == 0) ? "HelloService drained" : "HelloService drain deadline passed with " + left + " requests in flight");
+		return true;
+	}
+	
+	private static String socketStats() {
+		StringBuilder socketStats = new StringBuilder();
+		for (SocketStats stats : SocketFactory.allStats()) {
+			socketStats.append( "; ").append( stats);
+		}
+		return socketStats.toString();
+	}
+	
+	/** 
+	 * Forward every whole message waiting on one socket to another, e.g. the PULL socket to the ROUTER. 
+	 * 
+	 * @return the number of messages forwarded. 
+	 */
+	private static int forward(ZMQ.Socket from, ZMQ.Socket to) {
+		int count = 0;
+		byte[] frame;
+		while ((frame = from.recv( ZMQ.DONTWAIT)) != null) {
+			while (from.hasReceiveMore()) {
+				to.sendMore( frame);
+				frame = from.recv( 0);
+			}
+			to.send( frame, 0);
+			count++;
+		}
+		return count;
+	}
+	
+	/** 
+	 * @return a PUSH socket to the service thread and a publisher to the logger, used by one 
+	 * handler at a time and kept for the next.  While the logger is up, a new publisher waits 
+	 * for its subscription, so the handler's first messages are sent with its request. 
+	 */
+	private HandlerSockets leaseSockets() {
+		HandlerSockets sockets = handlerSockets.poll();
+		if (sockets == null) {
+			sockets = new HandlerSockets( SocketFactory.socket( context, ZMQ.PUSH, "service", "HelloService handler replies"), 
+					new LogPublisher( context, loggerURL, loggerTopic, LOGGER_MAX_PENDING));
+			sockets.replies.connect( repliesURL);
+			if (pub2Logger.wasReady()) {
+				sockets.logger.awaitReady( LOGGER_READY_TIMEOUT);
+			}
+		}
+		return sockets;
+	}
+	
+	/** The sockets a handler thread replies and logs on.  */
+	private static final class HandlerSockets {
+		final ZMQ.Socket	replies;
+		final LogPublisher	logger;
+		
+		HandlerSockets(ZMQ.Socket replies, LogPublisher logger) {
+			this.replies	= replies;
+			this.logger		= logger;
+		}
+	}
+	
+	/** 
+	 * A worker thread, receiving requests from the DEALER back end on a REP socket of its own, 
+	 * or from the broker, until the service thread tells it to stop. 
+	 */
+	private final class Worker extends Thread {
+		
+		Worker(int number) {
+			super( "HelloService worker " + number);
+			setDaemon( true);
+		}
+		
+		public void run() {
+			if (brokerURL != null) {
+				serveBroker();
+				return;
+			}
+			HandlerSockets sockets = new HandlerSockets( SocketFactory.socket( context, ZMQ.REP, "service", "HelloService worker"), 
+					new LogPublisher( context, loggerURL, loggerTopic, LOGGER_MAX_PENDING));
+			sockets.replies.connect( workersURL);
+			ZMQ.Socket stopped = SocketFactory.socket( context, ZMQ.SUB, "service", "HelloService worker stop");
+			stopped.subscribe( ZMQ.SUBSCRIPTION_ALL);
+			stopped.connect( stopURL);
+			if (pub2Logger.wasReady()) {
+				sockets.logger.awaitReady( LOGGER_READY_TIMEOUT);
+			}
 			
-            // Create a responses
-			if (request.contains( "TERMINATE_HELLO_SERVICE")) {
-				requestId = "-1";
-				pub2Logger.send( loggerTopicIDClassName() + ":request: TERMINATE_HELLO_SERVICE", 0);
-				service.send( "HelloService being terminated".getBytes(), 0);
-				break;
-			}
-			else {
-				String logRequestMessage  = "";
-				String logResponseMessage = "";
-				
-				try {
-					JSONObject requestJSON = new JSONObject( request);
-					requestId			= requestJSON.getString( "requestId");
-					String requestType	= requestJSON.getString( "requestType");
-					logRequestMessage	= loggerTopicIDClassName() + ":" + requestType + ".request";
-					logResponseMessage	= loggerTopicIDClassName() + ":" + requestType + ".response";
-					
-					if (requestType.equals( "sayHello")) { 
-						SayHelloResponse serviceRepsonse = new SayHelloResponse( service, pub2Logger);
-						serviceRepsonse.send( requestJSON, logRequestMessage, logResponseMessage);
+			ZMQ.Poller poller = context.poller( 2);
+			int requestsIndex	= poller.register( sockets.replies, ZMQ.Poller.POLLIN);
+			int stopIndex		= poller.register( stopped, ZMQ.Poller.POLLIN);
+			try {
+				while (!Thread.currentThread().isInterrupted()) {
+					if (poller.poll() < 0 || poller.pollin( stopIndex)) {
+						break;
 					}
-					else if (requestType.equals( "sendHTML")) {
-						SendHTMLResponse serviceRepsonse = new SendHTMLResponse( service, pub2Logger);
-						serviceRepsonse.send( requestJSON, logRequestMessage, logResponseMessage);
+					if (!poller.pollin( requestsIndex)) {
+						continue;
 					}
-				}
-				catch (JSONException e) {
-					logRequestMessage	= loggerTopicIDClassName() + ":JSON Issue in " + request;
-					logResponseMessage	= loggerTopicIDClassName() + ":JSON Issue, see request above.";
+					Envelope request = Envelope.recv( sockets.replies, ZMQ.DONTWAIT);
+					if (request == null) {
+						continue;
+					}
+					startTrace( request);
+					handle( request, sockets);
 				}
 			}
+			finally {
+				poller.close();
+				SocketFactory.close( stopped);
+				SocketFactory.close( sockets.replies);
+				sockets.logger.close();
+			}
 		}
 		
-		pub2Logger.send( (loggerTopicIDClassName() + ":Closing service and logger sockets and terminate context."), 0);
-		service.close();
-        pub2Logger.close();
-		context.close();
+		/** 
+		 * Handle the requests the broker hands the worker, one at a time, until the service thread 
+		 * tells it to stop, then tell the broker it is leaving. 
+		 */
+		private void serveBroker() {
+			LogPublisher logger = new LogPublisher( context, loggerURL, loggerTopic, LOGGER_MAX_PENDING);
+			ZMQ.Socket stopped = SocketFactory.socket( context, ZMQ.SUB, "service", "HelloService worker stop");
+			stopped.subscribe( ZMQ.SUBSCRIPTION_ALL);
+			stopped.connect( stopURL);
+			if (pub2Logger.wasReady()) {
+				logger.awaitReady( LOGGER_READY_TIMEOUT);
+			}
+			
+			BrokerWorker broker = new BrokerWorker( context, brokerURL, serviceName, "HelloService broker worker", stopped);
+			HandlerSockets sockets = new HandlerSockets( broker.getSocket(), logger);
+			try {
+				Envelope request;
+				while ((request = broker.receive()) != null) {
+					if (sockets.replies != broker.getSocket()) {
+						// Connected again after losing the broker. 
+						sockets = new HandlerSockets( broker.getSocket(), logger);
+					}
+					inFlight.incrementAndGet();
+					try {
+						startTrace( request);
+						handle( request, sockets);
+					}
+					finally {
+						inFlight.decrementAndGet();
+					}
+				}
+			}
+			finally {
+				broker.close();
+				SocketFactory.close( stopped);
+				logger.close();
+			}
+		}
 	}
 	
-	private String loggerTopicIDClassName() {
-		return loggerTopic + " " + requestId + ":HelloService";
+	/** @return the request's trace, continued in a span of the service's own and marked received. */
+	private static TraceContext startTrace(Envelope request) {
+		TraceContext trace = (request.getTrace() == null) ? TraceContext.start() : request.getTrace().child();
+		request.setTrace( trace.mark( TraceContext.SERVICE_RECEIVED));
+		return trace;
+	}
+	
+	/** 
+	 * Dispatch one request to the handler for its request type. 
+	 * 
+	 * @param request the request envelope. 
+	 * @param sockets the socket the reply is sent on, and the publisher the handler logs on. 
+	 */
+	private void handle(Envelope request, HandlerSockets sockets) {
+		handledCount.incrementAndGet();
+		try {
+			if (!request.isVersioned()) {
+				// Plain JSON request:  the header fields are in the body. 
+				String[] header = JsonFields.read( request.getBody(), HEADER_FIELDS);
+				request.setHeader( JsonFields.require( header[0], "requestId"), 
+						JsonFields.require( header[1], "serviceName"), JsonFields.require( header[2], "requestType"));
+			}
+			else if (request.getRequestType().isEmpty()) {
+				// Passed through by a gateway that did not look inside the body. 
+				String[] header = request.readFields( HEADER_FIELDS);
+				request.setHeader( request.getRequestId(), 
+						(header[1] == null) ? "" : header[1], JsonFields.require( header[2], "requestType"));
+			}
+		}
+		catch (JSONException e) {
+			RequestHandlers.sendError( request, sockets.replies, sockets.logger, "JSON Issue in " + request.getBodyString());
+			return;
+		}
+		requestHandlers.dispatch( request, sockets.replies, sockets.logger);
+	}
+	
+	private void log(String requestType, String message) {
+		pub2Logger.publish( requestId, "HelloService", requestType, trace, message);
 	}
     
 	/**
-	 * Main for HelloService1 that creates a REP instance and starts the Hello service. 
+	 * Send a command to a HelloService's control socket and wait for its answer. 
+	 * 
+	 * @param controlURL the URL the control socket is bound to. 
+	 * @param command drain [milliseconds], stop, reload or stats. 
+	 * @param timeout milliseconds to wait for the answer; a drain is answered once it has finished. 
+	 * 
+	 * @return the answer, or null if none came in time. 
+	 */
+	public static String control(String controlURL, String command, long timeout) {
+		Context context = SocketFactory.acquireContext();
+		ZMQ.Socket request = SocketFactory.socket( context, ZMQ.REQ, "request", "HelloService control client");
+		try {
+			request.setReceiveTimeOut( (int) timeout);
+			request.connect( SocketFactory.endpoint( controlURL));
+			request.send( command);
+			return request.recvStr();
+		}
+		finally {
+			SocketFactory.close( request);
+			SocketFactory.releaseContext();
+		}
+	}
+	
+	/**
+	 * Main for HelloService1 that creates a REP instance and starts the Hello service, or with 
+	 * <code>control [controlURL] [command]</code> sends a command to a running service and prints 
+	 * its answer, e.g. <code>control tcp://localhost:5567 drain 10000</code>. 
 	 * 
 	 * @param args The following arguments are required to start message logger:  <br>
 	 * args[0]:  The URL that the service will be bound to, e.g. tcp://127.0.0.1:5557 <br>
 	 * args[1]:  The URL that the logger will be bound to, e.g. tcp://127.0.0.1:5555  <br>
-	 * args[2]:  The topic used by the logger, e.g. Project_Log. 
+	 * args[2]:  The topic used by the logger, e.g. Project_Log.  <br>
+	 * args[3]:  Optional, "threadPerRequest" to handle each request on a thread of its own, 
+	 *           a virtual thread on Java 21 and later, or "workers" to handle requests on one 
+	 *           worker thread per available processor, or "workers=N" on N worker threads, 
+	 *           or "broker" or "broker=N" to take requests from the Broker on worker threads, 
+	 *           when args[0] is the URL of the broker's workers socket, e.g. tcp://127.0.0.1:5566. 
 	 */
 	public static void main( String[] args) { 
-		HelloService helloService = new HelloService( args[0], args[1], args[2]);
+		if (args.length > 2 && args[0].equals( "control")) {
+			String command = String.join( " ", Arrays.copyOfRange( args, 2, args.length));
+			String answer = control( args[1], command, command.startsWith( "drain") ? DRAIN_TIMEOUT + 60000 : 5000);
+			System.out.println( (answer == null) ? "No answer from " + args[1] : answer);
+			System.exit( (answer == null) ? 1 : 0);
+		}
+		String mode = (args.length > 3) ? args[3] : "";
+		HelloService helloService;
+		if (mode.startsWith( "broker")) {
+			int workerCount = mode.startsWith( "broker=") ? Integer.parseInt( mode.substring( "broker=".length())) : 0;
+			helloService = new HelloService( args[0], "HelloService", args[1], args[2], workerCount);
+		}
+		else if (mode.startsWith( "workers")) {
+			int workerCount = mode.startsWith( "workers=") ? Integer.parseInt( mode.substring( "workers=".length())) : 0;
+			helloService = new HelloService( args[0], args[1], args[2], workerCount);
+		}
+		else {
+			helloService = new HelloService( args[0], args[1], args[2], mode.equals( "threadPerRequest"));
+		}
 		helloService.run();
 	}
 	
@@ -0,0 +1,34 @@
+package com.testlims.helloService;
+
+import org.json.JSONException;
+import org.zeromq.ZMQ.Socket;
+
+import com.testlims.utilities.Envelope;
+import com.testlims.utilities.LogPublisher;
+
+/**
+ * A handler of one HelloService request type, registered in the service's {@link RequestHandlers}
+ * under that type.  A handler is created once and called for every request of its type, from
+ * whichever thread received the request, so it keeps no state of its own between requests; the
+ * socket to reply on and the publisher to log on are those of the calling thread.
+ * <p>
+ * A handler reads what it needs from the request body with {@link Envelope#readFields}, which reads
+ * JSON or the binary format as the request's flags say, replies in the request's format, see
+ * {@link Envelope#getFormat}, and sends exactly one reply, or throws before it has sent one, in
+ * which case the service sends an error reply for it.
+ *
+ * @author Marc Whitlow, Colabrativ, Inc.
+ */
+public interface RequestHandler {
+
+	/**
+	 * Handle a request and send its reply.
+	 *
+	 * @param request the request envelope, with its header fields filled in.
+	 * @param replySocket the socket the reply is sent on.
+	 * @param logger the publisher to the message logger.
+	 *
+	 * @throws JSONException if the request body is not what the request type needs.
+	 */
+	void handle(Envelope request, Socket replySocket, LogPublisher logger) throws JSONException;
+}
@@ -0,0 +1,105 @@
+package com.testlims.helloService;
+
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.zeromq.ZMQ.Socket;
+
+import com.testlims.utilities.BinaryWriter;
+import com.testlims.utilities.Envelope;
+import com.testlims.utilities.FieldWriter;
+import com.testlims.utilities.JsonWriter;
+import com.testlims.utilities.LogPublisher;
+import com.testlims.utilities.TraceContext;
+
+/**
+ * RequestHandlers maps each request type HelloService serves to its {@link RequestHandler}, so a
+ * request is dispatched with one hash lookup on its requestType, and a request type is added by
+ * registering its handler rather than by changing the service's receive loop.
+ * <p>
+ * A request whose type has no handler, or whose handler fails before replying, is answered with
+ * the standard error reply, so the client's REQ socket is never left waiting for a reply that will
+ * not come.  The error reply is an envelope with {@link Envelope#FLAG_ERROR} set, whose body is
+ <pre>{
+  "requestId":   "anId",
+  "serviceName": "HelloService",
+  "requestType": "anUnknownType",
+  "error":       "Unknown requestType anUnknownType"
+} </pre>
+ * and a plain JSON request gets the same body as a single frame.  A request in the binary format
+ * gets the same members in the binary format, with {@link Envelope#FLAG_BINARY} set as well.
+ *
+ * @author Marc Whitlow, Colabrativ, Inc.
+ */
+public class RequestHandlers {
+
+	private final ConcurrentHashMap<String,RequestHandler> handlers = new ConcurrentHashMap<String,RequestHandler>();
+
+	/**
+	 * Register the handler of a request type, replacing any handler it had.
+	 *
+	 * @param requestType the request type, e.g. sayHello.
+	 * @param handler the handler, called for every request of the type.
+	 */
+	public void register(String requestType, RequestHandler handler) {
+		handlers.put( requestType, handler);
+	}
+
+	/**
+	 * @param requestType the request type, e.g. sayHello.
+	 *
+	 * @return the handler of the request type, or null if it has none.
+	 */
+	public RequestHandler get(String requestType) {
+		return handlers.get( requestType);
+	}
+
+	/** @return the request types that have a handler, in name order. */
+	public Set<String> requestTypes() {
+		return new TreeSet<String>( handlers.keySet());
+	}
+
+	/**
+	 * Hand a request to the handler of its type, or send the error reply if it has none.
+	 *
+	 * @param request the request envelope, with its header fields filled in.
+	 * @param replySocket the socket the reply is sent on.
+	 * @param logger the publisher to the message logger.
+	 */
+	public void dispatch(Envelope request, Socket replySocket, LogPublisher logger) {
+		RequestHandler handler = handlers.get( request.getRequestType());
+		if (handler == null) {
+			sendError( request, replySocket, logger, "Unknown requestType " + request.getRequestType());
+			return;
+		}
+		try {
+			handler.handle( request, replySocket, logger);
+		}
+		catch (RuntimeException e) {
+			sendError( request, replySocket, logger, "Invalid " + request.getRequestType() + " request: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Send the standard error reply to a request, and log it.
+	 *
+	 * @param request the request envelope.
+	 * @param replySocket the socket the reply is sent on.
+	 * @param logger the publisher to the message logger.
+	 * @param message what was wrong with the request.
+	 */
+	public static void sendError(Envelope request, Socket replySocket, LogPublisher logger, String message) {
+		FieldWriter writer = request.hasFlag( Envelope.FLAG_BINARY) ? new BinaryWriter() : new JsonWriter();
+		byte[] errorBody = writer.beginObject()
+				.member( "requestId",	request.getRequestId())
+				.member( "serviceName",	request.getServiceName())
+				.member( "requestType",	request.getRequestType())
+				.member( "error",		message)
+				.endObject().toByteArray();
+		if (request.getTrace() != null) request.getTrace().mark( TraceContext.SERVICE_SENT);
+		request.reply( replySocket, (byte) (Envelope.FLAG_ERROR | request.getFormat()), errorBody);
+		logger.publish( request.getRequestId(), "HelloService", request.getRequestType(), request.getTrace(),
+				"error:" + message);
+	}
+}
@@ -1,9 +1,16 @@
 package com.testlims.helloService;
 
 import org.json.JSONException;
-import org.json.JSONObject;
 import org.zeromq.ZMQ.Socket;
 
+import com.testlims.utilities.BinaryWriter;
+import com.testlims.utilities.Envelope;
+import com.testlims.utilities.FieldWriter;
+import com.testlims.utilities.JsonFields;
+import com.testlims.utilities.JsonWriter;
+import com.testlims.utilities.LogPublisher;
+import com.testlims.utilities.TraceContext;
+
 /** 
  * HelloService sayHello service.  Handles a JSON request  
  <pre>{
@@ -19,41 +26,55 @@ import org.zeromq.ZMQ.Socket;
   "requestType": "sayHello", 
   "response":    "Hello Tess"
 } </pre> 
+ * <p>The name is read from the body with {@link Envelope#readFields}, and the reply is written by a 
+ * {@link JsonWriter} kept by the calling thread, with its members in the order org.json gave them, 
+ * or by a {@link BinaryWriter} in the same order when the request is in the binary format. 
  *  
  * @author Marc Whitlow
  */
-public class SayHelloResponse {
-
-	private Socket helloService	= null;
-	private Socket pub2Logger	= null;
+public class SayHelloResponse implements RequestHandler {
 	
+	/** Each thread's reply writer, reused for the thread's next reply.  */
+	private static final ThreadLocal<JsonWriter> writers = new ThreadLocal<JsonWriter>() {
+		protected JsonWriter initialValue() {
+			return new JsonWriter();
+		}
+	};
+	/** Each thread's reply writer for requests in the binary format.  */
+	private static final ThreadLocal<BinaryWriter> binaryWriters = new ThreadLocal<BinaryWriter>() {
+		protected BinaryWriter initialValue() {
+			return new BinaryWriter();
+		}
+	};
+
 	/**
-	 * SayHelloService Constructor 
+	 * Send the sayHello reply. 
+	 * 
+	 * @param request the request envelope, with its header fields filled in. 
+	 * @param replySocket the socket the reply is sent on. 
+	 * @param logger the publisher to the message logger. 
 	 * 
-	 * @param helloService seroMQ response socket. 
-	 * @param pub2Logger zeroMQ pub socket to the message logger. 
+	 * @throws JSONException if the body is not an object containing a name. 
 	 */
-	public SayHelloResponse(Socket helloService, Socket pub2Logger) {
-		this.helloService	= helloService;
-		this.pub2Logger		= pub2Logger;
-	}
-
-	public void send(JSONObject requestJSON, String logRequestMessage, String logResponseMessage) throws JSONException {
-		String requestId	= requestJSON.getString( "requestId");
-		String serviceName	= requestJSON.getString( "serviceName");
-		String requestType	= requestJSON.getString( "requestType");
-		String name 		= requestJSON.getString( "name");
-		pub2Logger.send( logRequestMessage + ":" + name, 0);
+	public void handle(Envelope request, Socket replySocket, LogPublisher logger) throws JSONException {
+		String requestId	= request.getRequestId();
+		String requestType	= request.getRequestType();
+		String name 		= JsonFields.require( request.readFields( "name")[0], "name");
+		logger.publish( requestId, "HelloService", requestType, request.getTrace(), 
+				requestType + ".request:" + name);
 		
 		String responseText = "Hello " + name;
-		JSONObject responseJSON = new JSONObject();
-		responseJSON.put( "requestId",		requestId);
-		responseJSON.put( "serviceName",	serviceName);
-		responseJSON.put( "requestType",	requestType);
-		responseJSON.put( "response", 		responseText);
-		helloService.send( responseJSON.toString().getBytes(), 0);
-
-		pub2Logger.send( logResponseMessage + ":" + responseText, 0);
+		FieldWriter writer = request.hasFlag( Envelope.FLAG_BINARY) ? binaryWriters.get() : writers.get();
+		writer.reset().beginObject()
+				.member( "requestType",	requestType)
+				.member( "requestId",	requestId)
+				.member( "response", 	responseText)
+				.member( "serviceName",	request.getServiceName())
+				.endObject();
+		if (request.getTrace() != null) request.getTrace().mark( TraceContext.SERVICE_SENT);
+		logger.publish( requestId, "HelloService", requestType, request.getTrace(), 
+				requestType + ".response:" + responseText);
+		request.reply( replySocket, request.getFormat(), writer.toByteArray());
 	}
 
 }
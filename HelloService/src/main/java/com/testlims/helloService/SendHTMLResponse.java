@@ -1,9 +1,17 @@
 package com.testlims.helloService;
 
-import org.json.JSONException;
+import java.nio.charset.StandardCharsets;
+
 import org.json.JSONObject;
 import org.zeromq.ZMQ.Socket;
 
+import com.testlims.utilities.BinaryWriter;
+import com.testlims.utilities.Envelope;
+import com.testlims.utilities.FieldWriter;
+import com.testlims.utilities.JsonWriter;
+import com.testlims.utilities.LogPublisher;
+import com.testlims.utilities.TraceContext;
+
 /** 
  * HelloService sendHTML repsonse.  Handles a JSON request  
  <pre>{
@@ -19,63 +27,179 @@ import org.zeromq.ZMQ.Socket;
   "html": "<form class=\"helloForm\"> . . . </form>",
   "script": "function helloService_sayHello() { . . . "
 } </pre> 
+ * <p>The reply is the same for every request but for its requestId, serviceName and requestType, 
+ * so its JSON is built once, when the class is loaded, and kept as UTF-8 byte segments around the 
+ * places of those three fields.  A reply is assembled by writing the segments and the escaped 
+ * fields with a {@link JsonWriter} kept by the calling thread, and its bytes are copied once into 
+ * the array the zeroMQ message is sent from, so no JSON object or string is made per request. 
+ * A request in the binary format is answered in the same format, with the members in the order 
+ * of the template and the html and script written from their UTF-8 bytes, encoded once. 
  *  
  * @author Marc Whitlow
  */
-public class SendHTMLResponse {
-
-	private Socket helloService	= null;
-	private Socket pub2Logger	= null;
+public class SendHTMLResponse implements RequestHandler {
+	/** The form sent in the reply's html field.  */
+	static final String		HTML = 
+			"<form class=\"helloForm\">Name: <input id=\"hello__service-name\" type=\"text\" name=\"name\" />" + 
+			"  <input type=\"button\" class=\"helloService__button\" value=\"Submit\" onclick=\"helloService_sayHello()\" />" +
+			"</form>" + 
+			"<div>Response: <span id=\"hello__service-sayHello\"></span></div>";
+	/** The script sent in the reply's script field.  */
+	static final String		SAY_HELLO_SCRIPT = 
+			"function helloService_sayHello() { " + 
+			"	var xhttp = new XMLHttpRequest();" + 
+			"	xhttp.open( 'POST', zeroMQcoreURL + \"/services\", true);" + 
+			"	xhttp.setRequestHeader( 'Content-type', 'application/json');" + 
+			"	xhttp.onload = function() {" + 
+			"		if (this.readyState == 4 && this.status == 200) {" + 
+			"			var responseJSON = JSON.parse( xhttp.responseText);" + 
+			"			var helloName = responseJSON.response;" + 
+			"			document.getElementById( \"hello__service-sayHello\").innerHTML = helloName;" + 
+			"		}" + 
+			"	};" + 
+			"	var name = document.getElementById( \"hello__service-name\").value;" + 
+			"	var requestJSON = '{\"serviceName\":\"HelloService\", \"requestType\":\"sayHello\", \"name\":\"' + name + '\"}';" + 
+			"	xhttp.send( requestJSON);" +
+			"}";
+	
+	/** The fields spliced into the template, as marked in it, in the order of {@link #FIELD_NAMES}.  */
+	private static final String[]	FIELD_NAMES		= { "requestId", "serviceName", "requestType" };
+	private static final int		REQUEST_ID		= 0;
+	private static final int		SERVICE_NAME	= 1;
+	private static final int		REQUEST_TYPE	= 2;
+	
+	/** The reply's UTF-8 segments, with field FIELDS[s] written between SEGMENTS[s] and SEGMENTS[s+1].  */
+	private static final byte[][]	SEGMENTS;
+	private static final int[]		FIELDS;
+	private static final int		TEMPLATE_LENGTH;
+	/** The reply's member names, in the order of the template.  */
+	private static final String[]	MEMBERS;
+	private static final byte[]		HTML_UTF8			= HTML.getBytes( StandardCharsets.UTF_8);
+	private static final byte[]		SCRIPT_UTF8			= SAY_HELLO_SCRIPT.getBytes( StandardCharsets.UTF_8);
+	static {
+		// Build the reply once with markers in place of the fields, so the template has the fields 
+		// in the order and with the escaping that org.json gives them. 
+		JSONObject templateJSON = new JSONObject();
+		for (String fieldName : FIELD_NAMES) {
+			templateJSON.put( fieldName, marker( fieldName));
+		}
+		templateJSON.put( "html",	HTML);
+		templateJSON.put( "script",	SAY_HELLO_SCRIPT);
+		String template = templateJSON.toString();
+		
+		int[] fields = new int[FIELD_NAMES.length];
+		int[] places = new int[FIELD_NAMES.length];
+		for (int f=0; f<FIELD_NAMES.length; f++) {
+			fields[f] = f;
+			places[f] = template.indexOf( marker( FIELD_NAMES[f]));
+		}
+		for (int i=1; i<fields.length; i++) {					// order the fields by their place 
+			for (int j=i; j>0 && places[fields[j]] < places[fields[j - 1]]; j--) {
+				int field = fields[j]; fields[j] = fields[j - 1]; fields[j - 1] = field;
+			}
+		}
+		SEGMENTS = new byte[fields.length + 1][];
+		int start = 0, length = 0;
+		for (int s=0; s<fields.length; s++) {
+			SEGMENTS[s] = template.substring( start, places[fields[s]]).getBytes( StandardCharsets.UTF_8);
+			start  = places[fields[s]] + marker( FIELD_NAMES[fields[s]]).length();
+			length += SEGMENTS[s].length;
+		}
+		SEGMENTS[fields.length] = template.substring( start).getBytes( StandardCharsets.UTF_8);
+		FIELDS			= fields;
+		TEMPLATE_LENGTH	= length + SEGMENTS[fields.length].length;
+		
+		MEMBERS = templateJSON.keySet().toArray( new String[0]);
+		for (int i=1; i<MEMBERS.length; i++) {					// order the members by their place 
+			for (int j=i; j>0 && place( template, MEMBERS[j]) < place( template, MEMBERS[j - 1]); j--) {
+				String member = MEMBERS[j]; MEMBERS[j] = MEMBERS[j - 1]; MEMBERS[j - 1] = member;
+			}
+		}
+	}
 	
+	/** Each thread's reply writer, grown to the reply's size once and kept for the thread's next reply.  */
+	private static final ThreadLocal<JsonWriter> writers = new ThreadLocal<JsonWriter>() {
+		protected JsonWriter initialValue() {
+			return new JsonWriter( TEMPLATE_LENGTH + 64);
+		}
+	};
+	/** Each thread's reply writer for requests in the binary format.  */
+	private static final ThreadLocal<BinaryWriter> binaryWriters = new ThreadLocal<BinaryWriter>() {
+		protected BinaryWriter initialValue() {
+			return new BinaryWriter( TEMPLATE_LENGTH + 64);
+		}
+	};
+
 	/**
-	 * SendHTMLService Constructor 
+	 * Send the sendHTML reply.  Nothing is needed from the request body. 
 	 * 
-	 * @param helloService seroMQ response socket. 
-	 * @param pub2Logger zeroMQ pub socket to the message logger. 
+	 * @param request the request envelope, with its header fields filled in. 
+	 * @param replySocket the socket the reply is sent on. 
+	 * @param logger the publisher to the message logger. 
 	 */
-	public SendHTMLResponse(Socket helloService, Socket pub2Logger) {
-		this.helloService 	= helloService;
-		this.pub2Logger		= pub2Logger;
-	}
-
-	public void send(JSONObject requestJSON, String logRequestMessage, String logResponseMessage) throws JSONException {
-		String requestId	= requestJSON.getString( "requestId");
-		String serviceName	= requestJSON.getString( "serviceName");
-		String requestType	= requestJSON.getString( "requestType");
+	public void handle(Envelope request, Socket replySocket, LogPublisher logger) {
+		String requestId	= request.getRequestId();
+		String requestType	= request.getRequestType();
 		
-		pub2Logger.send( logRequestMessage, 0);
+		logger.publish( requestId, "HelloService", requestType, request.getTrace(), requestType + ".request");
 		
-		StringBuilder html = new StringBuilder();
-		html.append("<form class=\"helloForm\">Name: <input id=\"hello__service-name\" type=\"text\" name=\"name\" />" + 
-					"  <input type=\"button\" class=\"helloService__button\" value=\"Submit\" onclick=\"helloService_sayHello()\" />" +
-					"</form>" + 
-					"<div>Response: <span id=\"hello__service-sayHello\"></span></div>");
-		StringBuilder sayHelloScript = new StringBuilder();
-		sayHelloScript.append(
-					"function helloService_sayHello() { " + 
-					"	var xhttp = new XMLHttpRequest();" + 
-					"	xhttp.open( 'POST', zeroMQcoreURL + \"/services\", true);" + 
-					"	xhttp.setRequestHeader( 'Content-type', 'application/json');" + 
-					"	xhttp.onload = function() {" + 
-					"		if (this.readyState == 4 && this.status == 200) {" + 
-					"			var responseJSON = JSON.parse( xhttp.responseText);" + 
-					"			var helloName = responseJSON.response;" + 
-					"			document.getElementById( \"hello__service-sayHello\").innerHTML = helloName;" + 
-					"		}" + 
-					"	};" + 
-					"	var name = document.getElementById( \"hello__service-name\").value;" + 
-					"	var requestJSON = '{\"serviceName\":\"HelloService\", \"requestType\":\"sayHello\", \"name\":\"' + name + '\"}';" + 
-					"	xhttp.send( requestJSON);" +
-					"}" );
-		JSONObject responseJSON = new JSONObject();
-		responseJSON.put( "requestId",		requestId);
-		responseJSON.put( "serviceName",	serviceName);
-		responseJSON.put( "requestType",	requestType);
-		responseJSON.put( "html", 			html.toString());
-		responseJSON.put( "script", 		sayHelloScript.toString());
-		helloService.send( responseJSON.toString().getBytes(), 0);
-
-		pub2Logger.send( logResponseMessage, 0);
+		FieldWriter response = request.hasFlag( Envelope.FLAG_BINARY) 
+				? reply( binaryWriters.get(), requestId, request.getServiceName(), requestType)
+				: reply( writers.get(), requestId, request.getServiceName(), requestType);
+		if (request.getTrace() != null) request.getTrace().mark( TraceContext.SERVICE_SENT);
+		logger.publish( requestId, "HelloService", requestType, request.getTrace(), requestType + ".response");
+		request.reply( replySocket, request.getFormat(), response.toByteArray());
+	}
+	
+	/**
+	 * Write the reply JSON, splicing the fields into the template. 
+	 * 
+	 * @param writer the writer, which is reset first. 
+	 * @param requestId the request Id. 
+	 * @param serviceName the service name. 
+	 * @param requestType the request type. 
+	 * 
+	 * @return the writer, holding the reply. 
+	 */
+	static JsonWriter reply(JsonWriter writer, String requestId, String serviceName, String requestType) {
+		writer.reset();
+		for (int s=0; s<FIELDS.length; s++) {
+			writer.raw( SEGMENTS[s]);
+			writer.characters( FIELDS[s] == REQUEST_ID ? requestId : FIELDS[s] == SERVICE_NAME ? serviceName : requestType);
+		}
+		return writer.raw( SEGMENTS[FIELDS.length]);
+	}
+	
+	/**
+	 * Write the reply in the binary format, with its members in the order of the template. 
+	 * 
+	 * @param writer the writer, which is reset first. 
+	 * @param requestId the request Id. 
+	 * @param serviceName the service name. 
+	 * @param requestType the request type. 
+	 * 
+	 * @return the writer, holding the reply. 
+	 */
+	static BinaryWriter reply(BinaryWriter writer, String requestId, String serviceName, String requestType) {
+		writer.reset().beginObject();
+		for (String member : MEMBERS) {
+			switch (member) {
+				case "requestId":	writer.member( member, requestId);		break;
+				case "serviceName":	writer.member( member, serviceName);	break;
+				case "requestType":	writer.member( member, requestType);	break;
+				case "html":		writer.member( member, HTML_UTF8);		break;
+				default:			writer.member( member, SCRIPT_UTF8);
+			}
+		}
+		return writer.endObject();
+	}
+	
+	private static int place(String template, String member) {
+		return template.indexOf( JSONObject.quote( member) + ":");
+	}
+	
+	private static String marker(String fieldName) {
+		return "@" + fieldName + "@";
 	}
 
 }
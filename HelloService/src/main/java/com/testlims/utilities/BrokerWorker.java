@@ -0,0 +1,206 @@
+package com.testlims.utilities;
+
+import java.util.Arrays;
+
+import org.zeromq.ZMQ;
+
+/**
+ * BrokerWorker is the worker side of the protocol a service speaks with the Broker, after the
+ * Majordomo worker protocol.  The worker connects a DEALER socket to the broker, registers with
+ * the service name it serves, and is then handed the requests for that service one at a time.
+ * Every message starts with an empty frame, the protocol frame and a command frame:
+ <pre>
+READY       [""][MDPW01][0x01][serviceName]                         worker to broker, once connected
+REQUEST     [""][MDPW01][0x02][client routing frames][""][envelope] broker to worker
+REPLY       [""][MDPW01][0x03][client routing frames][""][envelope] worker to broker
+HEARTBEAT   [""][MDPW01][0x04]                                      either way, while waiting
+DISCONNECT  [""][MDPW01][0x05]                                      either way
+</pre>
+ * The request and reply are {@link Envelope}s, passed through the broker untouched.  A request
+ * returned by {@link #receive} carries the REPLY frames as its routing frames, so the handler
+ * answers it with {@link Envelope#reply} on {@link #getSocket()}, as it would on a ROUTER.
+ * <p>
+ * While waiting for a request, the worker sends a heartbeat every {@link #HEARTBEAT_INTERVAL}
+ * milliseconds, and takes the broker for dead when it has heard nothing from it for
+ * {@link #HEARTBEAT_LIVENESS} intervals.  It then connects a new socket and registers again, so a
+ * restarted broker gets its workers back without restarting them.  A BrokerWorker is used by
+ * one thread.
+ *
+ * @author Marc Whitlow, Colabrativ, Inc.
+ */
+public final class BrokerWorker {
+	/** The protocol frame of every message between a worker and the broker.  */
+	public static final String	PROTOCOL			= "MDPW01";
+	/** A worker registers for a service.  */
+	public static final byte	READY				= 1;
+	/** The broker hands a worker a request.  */
+	public static final byte	REQUEST				= 2;
+	/** A worker answers its request.  */
+	public static final byte	REPLY				= 3;
+	/** A worker or the broker is still there.  */
+	public static final byte	HEARTBEAT			= 4;
+	/** A worker or the broker is leaving, or the broker does not know the worker.  */
+	public static final byte	DISCONNECT			= 5;
+	/** Milliseconds between heartbeats.  */
+	public static final long	HEARTBEAT_INTERVAL	= 2500;
+	/** Heartbeats missed before a peer is taken for dead.  */
+	public static final int		HEARTBEAT_LIVENESS	= 3;
+	/** Milliseconds {@link #close} waits for the DISCONNECT to reach the broker before dropping it.  */
+	public static final int		DISCONNECT_LINGER	= 1000;
+
+	private static final byte[]	EMPTY				= new byte[0];
+	private static final byte[]	PROTOCOL_FRAME		= PROTOCOL.getBytes( ZMQ.CHARSET);
+	private static final byte[]	REPLY_FRAME			= new byte[] { REPLY };
+
+	private final ZMQ.Context	context;
+	private final String		brokerURL;
+	private final String		serviceName;
+	private final String		name;
+	private final ZMQ.Poller	poller;
+	private final int			interruptIndex;
+	private ZMQ.Socket			socket				= null;
+	private int					socketIndex;
+	private int					liveness;
+	private long				heartbeatAt;
+	private int					reconnects			= -1;
+
+	/**
+	 * BrokerWorker Constructor, connects to the broker and registers for the service.
+	 *
+	 * @param context the zeroMQ context the socket is created in.
+	 * @param brokerURL the URL the broker's workers socket is bound to, e.g. tcp://localhost:5566.
+	 * @param serviceName the service the worker serves, e.g. HelloService.
+	 * @param name the socket's name in the socket statistics.
+	 * @param interrupt a socket that {@link #receive} also waits on, and returns null as soon as
+	 * a message is waiting on, e.g. a SUB socket the worker is told to stop on; or null for none.
+	 */
+	public BrokerWorker(ZMQ.Context context, String brokerURL, String serviceName, String name, ZMQ.Socket interrupt) {
+		this.context		= context;
+		this.brokerURL		= SocketFactory.endpoint( brokerURL);
+		this.serviceName	= serviceName;
+		this.name			= name;
+		this.poller			= context.poller( 2);
+		this.interruptIndex	= (interrupt == null) ? -1 : poller.register( interrupt, ZMQ.Poller.POLLIN);
+		connect();
+	}
+
+	/** Connect a new socket to the broker, closing the last one, and register for the service.  */
+	private void connect() {
+		if (socket != null) {
+			// Drop what is queued for the lost broker rather than keep it for ever.
+			poller.unregister( socket);
+			socket.setLinger( 0);
+			SocketFactory.close( socket);
+		}
+		socket = SocketFactory.socket( context, ZMQ.DEALER, "service", name);
+		socket.connect( brokerURL);
+		socketIndex = poller.register( socket, ZMQ.Poller.POLLIN);
+		send( READY, serviceName.getBytes( ZMQ.CHARSET));
+		liveness	= HEARTBEAT_LIVENESS;
+		heartbeatAt	= System.currentTimeMillis() + HEARTBEAT_INTERVAL;
+		reconnects++;
+	}
+
+	private void send(byte command, byte[] frame) {
+		socket.sendMore( EMPTY);
+		socket.sendMore( PROTOCOL_FRAME);
+		if (frame == null) {
+			socket.send( new byte[] { command }, 0);
+		}
+		else {
+			socket.sendMore( new byte[] { command });
+			socket.send( frame, 0);
+		}
+	}
+
+	/**
+	 * Wait for the next request from the broker, sending heartbeats while it waits, and connecting
+	 * again if the broker is lost or does not know the worker.
+	 *
+	 * @return the request, whose reply is sent with {@link Envelope#reply} on {@link #getSocket()},
+	 * or null once a message is waiting on the interrupt socket, or the context is terminated.
+	 */
+	public Envelope receive() {
+		while (!Thread.currentThread().isInterrupted()) {
+			if (poller.poll( HEARTBEAT_INTERVAL) < 0) {
+				return null;
+			}
+			if (interruptIndex >= 0 && poller.pollin( interruptIndex)) {
+				return null;
+			}
+			if (poller.pollin( socketIndex)) {
+				liveness = HEARTBEAT_LIVENESS;
+				Envelope request = read();
+				if (request != null) {
+					return request;
+				}
+			}
+			else if (--liveness == 0) {
+				connect();
+			}
+			if (System.currentTimeMillis() >= heartbeatAt) {
+				send( HEARTBEAT, null);
+				heartbeatAt = System.currentTimeMillis() + HEARTBEAT_INTERVAL;
+			}
+		}
+		return null;
+	}
+
+	/** @return the request waiting on the socket, or null if the message was another command. */
+	private Envelope read() {
+		byte[] empty	= socket.recv( ZMQ.DONTWAIT);
+		byte[] protocol	= (empty != null && socket.hasReceiveMore()) ? socket.recv( 0) : null;
+		byte[] command	= (protocol != null && socket.hasReceiveMore()) ? socket.recv( 0) : null;
+		if (command == null || command.length != 1 || empty.length != 0 || !Arrays.equals( protocol, PROTOCOL_FRAME)) {
+			discard();
+			return null;
+		}
+		if (command[0] == REQUEST) {
+			// Reply frames:  the protocol frames of a REPLY, then the client's routing frames.
+			byte[][] routing = new byte[][] { EMPTY, PROTOCOL_FRAME, REPLY_FRAME };
+			byte[] frame = EMPTY;
+			do {
+				if (!socket.hasReceiveMore()) {
+					return null;
+				}
+				frame = socket.recv( 0);
+				routing = Arrays.copyOf( routing, routing.length + 1);
+				routing[routing.length - 1] = frame;
+			} while (frame.length > 0);
+			Envelope request = socket.hasReceiveMore() ? Envelope.recv( socket, 0) : Envelope.unversioned( EMPTY);
+			request.setRouting( routing);
+			return request;
+		}
+		discard();
+		if (command[0] == DISCONNECT) {
+			connect();
+		}
+		return null;
+	}
+
+	private void discard() {
+		while (socket.hasReceiveMore()) {
+			socket.recv( 0);
+		}
+	}
+
+	/** @return the socket to the broker, on which replies are sent; a new one after each reconnect. */
+	public ZMQ.Socket getSocket()		{ return socket; }
+
+	/** @return the service the worker serves. */
+	public String getServiceName()		{ return serviceName; }
+
+	/** @return the number of times the worker has connected again, after losing the broker. */
+	public int getReconnects()			{ return reconnects; }
+
+	/**
+	 * Tell the broker the worker is leaving, and close the socket, waiting at most
+	 * {@link #DISCONNECT_LINGER} milliseconds for the DISCONNECT to be sent.
+	 */
+	public void close() {
+		send( DISCONNECT, null);
+		socket.setLinger( DISCONNECT_LINGER);
+		poller.close();
+		SocketFactory.close( socket);
+	}
+}
@@ -0,0 +1,419 @@
+package com.testlims.utilities;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONException;
+
+/**
+ * JsonFields reads the named members of a JSON object straight from its UTF-8 bytes, in one pass
+ * and without building a JSONObject, for the envelope fields that are looked up on every request:
+ <pre>
+String[] header = JsonFields.read( body, "requestId", "serviceName", "requestType");
+</pre>
+ * Only the values of the named members are decoded; every other member is stepped over, so a
+ * large or deeply nested member costs a scan and no objects.  A string value is returned as its
+ * text, a number or boolean as its literal, e.g. <code>42</code>, and an object or array as its
+ * JSON text.  A member that is absent, or is JSON null, is returned as null.
+ * <p>
+ * The whole object is checked as it is scanned, and anything that is not a JSON object is
+ * rejected with a JSONException, so a caller that fell back to another path when org.json could
+ * not parse a body still does.  Member names must be quoted; as with org.json, a value may be an
+ * unquoted word.  When a name appears twice, the first value is read.
+ *
+ * @author Marc Whitlow, Colabrativ, Inc.
+ */
+public final class JsonFields {
+	/** The deepest nesting of objects and arrays that is stepped over.  */
+	static final int	MAX_DEPTH	= 64;
+
+	private JsonFields() {}
+
+	/**
+	 * Read one member of a JSON object.
+	 *
+	 * @param json the UTF-8 bytes of the object.
+	 * @param name the member name.
+	 *
+	 * @return the member's value, or null if it is absent or null.
+	 *
+	 * @throws JSONException if the bytes are not a JSON object.
+	 */
+	public static String read(byte[] json, String name) throws JSONException {
+		return read( json, 0, json.length, name)[0];
+	}
+
+	/**
+	 * Read members of a JSON object.
+	 *
+	 * @param json the UTF-8 bytes of the object.
+	 * @param names the member names.
+	 *
+	 * @return the members' values, in the order of the names, with null for each that is absent or null.
+	 *
+	 * @throws JSONException if the bytes are not a JSON object.
+	 */
+	public static String[] read(byte[] json, String... names) throws JSONException {
+		return read( json, 0, json.length, names);
+	}
+
+	/**
+	 * Read members of a JSON object held between a buffer's position and limit; the position is
+	 * not moved.
+	 *
+	 * @param json the buffer holding the UTF-8 bytes of the object.
+	 * @param names the member names.
+	 *
+	 * @return the members' values, in the order of the names, with null for each that is absent or null.
+	 *
+	 * @throws JSONException if the bytes are not a JSON object.
+	 */
+	public static String[] read(ByteBuffer json, String... names) throws JSONException {
+		if (json.hasArray()) {
+			return read( json.array(), json.arrayOffset() + json.position(), json.remaining(), names);
+		}
+		byte[] bytes = new byte[json.remaining()];
+		json.duplicate().get( bytes);
+		return read( bytes, 0, bytes.length, names);
+	}
+
+	/**
+	 * Read members of a JSON object held in part of an array.
+	 *
+	 * @param json the array holding the UTF-8 bytes of the object.
+	 * @param offset the index of the object's first byte.
+	 * @param length the number of bytes in the object.
+	 * @param names the member names.
+	 *
+	 * @return the members' values, in the order of the names, with null for each that is absent or null.
+	 *
+	 * @throws JSONException if the bytes are not a JSON object.
+	 */
+	public static String[] read(byte[] json, int offset, int length, String... names) throws JSONException {
+		String[]	values	= new String[names.length];
+		boolean[]	found	= new boolean[names.length];
+		Scanner		scanner	= new Scanner( json, offset, offset + length);
+		if (scanner.skipWhitespace() != '{') {
+			throw scanner.error( "A JSON object must begin with '{'");
+		}
+		scanner.position++;
+		if (scanner.skipWhitespace() == '}') {
+			return values;
+		}
+		while (true) {
+			if (scanner.skipWhitespace() != '"') {
+				throw scanner.error( "A JSON member name must be a quoted string");
+			}
+			int		nameStart	= scanner.position + 1;
+			boolean	escaped		= scanner.skipString();
+			int		field		= find( json, nameStart, scanner.position - 1, escaped, names);
+			if (scanner.skipWhitespace() != ':') {
+				throw scanner.error( "Expected ':' after a member name");
+			}
+			scanner.position++;
+			int valueStart;
+			if (scanner.skipWhitespace() == '"') {
+				valueStart = scanner.position;
+				escaped = scanner.skipString();
+				if (field >= 0 && !found[field]) {
+					values[field] = decode( json, valueStart + 1, scanner.position - 1, escaped);
+				}
+			}
+			else {
+				valueStart = scanner.position;
+				scanner.skipValue( 0);
+				if (field >= 0 && !found[field]) {
+					values[field] = literal( json, valueStart, scanner.position);
+				}
+			}
+			if (field >= 0) found[field] = true;
+
+			int next = scanner.skipWhitespace();
+			scanner.position++;
+			if (next == '}') {
+				return values;
+			}
+			if (next != ',') {
+				scanner.position--;
+				throw scanner.error( "Expected ',' or '}' after a member");
+			}
+		}
+	}
+
+	/**
+	 * Copy every member of a JSON object, in order, to a writer, e.g. a {@link BinaryWriter} to
+	 * translate the object to the binary format.  String values are written as strings and every
+	 * other value as its JSON text.  The object is not opened or closed on the writer.
+	 *
+	 * @param json the UTF-8 bytes of the object.
+	 * @param writer the writer the members are written to.
+	 *
+	 * @throws JSONException if the bytes are not a JSON object.
+	 */
+	public static void copy(byte[] json, FieldWriter writer) throws JSONException {
+		Scanner scanner = new Scanner( json, 0, json.length);
+		if (scanner.skipWhitespace() != '{') {
+			throw scanner.error( "A JSON object must begin with '{'");
+		}
+		scanner.position++;
+		if (scanner.skipWhitespace() == '}') {
+			return;
+		}
+		while (true) {
+			if (scanner.skipWhitespace() != '"') {
+				throw scanner.error( "A JSON member name must be a quoted string");
+			}
+			int		nameStart	= scanner.position + 1;
+			boolean	escaped		= scanner.skipString();
+			String	name		= decode( json, nameStart, scanner.position - 1, escaped);
+			if (scanner.skipWhitespace() != ':') {
+				throw scanner.error( "Expected ':' after a member name");
+			}
+			scanner.position++;
+			int valueStart;
+			if (scanner.skipWhitespace() == '"') {
+				valueStart = scanner.position;
+				escaped = scanner.skipString();
+				writer.member( name, decode( json, valueStart + 1, scanner.position - 1, escaped));
+			}
+			else {
+				valueStart = scanner.position;
+				scanner.skipValue( 0);
+				writer.literal( name, new String( json, valueStart, scanner.position - valueStart, StandardCharsets.UTF_8));
+			}
+
+			int next = scanner.skipWhitespace();
+			scanner.position++;
+			if (next == '}') {
+				return;
+			}
+			if (next != ',') {
+				scanner.position--;
+				throw scanner.error( "Expected ',' or '}' after a member");
+			}
+		}
+	}
+
+	/**
+	 * Check that a member read by {@link #read} was present.
+	 *
+	 * @param value the member's value.
+	 * @param name the member name, for the message.
+	 *
+	 * @return the value.
+	 *
+	 * @throws JSONException if the value is null.
+	 */
+	public static String require(String value, String name) throws JSONException {
+		if (value == null) {
+			throw new JSONException( "JSONObject[\"" + name + "\"] not found.");
+		}
+		return value;
+	}
+
+	/** @return the index of the name the member name between start and end matches, or -1. */
+	private static int find(byte[] json, int start, int end, boolean escaped, String[] names) {
+		String decoded = escaped ? decode( json, start, end, true) : null;
+		for (int n=0; n<names.length; n++) {
+			if (decoded != null ? decoded.equals( names[n]) : matches( json, start, end, names[n])) {
+				return n;
+			}
+		}
+		return -1;
+	}
+
+	/** Compare an unescaped member name with a name, byte for char while both are ASCII.  */
+	private static boolean matches(byte[] json, int start, int end, String name) {
+		int length = name.length();
+		for (int c=0; c<length; c++) {
+			char ch = name.charAt(c);
+			if (ch > 0x7F) {
+				return decode( json, start, end, false).equals( name);
+			}
+			if (start + c >= end || json[start + c] != ch) {
+				return false;
+			}
+		}
+		return start + length == end;
+	}
+
+	/** @return the value of a number, boolean or word, the JSON text of an object or array, or null for null. */
+	private static String literal(byte[] json, int start, int end) {
+		if (end - start == 4 && json[start] == 'n' && json[start + 1] == 'u' && json[start + 2] == 'l' && json[start + 3] == 'l') {
+			return null;
+		}
+		return new String( json, start, end - start, StandardCharsets.UTF_8);
+	}
+
+	/** Decode the inside of a JSON string, between its quotes.  */
+	private static String decode(byte[] json, int start, int end, boolean escaped) throws JSONException {
+		if (!escaped) {
+			for (int b=start; b<end; b++) {
+				if (json[b] < 0) {
+					return new String( json, start, end - start, StandardCharsets.UTF_8);
+				}
+			}
+			return new String( json, start, end - start, StandardCharsets.ISO_8859_1);
+		}
+		StringBuilder text = new StringBuilder( end - start);
+		int run = start;
+		for (int b=start; b<end; b++) {
+			if (json[b] != '\\') {
+				continue;
+			}
+			if (b > run) {
+				text.append( new String( json, run, b - run, StandardCharsets.UTF_8));
+			}
+			byte escape = json[++b];
+			switch (escape) {
+				case 'b':	text.append( '\b');	break;
+				case 't':	text.append( '\t');	break;
+				case 'n':	text.append( '\n');	break;
+				case 'f':	text.append( '\f');	break;
+				case 'r':	text.append( '\r');	break;
+				case 'u':
+					text.append( (char) Integer.parseInt( new String( json, b + 1, 4, StandardCharsets.ISO_8859_1), 16));
+					b += 4;
+					break;
+				default:	text.append( (char) escape);
+			}
+			run = b + 1;
+		}
+		if (end > run) {
+			text.append( new String( json, run, end - run, StandardCharsets.UTF_8));
+		}
+		return text.toString();
+	}
+
+	/** The position of a scan through the bytes of one JSON object.  */
+	private static final class Scanner {
+		private final byte[]	json;
+		private final int		start;
+		private final int		end;
+		private int				position;
+
+		Scanner(byte[] json, int start, int end) {
+			this.json		= json;
+			this.start		= start;
+			this.end		= end;
+			this.position	= start;
+		}
+
+		/** @return the next byte that is not whitespace, left unread, or -1 at the end. */
+		int skipWhitespace() {
+			while (position < end) {
+				byte b = json[position];
+				if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+					return b;
+				}
+				position++;
+			}
+			return -1;
+		}
+
+		/**
+		 * Step over the string starting at the current position.
+		 *
+		 * @return true if the string holds an escape.
+		 */
+		boolean skipString() throws JSONException {
+			boolean escaped = false;
+			position++;
+			while (position < end) {
+				byte b = json[position++];
+				if (b == '"') {
+					return escaped;
+				}
+				if (b == '\\') {
+					escaped = true;
+					if (position < end && json[position] == 'u') {
+						if (position + 5 > end || !isHex( position + 1) || !isHex( position + 2)
+								|| !isHex( position + 3) || !isHex( position + 4)) {
+							throw error( "Illegal escape");
+						}
+						position += 4;
+					}
+					position++;
+				}
+				else if (b == '\n' || b == '\r') {
+					break;
+				}
+			}
+			throw error( "Unterminated string");
+		}
+
+		private boolean isHex(int index) {
+			byte b = json[index];
+			return (b >= '0' && b <= '9') || (b >= 'a' && b <= 'f') || (b >= 'A' && b <= 'F');
+		}
+
+		/** Step over the value starting at the current position, which is not whitespace.  */
+		void skipValue(int depth) throws JSONException {
+			if (depth > MAX_DEPTH) {
+				throw error( "JSON nested deeper than " + MAX_DEPTH);
+			}
+			int first = skipWhitespace();
+			if (first == '"') {
+				skipString();
+			}
+			else if (first == '{') {
+				position++;
+				if (skipWhitespace() == '}') {
+					position++;
+					return;
+				}
+				while (true) {
+					if (skipWhitespace() != '"') {
+						throw error( "A JSON member name must be a quoted string");
+					}
+					skipString();
+					if (skipWhitespace() != ':') {
+						throw error( "Expected ':' after a member name");
+					}
+					position++;
+					skipValue( depth + 1);
+					int next = skipWhitespace();
+					if (next != ',' && next != '}') {
+						throw error( "Expected ',' or '}' after a member");
+					}
+					position++;
+					if (next == '}') return;
+				}
+			}
+			else if (first == '[') {
+				position++;
+				if (skipWhitespace() == ']') {
+					position++;
+					return;
+				}
+				while (true) {
+					skipValue( depth + 1);
+					int next = skipWhitespace();
+					if (next != ',' && next != ']') {
+						throw error( "Expected ',' or ']' after an element");
+					}
+					position++;
+					if (next == ']') return;
+				}
+			}
+			else {
+				int wordStart = position;
+				while (position < end) {
+					byte b = json[position];
+					if (b == ',' || b == '}' || b == ']' || b == ':' || b == '"' || b == '{' || b == '['
+							|| b == ' ' || b == '\t' || b == '\n' || b == '\r') {
+						break;
+					}
+					position++;
+				}
+				if (position == wordStart) {
+					throw error( "Missing value");
+				}
+			}
+		}
+
+		JSONException error(String message) {
+			return new JSONException( message + " at " + (position - start) + " [character " + (position - start + 1) + "]");
+		}
+	}
+}
@@ -0,0 +1,402 @@
+package com.testlims.utilities;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.zeromq.ZMQ;
+
+/**
+ * SocketFactory shares one zeroMQ context per JVM between the gateway, HelloService and
+ * MessageLogger, and creates their sockets with the options of a named tuning profile, so the
+ * high water marks, buffers, linger, TCP keepalive and reconnect backoff can be tuned for the
+ * message rates without changing a constructor.
+ * <p>
+ * The settings are read from zeroMQsockets.properties on the classpath, and any of them can be
+ * overridden by a system property of the same name prefixed with "zeroMQsockets.", e.g.
+ * <code>-DzeroMQsockets.profile.request.sndhwm=5000</code>.
+ <pre>
+ioThreads=1
+profile.[profile].[option]=[value]
+</pre>
+ * The options are sndhwm, rcvhwm, sndbuf, rcvbuf, linger, tcpKeepAlive, tcpKeepAliveIdle,
+ * tcpKeepAliveInterval, tcpKeepAliveCount, reconnectIvl, reconnectIvlMax, backlog and monitor.
+ * Every option but monitor is an int, and is set with the int overload of the socket's setter.
+ * An option missing from a profile is taken from the default profile, and an option set in
+ * neither, or set to a value that is not an int, is left at the zeroMQ default.  The profiles used are request (the gateway's sockets
+ * to the services), service (the services' sockets), and logger (the publishers to the logger
+ * and the logger's SUB socket).  request sockets linger 0 ms and logger sockets 1000 ms unless
+ * set otherwise.
+ * <p>
+ * The shared context is created with ioThreads I/O threads by the first {@link #acquireContext}
+ * and terminated by the last {@link #releaseContext}.  Each socket created in it is watched by
+ * a socket monitor, unless its profile sets monitor=false, and its connection events are counted
+ * in its {@link SocketStats}.  One daemon thread reads all the monitors.  Sockets are closed with
+ * {@link #close} so their statistics and monitors are released with them.
+ * <p>
+ * The components bind and connect through {@link #endpoint}, so the transport between them is
+ * chosen by the transport setting rather than by their URLs.  With transport=inproc, as when they
+ * run co-located in one JVM on the shared context, a tcp URL on this host is taken as the inproc
+ * endpoint of the same port and the messages are passed in memory, not through loopback TCP.
+ *
+ * @author Marc Whitlow, Colabrativ, Inc.
+ */
+public final class SocketFactory {
+
+	static final String PROPERTIES_FILE		= "zeroMQsockets.properties";
+	static final String SYSTEM_PREFIX		= "zeroMQsockets.";
+
+	private static final String[]	TYPE_NAMES	= { "PAIR", "PUB", "SUB", "REQ", "REP", "DEALER", "ROUTER",
+			"PULL", "PUSH", "XPUB", "XSUB", "STREAM" };
+	private static final String[]	OPTIONS		= { "sndhwm", "rcvhwm", "sndbuf", "rcvbuf", "linger", "tcpKeepAlive",
+			"tcpKeepAliveIdle", "tcpKeepAliveInterval", "tcpKeepAliveCount", "reconnectIvl", "reconnectIvlMax",
+			"backlog", "monitor" };
+	private static final int		MONITOR_EVENTS	= ZMQ.EVENT_CONNECTED | ZMQ.EVENT_CONNECT_RETRIED
+			| ZMQ.EVENT_DISCONNECTED | ZMQ.EVENT_ACCEPTED | ZMQ.EVENT_LISTENING | ZMQ.EVENT_BIND_FAILED;
+
+	private static final Properties	properties	= load();
+	private static final Properties	defaults	= new Properties();
+	static {
+		defaults.setProperty( "profile.default.monitor",	"true");
+		defaults.setProperty( "profile.request.linger",		"0");
+		defaults.setProperty( "profile.logger.linger",		"1000");
+	}
+
+	private static final ConcurrentHashMap<ZMQ.Socket,SocketStats>	sockets
+			= new ConcurrentHashMap<ZMQ.Socket,SocketStats>();
+	private static final ConcurrentHashMap<String,AtomicInteger>	nameCounts
+			= new ConcurrentHashMap<String,AtomicInteger>();
+	private static final AtomicInteger	monitorCount	= new AtomicInteger();
+
+	private static ZMQ.Context	context			= null;
+	private static int			contextUsers	= 0;
+	private static Monitors		monitors		= null;
+
+	private SocketFactory() {
+	}
+
+	/**
+	 * Take a share of the JVM's zeroMQ context, creating it on first use.
+	 * Every call is matched by a {@link #releaseContext} when the caller has closed its sockets.
+	 *
+	 * @return the shared context.
+	 */
+	public static synchronized ZMQ.Context acquireContext() {
+		if (context == null) {
+			context = ZMQ.context( getInt( "ioThreads", 1));
+			monitors = new Monitors( context);
+			monitors.start();
+		}
+		contextUsers++;
+		return context;
+	}
+
+	/** Give back a share of the shared context; the last one stops the monitors and terminates it.  */
+	public static synchronized void releaseContext() {
+		if (context == null || --contextUsers > 0) {
+			return;
+		}
+		monitors.shutdown();
+		context.term();
+		context = null;
+		monitors = null;
+	}
+
+	/**
+	 * Create a socket with the options of a tuning profile.
+	 *
+	 * @param context the context the socket is created in, normally the shared context.
+	 * @param type the zeroMQ socket type, e.g. ZMQ.REQ.
+	 * @param profile the tuning profile, e.g. request.
+	 * @param name what the socket is for, e.g. "HelloService service"; numbered in its statistics.
+	 *
+	 * @return the socket, not yet bound or connected.
+	 */
+	public static ZMQ.Socket socket(ZMQ.Context context, int type, String profile, String name) {
+		return socket( context, type, profile, name, getBoolean( profile, "monitor"));
+	}
+
+	/**
+	 * Create a socket with the options of a tuning profile.
+	 *
+	 * @param context the context the socket is created in, normally the shared context.
+	 * @param type the zeroMQ socket type, e.g. ZMQ.XPUB.
+	 * @param profile the tuning profile, e.g. logger.
+	 * @param name what the socket is for; numbered in its statistics.
+	 * @param monitored false when the caller reads the socket's monitor itself, and records its
+	 * events in the socket's statistics.
+	 *
+	 * @return the socket, not yet bound or connected.
+	 */
+	public static ZMQ.Socket socket(ZMQ.Context context, int type, String profile, String name, boolean monitored) {
+		ZMQ.Socket socket = context.socket( type);
+		apply( socket, profile);
+
+		AtomicInteger count = nameCounts.get( name);
+		if (count == null) {
+			nameCounts.putIfAbsent( name, new AtomicInteger());
+			count = nameCounts.get( name);
+		}
+		SocketStats stats = new SocketStats( name + " " + count.incrementAndGet(), profile, type);
+		sockets.put( socket, stats);
+
+		Monitors monitors = monitorsFor( context);
+		if (monitored && monitors != null) {
+			String monitorURL = "inproc://SocketFactory-monitor-" + monitorCount.incrementAndGet();
+			socket.monitor( monitorURL, MONITOR_EVENTS);
+			ZMQ.Socket monitor = context.socket( ZMQ.PAIR);
+			monitor.setLinger( 0);
+			monitor.connect( monitorURL);
+			monitors.watch( monitor, stats);
+		}
+		return socket;
+	}
+
+	private static synchronized Monitors monitorsFor(ZMQ.Context socketContext) {
+		return (socketContext == context) ? monitors : null;
+	}
+
+	/**
+	 * Close a socket created by the factory, and release its monitor and statistics.
+	 *
+	 * @param socket the socket.
+	 */
+	public static void close(ZMQ.Socket socket) {
+		SocketStats stats = sockets.remove( socket);
+		if (stats != null) {
+			socket.monitor( null, 0);
+			stats.closed();
+		}
+		socket.close();
+	}
+
+	/**
+	 * The endpoint to bind or connect to for a configured URL.  With transport=inproc, a tcp URL
+	 * on this host, i.e. localhost, 127.0.0.1, * or 0.0.0.0, is replaced by the inproc endpoint of
+	 * its port, e.g. tcp://127.0.0.1:5557 by inproc://localhost:5557, which both the binding and the
+	 * connecting side reach; any other URL is returned as it is.
+	 *
+	 * @param url the configured URL, e.g. tcp://localhost:5557.
+	 *
+	 * @return the URL to bind or connect the socket to.
+	 */
+	public static String endpoint(String url) {
+		if (!url.startsWith( "tcp://") || !getString( "transport", "tcp").equals( "inproc")) {
+			return url;
+		}
+		int colon = url.lastIndexOf( ':');
+		String host = url.substring( "tcp://".length(), colon);
+		if (host.equals( "localhost") || host.startsWith( "127.") || host.equals( "*") || host.equals( "0.0.0.0")) {
+			return "inproc://localhost" + url.substring( colon);
+		}
+		return url;
+	}
+
+	/**
+	 * @param socket a socket created by the factory.
+	 *
+	 * @return the socket's statistics, or null if the factory did not create it.
+	 */
+	public static SocketStats getStats(ZMQ.Socket socket) {
+		return sockets.get( socket);
+	}
+
+	/** @return the statistics of every open socket the factory created, in name order. */
+	public static List<SocketStats> allStats() {
+		List<SocketStats> all = new ArrayList<SocketStats>( sockets.values());
+		Collections.sort( all, new Comparator<SocketStats>() {
+			public int compare(SocketStats a, SocketStats b) {
+				return a.getName().compareTo( b.getName());
+			}
+		});
+		return all;
+	}
+
+	/**
+	 * @param profile the tuning profile, e.g. request.
+	 *
+	 * @return the options the profile sets, e.g. <code>request{linger=0, monitor=true}</code>.
+	 */
+	public static String describe(String profile) {
+		Map<String,String> options = new LinkedHashMap<String,String>();
+		for (String option : OPTIONS) {
+			String value = option( profile, option);
+			if (value != null) options.put( option, value);
+		}
+		return profile + options.toString();
+	}
+
+	/**
+	 * @param key the setting name, e.g. ioThreads.
+	 * @param defaultValue value returned when the setting is not present.
+	 *
+	 * @return the setting value, with any system property override applied.
+	 */
+	public static String getString(String key, String defaultValue) {
+		String value = System.getProperty( SYSTEM_PREFIX + key);
+		if (value == null) {
+			value = properties.getProperty( key);
+		}
+		return (value == null) ? defaultValue : value.trim();
+	}
+
+	/**
+	 * @param key the setting name.
+	 * @param defaultValue value returned when the setting is not present or not a number.
+	 *
+	 * @return the setting as an int.
+	 */
+	public static int getInt(String key, int defaultValue) {
+		try {
+			return Integer.parseInt( getString( key, String.valueOf( defaultValue)));
+		}
+		catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/** @return the name of a socket type, e.g. REQ. */
+	static String typeName(int type) {
+		return (type >= 0 && type < TYPE_NAMES.length) ? TYPE_NAMES[type] : String.valueOf( type);
+	}
+
+	/** The profile's option, else the default profile's, else the built-in default, or null.  */
+	private static String option(String profile, String option) {
+		String value = getString( "profile." + profile + "." + option, null);
+		if (value == null) value = getString( "profile.default." + option, null);
+		if (value == null) value = defaults.getProperty( "profile." + profile + "." + option);
+		if (value == null) value = defaults.getProperty( "profile.default." + option);
+		return value;
+	}
+
+	private static boolean getBoolean(String profile, String option) {
+		return Boolean.parseBoolean( option( profile, option));
+	}
+
+	private static void apply(ZMQ.Socket socket, String profile) {
+		for (String option : OPTIONS) {
+			String value = option( profile, option);
+			if (value == null || option.equals( "monitor")) {
+				continue;
+			}
+			try {
+				int number = Integer.parseInt( value);
+				if		(option.equals( "sndhwm"))				socket.setSndHWM( number);
+				else if (option.equals( "rcvhwm"))				socket.setRcvHWM( number);
+				else if (option.equals( "sndbuf"))				socket.setSendBufferSize( number);
+				else if (option.equals( "rcvbuf"))				socket.setReceiveBufferSize( number);
+				else if (option.equals( "linger"))				socket.setLinger( number);
+				else if (option.equals( "tcpKeepAlive"))		socket.setTCPKeepAlive( number);
+				else if (option.equals( "tcpKeepAliveIdle"))	socket.setTCPKeepAliveIdle( number);
+				else if (option.equals( "tcpKeepAliveInterval")) socket.setTCPKeepAliveInterval( number);
+				else if (option.equals( "tcpKeepAliveCount"))	socket.setTCPKeepAliveCount( number);
+				else if (option.equals( "reconnectIvl"))		socket.setReconnectIVL( number);
+				else if (option.equals( "reconnectIvlMax"))		socket.setReconnectIVLMax( number);
+				else if (option.equals( "backlog"))				socket.setBacklog( number);
+			}
+			catch (NumberFormatException e) {
+				System.err.println( "SocketFactory ERROR: profile " + profile + " option " + option
+						+ "=" + value + " is not an int");
+			}
+		}
+	}
+
+	private static Properties load() {
+		Properties properties = new Properties();
+		InputStream in = SocketFactory.class.getClassLoader().getResourceAsStream( PROPERTIES_FILE);
+		if (in != null) {
+			try {
+				properties.load( in);
+			}
+			catch (IOException e) {
+				System.err.print( StackTrace.asString( "SocketFactory ERROR: Failed to read " + PROPERTIES_FILE, e));
+			}
+			finally {
+				try { in.close(); } catch (IOException e) { /** Do nothing */ }
+			}
+		}
+		return properties;
+	}
+
+	/**
+	 * Monitors reads the monitor sockets of the shared context's sockets and counts their events.
+	 * A monitor socket is connected by the thread that created the socket, so no event is missed,
+	 * and handed to this thread through a queue; a socket closed through the factory has its
+	 * monitor socket closed here.
+	 */
+	private static final class Monitors extends Thread {
+
+		private final ZMQ.Context								context;
+		private final ConcurrentLinkedQueue<Object[]>			added	= new ConcurrentLinkedQueue<Object[]>();
+		private final LinkedHashMap<ZMQ.Socket,SocketStats>		watched	= new LinkedHashMap<ZMQ.Socket,SocketStats>();
+		private volatile boolean								running	= true;
+
+		Monitors(ZMQ.Context context) {
+			super( "SocketFactory monitors");
+			setDaemon( true);
+			this.context = context;
+		}
+
+		void watch(ZMQ.Socket monitor, SocketStats stats) {
+			added.add( new Object[] { monitor, stats });
+		}
+
+		void shutdown() {
+			running = false;
+			try {
+				join( 1000);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		public void run() {
+			ZMQ.Poller poller = context.poller( 16);
+			try {
+				while (running) {
+					Object[] entry;
+					while ((entry = added.poll()) != null) {
+						watched.put( (ZMQ.Socket) entry[0], (SocketStats) entry[1]);
+						poller.register( (ZMQ.Socket) entry[0], ZMQ.Poller.POLLIN);
+					}
+					poller.poll( 100);
+
+					Iterator<Map.Entry<ZMQ.Socket,SocketStats>> entries = watched.entrySet().iterator();
+					while (entries.hasNext()) {
+						Map.Entry<ZMQ.Socket,SocketStats> watch = entries.next();
+						ZMQ.Event event;
+						while ((event = ZMQ.Event.recv( watch.getKey(), ZMQ.DONTWAIT)) != null) {
+							watch.getValue().record( event);
+						}
+						if (watch.getValue().isClosed()) {
+							poller.unregister( watch.getKey());
+							watch.getKey().close();
+							entries.remove();
+						}
+					}
+				}
+			}
+			finally {
+				poller.close();
+				for (ZMQ.Socket monitor : watched.keySet()) {
+					monitor.close();
+				}
+				Object[] entry;
+				while ((entry = added.poll()) != null) {
+					((ZMQ.Socket) entry[0]).close();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package com.testlims.utilities;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.zeromq.ZMQ;
+
+/**
+ * SocketStats counts the connection events of one socket made by the {@link SocketFactory}:
+ * connects, connect retries, disconnects, accepts, binds and bind failures, as reported by the
+ * socket's monitor.  Reconnect storms, flapping peers and a bind that failed at start all show
+ * up here without a packet capture.
+ * <p>
+ * The counters are updated by the thread reading the monitor and may be read by any thread.
+ *
+ * @author Marc Whitlow, Colabrativ, Inc.
+ */
+public final class SocketStats {
+
+	private final String		name;
+	private final String		profile;
+	private final int			type;
+	private final long			createdMillis	= System.currentTimeMillis();
+	private volatile boolean	closed			= false;
+	private volatile String		lastAddress		= "";
+
+	private final AtomicLong	connected		= new AtomicLong();
+	private final AtomicLong	connectRetried	= new AtomicLong();
+	private final AtomicLong	disconnected	= new AtomicLong();
+	private final AtomicLong	accepted		= new AtomicLong();
+	private final AtomicLong	listening		= new AtomicLong();
+	private final AtomicLong	bindFailed		= new AtomicLong();
+
+	SocketStats(String name, String profile, int type) {
+		this.name		= name;
+		this.profile	= profile;
+		this.type		= type;
+	}
+
+	/**
+	 * Count a monitor event.
+	 *
+	 * @param event an event read from the socket's monitor.
+	 */
+	public void record(ZMQ.Event event) {
+		switch (event.getEvent()) {
+			case ZMQ.EVENT_CONNECTED:		connected.incrementAndGet();		break;
+			case ZMQ.EVENT_CONNECT_RETRIED:	connectRetried.incrementAndGet();	break;
+			case ZMQ.EVENT_DISCONNECTED:	disconnected.incrementAndGet();		break;
+			case ZMQ.EVENT_ACCEPTED:		accepted.incrementAndGet();			break;
+			case ZMQ.EVENT_LISTENING:		listening.incrementAndGet();		break;
+			case ZMQ.EVENT_BIND_FAILED:		bindFailed.incrementAndGet();		break;
+			default:						return;
+		}
+		if (event.getAddress() != null) {
+			lastAddress = event.getAddress();
+		}
+	}
+
+	void closed() {
+		closed = true;
+	}
+
+	/** @return the name the socket was created with, numbered, e.g. "HelloService service 2". */
+	public String getName()				{ return name; }
+
+	/** @return the tuning profile applied to the socket, e.g. request. */
+	public String getProfile()			{ return profile; }
+
+	/** @return the zeroMQ socket type, e.g. ZMQ.REQ. */
+	public int getType()				{ return type; }
+
+	/** @return true once the socket has been closed through the factory. */
+	public boolean isClosed()			{ return closed; }
+
+	/** @return the address of the last event, e.g. tcp://127.0.0.1:5557. */
+	public String getLastAddress()		{ return lastAddress; }
+
+	/** @return the number of connections made. */
+	public long getConnectedCount()		{ return connected.get(); }
+
+	/** @return the number of connection attempts that were retried. */
+	public long getConnectRetriedCount() { return connectRetried.get(); }
+
+	/** @return the number of connections lost. */
+	public long getDisconnectedCount()	{ return disconnected.get(); }
+
+	/** @return the number of connections accepted on bound endpoints. */
+	public long getAcceptedCount()		{ return accepted.get(); }
+
+	/** @return the number of endpoints bound. */
+	public long getListeningCount()		{ return listening.get(); }
+
+	/** @return the number of binds that failed. */
+	public long getBindFailedCount()	{ return bindFailed.get(); }
+
+	/** @return a one line summary of the socket's events. */
+	public String toString() {
+		return name + " " + SocketFactory.typeName( type) + " profile=" + profile + " " + lastAddress
+				+ " connected=" + connected.get() + " retried=" + connectRetried.get()
+				+ " disconnected=" + disconnected.get() + " accepted=" + accepted.get()
+				+ " listening=" + listening.get() + " bindFailed=" + bindFailed.get()
+				+ " ageMillis=" + (System.currentTimeMillis() - createdMillis);
+	}
+}
@@ -13,6 +13,7 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.json.JSONObject;
 import org.junit.*;
@@ -20,6 +21,10 @@ import org.junit.*;
 import org.zeromq.ZMQ;
 import org.zeromq.ZMQ.Context;
 
+import com.testlims.utilities.BinaryFields;
+import com.testlims.utilities.BrokerWorker;
+import com.testlims.utilities.Envelope;
+import com.testlims.utilities.LogPublisher;
 import com.testlims.utilities.StackTrace;
 
 /**
@@ -31,6 +36,7 @@ public class HelloServiceTests
 	static final String 	LOGGER_TOPIC		= "Project_Log"; 
 	static final String 	LOGGER_URL			= "tcp://localhost:5556"; 
 	static final String 	SOCKET_URL			= "tcp://localhost:5558"; 
+	static final String 	BROKER_URL			= "tcp://localhost:5566"; 
 	static final String		dateFormat			= "yyyy-MM-dd'T'HH:mm:ss.SSS";
 	static final String		fileDateFormat		= "yyyy-MM-dd'T'HH.mm.ss.SSS";
 	static final DateFormat dateFormatter 		= new SimpleDateFormat( dateFormat);
@@ -59,11 +65,10 @@ public class HelloServiceTests
 	public void archiveLogFile() throws InterruptedException {
 		// Archive Log file
 		Context context = ZMQ.context(1);
-		ZMQ.Socket pub2Logger = context.socket( ZMQ.PUB); 
-		pub2Logger.connect( LOGGER_URL); 
+		LogPublisher pub2Logger = new LogPublisher( context, LOGGER_URL, LOGGER_TOPIC, 0); 
 		
-		Thread.sleep( 20);
-		pub2Logger.send( LOGGER_TOPIC + " " + "ARCIVE_LOG_FILE", 0);
+		assertTrue( "MessageLogger did not subscribe", pub2Logger.awaitReady( 1000));
+		pub2Logger.getSocket().send( LOGGER_TOPIC + " " + "ARCIVE_LOG_FILE", 0);
 		pub2Logger.close();
 		context.close();
 
@@ -74,7 +79,7 @@ public class HelloServiceTests
 	/**
      * Test of HelloService's sendHTML method. 
      * <p>
-     * Note that it takes about 20 milliseconds before the HelloService is ready to receive requests. 
+     * The HelloService is ready to receive requests once its constructor returns. 
 	 */
 	@Test
     public void helloServiceShouldReturnHTML() {
@@ -82,7 +87,6 @@ public class HelloServiceTests
 			// Start HelloService 
 			HelloService helloService = new HelloService( SOCKET_URL, LOGGER_URL, LOGGER_TOPIC);
 			helloService.start();
-			Thread.sleep(25);
 			
 			// Start Request Client
 			Context clientContext = ZMQ.context(1);
@@ -100,8 +104,7 @@ public class HelloServiceTests
 			String reply1 = requestClient.recvStr();
 			Thread.sleep(2);
 			
-			requestClient.send( ("TERMINATE_HELLO_SERVICE").getBytes(), 0);
-			String reply2 = requestClient.recvStr();
+			String reply2 = HelloService.control( helloService.getControlURL(), "stop", 2000);
 			Thread.sleep(2);
 			
 			// ____________________ Check Results _____________________ 
@@ -127,7 +130,6 @@ public class HelloServiceTests
 		// Start HelloService 
 		HelloService helloService = new HelloService( SOCKET_URL, LOGGER_URL, LOGGER_TOPIC);
 		helloService.start();
-		Thread.sleep(25);
 		
 		// Start Request Client
 		Context clientContext = ZMQ.context(1);
@@ -148,9 +150,8 @@ public class HelloServiceTests
 		String reply3 = requestClient.recvStr();
 		Thread.sleep(2);
 		
-		// Send terminate hello service request. 
-		requestClient.send( ("TERMINATE_HELLO_SERVICE").getBytes(), 0);
-		String reply4 = requestClient.recvStr();
+		// Stop the service on its control socket. 
+		String reply4 = HelloService.control( helloService.getControlURL(), "stop", 2000);
 		Thread.sleep(2);
 		
 		// ____________________ Check Results _____________________ 
@@ -158,11 +159,371 @@ public class HelloServiceTests
 		assertEquals( "HelloService being terminated", 	reply4);
 	}
 
+	/**
+     * Test that a request of an unknown type is answered with the error reply, and that the 
+     * service goes on serving requests after it. 
+	 * 
+	 * @throws InterruptedException if there is an issue putting the thread to sleep. 
+	 */
+	@Test
+    public void helloServiceShouldReplyErrorToUnknownType() throws InterruptedException {
+		// Start HelloService 
+		HelloService helloService = new HelloService( SOCKET_URL, LOGGER_URL, LOGGER_TOPIC);
+		helloService.start();
+		
+		// Start Request Client
+		Context clientContext = ZMQ.context(1);
+		ZMQ.Socket requestClient = clientContext.socket( ZMQ.REQ); 
+		requestClient.setReceiveTimeOut( 2000);
+		requestClient.connect( SOCKET_URL); 
+		
+		JSONObject requestJSON = new JSONObject();
+		requestJSON.put( "requestId",	"8");
+		requestJSON.put( "serviceName", "HelloService");
+		requestJSON.put( "requestType", "sayGoodbye");
+		requestClient.send( requestJSON.toString().getBytes(), 0);
+		String reply8 = requestClient.recvStr();
+		
+		requestJSON.put( "requestId",	"9");
+		requestJSON.put( "requestType", "sayHello");
+		requestJSON.put( "name", 		"Tess");
+		requestClient.send( requestJSON.toString().getBytes(), 0);
+		String reply9 = requestClient.recvStr();
+		
+		// Stop the service on its control socket. 
+		String reply10 = HelloService.control( helloService.getControlURL(), "stop", 2000);
+		Thread.sleep(2);
+		
+		// ____________________ Check Results _____________________ 
+		assertNotNull( reply8);
+		JSONObject reply8JSON = new JSONObject( reply8);
+		assertEquals( "8",								reply8JSON.getString( "requestId"));
+		assertEquals( "sayGoodbye",						reply8JSON.getString( "requestType"));
+		assertEquals( "Unknown requestType sayGoodbye",	reply8JSON.getString( "error"));
+		assertEquals( "{\"requestType\":\"sayHello\",\"requestId\":\"9\",\"response\":\"Hello Tess\",\"serviceName\":\"HelloService\"}", reply9);
+		assertEquals( "HelloService being terminated", 	reply10);
+	}
+
+	@Test
+    public void helloServiceShouldReplyInBinaryFormat() throws InterruptedException {
+		// Start HelloService 
+		HelloService helloService = new HelloService( SOCKET_URL, LOGGER_URL, LOGGER_TOPIC);
+		helloService.start();
+		
+		// Start Request Client
+		Context clientContext = ZMQ.context(1);
+		ZMQ.Socket requestClient = clientContext.socket( ZMQ.REQ); 
+		requestClient.setReceiveTimeOut( 2000);
+		requestClient.connect( SOCKET_URL); 
+		
+		JSONObject requestJSON = new JSONObject();
+		requestJSON.put( "serviceName", "HelloService");
+		requestJSON.put( "requestType", "sayHello");
+		requestJSON.put( "name", 		"Tess");
+		new Envelope( "11", "HelloService", "sayHello", Envelope.FLAG_BINARY, 
+				BinaryFields.fromJson( requestJSON.toString().getBytes())).send( requestClient);
+		Envelope reply11 = Envelope.recv( requestClient);
+		
+		// Stop the service on its control socket. 
+		String reply12 = HelloService.control( helloService.getControlURL(), "stop", 2000);
+		Thread.sleep(2);
+		
+		// ____________________ Check Results _____________________ 
+		assertNotNull( reply11);
+		assertTrue( reply11.hasFlag( Envelope.FLAG_BINARY));
+		assertTrue( BinaryFields.isBinary( reply11.getBody()));
+		assertEquals( "Hello Tess",	reply11.readFields( "response")[0]);
+		assertEquals( "{\"requestType\":\"sayHello\",\"requestId\":\"11\",\"response\":\"Hello Tess\",\"serviceName\":\"HelloService\"}", 
+				new String( BinaryFields.toJson( reply11.getBody())));
+		assertEquals( "HelloService being terminated", 	reply12);
+	}
+
+	/**
+     * Test that a drain on the control socket finishes the request in flight before the service 
+     * closes, and that a TERMINATE_HELLO_SERVICE request no longer stops the service. 
+	 * 
+	 * @throws InterruptedException if there is an issue putting the thread to sleep. 
+	 */
+	@Test
+    public void helloServiceShouldDrainInFlightRequests() throws InterruptedException {
+		// Start HelloService, with a request type that takes a while 
+		HelloService helloService = new HelloService( SOCKET_URL, LOGGER_URL, LOGGER_TOPIC, true);
+		helloService.register( "sayHelloSlowly", new RequestHandler() {
+			public void handle(Envelope request, ZMQ.Socket replySocket, LogPublisher logger) {
+				try {
+					Thread.sleep( 300);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				request.reply( replySocket, Envelope.FLAG_NONE, "Hello, slowly".getBytes());
+			}
+		});
+		helloService.start();
+		
+		// Start Request Client
+		Context clientContext = ZMQ.context(1);
+		ZMQ.Socket requestClient = clientContext.socket( ZMQ.REQ); 
+		requestClient.setReceiveTimeOut( 2000);
+		requestClient.connect( SOCKET_URL); 
+		
+		requestClient.send( "TERMINATE_HELLO_SERVICE".getBytes(), 0);
+		String reply13 = requestClient.recvStr();
+		
+		new Envelope( "14", "HelloService", "sayHelloSlowly", Envelope.FLAG_NONE, new byte[0]).send( requestClient);
+		Thread.sleep( 100);
+		String stats = HelloService.control( helloService.getControlURL(), "stats", 2000);
+		String drained = HelloService.control( helloService.getControlURL(), "drain 2000", 3000);
+		Envelope reply14 = Envelope.recv( requestClient);
+		helloService.join( 2000);
+		
+		// ____________________ Check Results _____________________ 
+		assertNotNull( reply13);
+		assertTrue( reply13, reply13.contains( "JSON Issue in TERMINATE_HELLO_SERVICE"));
+		assertNotNull( stats);
+		assertTrue( stats, stats.startsWith( "HelloService handled=2 inFlight=1 "));
+		assertEquals( "HelloService drained",	drained);
+		assertNotNull( reply14);
+		assertEquals( "Hello, slowly",			reply14.getBodyString());
+		assertTrue( !helloService.isAlive());
+		requestClient.close();
+		clientContext.close();
+	}
+
+	/**
+     * Test that a drain of the single REP socket handles the requests queued on it behind the one
+     * in hand before the service closes, rather than dropping them.
+	 *
+	 * @throws InterruptedException if there is an issue putting the thread to sleep.
+	 */
+	@Test
+    public void helloServiceShouldDrainQueuedRequests() throws InterruptedException {
+		// Start HelloService on one REP socket, with a request type that takes a while
+		HelloService helloService = new HelloService( SOCKET_URL, LOGGER_URL, LOGGER_TOPIC);
+		helloService.register( "sayHelloSlowly", new RequestHandler() {
+			public void handle(Envelope request, ZMQ.Socket replySocket, LogPublisher logger) {
+				try {
+					Thread.sleep( 300);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				request.reply( replySocket, Envelope.FLAG_NONE, "Hello, slowly".getBytes());
+			}
+		});
+		helloService.start();
+
+		// Start Request Clients, the first busying the service while the others queue behind it
+		Context clientContext = ZMQ.context(1);
+		ZMQ.Socket[] requestClients = new ZMQ.Socket[3];
+		for (int c=0; c<requestClients.length; c++) {
+			requestClients[c] = clientContext.socket( ZMQ.REQ);
+			requestClients[c].setReceiveTimeOut( 2000);
+			requestClients[c].connect( SOCKET_URL);
+		}
+		new Envelope( "16", "HelloService", "sayHelloSlowly", Envelope.FLAG_NONE, new byte[0]).send( requestClients[0]);
+		Thread.sleep( 100);
+		new Envelope( "17", "HelloService", "sayHello", Envelope.FLAG_NONE, "{\"name\":\"Ann\"}".getBytes()).send( requestClients[1]);
+		new Envelope( "18", "HelloService", "sayHello", Envelope.FLAG_NONE, "{\"name\":\"Bob\"}".getBytes()).send( requestClients[2]);
+		Thread.sleep( 50);
+		String drained = HelloService.control( helloService.getControlURL(), "drain 2000", 3000);
+		Envelope reply16 = Envelope.recv( requestClients[0]);
+		Envelope reply17 = Envelope.recv( requestClients[1]);
+		Envelope reply18 = Envelope.recv( requestClients[2]);
+		helloService.join( 2000);
+
+		// ____________________ Check Results _____________________
+		assertEquals( "HelloService drained",	drained);
+		assertNotNull( reply16);
+		assertEquals( "Hello, slowly",			reply16.getBodyString());
+		assertNotNull( reply17);
+		assertEquals( "17",						reply17.getRequestId());
+		assertTrue( reply17.getBodyString(), reply17.getBodyString().contains( "\"response\":\"Hello Ann\""));
+		assertNotNull( reply18);
+		assertEquals( "18",						reply18.getRequestId());
+		assertTrue( reply18.getBodyString(), reply18.getBodyString().contains( "\"response\":\"Hello Bob\""));
+		assertTrue( !helloService.isAlive());
+		for (ZMQ.Socket requestClient : requestClients) {
+			requestClient.close();
+		}
+		clientContext.close();
+	}
+
+	/**
+     * Test that HelloService started with 2 workers behind its ROUTER handles requests from several 
+     * clients on both workers at once, routes each reply back to the client that sent the request, 
+     * and finishes the requests in flight on a drain before it closes. 
+	 * 
+	 * @throws InterruptedException if there is an issue putting the thread to sleep. 
+	 */
+	@Test
+    public void helloServiceShouldServeConcurrentlyOnWorkers() throws InterruptedException {
+		// Start HelloService with 2 workers, and a request type that takes a while 
+		final AtomicInteger active		= new AtomicInteger();
+		final AtomicInteger maxActive	= new AtomicInteger();
+		HelloService helloService = new HelloService( SOCKET_URL, LOGGER_URL, LOGGER_TOPIC, 2);
+		helloService.register( "sayHelloSlowly", new RequestHandler() {
+			public void handle(Envelope request, ZMQ.Socket replySocket, LogPublisher logger) {
+				int now = active.incrementAndGet();
+				int max;
+				while ((max = maxActive.get()) < now && !maxActive.compareAndSet( max, now)) {
+					// Another handler raised the maximum first:  look again.
+				}
+				try {
+					Thread.sleep( 300);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				active.decrementAndGet();
+				request.reply( replySocket, Envelope.FLAG_NONE, ("Hello, slowly " + request.getRequestId()).getBytes());
+			}
+		});
+		helloService.start();
+		
+		// Start Request Clients, each sending a request at once 
+		Context clientContext = ZMQ.context(1);
+		ZMQ.Socket[] requestClients = new ZMQ.Socket[4];
+		for (int c=0; c<requestClients.length; c++) {
+			requestClients[c] = clientContext.socket( ZMQ.REQ);
+			requestClients[c].setReceiveTimeOut( 3000);
+			requestClients[c].connect( SOCKET_URL);
+		}
+		long start = System.currentTimeMillis();
+		for (int c=0; c<requestClients.length; c++) {
+			new Envelope( String.valueOf( 20 + c), "HelloService", "sayHelloSlowly", Envelope.FLAG_NONE, new byte[0]).send( requestClients[c]);
+		}
+		Envelope[] replies = new Envelope[requestClients.length];
+		for (int c=0; c<requestClients.length; c++) {
+			replies[c] = Envelope.recv( requestClients[c]);
+		}
+		long elapsed = System.currentTimeMillis() - start;
+		
+		// Drain the service with two requests in flight 
+		new Envelope( "24", "HelloService", "sayHelloSlowly", Envelope.FLAG_NONE, new byte[0]).send( requestClients[0]);
+		new Envelope( "25", "HelloService", "sayHelloSlowly", Envelope.FLAG_NONE, new byte[0]).send( requestClients[1]);
+		Thread.sleep( 100);
+		String stats = HelloService.control( helloService.getControlURL(), "stats", 2000);
+		String drained = HelloService.control( helloService.getControlURL(), "drain 2000", 3000);
+		Envelope reply24 = Envelope.recv( requestClients[0]);
+		Envelope reply25 = Envelope.recv( requestClients[1]);
+		helloService.join( 2000);
+		
+		// ____________________ Check Results _____________________ 
+		for (int c=0; c<requestClients.length; c++) {
+			assertNotNull( "no reply to client " + c, replies[c]);
+			assertEquals( String.valueOf( 20 + c),				replies[c].getRequestId());
+			assertEquals( "Hello, slowly " + (20 + c),			replies[c].getBodyString());
+		}
+		assertEquals( 2,						maxActive.get());
+		assertTrue( "elapsed " + elapsed, elapsed >= 2 * 300 - 50 && elapsed < 4 * 300);
+		assertNotNull( stats);
+		assertTrue( stats, stats.contains( " inFlight=2 workers=2 "));
+		assertEquals( "HelloService drained",	drained);
+		assertNotNull( reply24);
+		assertEquals( "Hello, slowly 24",		reply24.getBodyString());
+		assertNotNull( reply25);
+		assertEquals( "Hello, slowly 25",		reply25.getBodyString());
+		assertTrue( !helloService.isAlive());
+		for (ZMQ.Socket requestClient : requestClients) {
+			requestClient.close();
+		}
+		clientContext.close();
+	}
+
+	/**
+     * Test that HelloService started with 0 workers starts one per available processor, answers 
+     * requests on them, and stops on the control socket's stop command. 
+	 * 
+	 * @throws InterruptedException if there is an issue putting the thread to sleep. 
+	 */
+	@Test
+    public void helloServiceShouldStartAWorkerPerProcessor() throws InterruptedException {
+		HelloService helloService = new HelloService( SOCKET_URL, LOGGER_URL, LOGGER_TOPIC, 0);
+		helloService.start();
+		
+		Context clientContext = ZMQ.context(1);
+		ZMQ.Socket requestClient = clientContext.socket( ZMQ.REQ);
+		requestClient.setReceiveTimeOut( 2000);
+		requestClient.connect( SOCKET_URL);
+		new Envelope( "26", "HelloService", "sayHello", Envelope.FLAG_NONE, "{\"name\":\"Tess\"}".getBytes()).send( requestClient);
+		Envelope reply26 = Envelope.recv( requestClient);
+		String stats = HelloService.control( helloService.getControlURL(), "stats", 2000);
+		String stopped = HelloService.control( helloService.getControlURL(), "stop", 2000);
+		helloService.join( 2000);
+		
+		// ____________________ Check Results _____________________ 
+		assertNotNull( reply26);
+		assertEquals( "26",						reply26.getRequestId());
+		assertEquals( "Hello Tess",				reply26.readFields( "response")[0]);
+		assertNotNull( stats);
+		assertTrue( stats, stats.contains( " inFlight=0 workers=" + Runtime.getRuntime().availableProcessors() + " "));
+		assertEquals( "HelloService being terminated",	stopped);
+		assertTrue( !helloService.isAlive());
+		requestClient.close();
+		clientContext.close();
+	}
+
+	/**
+     * Test that HelloService started for a broker registers its worker with the broker, answers 
+     * the request the broker hands it, and tells the broker it is leaving when it is drained.  The 
+     * test plays the broker on a ROUTER socket. 
+	 * 
+	 * @throws InterruptedException if there is an issue putting the thread to sleep. 
+	 */
+	@Test
+    public void helloServiceShouldWorkForBroker() throws InterruptedException {
+		// Start the Broker's workers socket 
+		Context brokerContext = ZMQ.context(1);
+		ZMQ.Socket broker = brokerContext.socket( ZMQ.ROUTER);
+		broker.setReceiveTimeOut( 2000);
+		broker.bind( BROKER_URL);
+		
+		// Start HelloService with one worker for the broker 
+		HelloService helloService = new HelloService( BROKER_URL, "HelloService", LOGGER_URL, LOGGER_TOPIC, 1);
+		helloService.start();
+		
+		byte[] worker = broker.recv( 0);
+		String ready = broker.recvStr( 0) + ":" + broker.recvStr( 0) + ":" + broker.recv( 0)[0] + ":" + broker.recvStr( 0);
+		
+		// Hand the worker a request from a client 
+		broker.sendMore( worker);
+		broker.sendMore( "");
+		broker.sendMore( BrokerWorker.PROTOCOL);
+		broker.sendMore( new byte[] { BrokerWorker.REQUEST });
+		broker.sendMore( "client");
+		broker.sendMore( "");
+		new Envelope( "15", "HelloService", "sayHello", Envelope.FLAG_NONE, "{\"name\":\"Tess\"}".getBytes()).send( broker);
+		
+		broker.recv( 0);
+		String replyHeader = broker.recvStr( 0) + ":" + broker.recvStr( 0) + ":" + broker.recv( 0)[0] + ":"
+				+ broker.recvStr( 0) + ":" + broker.recvStr( 0);
+		Envelope reply15 = Envelope.recv( broker);
+		
+		// Drain the service on its control socket 
+		String drained = HelloService.control( helloService.getControlURL(), "drain 2000", 3000);
+		broker.recv( 0);
+		String disconnect = broker.recvStr( 0) + ":" + broker.recvStr( 0) + ":" + broker.recv( 0)[0];
+		helloService.join( 2000);
+		
+		// ____________________ Check Results _____________________ 
+		assertEquals( ":MDPW01:1:HelloService",	ready);
+		assertEquals( ":MDPW01:3:client:",		replyHeader);
+		assertNotNull( reply15);
+		assertEquals( "15",						reply15.getRequestId());
+		assertEquals( "Hello Tess",				reply15.readFields( "response")[0]);
+		assertEquals( "HelloService drained",	drained);
+		assertEquals( ":MDPW01:5",				disconnect);
+		assertTrue( !helloService.isAlive());
+		broker.close();
+		brokerContext.close();
+	}
+	
 	@Test
 	/**
      * Check the logging of HelloService using Mock HTTP request
      * <p>
-     * Note that it takes about 20 milliseconds before the HelloService is ready to receive requests. 
+     * The HelloService is ready to receive requests once its constructor returns. 
 	 * 
 	 * @throws InterruptedException 
 	 * @throws IOException 
@@ -174,7 +535,6 @@ public class HelloServiceTests
 		// Start HelloService 
 		HelloService helloService = new HelloService( SOCKET_URL, LOGGER_URL, LOGGER_TOPIC);
 		helloService.start();
-		Thread.sleep(25);
 		
 		// Start Request Client
 		Context clientContext = ZMQ.context(1);
@@ -205,9 +565,8 @@ public class HelloServiceTests
 		String reply6 = requestClient.recvStr();
 		Thread.sleep(2);
 		
-		// Send terminate hello service request. 
-		requestClient.send( ("TERMINATE_HELLO_SERVICE").getBytes(), 0);
-		String reply7 = requestClient.recvStr();
+		// Stop the service on its control socket. 
+		String reply7 = HelloService.control( helloService.getControlURL(), "stop", 2000);
 		Thread.sleep(10);
 		
 		// ____________________ Check Log File ____________________ 
@@ -256,7 +615,7 @@ public class HelloServiceTests
 				assertTrue( line.contains( "6:HelloService:sayHello.response:Hello Tess")); 
 			}
 			else if (lineNumber == 6) { 
-				assertTrue( line.contains( "-1:HelloService:request: TERMINATE_HELLO_SERVICE")); 
+				assertTrue( line.contains( "-1:HelloService:control: stop")); 
 			}
 			else if (lineNumber == 7) { 
 				assertTrue( line.contains( "-1:HelloService:Closing service and logger sockets and terminate context.")); 
@@ -9,16 +9,30 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 
 import org.json.JSONException;
-import org.json.JSONObject;
 import org.zeromq.ZMQ;
 import org.zeromq.ZMQ.Context;
 
+import com.testlims.utilities.Envelope;
+import com.testlims.utilities.JsonFields;
+import com.testlims.utilities.SocketFactory;
+import com.testlims.utilities.SocketStats;
 import com.testlims.utilities.StackTrace;
+import com.testlims.utilities.TraceContext;
 
 /**
  * Implementation of zeroMQ/jeroMQ SUB log service a where the constructor 
  * creates the message logger that listens to for the topic on a TCP socket 
  * from any service sending to that socket, and logs the message to log file. 
+ * <p>
+ * Messages are either a single frame, "topic message", or a topic frame followed by an 
+ * {@link Envelope} whose header carries the request Id and the logging class, which are 
+ * written ahead of the message text without parsing it.  When the envelope carries a 
+ * {@link TraceContext} the trace is written after the message, with the time it was logged, so 
+ * a request's hops can be followed by its trace Id across every service's log messages. 
+ * <p>
+ * The SUB socket is made in the JVM's shared context by the {@link SocketFactory}, with the logger 
+ * tuning profile set in zeroMQsockets.properties.  Its subscription is what the publishers wait 
+ * for before they send. 
  *
  * @author Marc Whitlow, Colabrativ, Inc. 
  */
@@ -34,6 +48,10 @@ public class MessageLogger extends Thread {
 	static final String		fileDateFormat		= "yyyy-MM-dd'T'HH.mm.ss.SSS";
 	static final DateFormat dateFormatter 		= new SimpleDateFormat( dateFormat);
 	static final DateFormat fileDateFormatter 	= new SimpleDateFormat( fileDateFormat);	
+	/** Added to a traced message's trace when it is written, after the sender's PUBLISHED time.  */
+	static final String		LOGGED				= "log";
+	/** The members read from a JSON log message.  */
+	private static final String[]	MESSAGE_FIELDS	= { "requestId", "serviceName", "requestType", "message" };
 	/**
 	 * MessageLogger Constructor 
 	 * 
@@ -48,10 +66,10 @@ public class MessageLogger extends Thread {
 		
 		if (logWriter != null) {
 			setDaemon(true);
-			context = ZMQ.context(1);
-			logger = context.socket( ZMQ.SUB);
+			context = SocketFactory.acquireContext();
+			logger = SocketFactory.socket( context, ZMQ.SUB, "logger", "MessageLogger");
 			logger.subscribe( topic.getBytes());
-			logger.bind( socketURL);
+			logger.bind( SocketFactory.endpoint( socketURL));
 		}
 	}
 	
@@ -64,6 +82,18 @@ public class MessageLogger extends Thread {
 	{
 		while (!Thread.currentThread().isInterrupted()) {
 			String topicAndMessage = logger.recvStr(); 
+			if (logger.hasReceiveMore()) {
+				Envelope envelope = Envelope.recv( logger);
+				TraceContext trace = envelope.getTrace();
+				if (trace == null) {
+					write( envelope.getRequestId() + ":" + envelope.getServiceName() + ":" + envelope.getBodyString());
+				}
+				else {
+					trace.mark( LOGGED);
+					write( envelope.getRequestId() + ":" + envelope.getServiceName() + ":" + envelope.getBodyString() + " " + trace);
+				}
+				continue;
+			}
 			String message = topicAndMessage.replace( topicDelimitated, "");
 			
 			if (message.equals( "ARCIVE_LOG_FILE")) {
@@ -79,7 +109,11 @@ public class MessageLogger extends Thread {
 			}
 		}	
 		
-		log( "-1:MessageLogging:Closing logger socket and terminating context.");
+		StringBuilder socketStats = new StringBuilder();
+		for (SocketStats stats : SocketFactory.allStats()) {
+			socketStats.append( "; ").append( stats);
+		}
+		log( "-1:MessageLogging:Closing logger socket and terminating context." + socketStats);
 		if (logWriter != null) {
 			try {
 				logWriter.flush();
@@ -88,8 +122,8 @@ public class MessageLogger extends Thread {
 				System.err.print( StackTrace.asString( "ERROR: Failed to flush and close logWriter: ", e));
 			}
 		}
-		logger.close();
-		context.close();
+		SocketFactory.close( logger);
+		SocketFactory.releaseContext();
 	}
 	
 	private void startLogWritter() {
@@ -143,24 +177,39 @@ public class MessageLogger extends Thread {
 	 * or a text message.  All log messages start with a date, e.g. 2018-06-29:08:38:03. 
 	 * If message is a JSON object string, then the requestId, requestType, and message are 
 	 * appended to the date and written to the log file.  Otherwise the messageString is 
-	 * appended to the date and written to the log file. 
+	 * appended to the date and written to the log file.  Only a message starting with '{' is read 
+	 * as JSON, with {@link JsonFields}, so a text message costs no failed parse. 
 	 */
 	private static void log(String messageString) 
 	{	
-		DateFormat 	dateFormatter = new SimpleDateFormat( "yyyy-MM-dd'T'HH:mm:ss.SSS");
-		String 		loggedMessage = dateFormatter.format( new Date()) + ":";
+		String loggedMessage = null;
 		
+		if (!messageString.trim().startsWith( "{")) {
+			write( messageString);
+			return;
+		}
 		try {
-			JSONObject messageJSON = new JSONObject( messageString);
-			String requestId	= messageJSON.has( "requestId")		? messageJSON.getString( "requestId")	: "0";
-			String serviceName	= messageJSON.has( "serviceName")	? messageJSON.getString( "serviceName")	: "SERVICE_NAME_MISSING";
-			String requestType	= messageJSON.has( "requestType")	? messageJSON.getString( "requestType")	: "REQUEST_TYPE_MISSING";
-			String message		= messageJSON.has( "message")		? messageJSON.getString( "message")		: "MESSAGE_MISSING";
-			loggedMessage = loggedMessage + requestId + ":" + serviceName + ":" + requestType + ":" + message;
+			String[] fields = JsonFields.read( messageString.getBytes( ZMQ.CHARSET), MESSAGE_FIELDS);
+			String requestId	= (fields[0] != null) ? fields[0] : "0";
+			String serviceName	= (fields[1] != null) ? fields[1] : "SERVICE_NAME_MISSING";
+			String requestType	= (fields[2] != null) ? fields[2] : "REQUEST_TYPE_MISSING";
+			String message		= (fields[3] != null) ? fields[3] : "MESSAGE_MISSING";
+			loggedMessage = requestId + ":" + serviceName + ":" + requestType + ":" + message;
 		}
 		catch (JSONException e) {
-			loggedMessage = loggedMessage + messageString;
+			loggedMessage = messageString;
 		}
+		write( loggedMessage);
+	}
+	
+	/**
+	 * Write the message to the log file, after the date. 
+	 * 
+	 * @param message the text of the log line. 
+	 */
+	private static void write(String message) 
+	{	
+		String 		loggedMessage = dateFormatter.format( new Date()) + ":" + message;
 		
 		try {
 			logWriter.write( loggedMessage);
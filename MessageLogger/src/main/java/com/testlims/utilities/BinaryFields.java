@@ -0,0 +1,216 @@
+package com.testlims.utilities;
+
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONException;
+
+/**
+ * BinaryFields reads the compact binary body format that the gateway and a service use in place
+ * of JSON when the service's route is configured for it, and translates between it and JSON at
+ * the gateway, so browsers and the HTTP cache only ever see JSON.  A body in the binary format
+ * is marked by {@link Envelope#FLAG_BINARY} on its envelope, and starts with the byte
+ * {@link #MAGIC}, which no JSON text starts with, so a reply can be recognized by its body alone:
+ <pre>
+[0xB5]
+per member, in order:
+  [kind]    'S' the value is a string, 'J' the value is JSON text, e.g. 42, true, null or an object
+  [length]  the name's length in bytes, 7 bits a byte, low bits first, high bit set on all but the last
+  [name]    UTF-8
+  [length]  the value's length in bytes, as above
+  [value]   UTF-8
+</pre>
+ * Nothing is escaped or quoted, so finding a member is a walk over the lengths, and a string
+ * is decoded only if it is read.  The members keep the order they were written in, so a reply
+ * translated to JSON by {@link #toJson} has the same bytes as the reply written as JSON by a
+ * {@link JsonWriter}.  As with {@link JsonFields}, a member that is absent or null is read as
+ * null, a JSON value is read as its text, and when a name appears twice the first value is read.
+ *
+ * @author Marc Whitlow, Colabrativ, Inc.
+ */
+public final class BinaryFields {
+	/** The first byte of every body in the binary format; it is not a byte any UTF-8 text starts with.  */
+	public static final byte	MAGIC			= (byte) 0xB5;
+	/** The kind of a member whose value is a string.  */
+	static final byte			KIND_STRING		= 'S';
+	/** The kind of a member whose value is JSON text.  */
+	static final byte			KIND_JSON		= 'J';
+
+	private static final ThreadLocal<JsonWriter> jsonWriters = new ThreadLocal<JsonWriter>() {
+		protected JsonWriter initialValue() {
+			return new JsonWriter( 1024);
+		}
+	};
+	private static final ThreadLocal<BinaryWriter> binaryWriters = new ThreadLocal<BinaryWriter>() {
+		protected BinaryWriter initialValue() {
+			return new BinaryWriter( 1024);
+		}
+	};
+
+	private BinaryFields() {}
+
+	/**
+	 * @param body a message body.
+	 *
+	 * @return true if the body is in the binary format.
+	 */
+	public static boolean isBinary(byte[] body) {
+		return body != null && body.length > 0 && body[0] == MAGIC;
+	}
+
+	/**
+	 * Read members of a body in the binary format.
+	 *
+	 * @param binary the body.
+	 * @param names the member names.
+	 *
+	 * @return the members' values, in the order of the names, with null for each that is absent or null.
+	 *
+	 * @throws JSONException if the body is not in the binary format, or is cut short.
+	 */
+	public static String[] read(byte[] binary, String... names) throws JSONException {
+		String[]	values	= new String[names.length];
+		boolean[]	found	= new boolean[names.length];
+		Cursor		cursor	= new Cursor( binary);
+		while (cursor.next()) {
+			for (int n=0; n<names.length; n++) {
+				if (!found[n] && cursor.nameEquals( names[n])) {
+					found[n]	= true;
+					values[n]	= cursor.value();
+					break;
+				}
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Translate a JSON object to the binary format, e.g. a request from a browser to a service
+	 * whose route uses it.
+	 *
+	 * @param json the UTF-8 bytes of the object.
+	 *
+	 * @return the object in the binary format.
+	 *
+	 * @throws JSONException if the bytes are not a JSON object.
+	 */
+	public static byte[] fromJson(byte[] json) throws JSONException {
+		BinaryWriter writer = binaryWriters.get().reset().beginObject();
+		JsonFields.copy( json, writer);
+		return writer.endObject().toByteArray();
+	}
+
+	/**
+	 * Translate a body in the binary format to a JSON object, e.g. a service's reply to a browser.
+	 *
+	 * @param binary the body.
+	 *
+	 * @return the UTF-8 bytes of the JSON object, with the members in the same order.
+	 *
+	 * @throws JSONException if the body is not in the binary format, or is cut short.
+	 */
+	public static byte[] toJson(byte[] binary) throws JSONException {
+		JsonWriter	writer	= jsonWriters.get().reset().beginObject();
+		Cursor		cursor	= new Cursor( binary);
+		while (cursor.next()) {
+			writer.name( binary, cursor.nameStart, cursor.nameLength);
+			if (cursor.kind == KIND_STRING) {
+				writer.string( binary, cursor.valueStart, cursor.valueLength);
+			}
+			else {
+				writer.raw( binary, cursor.valueStart, cursor.valueLength);
+			}
+		}
+		return writer.endObject().toByteArray();
+	}
+
+	/** A walk over the members of a body in the binary format.  */
+	private static final class Cursor {
+		private final byte[]	binary;
+		private int				position;
+		byte					kind;
+		int						nameStart;
+		int						nameLength;
+		int						valueStart;
+		int						valueLength;
+
+		Cursor(byte[] binary) throws JSONException {
+			if (!isBinary( binary)) {
+				throw new JSONException( "A binary body must begin with 0xB5");
+			}
+			this.binary		= binary;
+			this.position	= 1;
+		}
+
+		/** @return true if the cursor moved to the next member, false at the end of the body. */
+		boolean next() throws JSONException {
+			if (position >= binary.length) {
+				return false;
+			}
+			kind = binary[position++];
+			if (kind != KIND_STRING && kind != KIND_JSON) {
+				throw error( "Unknown member kind " + kind);
+			}
+			nameLength	= varint();
+			nameStart	= skip( nameLength);
+			valueLength	= varint();
+			valueStart	= skip( valueLength);
+			return true;
+		}
+
+		/** @return the position of the count bytes stepped over.  */
+		private int skip(int count) throws JSONException {
+			if (count > binary.length - position) {
+				throw error( "Member cut short");
+			}
+			position += count;
+			return position - count;
+		}
+
+		private int varint() throws JSONException {
+			int value = 0;
+			for (int shift=0; shift<32; shift+=7) {
+				if (position >= binary.length) {
+					throw error( "Length cut short");
+				}
+				byte b = binary[position++];
+				value |= (b & 0x7F) << shift;
+				if (b >= 0) {
+					if (value < 0) break;
+					return value;
+				}
+			}
+			throw error( "Length out of range");
+		}
+
+		/** Compare the current member's name with a name, byte for char while it is ASCII.  */
+		boolean nameEquals(String name) {
+			int length = name.length();
+			if (length > nameLength) {
+				return false;
+			}
+			for (int c=0; c<length; c++) {
+				char ch = name.charAt(c);
+				if (ch > 0x7F) {
+					return new String( binary, nameStart, nameLength, StandardCharsets.UTF_8).equals( name);
+				}
+				if (binary[nameStart + c] != ch) {
+					return false;
+				}
+			}
+			return length == nameLength;
+		}
+
+		/** @return the current member's value, or null if it is JSON null. */
+		String value() {
+			if (kind == KIND_JSON && valueLength == 4 && binary[valueStart] == 'n' && binary[valueStart + 1] == 'u'
+					&& binary[valueStart + 2] == 'l' && binary[valueStart + 3] == 'l') {
+				return null;
+			}
+			return new String( binary, valueStart, valueLength, StandardCharsets.UTF_8);
+		}
+
+		JSONException error(String message) {
+			return new JSONException( message + " at " + position);
+		}
+	}
+}
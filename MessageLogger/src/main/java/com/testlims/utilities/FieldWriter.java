@@ -0,0 +1,58 @@
+package com.testlims.utilities;
+
+/**
+ * A writer of a flat object of named members, in one of the body formats an {@link Envelope} can
+ * carry:  JSON, written by {@link JsonWriter}, or the binary format, written by {@link BinaryWriter}.
+ * A request handler writes its reply through a FieldWriter chosen by the format of the request, so
+ * the reply is built the same way in either format:
+ <pre>
+FieldWriter writer = request.hasFlag( Envelope.FLAG_BINARY) ? binaryWriter : jsonWriter;
+writer.reset().beginObject()
+      .member( "requestId", requestId)
+      .endObject();
+request.reply( socket, request.getFormat(), writer.toByteArray());
+</pre>
+ * The members are kept in the order written, so an object written in the binary format and
+ * translated to JSON by {@link BinaryFields#toJson} has the same bytes as the object written
+ * by a JsonWriter.
+ *
+ * @author Marc Whitlow, Colabrativ, Inc.
+ */
+public interface FieldWriter {
+
+	/** @return this writer, emptied for the next object. */
+	FieldWriter reset();
+
+	/** @return this writer, with the object opened. */
+	FieldWriter beginObject();
+
+	/**
+	 * Write a member whose value is a string.
+	 *
+	 * @param name the member name.
+	 * @param value the member value, or null to write JSON null.
+	 *
+	 * @return this writer.
+	 */
+	FieldWriter member(String name, String value);
+
+	/**
+	 * Write a member whose value is a JSON literal:  a number, boolean or null, or the JSON text
+	 * of an object or array.
+	 *
+	 * @param name the member name.
+	 * @param json the value's JSON text.
+	 *
+	 * @return this writer.
+	 */
+	FieldWriter literal(String name, String json);
+
+	/** @return this writer, with the object closed. */
+	FieldWriter endObject();
+
+	/** @return the number of bytes written since the last reset. */
+	int length();
+
+	/** @return a copy of the bytes written since the last reset. */
+	byte[] toByteArray();
+}
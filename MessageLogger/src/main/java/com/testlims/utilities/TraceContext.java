@@ -0,0 +1,204 @@
+package com.testlims.utilities;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.zeromq.ZMQ;
+
+/**
+ * TraceContext identifies one request across the gateway, the services and the message logger,
+ * and carries the monotonic clock timestamps each hop adds, so a request's time can be split
+ * into gateway queueing, network, service and logging time.
+ * <p>
+ * A trace has a 128 bit trace Id shared by every hop, and a 64 bit span Id per hop whose parent
+ * is the span of the hop that sent the request.  Ids are drawn from ThreadLocalRandom, so they
+ * are unique across processes without any coordination or lock.  The trace travels in the
+ * {@link Envelope} trace frame, in the text form
+ <pre>
+[traceId]-[spanId]-[parentSpanId];gw.recv=[nanos];gw.send=[nanos];svc.recv=[nanos]...
+</pre>
+ * The timestamps are System.nanoTime() values.  Differences between timestamps of the same hop
+ * are always valid; differences between hops are valid only between processes on the same
+ * host, where System.nanoTime() reads the same monotonic clock.
+ *
+ * @author Marc Whitlow, Colabrativ, Inc.
+ */
+public final class TraceContext {
+
+	/** The gateway received the HTTP request.  */
+	public static final String	GATEWAY_RECEIVED	= "gw.recv";
+	/** The gateway sent the request to the service.  */
+	public static final String	GATEWAY_SENT		= "gw.send";
+	/** The gateway received the service's reply.  */
+	public static final String	GATEWAY_REPLIED		= "gw.reply";
+	/** The service received the request.  */
+	public static final String	SERVICE_RECEIVED	= "svc.recv";
+	/** The service sent its reply.  */
+	public static final String	SERVICE_SENT		= "svc.send";
+	/** The log message was published; added to each log message's copy of the trace.  */
+	public static final String	PUBLISHED			= "pub";
+
+	private final long	traceIdHigh;
+	private final long	traceIdLow;
+	private final long	spanId;
+	private final long	parentSpanId;
+	private String[]	names	= new String[6];
+	private long[]		nanos	= new long[6];
+	private int			count	= 0;
+
+	private TraceContext(long traceIdHigh, long traceIdLow, long spanId, long parentSpanId) {
+		this.traceIdHigh	= traceIdHigh;
+		this.traceIdLow		= traceIdLow;
+		this.spanId			= spanId;
+		this.parentSpanId	= parentSpanId;
+	}
+
+	/** @return a new trace, with a root span. */
+	public static TraceContext start() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		return new TraceContext( random.nextLong(), random.nextLong(), random.nextLong(), 0);
+	}
+
+	/** @return a span of the same trace whose parent is this span, carrying this span's timestamps. */
+	public TraceContext child() {
+		TraceContext child = new TraceContext( traceIdHigh, traceIdLow, ThreadLocalRandom.current().nextLong(), spanId);
+		child.names	= Arrays.copyOf( names, names.length);
+		child.nanos	= Arrays.copyOf( nanos, nanos.length);
+		child.count	= count;
+		return child;
+	}
+
+	/**
+	 * Add a timestamp read from System.nanoTime() now.
+	 *
+	 * @param name the name of the event, e.g. GATEWAY_SENT.
+	 *
+	 * @return this trace.
+	 */
+	public TraceContext mark(String name) {
+		return mark( name, System.nanoTime());
+	}
+
+	/**
+	 * Add a timestamp.
+	 *
+	 * @param name the name of the event, e.g. GATEWAY_RECEIVED.
+	 * @param nanoTime the System.nanoTime() value at the event.
+	 *
+	 * @return this trace.
+	 */
+	public TraceContext mark(String name, long nanoTime) {
+		if (count == names.length) {
+			names	= Arrays.copyOf( names, count * 2);
+			nanos	= Arrays.copyOf( nanos, count * 2);
+		}
+		names[count]	= name;
+		nanos[count]	= nanoTime;
+		count++;
+		return this;
+	}
+
+	/**
+	 * @param name the name of the event.
+	 *
+	 * @return the last timestamp added for the event, or -1 if there is none.
+	 */
+	public long get(String name) {
+		for (int m=count - 1; m>=0; m--) {
+			if (names[m].equals( name)) return nanos[m];
+		}
+		return -1;
+	}
+
+	/**
+	 * @param from the name of the earlier event.
+	 * @param to the name of the later event.
+	 *
+	 * @return the microseconds between the events, or -1 if either is missing.
+	 */
+	public long micros(String from, String to) {
+		long start	= get( from);
+		long end	= get( to);
+		return (start < 0 || end < 0) ? -1 : (end - start) / 1000;
+	}
+
+	/** @return the trace Id as 32 hex digits. */
+	public String getTraceId() {
+		return hex( traceIdHigh) + hex( traceIdLow);
+	}
+
+	/** @return this span's Id as 16 hex digits. */
+	public String getSpanId() {
+		return hex( spanId);
+	}
+
+	/** @return the parent span's Id as 16 hex digits, all zero for the root span. */
+	public String getParentSpanId() {
+		return hex( parentSpanId);
+	}
+
+	/**
+	 * @param extra the name of a timestamp read now and added to the frame only, or null.
+	 *
+	 * @return the trace frame.
+	 */
+	public byte[] toFrame(String extra) {
+		StringBuilder frame = new StringBuilder( 52 + 24 * (count + 1));
+		frame.append( getTraceId()).append( '-').append( getSpanId()).append( '-').append( getParentSpanId());
+		for (int m=0; m<count; m++) {
+			frame.append( ';').append( names[m]).append( '=').append( nanos[m]);
+		}
+		if (extra != null) {
+			frame.append( ';').append( extra).append( '=').append( System.nanoTime());
+		}
+		return frame.toString().getBytes( ZMQ.CHARSET);
+	}
+
+	/**
+	 * @param frame a trace frame.
+	 *
+	 * @return the trace, or null if the frame is not a trace frame.
+	 */
+	public static TraceContext fromFrame(byte[] frame) {
+		String text = new String( frame, ZMQ.CHARSET);
+		String[] parts = text.split( ";");
+		String[] ids = parts[0].split( "-");
+		if (ids.length != 3 || ids[0].length() != 32) {
+			return null;
+		}
+		try {
+			TraceContext trace = new TraceContext( Long.parseUnsignedLong( ids[0].substring( 0, 16), 16),
+					Long.parseUnsignedLong( ids[0].substring( 16), 16), Long.parseUnsignedLong( ids[1], 16),
+					Long.parseUnsignedLong( ids[2], 16));
+			for (int p=1; p<parts.length; p++) {
+				int equals = parts[p].indexOf( '=');
+				if (equals > 0) {
+					trace.mark( parts[p].substring( 0, equals), Long.parseLong( parts[p].substring( equals + 1)));
+				}
+			}
+			return trace;
+		}
+		catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * The trace and span Ids, followed by each timestamp in microseconds after the first,
+	 * e.g. <code>trace=4bf9...36/00f0...b7 gw.recv=0 gw.send=41 svc.recv=160 svc.send=402 pub=415</code>.
+	 *
+	 * @return the trace as written to the log.
+	 */
+	public String toString() {
+		StringBuilder text = new StringBuilder( "trace=").append( getTraceId()).append( '/').append( getSpanId());
+		for (int m=0; m<count; m++) {
+			text.append( ' ').append( names[m]).append( '=').append( (nanos[m] - nanos[0]) / 1000);
+		}
+		return text.toString();
+	}
+
+	private static String hex(long value) {
+		String digits = Long.toHexString( value);
+		return "0000000000000000".substring( digits.length()) + digits;
+	}
+}
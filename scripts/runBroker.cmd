@@ -0,0 +1,29 @@
+@echo off
+REM Command script to start Broker 
+REM Author:  Marc Whitlow 
+REM 
+REM Filename:  runBroker.cmd 
+REM Location:  C:\Users\tlims\jeroMQMSC\scripts
+REM Input variables: 
+REM 1: The URL that the clients socket will be bound to, e.g. tcp://127.0.0.1:5565
+REM 2: The URL that the workers socket will be bound to, e.g. tcp://127.0.0.1:5566
+REM 3: The URL that the logger will be bound to, e.g. tcp://127.0.0.1:5556 
+REM 4: The topic that logger monitors, e.g. Project_Log 
+
+SETLOCAL ENABLEEXTENSIONS
+SET me=%~n0
+SET parent=%~pd0
+SET clientsURL=%1
+SET workersURL=%2
+SET loggerURL=%3
+SET topic=%4
+
+ECHO %me% PWD:          %parent%
+ECHO.%me% Clients URL:  %clientsURL% 
+ECHO.%me% Workers URL:  %workersURL% 
+ECHO.%me% Logger URL:   %loggerURL% 
+ECHO.%me% Logger Topic: %topic% 
+ECHO.%me%
+ECHO.%me% Run Broker
+
+java -jar ../Broker.jar %clientsURL% %workersURL% %loggerURL% %topic% 
\ No newline at end of file
@@ -0,0 +1,422 @@
+package com.testlims.utilities;
+
+import java.util.Arrays;
+
+import org.zeromq.ZMQ;
+
+/**
+ * Envelope is the multipart message format used between the zeroMQcore gateway, the services
+ * and the message logger.  The metadata needed to route, dispatch and log a message travels in
+ * small header frames ahead of the body, so none of them has to parse the body to find it:
+ <pre>
+[version]      "MSC1"
+[requestId]    e.g. "42"
+[serviceName]  e.g. "HelloService"
+[requestType]  e.g. "sayHello"
+[flags]        one byte, see the FLAG_ constants
+[trace]        only if FLAG_TRACE is set, see {@link TraceContext}
+[body]         opaque to everyone but the request handler, JSON, or the binary format if FLAG_BINARY is set
+</pre>
+ * A reply carries the same header frames as its request, followed by the reply body.  The trace,
+ * with the timestamps the service added to it, goes back with the reply and into each log message
+ * published about the request.
+ * <p>
+ * Log messages are published as <code>[topic]</code> followed by an envelope whose serviceName
+ * is the class logging the message and whose body is the message text, see {@link #publish}.
+ * <p>
+ * A message whose first frame is not the version frame is a plain single frame message from
+ * a client that predates the envelope.  {@link #recv} returns it as an envelope that is not
+ * {@link #isVersioned() versioned}, with the whole message as its body, and replies to it are
+ * sent as a single frame.
+ * <p>
+ * A request whose body is in the binary format of {@link BinaryFields} has FLAG_BINARY set, and
+ * its reply is sent in the same format, with the flag set, see {@link #getFormat}.  The handler
+ * reads the body with {@link #readFields}, which reads either format.
+ *
+ * @author Marc Whitlow, Colabrativ, Inc.
+ */
+public final class Envelope {
+
+	/** The version frame that starts every envelope.  */
+	public static final String	VERSION			= "MSC1";
+
+	/** No flags set.  */
+	public static final byte	FLAG_NONE		= 0;
+	/** The body is an error reply rather than the normal reply for the request type.  */
+	public static final byte	FLAG_ERROR		= 1;
+	/** A trace frame follows the flags frame.  */
+	public static final byte	FLAG_TRACE		= 2;
+	/** The body is in the binary format, see {@link BinaryFields}, rather than JSON.  */
+	public static final byte	FLAG_BINARY		= 4;
+
+	private static final byte[] VERSION_FRAME	= VERSION.getBytes( ZMQ.CHARSET);
+
+	private final boolean	versioned;
+	private String			requestId;
+	private String			serviceName;
+	private String			requestType;
+	private byte			flags;
+	private byte[]			body;
+	private TraceContext	trace;
+	private byte[][]		routing;
+
+	/**
+	 * Envelope Constructor
+	 *
+	 * @param requestId the request Id.
+	 * @param serviceName the service the request is for, or for log messages the class logging.
+	 * @param requestType the request type, e.g. sayHello.
+	 * @param flags the FLAG_ bits that apply.
+	 * @param body the message body.
+	 */
+	public Envelope(String requestId, String serviceName, String requestType, byte flags, byte[] body) {
+		this( true, requestId, serviceName, requestType, flags, body);
+	}
+
+	private Envelope(boolean versioned, String requestId, String serviceName, String requestType, byte flags, byte[] body) {
+		this.versioned		= versioned;
+		this.requestId		= requestId;
+		this.serviceName	= serviceName;
+		this.requestType	= requestType;
+		this.flags			= flags;
+		this.body			= body;
+	}
+
+	/**
+	 * Wrap a plain single frame message.  Replies to it are sent as a single frame.
+	 *
+	 * @param body the message.
+	 *
+	 * @return an envelope that is not versioned, with empty header fields.
+	 */
+	public static Envelope unversioned(byte[] body) {
+		return new Envelope( false, "", "", "", FLAG_NONE, body);
+	}
+
+	/**
+	 * Receive one whole message from the socket.
+	 *
+	 * @param socket the socket to read from.
+	 * @param flags zeroMQ receive flags for the first frame, e.g. 0 or ZMQ.DONTWAIT.
+	 *
+	 * @return the envelope, or null if no message was received.
+	 */
+	public static Envelope recv(ZMQ.Socket socket, int flags) {
+		byte[] first = socket.recv( flags);
+		if (first == null) {
+			return null;
+		}
+		if (!socket.hasReceiveMore() || !isVersionFrame( first)) {
+			byte[] last = first;
+			while (socket.hasReceiveMore()) {
+				last = socket.recv( 0);
+			}
+			return unversioned( last);
+		}
+
+		String	requestId	= socket.recvStr( 0);
+		String	serviceName	= socket.hasReceiveMore() ? socket.recvStr( 0) : "";
+		String	requestType	= socket.hasReceiveMore() ? socket.recvStr( 0) : "";
+		byte[]	flagFrame	= socket.hasReceiveMore() ? socket.recv( 0) : null;
+		byte flagByte = (flagFrame == null || flagFrame.length == 0) ? FLAG_NONE : flagFrame[0];
+		byte[]	traceFrame	= ((flagByte & FLAG_TRACE) != 0 && socket.hasReceiveMore()) ? socket.recv( 0) : null;
+		byte[]	body		= socket.hasReceiveMore() ? socket.recv( 0) : new byte[0];
+		while (socket.hasReceiveMore()) {
+			socket.recv( 0);
+		}
+		Envelope envelope = new Envelope( true, requestId, serviceName, requestType, (byte) (flagByte & ~FLAG_TRACE), body);
+		envelope.trace = (traceFrame == null) ? null : TraceContext.fromFrame( traceFrame);
+		return envelope;
+	}
+
+	/**
+	 * Receive one whole message from the socket, waiting until one arrives.
+	 *
+	 * @param socket the socket to read from.
+	 *
+	 * @return the envelope, or null if the receive was interrupted or timed out.
+	 */
+	public static Envelope recv(ZMQ.Socket socket) {
+		return recv( socket, 0);
+	}
+
+	private static boolean isVersionFrame(byte[] frame) {
+		if (frame.length != VERSION_FRAME.length) {
+			return false;
+		}
+		for (int b=0; b<frame.length; b++) {
+			if (frame[b] != VERSION_FRAME[b]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Receive one whole message from a ROUTER socket:  the routing frames that identify the
+	 * sender, up to and including the empty delimiter frame, and then the envelope.  Replies to
+	 * the envelope are sent with the same routing frames, so they find their way back through
+	 * the ROUTER to the REQ or DEALER socket that sent the request.
+	 *
+	 * @param router the ROUTER socket to read from.
+	 * @param flags zeroMQ receive flags for the first frame, e.g. 0 or ZMQ.DONTWAIT.
+	 *
+	 * @return the envelope, or null if no message was received.
+	 */
+	public static Envelope recvRouted(ZMQ.Socket router, int flags) {
+		byte[] frame = router.recv( flags);
+		if (frame == null) {
+			return null;
+		}
+		byte[][] routing = new byte[][] { frame };
+		while (frame.length > 0 && router.hasReceiveMore()) {
+			frame = router.recv( 0);
+			routing = Arrays.copyOf( routing, routing.length + 1);
+			routing[routing.length - 1] = frame;
+		}
+		Envelope envelope = router.hasReceiveMore() ? recv( router, 0) : unversioned( new byte[0]);
+		envelope.routing = routing;
+		return envelope;
+	}
+
+	/**
+	 * Send the envelope, or just the body if it is not versioned.
+	 *
+	 * @param socket the socket to send on.
+	 *
+	 * @return true if the message was queued.
+	 */
+	public boolean send(ZMQ.Socket socket) {
+		if (versioned) {
+			sendHeader( socket, requestId, serviceName, requestType, flags, trace, null);
+		}
+		return socket.send( body, 0);
+	}
+
+	/**
+	 * Send a reply to this envelope:  the same header frames and trace followed by the reply body,
+	 * or just the reply body if this envelope is not versioned.  An envelope received by
+	 * {@link #recvRouted} puts its routing frames first.
+	 *
+	 * @param socket the socket to send on.
+	 * @param replyFlags the FLAG_ bits that apply to the reply.
+	 * @param replyBody the reply body.
+	 *
+	 * @return true if the message was queued.
+	 */
+	public boolean reply(ZMQ.Socket socket, byte replyFlags, byte[] replyBody) {
+		if (routing != null) {
+			for (byte[] frame : routing) {
+				socket.sendMore( frame);
+			}
+		}
+		if (versioned) {
+			sendHeader( socket, requestId, serviceName, requestType, replyFlags, trace, null);
+		}
+		return socket.send( replyBody, 0);
+	}
+
+	private static void sendHeader(ZMQ.Socket socket, String requestId, String serviceName, String requestType, byte flags,
+			TraceContext trace, String traceMark) {
+		socket.sendMore( VERSION_FRAME);
+		socket.sendMore( requestId);
+		socket.sendMore( serviceName);
+		socket.sendMore( requestType);
+		if (trace == null) {
+			socket.sendMore( new byte[] { (byte) (flags & ~FLAG_TRACE) });
+		}
+		else {
+			socket.sendMore( new byte[] { (byte) (flags | FLAG_TRACE) });
+			socket.sendMore( trace.toFrame( traceMark));
+		}
+	}
+
+	/**
+	 * Build the frames of an envelope, e.g. to hand to a socket owned by another thread.
+	 *
+	 * @param requestId the request Id.
+	 * @param serviceName the service the request is for.
+	 * @param requestType the request type, e.g. sayHello.
+	 * @param flags the FLAG_ bits that apply.
+	 * @param body the message body.
+	 *
+	 * @return the version, header and body frames in order.
+	 */
+	public static byte[][] frames(String requestId, String serviceName, String requestType, byte flags, byte[] body) {
+		return frames( requestId, serviceName, requestType, flags, null, body);
+	}
+
+	/**
+	 * Build the frames of an envelope carrying a trace.
+	 *
+	 * @param requestId the request Id.
+	 * @param serviceName the service the request is for.
+	 * @param requestType the request type, e.g. sayHello.
+	 * @param flags the FLAG_ bits that apply.
+	 * @param trace the request's trace, or null to send none.
+	 * @param body the message body.
+	 *
+	 * @return the version, header, trace and body frames in order.
+	 */
+	public static byte[][] frames(String requestId, String serviceName, String requestType, byte flags,
+			TraceContext trace, byte[] body) {
+		if (trace == null) {
+			return new byte[][] {
+				VERSION_FRAME,
+				requestId.getBytes( ZMQ.CHARSET),
+				serviceName.getBytes( ZMQ.CHARSET),
+				requestType.getBytes( ZMQ.CHARSET),
+				new byte[] { (byte) (flags & ~FLAG_TRACE) },
+				body
+			};
+		}
+		return new byte[][] {
+			VERSION_FRAME,
+			requestId.getBytes( ZMQ.CHARSET),
+			serviceName.getBytes( ZMQ.CHARSET),
+			requestType.getBytes( ZMQ.CHARSET),
+			new byte[] { (byte) (flags | FLAG_TRACE) },
+			trace.toFrame( null),
+			body
+		};
+	}
+
+	/**
+	 * Publish a log message to the message logger as <code>[topic]</code> followed by an envelope.
+	 * The logger writes it as <code>requestId:source:message</code>.
+	 *
+	 * @param pub2Logger PUB socket connected to the message logger.
+	 * @param topic the logger topic, e.g. Project_Log.
+	 * @param requestId the request Id the message is about, or 0 when it is about no request.
+	 * @param source the class logging the message, e.g. HelloService.
+	 * @param requestType the request type the message is about, or an empty string.
+	 * @param message the message text.
+	 *
+	 * @return true if the message was queued.
+	 */
+	public static boolean publish(ZMQ.Socket pub2Logger, String topic, String requestId, String source,
+			String requestType, String message) {
+		return publish( pub2Logger, topic, requestId, source, requestType, null, message);
+	}
+
+	/**
+	 * Publish a log message carrying the request's trace, with the time of publishing added to
+	 * the message's copy of the trace.  The logger writes the trace after the message.
+	 *
+	 * @param pub2Logger PUB socket connected to the message logger.
+	 * @param topic the logger topic, e.g. Project_Log.
+	 * @param requestId the request Id the message is about, or 0 when it is about no request.
+	 * @param source the class logging the message, e.g. HelloService.
+	 * @param requestType the request type the message is about, or an empty string.
+	 * @param trace the request's trace, or null.
+	 * @param message the message text.
+	 *
+	 * @return true if the message was queued.
+	 */
+	public static boolean publish(ZMQ.Socket pub2Logger, String topic, String requestId, String source,
+			String requestType, TraceContext trace, String message) {
+		pub2Logger.sendMore( topic);
+		sendHeader( pub2Logger, requestId, source, requestType, FLAG_NONE, trace, TraceContext.PUBLISHED);
+		return pub2Logger.send( message.getBytes( ZMQ.CHARSET), 0);
+	}
+
+	/**
+	 * Build the frames of a log message, as {@link #publish} sends them, e.g. to keep until the
+	 * logger is ready.  The time of building is added to the message's copy of the trace.
+	 *
+	 * @param topic the logger topic, e.g. Project_Log.
+	 * @param requestId the request Id the message is about, or 0 when it is about no request.
+	 * @param source the class logging the message, e.g. HelloService.
+	 * @param requestType the request type the message is about, or an empty string.
+	 * @param trace the request's trace, or null.
+	 * @param message the message text.
+	 *
+	 * @return the topic, version, header, trace and body frames in order.
+	 */
+	public static byte[][] logFrames(String topic, String requestId, String source, String requestType,
+			TraceContext trace, String message) {
+		byte[][] frames = new byte[(trace == null) ? 7 : 8][];
+		int f = 0;
+		frames[f++] = topic.getBytes( ZMQ.CHARSET);
+		frames[f++] = VERSION_FRAME;
+		frames[f++] = requestId.getBytes( ZMQ.CHARSET);
+		frames[f++] = source.getBytes( ZMQ.CHARSET);
+		frames[f++] = requestType.getBytes( ZMQ.CHARSET);
+		if (trace == null) {
+			frames[f++] = new byte[] { FLAG_NONE };
+		}
+		else {
+			frames[f++] = new byte[] { FLAG_TRACE };
+			frames[f++] = trace.toFrame( TraceContext.PUBLISHED);
+		}
+		frames[f] = message.getBytes( ZMQ.CHARSET);
+		return frames;
+	}
+
+	/** @return true if the message had envelope header frames, false if it was a plain single frame. */
+	public boolean isVersioned()		{ return versioned; }
+
+	/** @return the request Id, or an empty string if not known. */
+	public String getRequestId()		{ return requestId; }
+
+	/** @return the service name, or an empty string if not known. */
+	public String getServiceName()		{ return serviceName; }
+
+	/** @return the request type, or an empty string if not known. */
+	public String getRequestType()		{ return requestType; }
+
+	/** @return the FLAG_ bits. */
+	public byte getFlags()				{ return flags; }
+
+	/** @return true if the flag bit is set. */
+	public boolean hasFlag(byte flag)	{ return (flags & flag) != 0; }
+
+	/** @return FLAG_BINARY if the body is in the binary format, else FLAG_NONE, to set on the reply. */
+	public byte getFormat()				{ return (byte) (flags & FLAG_BINARY); }
+
+	/** @return the body. */
+	public byte[] getBody()				{ return body; }
+
+	/** @return the trace, or null if the message carried none. */
+	public TraceContext getTrace()		{ return trace; }
+
+	/** @param trace the trace to send with the envelope and its reply, or null for none. */
+	public void setTrace(TraceContext trace)	{ this.trace = trace; }
+
+	/** @return the routing frames the envelope was received with by {@link #recvRouted}, or null. */
+	public byte[][] getRouting()		{ return routing; }
+
+	/**
+	 * @param routing the frames to send ahead of a reply, e.g. to address it through a broker to
+	 * the client that sent the request, or null to send none.
+	 */
+	public void setRouting(byte[][] routing)	{ this.routing = routing; }
+
+	/** @return the body decoded as UTF-8. */
+	public String getBodyString()		{ return new String( body, ZMQ.CHARSET); }
+
+	/**
+	 * Read members of the body, in the binary format if FLAG_BINARY is set, else as JSON.
+	 *
+	 * @param names the member names.
+	 *
+	 * @return the members' values, in the order of the names, with null for each that is absent or null.
+	 *
+	 * @throws org.json.JSONException if the body is not an object in its format.
+	 */
+	public String[] readFields(String... names) {
+		return hasFlag( FLAG_BINARY) ? BinaryFields.read( body, names) : JsonFields.read( body, names);
+	}
+
+	/**
+	 * Fill in header fields that were not carried by the message, e.g. after parsing the body
+	 * of a plain single frame request.
+	 *
+	 * @param requestId the request Id.
+	 * @param serviceName the service name.
+	 * @param requestType the request type.
+	 */
+	public void setHeader(String requestId, String serviceName, String requestType) {
+		this.requestId		= requestId;
+		this.serviceName	= serviceName;
+		this.requestType	= requestType;
+	}
+}
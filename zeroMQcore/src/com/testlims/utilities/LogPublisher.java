@@ -0,0 +1,231 @@
+package com.testlims.utilities;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.zeromq.ZMQ;
+
+/**
+ * LogPublisher publishes log messages to the MessageLogger, and holds them back until the
+ * logger is known to be listening, rather than sleeping after connect and hoping the PUB/SUB
+ * slow-joiner window has passed.
+ * <p>
+ * The publisher is an XPUB socket, so it receives the subscriptions of the logger's SUB socket.
+ * Readiness is reached in two steps:
+ <ol>
+   <li>Connected:  a socket monitor reports that the connection to the logger is made.</li>
+   <li>Ready:  the logger's subscription to the topic arrives, which is the logger's acknowledgement
+   that messages published from now on will be delivered.</li>
+ </ol>
+ * Messages published before the publisher is ready are kept, up to maxPending of them with the
+ * oldest dropped beyond that, and are sent in order, ahead of the next message, by the first
+ * {@link #publish} or readiness check that finds it ready.  When the monitor
+ * reports the logger disconnected, the publisher holds messages again until the logger's
+ * subscription returns; the socket is verbose so a repeated subscription is not filtered out.
+ * <p>
+ * Readiness is checked without blocking on every publish, or waited for with {@link #awaitReady}.
+ * The XPUB socket is made by the {@link SocketFactory} with the logger tuning profile, and the
+ * events the publisher reads from its monitor are counted in the socket's {@link SocketStats}.
+ * Like the socket it wraps, a LogPublisher is used by one thread at a time.
+ *
+ * @author Marc Whitlow, Colabrativ, Inc.
+ */
+public final class LogPublisher {
+
+	private static final AtomicInteger	monitorCount	= new AtomicInteger();
+
+	private final ZMQ.Context			context;
+	private final ZMQ.Socket			socket;
+	private final ZMQ.Socket			monitor;
+	private final SocketStats			stats;
+	private final String				url;
+	private final String				topic;
+	private final byte[]				topicBytes;
+	private final int					maxPending;
+	private final ArrayDeque<byte[][]>	pending			= new ArrayDeque<byte[][]>();
+	private volatile boolean			connected		= false;
+	private volatile boolean			ready			= false;
+	private volatile int				pendingCount	= 0;
+	private volatile long				droppedCount	= 0;
+
+	/**
+	 * LogPublisher Constructor, creates the XPUB socket and its monitor, and connects to the logger.
+	 *
+	 * @param context the zeroMQ context the sockets are created in.
+	 * @param url the URL of the message logger, e.g. tcp://localhost:5556.
+	 * @param topic the logger topic, e.g. Project_Log.
+	 * @param maxPending the number of messages kept until the logger is ready.
+	 */
+	public LogPublisher(ZMQ.Context context, String url, String topic, int maxPending) {
+		this.context	= context;
+		this.url		= url;
+		this.topic		= topic;
+		this.topicBytes	= topic.getBytes( ZMQ.CHARSET);
+		this.maxPending	= Math.max( 0, maxPending);
+
+		socket = SocketFactory.socket( context, ZMQ.XPUB, "logger", "LogPublisher", false);
+		socket.setXpubVerbose( true);
+		stats = SocketFactory.getStats( socket);
+		String monitorURL = "inproc://LogPublisher-monitor-" + monitorCount.incrementAndGet();
+		socket.monitor( monitorURL, ZMQ.EVENT_CONNECTED | ZMQ.EVENT_CONNECT_RETRIED | ZMQ.EVENT_DISCONNECTED);
+		monitor = context.socket( ZMQ.PAIR);
+		monitor.setLinger( 0);
+		monitor.connect( monitorURL);
+		socket.connect( SocketFactory.endpoint( url));
+	}
+
+	/**
+	 * Publish a log message, or keep it until the logger is ready.
+	 * The logger writes it as <code>requestId:source:message</code>.
+	 *
+	 * @param requestId the request Id the message is about, or 0 when it is about no request.
+	 * @param source the class logging the message, e.g. HelloService.
+	 * @param requestType the request type the message is about, or an empty string.
+	 * @param message the message text.
+	 *
+	 * @return true if the message was sent or kept.
+	 */
+	public boolean publish(String requestId, String source, String requestType, String message) {
+		return publish( requestId, source, requestType, null, message);
+	}
+
+	/**
+	 * Publish a log message carrying the request's trace, or keep it until the logger is ready.
+	 * A kept message's trace has the time it was published, not the time it was sent.
+	 *
+	 * @param requestId the request Id the message is about, or 0 when it is about no request.
+	 * @param source the class logging the message, e.g. HelloService.
+	 * @param requestType the request type the message is about, or an empty string.
+	 * @param trace the request's trace, or null.
+	 * @param message the message text.
+	 *
+	 * @return true if the message was sent or kept.
+	 */
+	public boolean publish(String requestId, String source, String requestType, TraceContext trace, String message) {
+		if (isReady()) {
+			return Envelope.publish( socket, topic, requestId, source, requestType, trace, message);
+		}
+		if (maxPending == 0) {
+			droppedCount++;
+			return false;
+		}
+		if (pending.size() == maxPending) {
+			pending.poll();
+			droppedCount++;
+		}
+		pending.add( Envelope.logFrames( topic, requestId, source, requestType, trace, message));
+		pendingCount = pending.size();
+		return true;
+	}
+
+	/**
+	 * Check, without blocking, for the logger's subscription and for connection events, and send
+	 * the messages kept so far once the logger is ready.
+	 *
+	 * @return true if the logger is ready.
+	 */
+	public boolean isReady() {
+		ZMQ.Event event;
+		while ((event = ZMQ.Event.recv( monitor, ZMQ.DONTWAIT)) != null) {
+			stats.record( event);
+			if (event.getEvent() == ZMQ.EVENT_CONNECTED) {
+				connected = true;
+			}
+			else if (event.getEvent() == ZMQ.EVENT_DISCONNECTED) {
+				connected = false;
+				ready = false;
+			}
+		}
+		byte[] subscription;
+		while ((subscription = socket.recv( ZMQ.DONTWAIT)) != null) {
+			if (subscription.length > 0 && subscription[0] == 1 && isTopicPrefix( subscription)) {
+				connected = true;
+				ready = true;
+			}
+		}
+		if (ready && !pending.isEmpty()) {
+			flush();
+		}
+		return ready;
+	}
+
+	/**
+	 * Wait for the logger's subscription, and send the messages kept so far once it arrives.
+	 *
+	 * @param timeoutMillis the longest time to wait.
+	 *
+	 * @return true if the logger is ready, false if it was not ready in time.
+	 */
+	public boolean awaitReady(long timeoutMillis) {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		ZMQ.Poller poller = context.poller( 2);
+		poller.register( socket, ZMQ.Poller.POLLIN);
+		poller.register( monitor, ZMQ.Poller.POLLIN);
+		try {
+			long remaining;
+			while (!isReady() && (remaining = deadline - System.currentTimeMillis()) > 0) {
+				if (poller.poll( remaining) < 0) {
+					break;
+				}
+			}
+		}
+		finally {
+			poller.close();
+		}
+		return ready;
+	}
+
+	private boolean isTopicPrefix(byte[] subscription) {
+		if (subscription.length - 1 > topicBytes.length) {
+			return false;
+		}
+		for (int b=1; b<subscription.length; b++) {
+			if (subscription[b] != topicBytes[b - 1]) return false;
+		}
+		return true;
+	}
+
+	private void flush() {
+		byte[][] frames;
+		while ((frames = pending.poll()) != null) {
+			for (int f=0; f<frames.length - 1; f++) {
+				socket.sendMore( frames[f]);
+			}
+			socket.send( frames[frames.length - 1], 0);
+		}
+		pendingCount = 0;
+	}
+
+	/** Stop the monitor and close the sockets; messages still kept are dropped.  */
+	public void close() {
+		droppedCount += pending.size();
+		pending.clear();
+		pendingCount = 0;
+		SocketFactory.close( socket);
+		monitor.close();
+	}
+
+	/** @return the XPUB socket, e.g. to send the logger a control message once it is ready. */
+	public ZMQ.Socket getSocket()		{ return socket; }
+
+	/** @return the URL of the message logger. */
+	public String getUrl()				{ return url; }
+
+	/** @return true if the monitor last reported the connection to the logger made. */
+	public boolean isConnected()		{ return connected; }
+
+	/** @return true if the logger had subscribed when readiness was last checked, for other threads. */
+	public boolean wasReady()			{ return ready; }
+
+	/** @return the number of messages kept until the logger is ready. */
+	public int getPendingCount()		{ return pendingCount; }
+
+	/** @return the number of messages dropped because too many were kept, or none could be. */
+	public long getDroppedCount()		{ return droppedCount; }
+
+	/** @return a one line summary of the publisher's readiness and kept messages. */
+	public String stats() {
+		return url + " " + (ready ? "ready" : connected ? "connected" : "connecting")
+				+ " pending=" + pendingCount + " dropped=" + droppedCount;
+	}
+}
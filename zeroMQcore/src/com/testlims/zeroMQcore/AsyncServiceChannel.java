@@ -0,0 +1,239 @@
+package com.testlims.zeroMQcore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Context;
+
+import com.testlims.utilities.SocketFactory;
+import com.testlims.utilities.StackTrace;
+
+/**
+ * AsyncServiceChannel owns a single zeroMQ DEALER socket connected to a REP service, and is
+ * the only thread that touches it.  Servlet threads hand requests over with {@link #send},
+ * and the reply is delivered to the supplied {@link ReplyHandler} on the channel thread.
+ * <p>
+ * Each request goes out as the frames <code>[requestId][empty][body...]</code>.  The REP
+ * service treats everything up to the empty delimiter as the reply envelope and returns it
+ * unchanged, so the reply comes back as <code>[requestId][empty][reply]</code> and is matched to
+ * its caller without parsing the body.  Any number of requests can be in flight at once.
+ * <p>
+ * Callers wake the channel thread through a {@link Pipe}, which, unlike a zeroMQ socket,
+ * may be written to from any thread.  Wake-ups are coalesced so a burst of requests costs
+ * a single pipe write:  the channel thread empties the pipe before it clears the pending flag,
+ * and sends the queue after, so a request queued at any point is either sent now or writes a
+ * fresh wake-up.  The poll also times out every {@link #POLL_TIMEOUT} ms, so no request can be
+ * left waiting on a lost wake-up.
+ *
+ * @author Marc Whitlow, Colabrativ, Inc.
+ */
+public class AsyncServiceChannel extends Thread {
+
+	/** Receives the reply to a request sent through the channel.  */
+	public interface ReplyHandler {
+		/**
+		 * Called on the channel thread when the reply arrives, so implementations should
+		 * hand any blocking work, such as writing to a client, to another thread.
+		 *
+		 * @param reply the reply body.
+		 */
+		void onReply(byte[] reply);
+	}
+
+	/** A request waiting for the channel thread to send it.  */
+	private static final class Request {
+		final String requestId;
+		final byte[][] frames;
+
+		Request(String requestId, byte[][] frames) {
+			this.requestId	= requestId;
+			this.frames		= frames;
+		}
+	}
+
+	/** The longest the channel thread waits for a reply or wake-up before it looks at the queue, in ms.  */
+	public static final long	POLL_TIMEOUT	= 1000;
+
+	private static final byte[] EMPTY = new byte[0];
+
+	private final Context		context;
+	private final String[]		serviceURLs;
+	private final Pipe			wakeupPipe;
+	private final ByteBuffer	wakeupByte		= ByteBuffer.allocate( 1);
+	private final ByteBuffer	drainBuffer		= ByteBuffer.allocate( 64);
+	private final AtomicBoolean	wakeupPending	= new AtomicBoolean( false);
+	private final ConcurrentLinkedQueue<Request>			outbound	= new ConcurrentLinkedQueue<Request>();
+	private final ConcurrentHashMap<String,ReplyHandler>	inFlight	= new ConcurrentHashMap<String,ReplyHandler>();
+
+	/**
+	 * AsyncServiceChannel Constructor
+	 *
+	 * @param context the zeroMQ context the DEALER socket is created in.
+	 * @param serviceURLs The URLs of the REP service instances, e.g. tcp://localhost:5557.  
+	 * Requests are spread across them by the DEALER socket. 
+	 *
+	 * @throws IOException if the wake-up pipe cannot be opened.
+	 */
+	public AsyncServiceChannel(Context context, String... serviceURLs) throws IOException {
+		setDaemon(true);
+		setName( "AsyncServiceChannel " + String.join( ",", serviceURLs));
+		this.context		= context;
+		this.serviceURLs	= serviceURLs.clone();
+		wakeupPipe = Pipe.open();
+		wakeupPipe.source().configureBlocking( false);
+	}
+
+	/**
+	 * Queue a request for the channel thread to send.  May be called from any thread.
+	 *
+	 * @param requestId the id used to correlate the reply, unique among in-flight requests.
+	 * @param body the request body.
+	 * @param handler receives the reply.
+	 */
+	public void send(String requestId, byte[] body, ReplyHandler handler) {
+		send( requestId, new byte[][] { body }, handler);
+	}
+
+	/**
+	 * Queue a multi-frame request for the channel thread to send.  May be called from any thread.
+	 *
+	 * @param requestId the id used to correlate the reply, unique among in-flight requests.
+	 * @param frames the request frames, which follow the envelope delimiter.
+	 * @param handler receives the reply.
+	 */
+	public void send(String requestId, byte[][] frames, ReplyHandler handler) {
+		inFlight.put( requestId, handler);
+		outbound.add( new Request( requestId, frames));
+		wakeup();
+	}
+
+	/**
+	 * Forget an in-flight request, e.g. after the client gave up waiting.
+	 * A reply that arrives later is dropped.
+	 *
+	 * @param requestId the id the request was sent with.
+	 *
+	 * @return true if the request was still waiting for its reply.
+	 */
+	public boolean cancel(String requestId) {
+		return inFlight.remove( requestId) != null;
+	}
+
+	/** @return the number of requests sent, or queued to be sent, that have not been replied to. */
+	public int inFlightCount() {
+		return inFlight.size();
+	}
+
+	/** Stop the channel thread, which closes the DEALER socket on its way out.  */
+	public void close() {
+		interrupt();
+		wakeupPending.set( false);
+		wakeup();
+	}
+
+	private void wakeup() {
+		if (wakeupPending.compareAndSet( false, true)) {
+			try {
+				synchronized (wakeupByte) {
+					wakeupByte.clear();
+					wakeupPipe.sink().write( wakeupByte);
+				}
+			}
+			catch (IOException e) {
+				System.err.print( StackTrace.asString( "AsyncServiceChannel ERROR: wake-up failed", e));
+			}
+		}
+	}
+
+	/** Run the channel:  send queued requests and dispatch replies until interrupted.  */
+	public void run() {
+		ZMQ.Socket dealer = SocketFactory.socket( context, ZMQ.DEALER, "request", "AsyncServiceChannel");
+		for (String serviceURL : serviceURLs) {
+			dealer.connect( SocketFactory.endpoint( serviceURL));
+		}
+
+		ZMQ.Poller poller = context.poller( 2);
+		int dealerIndex = poller.register( dealer, ZMQ.Poller.POLLIN);
+		int wakeupIndex = poller.register( wakeupPipe.source(), ZMQ.Poller.POLLIN);
+
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				if (poller.poll( POLL_TIMEOUT) < 0) {
+					break;
+				}
+				if (poller.pollin( wakeupIndex)) {
+					drainWakeups();
+				}
+				sendQueued( dealer);
+
+				if (poller.pollin( dealerIndex)) {
+					receiveReplies( dealer);
+				}
+			}
+		}
+		finally {
+			poller.close();
+			SocketFactory.close( dealer);
+			try {
+				wakeupPipe.sink().close();
+				wakeupPipe.source().close();
+			}
+			catch (IOException e) { /** Do nothing */ }
+		}
+	}
+
+	/**
+	 * Empty the wake-up pipe, then clear the pending flag.  A send() after the flag is cleared
+	 * writes a new wake-up; one before it has queued its request, which sendQueued() sends next.
+	 */
+	private void drainWakeups() {
+		try {
+			do {
+				drainBuffer.clear();
+			}
+			while (wakeupPipe.source().read( drainBuffer) > 0);
+		}
+		catch (IOException e) {
+			System.err.print( StackTrace.asString( "AsyncServiceChannel ERROR: wake-up drain failed", e));
+		}
+		wakeupPending.set( false);
+	}
+
+	private void sendQueued(ZMQ.Socket dealer) {
+		Request request;
+		while ((request = outbound.poll()) != null) {
+			dealer.sendMore( request.requestId);
+			dealer.sendMore( EMPTY);
+			int last = request.frames.length - 1;
+			for (int f=0; f<last; f++) {
+				dealer.sendMore( request.frames[f]);
+			}
+			dealer.send( request.frames[last], 0);
+		}
+	}
+
+	private void receiveReplies(ZMQ.Socket dealer) {
+		byte[] idFrame;
+		while ((idFrame = dealer.recv( ZMQ.DONTWAIT)) != null) {
+			byte[] reply = null;
+			while (dealer.hasReceiveMore()) {
+				reply = dealer.recv( 0);
+			}
+
+			ReplyHandler handler = inFlight.remove( new String( idFrame, ZMQ.CHARSET));
+			if (handler != null && reply != null) {
+				try {
+					handler.onReply( reply);
+				}
+				catch (RuntimeException e) {
+					System.err.print( StackTrace.asString( "AsyncServiceChannel ERROR: reply handler failed", e));
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package com.testlims.zeroMQcore;
+
+import org.zeromq.ZMQ;
+
+import com.testlims.utilities.LogPublisher;
+import com.testlims.utilities.SocketFactory;
+
+/**
+ * CoLocatedNode runs the MessageLogger, HelloService and the {@link EmbeddedGateway} in one JVM,
+ * for small nodes that host all three, so requests and log messages pass between them in memory
+ * over inproc endpoints instead of through loopback TCP.
+ * <p>
+ * The three are the same classes that run as separate processes.  They share the JVM's zeroMQ
+ * context through the {@link SocketFactory}, and with the factory's transport set to inproc each
+ * binds and connects its configured tcp://localhost URL as the inproc endpoint of the same port,
+ * see {@link SocketFactory#endpoint}.  The MessageLogger and HelloService are found by name on the
+ * classpath, as ZeroMQcore does not depend on their projects:
+ <ul>
+   <li>MessageLogger:  bound to loggerURL with loggerTopic, writing to <code>colocated.logFile</code>.</li>
+   <li>HelloService:  bound to the first URL of route.HelloService, or helloServiceURL, handling
+   requests on <code>colocated.workers</code> worker threads when it is set, or each request on a
+   thread of its own when <code>colocated.threadPerRequest</code> is true.</li>
+ </ul>
+ * The logger is started first, and the service and gateway wait for it to subscribe as they do
+ * when they are started apart.  When the JVM is stopped the gateway is stopped first, then the
+ * service is drained on its control socket and the logger sent its TERMINATE message, and the
+ * shared context is terminated when the last of them has closed its sockets.  Run it with the three projects' classes, the
+ * properties files and the dependency jars on the classpath:
+ <pre>
+java -cp zeroMQcore/target/classes:HelloService/target/classes:MessageLogger/target/classes:[dependencies] \
+     com.testlims.zeroMQcore.CoLocatedNode
+</pre>
+ * The transport is inproc unless set with <code>-DzeroMQsockets.transport</code>, e.g. tcp to compare
+ * the two in the same process.  The node sets it only while it runs, and clears it again when it
+ * stops, or fails to start, so it does not change the transport of other components in the JVM.
+ *
+ * @author Marc Whitlow, Colabrativ, Inc.
+ */
+public class CoLocatedNode {
+	/** The classes started in the node, by name.  */
+	static final String	MESSAGE_LOGGER			= "com.testlims.messageLogger.MessageLogger";
+	static final String	HELLO_SERVICE			= "com.testlims.helloService.HelloService";
+	/** Milliseconds to wait for the service to drain and the logger to answer its TERMINATE message, and to stop.  */
+	static final long	TERMINATE_TIMEOUT		= 5000;
+	/** The SocketFactory's transport setting, inproc while the node runs unless it was set before.  */
+	static final String	TRANSPORT_PROPERTY		= "zeroMQsockets.transport";
+
+	private final GatewayConfig	config;
+	private final String		loggerURL;
+	private final String		loggerTopic;
+	private final String		serviceURL;
+	private ZMQ.Context			context			= null;
+	private Thread				messageLogger	= null;
+	private Thread				helloService	= null;
+	private EmbeddedGateway		gateway			= null;
+	private NioHttpServer		server			= null;
+	private boolean				transportSet	= false;
+
+	/**
+	 * CoLocatedNode Constructor
+	 *
+	 * @param config the gateway configuration, read for the logger and HelloService URLs and the
+	 * colocated. settings.
+	 */
+	public CoLocatedNode(GatewayConfig config) {
+		this.config	= config;
+		loggerURL	= config.getString( "loggerURL",	"tcp://localhost:5556");
+		loggerTopic	= config.getString( "loggerTopic",	"Project_Log");
+		String route = config.getString( "route.HelloService", config.getString( "helloServiceURL", "tcp://localhost:5557"));
+		serviceURL	= route.split( "\\s*,\\s*")[0];
+	}
+
+	/**
+	 * Start the logger, the service and the gateway, in that order, over inproc unless the transport
+	 * is set.  If any of them fails to start, those already started are stopped.
+	 *
+	 * @throws Exception if the logger or service classes are not on the classpath, or the gateway
+	 * fails to start or cannot bind its port.
+	 */
+	public void start() throws Exception {
+		if (System.getProperty( TRANSPORT_PROPERTY) == null) {
+			System.setProperty( TRANSPORT_PROPERTY, "inproc");
+			transportSet = true;
+		}
+		try {
+			startAll();
+		}
+		catch (Exception e) {
+			stop();
+			throw e;
+		}
+	}
+
+	private void startAll() throws Exception {
+		context = SocketFactory.acquireContext();
+		messageLogger = start( MESSAGE_LOGGER, new Class<?>[] { String.class, String.class, String.class },
+				loggerURL, loggerTopic, config.getString( "colocated.logFile", "C:/var/log/zeroMQcore/project.log"));
+		int workers = config.getInt( "colocated.workers", -1);
+		if (workers >= 0) {
+			helloService = start( HELLO_SERVICE, new Class<?>[] { String.class, String.class, String.class, int.class },
+					serviceURL, loggerURL, loggerTopic, workers);
+		}
+		else {
+			helloService = start( HELLO_SERVICE, new Class<?>[] { String.class, String.class, String.class, boolean.class },
+					serviceURL, loggerURL, loggerTopic, config.getBoolean( "colocated.threadPerRequest", false));
+		}
+		gateway	= new EmbeddedGateway( config);
+		server	= new NioHttpServer( config, gateway, gateway.getServletContext());
+		server.start();
+	}
+
+	/** Create one of the node's threads by class name, and start it.  */
+	private static Thread start(String className, Class<?>[] parameterTypes, Object... arguments) throws Exception {
+		Thread thread = (Thread) Class.forName( className).getConstructor( parameterTypes).newInstance( arguments);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Stop the gateway, then terminate the service and the logger, release the shared context, and
+	 * clear the transport setting if the node set it.
+	 */
+	public void stop() {
+		if (server != null) {
+			server.shutdown();
+			server = null;
+		}
+		if (gateway != null) {
+			gateway.destroy();
+			gateway = null;
+		}
+		if (helloService != null && helloService.isAlive()) {
+			drainHelloService();
+			join( helloService);
+		}
+		if (messageLogger != null && messageLogger.isAlive()) {
+			terminateLogger();
+			join( messageLogger);
+		}
+		if (context != null) {
+			SocketFactory.releaseContext();
+			context = null;
+		}
+		if (transportSet) {
+			System.clearProperty( TRANSPORT_PROPERTY);
+			transportSet = false;
+		}
+	}
+
+	/** Ask the service to finish its requests in flight and close, on its control socket.  */
+	private void drainHelloService() {
+		ZMQ.Socket request = SocketFactory.socket( context, ZMQ.REQ, "request", "CoLocatedNode drain");
+		try {
+			String controlURL = (String) helloService.getClass().getMethod( "getControlURL").invoke( helloService);
+			request.setReceiveTimeOut( (int) (2 * TERMINATE_TIMEOUT));
+			request.connect( controlURL);
+			request.send( "drain " + TERMINATE_TIMEOUT);
+			request.recv( 0);
+		}
+		catch (ReflectiveOperationException e) {
+			helloService.interrupt();
+		}
+		finally {
+			SocketFactory.close( request);
+		}
+	}
+
+	private void terminateLogger() {
+		LogPublisher publisher = new LogPublisher( context, loggerURL, loggerTopic, 0);
+		try {
+			if (publisher.awaitReady( TERMINATE_TIMEOUT)) {
+				publisher.getSocket().send( loggerTopic + " TERMINATE_LOGGER");
+			}
+		}
+		finally {
+			publisher.close();
+		}
+	}
+
+	private static void join(Thread thread) {
+		try {
+			thread.join( TERMINATE_TIMEOUT);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/** @return the address the gateway listens on. */
+	public String getAddress() {
+		return String.valueOf( server.getAddress());
+	}
+
+	/**
+	 * Start the node, and run until the JVM is stopped.
+	 *
+	 * @param args none; the settings are read from zeroMQcore.properties, zeroMQsockets.properties
+	 * and system properties.
+	 *
+	 * @throws Exception if the node fails to start.
+	 */
+	public static void main(String[] args) throws Exception {
+		final CoLocatedNode node = new CoLocatedNode( new GatewayConfig());
+		node.start();
+		Runtime.getRuntime().addShutdownHook( new Thread( "CoLocatedNode shutdown") {
+			public void run() {
+				node.stop();
+			}
+		});
+		System.out.println( "CoLocatedNode listening on " + node.getAddress() + " over "
+				+ SocketFactory.getString( "transport", "tcp") + ", logging to " + node.loggerURL
+				+ ", HelloService at " + SocketFactory.endpoint( node.serviceURL));
+		node.server.join();
+	}
+}
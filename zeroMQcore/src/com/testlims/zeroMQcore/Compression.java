@@ -0,0 +1,117 @@
+package com.testlims.zeroMQcore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compression holds the content encoding negotiation and the gzip and deflate encoders shared
+ * by the {@link CompressionFilter}, which serves the static files, and the
+ * {@link HTTPzeroMQServlet}, which writes the service replies.
+ * <p>
+ * Only text content at least compression.minSize bytes long is compressed; below that the
+ * gzip header and the CPU cost outweigh the bytes saved.
+ *
+ * @author Marc Whitlow, Colabrativ, Inc.
+ */
+public final class Compression {
+
+	/** The gzip content coding.  */
+	public static final String	GZIP		= "gzip";
+	/** The deflate content coding, i.e. a zlib stream.  */
+	public static final String	DEFLATE		= "deflate";
+
+	private static final GatewayConfig	config		= new GatewayConfig();
+	private static final boolean		enabled		= config.getBoolean( "compression", true);
+	private static final int			minSize		= config.getInt( "compression.minSize", 256);
+
+	private Compression() { }
+
+	/**
+	 * Choose the content coding for a response:  gzip if the client accepts it, otherwise
+	 * deflate, otherwise none.  Codings the client gives a q value of 0 are not accepted.
+	 *
+	 * @param acceptEncoding the request's Accept-Encoding header, may be null.
+	 *
+	 * @return GZIP, DEFLATE, or null to send the response uncompressed.
+	 */
+	public static String negotiate(String acceptEncoding) {
+		if (!enabled || acceptEncoding == null) {
+			return null;
+		}
+		boolean gzip	= false;
+		boolean deflate	= false;
+		boolean any		= false;
+		for (String coding : acceptEncoding.split( ",")) {
+			String[] parts	= coding.split( ";");
+			String name		= parts[0].trim().toLowerCase();
+			boolean accepted = true;
+			for (int p=1; p<parts.length; p++) {
+				String parameter = parts[p].trim();
+				if (parameter.startsWith( "q=")) {
+					try {
+						accepted = Double.parseDouble( parameter.substring( 2)) > 0;
+					}
+					catch (NumberFormatException e) {
+						accepted = false;
+					}
+				}
+			}
+			if		(GZIP.equals( name))	gzip	= accepted;
+			else if (DEFLATE.equals( name))	deflate	= accepted;
+			else if ("*".equals( name))		any		= accepted;
+		}
+		if (gzip || (any && !acceptEncoding.toLowerCase().contains( GZIP))) {
+			return GZIP;
+		}
+		return deflate ? DEFLATE : null;
+	}
+
+	/**
+	 * @param contentType the response content type, may be null.
+	 * @param length the uncompressed length of the response.
+	 *
+	 * @return true if a response of this type and length is worth compressing.
+	 */
+	public static boolean isCompressible(String contentType, int length) {
+		if (!enabled || contentType == null || length < minSize) {
+			return false;
+		}
+		return contentType.startsWith( "text/") || contentType.startsWith( "application/json")
+				|| contentType.startsWith( "application/javascript") || contentType.startsWith( "application/text")
+				|| contentType.startsWith( "application/xml") || contentType.contains( "+xml");
+	}
+
+	/**
+	 * Encode the bytes with a content coding.
+	 *
+	 * @param coding GZIP or DEFLATE.
+	 * @param bytes the uncompressed bytes.
+	 *
+	 * @return the encoded bytes.
+	 */
+	public static byte[] encode(String coding, byte[] bytes) {
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream( bytes.length / 2 + 64);
+		try {
+			if (GZIP.equals( coding)) {
+				GZIPOutputStream out = new GZIPOutputStream( encoded, 8192);
+				out.write( bytes);
+				out.close();
+			}
+			else {
+				Deflater deflater = new Deflater( Deflater.DEFAULT_COMPRESSION);
+				DeflaterOutputStream out = new DeflaterOutputStream( encoded, deflater, 8192);
+				out.write( bytes);
+				out.close();
+				deflater.end();
+			}
+		}
+		catch (IOException e) {
+			/** Not thrown by a ByteArrayOutputStream */
+			throw new IllegalStateException( e);
+		}
+		return encoded.toByteArray();
+	}
+}
@@ -0,0 +1,164 @@
+package com.testlims.zeroMQcore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.testlims.utilities.StackTrace;
+
+/**
+ * CompressionFilter serves the WebContent files, e.g. index.html, zeroMQservices.js and
+ * zeroMQcore.css, gzip or deflate encoded to clients that accept it.
+ * <p>
+ * The files are compressed once, when the filter starts, so no request pays for compressing
+ * them.  A file with a <code>.gz</code> sibling in the WAR, e.g. zeroMQservices.js.gz built by
+ * a maximum compression tool, is served from the sibling rather than compressed here.
+ * A request for a directory, / included, is answered with the directory's welcome file, the
+ * index.html of web.xml's welcome-file-list, since the container only maps a directory to its
+ * welcome file after this filter has run.  Requests for other paths, requests from clients
+ * that accept neither coding, and files too small to be worth compressing are passed down the
+ * chain to the container's default servlet.
+ * <p>
+ * The /services replies are compressed by {@link HTTPzeroMQServlet} itself, since in
+ * asynchronous mode they are written after this filter has returned.
+ *
+ * @author Marc Whitlow, Colabrativ, Inc.
+ */
+@WebFilter(
+		description = "Serves precompressed static WebContent files",
+		urlPatterns = { "/*" })
+public class CompressionFilter implements Filter {
+
+	/** One static file's compressed variants.  */
+	private static final class Precompressed {
+		String	contentType;
+		String	etag;
+		byte[]	gzip;
+		byte[]	deflate;
+	}
+
+	/** The welcome file of web.xml's welcome-file-list, served for a request for its directory.  */
+	public static final String WELCOME_FILE = "index.html";
+
+	private final Map<String,Precompressed> files = new HashMap<String,Precompressed>();
+
+	/**
+	 * Compress every static file in the WAR outside WEB-INF and META-INF.
+	 *
+	 * @param filterConfig the filter configuration.
+	 */
+	public void init(FilterConfig filterConfig) throws ServletException {
+		ServletContext servletContext = filterConfig.getServletContext();
+		precompress( servletContext, "/");
+	}
+
+	private void precompress(ServletContext servletContext, String directory) {
+		Set<String> paths = servletContext.getResourcePaths( directory);
+		if (paths == null) {
+			return;
+		}
+		for (String path : paths) {
+			if (path.endsWith( "/")) {
+				if (!path.equals( "/WEB-INF/") && !path.equals( "/META-INF/")) {
+					precompress( servletContext, path);
+				}
+				continue;
+			}
+			if (path.endsWith( ".gz")) {
+				continue;
+			}
+			try {
+				byte[] bytes = read( servletContext, path);
+				String contentType = servletContext.getMimeType( path);
+				if (bytes == null || !Compression.isCompressible( contentType, bytes.length)) {
+					continue;
+				}
+				Precompressed file	= new Precompressed();
+				file.contentType	= contentType;
+				file.etag			= ResponseCache.etag( bytes);
+				byte[] gzip			= read( servletContext, path + ".gz");
+				file.gzip			= (gzip != null) ? gzip : Compression.encode( Compression.GZIP, bytes);
+				file.deflate		= Compression.encode( Compression.DEFLATE, bytes);
+				files.put( path, file);
+			}
+			catch (IOException e) {
+				System.err.print( StackTrace.asString( "CompressionFilter ERROR: Failed to precompress " + path, e));
+			}
+		}
+	}
+
+	private static byte[] read(ServletContext servletContext, String path) throws IOException {
+		InputStream in = servletContext.getResourceAsStream( path);
+		if (in == null) {
+			return null;
+		}
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream( 4096);
+			byte[] buffer = new byte[4096];
+			int count;
+			while ((count = in.read( buffer)) > 0) {
+				bytes.write( buffer, 0, count);
+			}
+			return bytes.toByteArray();
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Answer GET and HEAD requests for a precompressed file in the coding the client accepts,
+	 * or pass the request down the chain.
+	 */
+	public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse, FilterChain chain)
+			throws IOException, ServletException {
+		HttpServletRequest	request		= (HttpServletRequest) servletRequest;
+		HttpServletResponse	response	= (HttpServletResponse) servletResponse;
+
+		String path = request.getServletPath() + ((request.getPathInfo() == null) ? "" : request.getPathInfo());
+		if (path.isEmpty() || path.endsWith( "/")) {
+			path = (path.isEmpty() ? "/" : path) + WELCOME_FILE;
+		}
+		Precompressed file = files.get( path);
+		String coding = (file == null) ? null : Compression.negotiate( request.getHeader( "Accept-Encoding"));
+		String method = request.getMethod();
+		if (coding == null || !("GET".equals( method) || "HEAD".equals( method))) {
+			chain.doFilter( request, response);
+			return;
+		}
+
+		byte[] body	= Compression.GZIP.equals( coding) ? file.gzip : file.deflate;
+		String etag	= ResponseCache.etag( file.etag, coding);
+		response.setHeader( "Vary", "Accept-Encoding");
+		response.setHeader( "ETag", etag);
+		String ifNoneMatch = request.getHeader( "If-None-Match");
+		if (ifNoneMatch != null && ifNoneMatch.contains( etag)) {
+			response.setStatus( HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+		response.setStatus( HttpServletResponse.SC_OK);
+		response.setContentType( file.contentType);
+		response.setHeader( "Content-Encoding", coding);
+		response.setContentLength( body.length);
+		if ("GET".equals( method)) {
+			response.getOutputStream().write( body);
+		}
+	}
+
+	/** Nothing to release; the compressed files are dropped with the filter.  */
+	public void destroy() { }
+}
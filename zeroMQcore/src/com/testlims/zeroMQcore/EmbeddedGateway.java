@@ -0,0 +1,316 @@
+package com.testlims.zeroMQcore;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * EmbeddedGateway runs the gateway as a standalone program on a {@link NioHttpServer}, without
+ * a servlet container, for edge nodes where startup time and memory matter.
+ * <p>
+ * The requests are handled by the same servlet and filter classes as in ZeroMQcore.war, mapped
+ * to the same paths, so the gateway answers every request as it does in a container:
+ <ul>
+   <li>/services and /services/batch:  {@link HTTPzeroMQServlet}.</li>
+   <li>/no0mq:  {@link HTTPnoMQServlet}.</li>
+   <li>/metrics:  {@link MetricsServlet}.</li>
+   <li>any other path:  the WebContent file, through the {@link CompressionFilter}, with / serving index.html.</li>
+ </ul>
+ * The gateway reads zeroMQcore.properties as in the WAR, plus the http. settings described in
+ * {@link NioHttpServer} and <code>http.webContent</code>, the WebContent directory.  Run it with
+ * the classes, zeroMQcore.properties and the dependency jars, including javax.servlet-api, on the
+ * classpath:
+ <pre>
+java -cp target/classes:[dependencies] -DzeroMQcore.http.port=8080 com.testlims.zeroMQcore.EmbeddedGateway
+</pre>
+ *
+ * @author Marc Whitlow, Colabrativ, Inc.
+ */
+public class EmbeddedGateway implements NioHttpServer.Handler {
+
+	private static final Map<String,String> MIME_TYPES = new HashMap<String,String>();
+	static {
+		MIME_TYPES.put( "html",	"text/html");
+		MIME_TYPES.put( "htm",	"text/html");
+		MIME_TYPES.put( "css",	"text/css");
+		MIME_TYPES.put( "js",	"application/javascript");
+		MIME_TYPES.put( "json",	"application/json");
+		MIME_TYPES.put( "txt",	"text/plain");
+		MIME_TYPES.put( "svg",	"image/svg+xml");
+		MIME_TYPES.put( "png",	"image/png");
+		MIME_TYPES.put( "ico",	"image/x-icon");
+		MIME_TYPES.put( "gz",	"application/gzip");
+	}
+
+	/** A WebContent file, reread when it changes.  */
+	private static final class StaticFile {
+		long	lastModified;
+		byte[]	bytes;
+		String	etag;
+	}
+
+	private final File					webContent;
+	private final ServletContext		servletContext;
+	private final HTTPzeroMQServlet		services;
+	private final HTTPnoMQServlet		noMQ;
+	private final MetricsServlet		metrics;
+	private final CompressionFilter		compression;
+	private final ConcurrentHashMap<String,StaticFile>	files	= new ConcurrentHashMap<String,StaticFile>();
+	private final Map<String,Object>	contextAttributes		= new ConcurrentHashMap<String,Object>();
+
+	/**
+	 * EmbeddedGateway Constructor, creates and initializes the servlets and filter.
+	 *
+	 * @param config the gateway configuration, read for http.webContent.
+	 *
+	 * @throws ServletException if a servlet or the filter fails to initialize.
+	 */
+	public EmbeddedGateway(GatewayConfig config) throws ServletException {
+		webContent		= new File( config.getString( "http.webContent", "WebContent")).getAbsoluteFile();
+		servletContext	= ServletExchange.proxy( ServletContext.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				return context( proxy, method, args);
+			}
+		});
+
+		services	= new HTTPzeroMQServlet();
+		noMQ		= new HTTPnoMQServlet();
+		metrics		= new MetricsServlet();
+		compression	= new CompressionFilter();
+		services.init( servletConfig( "HTTPzeroMQServlet"));
+		noMQ.init( servletConfig( "HTTPnoMQServlet"));
+		metrics.init( servletConfig( "MetricsServlet"));
+		compression.init( filterConfig( "CompressionFilter"));
+	}
+
+	/** @return the ServletContext over the WebContent directory. */
+	public ServletContext getServletContext() {
+		return servletContext;
+	}
+
+	/**
+	 * Run the servlet mapped to the request's path, or serve the WebContent file.
+	 *
+	 * @param exchange the request, and the response to fill in.
+	 */
+	public void service(ServletExchange exchange) throws Exception {
+		String path = exchange.getRequestURI();
+		HttpServlet servlet = null;
+		switch (path) {
+			case "/services":
+			case "/services/batch":	servlet = services;	break;
+			case "/no0mq":			servlet = noMQ;		break;
+			case "/metrics":		servlet = metrics;	break;
+			default:				break;
+		}
+		exchange.setServletPath( path.equals( "/") ? "/index.html" : path);
+		if (servlet != null) {
+			servlet.service( exchange.getRequest(), exchange.getResponse());
+			return;
+		}
+		compression.doFilter( exchange.getRequest(), exchange.getResponse(), new FilterChain() {
+			public void doFilter(ServletRequest request, ServletResponse response) throws IOException {
+				serveFile( (HttpServletRequest) request, (HttpServletResponse) response);
+			}
+		});
+	}
+
+	/** Serve a WebContent file as it is, as the container's default servlet does.  */
+	private void serveFile(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String method = request.getMethod();
+		if (!"GET".equals( method) && !"HEAD".equals( method)) {
+			response.setHeader( "Allow", "GET, HEAD");
+			response.sendError( HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+			return;
+		}
+		StaticFile file = file( request.getServletPath());
+		if (file == null) {
+			response.sendError( HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		response.setHeader( "ETag", file.etag);
+		String ifNoneMatch = request.getHeader( "If-None-Match");
+		if (ifNoneMatch != null && (ifNoneMatch.trim().equals( "*") || ifNoneMatch.contains( file.etag))) {
+			response.setStatus( HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+		response.setStatus( HttpServletResponse.SC_OK);
+		String contentType = mimeType( request.getServletPath());
+		if (contentType != null) {
+			response.setContentType( contentType);
+		}
+		response.setContentLength( file.bytes.length);
+		if ("GET".equals( method)) {
+			response.getOutputStream().write( file.bytes);
+		}
+	}
+
+	/** @return the WebContent file, read on first use and when it changes, or null if there is none. */
+	private StaticFile file(String path) throws IOException {
+		File target = resolve( path);
+		if (target == null || !target.isFile()) {
+			return null;
+		}
+		StaticFile file = files.get( path);
+		long lastModified = target.lastModified();
+		if (file == null || file.lastModified != lastModified) {
+			file				= new StaticFile();
+			file.bytes			= Files.readAllBytes( target.toPath());
+			file.lastModified	= lastModified;
+			file.etag			= ResponseCache.etag( file.bytes);
+			files.put( path, file);
+		}
+		return file;
+	}
+
+	/** @return the file under WebContent for a path, or null for WEB-INF, META-INF and paths leaving WebContent. */
+	private File resolve(String path) {
+		if (path == null || !path.startsWith( "/") || path.contains( "..") || path.contains( "\\")
+				|| path.startsWith( "/WEB-INF") || path.startsWith( "/META-INF")) {
+			return null;
+		}
+		return new File( webContent, path.substring( 1));
+	}
+
+	private static String mimeType(String path) {
+		int dot = path.lastIndexOf( '.');
+		String type = (dot < 0) ? null : MIME_TYPES.get( path.substring( dot + 1).toLowerCase());
+		return (type != null) ? type : URLConnection.guessContentTypeFromName( path);
+	}
+
+	/** Close the servlets' sockets and the zeroMQ context.  */
+	public void destroy() {
+		compression.destroy();
+		metrics.destroy();
+		noMQ.destroy();
+		services.destroy();
+	}
+
+	// _____________________________ ServletContext _____________________________
+
+	private Object context(Object proxy, Method method, Object[] args) throws MalformedURLException, IOException {
+		switch (method.getName()) {
+			case "getContextPath":			return "";
+			case "getServletContextName":	return "zeroMQcore";
+			case "getServerInfo":			return "zeroMQcore EmbeddedGateway";
+			case "getMajorVersion":			return 4;
+			case "getMinorVersion":			return 0;
+			case "getEffectiveMajorVersion":	return 4;
+			case "getEffectiveMinorVersion":	return 0;
+			case "getMimeType":				return mimeType( (String) args[0]);
+			case "getResourcePaths":		return resourcePaths( (String) args[0]);
+			case "getResource":				return resource( (String) args[0]);
+			case "getResourceAsStream":		return resourceAsStream( (String) args[0]);
+			case "getRealPath":				return (resolve( (String) args[0]) == null) ? null : resolve( (String) args[0]).getPath();
+			case "getInitParameter":		return null;
+			case "getInitParameterNames":	return Collections.emptyEnumeration();
+			case "getAttribute":			return contextAttributes.get( args[0]);
+			case "getAttributeNames":		return Collections.enumeration( contextAttributes.keySet());
+			case "setAttribute":			if (args[1] == null) contextAttributes.remove( args[0]);
+											else contextAttributes.put( (String) args[0], args[1]);
+											return null;
+			case "removeAttribute":			contextAttributes.remove( args[0]);	return null;
+			case "getClassLoader":			return EmbeddedGateway.class.getClassLoader();
+			case "log":						System.err.println( "EmbeddedGateway: " + args[0]);	return null;
+			default:						return ServletExchange.objectMethod( proxy, method, args);
+		}
+	}
+
+	/** @return the paths of the files and directories, ending in "/", directly under a WebContent directory. */
+	private Set<String> resourcePaths(String directory) {
+		File target = directory.equals( "/") ? webContent : new File( webContent, directory.substring( 1));
+		File[] children = target.listFiles();
+		if (children == null) {
+			return null;
+		}
+		Set<String> paths = new TreeSet<String>();
+		String prefix = directory.endsWith( "/") ? directory : directory + "/";
+		for (File child : children) {
+			paths.add( prefix + child.getName() + (child.isDirectory() ? "/" : ""));
+		}
+		return paths;
+	}
+
+	private Object resource(String path) throws MalformedURLException {
+		File target = new File( webContent, path.startsWith( "/") ? path.substring( 1) : path);
+		return target.exists() ? target.toURI().toURL() : null;
+	}
+
+	private InputStream resourceAsStream(String path) throws IOException {
+		File target = new File( webContent, path.startsWith( "/") ? path.substring( 1) : path);
+		return target.isFile() ? new FileInputStream( target) : null;
+	}
+
+	private ServletConfig servletConfig(final String name) {
+		return ServletExchange.proxy( ServletConfig.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				return config( name, proxy, method, args);
+			}
+		});
+	}
+
+	private FilterConfig filterConfig(final String name) {
+		return ServletExchange.proxy( FilterConfig.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				return config( name, proxy, method, args);
+			}
+		});
+	}
+
+	private Object config(String name, Object proxy, Method method, Object[] args) {
+		switch (method.getName()) {
+			case "getServletName":			return name;
+			case "getFilterName":			return name;
+			case "getServletContext":		return servletContext;
+			case "getInitParameter":		return null;
+			case "getInitParameterNames":	return Collections.<String>emptyEnumeration();
+			default:						return ServletExchange.objectMethod( proxy, method, args);
+		}
+	}
+
+	/**
+	 * Start the gateway, and run until the JVM is stopped.
+	 *
+	 * @param args none; the settings are read from zeroMQcore.properties and system properties.
+	 *
+	 * @throws Exception if the servlets fail to start or the port cannot be bound.
+	 */
+	public static void main(String[] args) throws Exception {
+		GatewayConfig config			= new GatewayConfig();
+		final EmbeddedGateway gateway	= new EmbeddedGateway( config);
+		final NioHttpServer server		= new NioHttpServer( config, gateway, gateway.getServletContext());
+		server.start();
+		Runtime.getRuntime().addShutdownHook( new Thread( "EmbeddedGateway shutdown") {
+			public void run() {
+				server.shutdown();
+				gateway.destroy();
+			}
+		});
+		System.out.println( "EmbeddedGateway listening on " + server.getAddress() + " with " + server.getThreads()
+				+ " worker threads, serving " + gateway.webContent);
+		server.join();
+	}
+}
@@ -0,0 +1,121 @@
+package com.testlims.zeroMQcore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.testlims.utilities.StackTrace;
+
+/**
+ * GatewayConfig reads the zeroMQcore gateway settings from the zeroMQcore.properties file
+ * on the classpath.  Any setting can be overridden by a system property of the same name
+ * prefixed with "zeroMQcore.", e.g. <code>-DzeroMQcore.helloServiceURL=tcp://host:5557</code>.
+ *
+ * @author Marc Whitlow, Colabrativ, Inc.
+ */
+public class GatewayConfig {
+
+	static final String PROPERTIES_FILE		= "zeroMQcore.properties";
+	static final String SYSTEM_PREFIX		= "zeroMQcore.";
+
+	private Properties properties = new Properties();
+
+	/**
+	 * GatewayConfig Constructor, loads zeroMQcore.properties from the classpath.
+	 * If the file cannot be found the supplied defaults are used. */
+	public GatewayConfig() {
+		this( PROPERTIES_FILE);
+	}
+
+	/**
+	 * GatewayConfig Constructor
+	 *
+	 * @param propertiesFile name of the properties file resource on the classpath.
+	 */
+	public GatewayConfig(String propertiesFile) {
+		InputStream in = GatewayConfig.class.getClassLoader().getResourceAsStream( propertiesFile);
+		if (in != null) {
+			try {
+				properties.load( in);
+			}
+			catch (IOException e) {
+				System.err.print( StackTrace.asString( "GatewayConfig ERROR: Failed to read " + propertiesFile, e));
+			}
+			finally {
+				try { in.close(); } catch (IOException e) { /** Do nothing */ }
+			}
+		}
+	}
+
+	/**
+	 * @param key the setting name.
+	 * @param defaultValue value returned when the setting is not present.
+	 *
+	 * @return the setting value, with any system property override applied.
+	 */
+	public String getString(String key, String defaultValue) {
+		String value = System.getProperty( SYSTEM_PREFIX + key);
+		if (value == null) {
+			value = properties.getProperty( key);
+		}
+		return (value == null) ? defaultValue : value.trim();
+	}
+
+	/**
+	 * @param key the setting name.
+	 * @param defaultValue value returned when the setting is not present or not a number.
+	 *
+	 * @return the setting as an int.
+	 */
+	public int getInt(String key, int defaultValue) {
+		try {
+			return Integer.parseInt( getString( key, String.valueOf( defaultValue)));
+		}
+		catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * @param key the setting name.
+	 * @param defaultValue value returned when the setting is not present or not a number.
+	 *
+	 * @return the setting as a long.
+	 */
+	public long getLong(String key, long defaultValue) {
+		try {
+			return Long.parseLong( getString( key, String.valueOf( defaultValue)));
+		}
+		catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * @param key the setting name.
+	 * @param defaultValue value returned when the setting is not present.
+	 *
+	 * @return the setting as a boolean.
+	 */
+	public boolean getBoolean(String key, boolean defaultValue) {
+		return Boolean.parseBoolean( getString( key, String.valueOf( defaultValue)));
+	}
+
+	/**
+	 * @param prefix the start of the setting names, e.g. "timeout.".
+	 *
+	 * @return the names of the settings that start with prefix, from the file or system properties.
+	 */
+	public Set<String> keys(String prefix) {
+		Set<String> keys = new TreeSet<String>();
+		for (String key : properties.stringPropertyNames()) {
+			if (key.startsWith( prefix)) keys.add( key);
+		}
+		for (String key : System.getProperties().stringPropertyNames()) {
+			if (key.startsWith( SYSTEM_PREFIX + prefix)) keys.add( key.substring( SYSTEM_PREFIX.length()));
+		}
+		return keys;
+	}
+}
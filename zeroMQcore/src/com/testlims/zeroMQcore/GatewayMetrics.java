@@ -0,0 +1,293 @@
+package com.testlims.zeroMQcore;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.testlims.utilities.SocketFactory;
+import com.testlims.utilities.SocketStats;
+
+/**
+ * GatewayMetrics holds the gateway's latency histograms and response counters, per serviceName
+ * and requestType, and writes them, with the routes' credits and the cache, single flight and
+ * socket pool counters, in the Prometheus text format served by {@link MetricsServlet}.
+ * <p>
+ * Four latencies are recorded for each request, in the phase label:
+ <ul>
+   <li>total:  from doPost being called until the response is written.</li>
+   <li>read:  reading the request body.</li>
+   <li>backend:  from sending the request to the service until its reply, including retries.</li>
+   <li>write:  writing the response body.</li>
+ </ul>
+ * They are exported as Prometheus histograms, so
+ * <code>histogram_quantile(0.99, rate(zeromqcore_duration_seconds_bucket[1m]))</code> gives a live
+ * p99, and as quantile gauges over the whole run for p50 to p999 at the histogram's full precision.
+ * <p>
+ * The request type comes from the client, so each service keeps at most MAX_TYPES request types,
+ * and later ones are counted as "other".
+ *
+ * @author Marc Whitlow, Colabrativ, Inc.
+ */
+public class GatewayMetrics {
+
+	static final int		MAX_TYPES	= 64;
+	static final int[]		STATUSES	= { 200, 304, 400, 404, 413, 500, 503, 504 };
+	static final double[]	QUANTILES	= { 0.5, 0.9, 0.99, 0.999 };
+
+	private static final GatewayMetrics	instance	= new GatewayMetrics();
+
+	/** The latencies and response counts of one request type.  */
+	public static final class RequestMetrics {
+		private final String		serviceName;
+		private final String		requestType;
+		/** From doPost being called until the response is written.  */
+		public final LatencyHistogram	total	= new LatencyHistogram();
+		/** Reading the request body.  */
+		public final LatencyHistogram	read	= new LatencyHistogram();
+		/** From sending the request to the service until its reply.  */
+		public final LatencyHistogram	backend	= new LatencyHistogram();
+		/** Writing the response body.  */
+		public final LatencyHistogram	write	= new LatencyHistogram();
+		private final AtomicLongArray	statusCounts = new AtomicLongArray( STATUSES.length + 1);
+
+		private RequestMetrics(String serviceName, String requestType) {
+			this.serviceName	= serviceName;
+			this.requestType	= requestType;
+		}
+
+		/**
+		 * Count a response.
+		 *
+		 * @param status the HTTP status code of the response.
+		 */
+		public void count(int status) {
+			int s = 0;
+			while (s < STATUSES.length && STATUSES[s] != status) s++;
+			statusCounts.incrementAndGet( s);
+		}
+	}
+
+	private final ConcurrentHashMap<String,ConcurrentHashMap<String,RequestMetrics>> services
+			= new ConcurrentHashMap<String,ConcurrentHashMap<String,RequestMetrics>>();
+
+	private volatile ServiceRoutes	routes;
+	private volatile ResponseCache	cache;
+	private volatile SingleFlight	singleFlight;
+	private volatile LoggerPool		loggerPool;
+
+	/** @return the metrics shared by the gateway's servlets. */
+	public static GatewayMetrics getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Give the metrics the gateway parts whose counters are exported with the latencies.
+	 *
+	 * @param routes the routing table, for each route's credits and sockets.
+	 * @param cache the response cache.
+	 * @param singleFlight the single flight coalescer.
+	 * @param loggerPool the pool of publishers to the MessageLogger.
+	 */
+	public void register(ServiceRoutes routes, ResponseCache cache, SingleFlight singleFlight, LoggerPool loggerPool) {
+		this.routes			= routes;
+		this.cache			= cache;
+		this.singleFlight	= singleFlight;
+		this.loggerPool		= loggerPool;
+	}
+
+	/**
+	 * @param serviceName the service the request was routed to, or an empty string if none.
+	 * @param requestType the request type.
+	 *
+	 * @return the metrics of the request type, created on first use.
+	 */
+	public RequestMetrics get(String serviceName, String requestType) {
+		ConcurrentHashMap<String,RequestMetrics> types = services.get( serviceName);
+		if (types == null) {
+			services.putIfAbsent( serviceName, new ConcurrentHashMap<String,RequestMetrics>());
+			types = services.get( serviceName);
+		}
+		RequestMetrics metrics = types.get( requestType);
+		if (metrics == null) {
+			if (types.size() >= MAX_TYPES) {
+				requestType = "other";
+				metrics = types.get( requestType);
+				if (metrics != null) {
+					return metrics;
+				}
+			}
+			types.putIfAbsent( requestType, new RequestMetrics( serviceName, requestType));
+			metrics = types.get( requestType);
+		}
+		return metrics;
+	}
+
+	/**
+	 * Write every metric in the Prometheus text exposition format, version 0.0.4.
+	 *
+	 * @param out the writer to write to.
+	 */
+	public void write(PrintWriter out) {
+		out.println( "# HELP zeromqcore_duration_seconds Request latency by phase: total, read, backend, write.");
+		out.println( "# TYPE zeromqcore_duration_seconds histogram");
+		for (RequestMetrics metrics : all()) {
+			writeHistogram( out, metrics, "total",		metrics.total);
+			writeHistogram( out, metrics, "read",		metrics.read);
+			writeHistogram( out, metrics, "backend",	metrics.backend);
+			writeHistogram( out, metrics, "write",		metrics.write);
+		}
+
+		out.println( "# HELP zeromqcore_duration_quantile_seconds Request latency quantiles since the gateway started.");
+		out.println( "# TYPE zeromqcore_duration_quantile_seconds gauge");
+		for (RequestMetrics metrics : all()) {
+			writeQuantiles( out, metrics, "total",		metrics.total);
+			writeQuantiles( out, metrics, "backend",	metrics.backend);
+		}
+
+		out.println( "# HELP zeromqcore_responses_total Responses by HTTP status code.");
+		out.println( "# TYPE zeromqcore_responses_total counter");
+		for (RequestMetrics metrics : all()) {
+			for (int s=0; s<=STATUSES.length; s++) {
+				long count = metrics.statusCounts.get( s);
+				if (count > 0) {
+					out.println( "zeromqcore_responses_total{" + labels( metrics) + ",status=\""
+							+ ((s < STATUSES.length) ? String.valueOf( STATUSES[s]) : "other") + "\"} " + count);
+				}
+			}
+		}
+
+		ServiceRoutes routes = this.routes;
+		if (routes != null) {
+			out.println( "# HELP zeromqcore_route_credits_in_use Requests in flight to the route's service.");
+			out.println( "# TYPE zeromqcore_route_credits_in_use gauge");
+			for (ServiceRoute route : routes.all()) {
+				out.println( "zeromqcore_route_credits_in_use{service=\"" + escape( route.getServiceName()) + "\"} " + route.getInFlight());
+			}
+			out.println( "# HELP zeromqcore_route_credits_max Requests the route admits at once, 0 for no limit.");
+			out.println( "# TYPE zeromqcore_route_credits_max gauge");
+			for (ServiceRoute route : routes.all()) {
+				out.println( "zeromqcore_route_credits_max{service=\"" + escape( route.getServiceName()) + "\"} " + route.getMaxInFlight());
+			}
+			out.println( "# HELP zeromqcore_route_credits_peak Most requests in flight to the route's service at once.");
+			out.println( "# TYPE zeromqcore_route_credits_peak gauge");
+			for (ServiceRoute route : routes.all()) {
+				out.println( "zeromqcore_route_credits_peak{service=\"" + escape( route.getServiceName()) + "\"} " + route.getPeakInFlight());
+			}
+			out.println( "# HELP zeromqcore_route_admitted_total Requests admitted to the route.");
+			out.println( "# TYPE zeromqcore_route_admitted_total counter");
+			for (ServiceRoute route : routes.all()) {
+				out.println( "zeromqcore_route_admitted_total{service=\"" + escape( route.getServiceName()) + "\"} " + route.getAdmittedCount());
+			}
+			out.println( "# HELP zeromqcore_route_rejected_total Requests turned away with 503 because the route was saturated.");
+			out.println( "# TYPE zeromqcore_route_rejected_total counter");
+			for (ServiceRoute route : routes.all()) {
+				out.println( "zeromqcore_route_rejected_total{service=\"" + escape( route.getServiceName()) + "\"} " + route.getRejectedCount());
+			}
+			out.println( "# HELP zeromqcore_pool_lease_wait_seconds_total Time spent waiting to lease a socket.");
+			out.println( "# TYPE zeromqcore_pool_lease_wait_seconds_total counter");
+			for (ServiceRoute route : routes.all()) {
+				if (route.getPool() != null) {
+					out.println( "zeromqcore_pool_lease_wait_seconds_total{pool=\"" + escape( route.getServiceName()) + "\"} "
+							+ seconds( route.getPool().getTotalWaitNanos() / 1000));
+				}
+			}
+			LoggerPool loggerPool = this.loggerPool;
+			if (loggerPool != null) {
+				out.println( "zeromqcore_pool_lease_wait_seconds_total{pool=\"MessageLogger\"} " + seconds( loggerPool.getTotalWaitNanos() / 1000));
+			}
+		}
+
+		LoggerPool loggerPool = this.loggerPool;
+		if (loggerPool != null) {
+			out.println( "# HELP zeromqcore_logger_ready_publishers Publishers the MessageLogger has subscribed to.");
+			out.println( "# TYPE zeromqcore_logger_ready_publishers gauge");
+			out.println( "zeromqcore_logger_ready_publishers " + loggerPool.getReadyCount());
+			out.println( "# TYPE zeromqcore_logger_pending_messages gauge");
+			out.println( "zeromqcore_logger_pending_messages " + loggerPool.getPendingCount());
+			out.println( "# HELP zeromqcore_logger_dropped_total Log messages dropped while the MessageLogger was not ready.");
+			out.println( "# TYPE zeromqcore_logger_dropped_total counter");
+			out.println( "zeromqcore_logger_dropped_total " + loggerPool.getDroppedCount());
+		}
+
+		List<SocketStats> sockets = SocketFactory.allStats();
+		if (!sockets.isEmpty()) {
+			out.println( "# HELP zeromqcore_socket_events_total Connection events reported by each socket's monitor.");
+			out.println( "# TYPE zeromqcore_socket_events_total counter");
+			for (SocketStats stats : sockets) {
+				String labels = "socket=\"" + escape( stats.getName()) + "\",profile=\"" + escape( stats.getProfile()) + "\",event=\"";
+				out.println( "zeromqcore_socket_events_total{" + labels + "connected\"} " + stats.getConnectedCount());
+				out.println( "zeromqcore_socket_events_total{" + labels + "connect_retried\"} " + stats.getConnectRetriedCount());
+				out.println( "zeromqcore_socket_events_total{" + labels + "disconnected\"} " + stats.getDisconnectedCount());
+				out.println( "zeromqcore_socket_events_total{" + labels + "accepted\"} " + stats.getAcceptedCount());
+				out.println( "zeromqcore_socket_events_total{" + labels + "bind_failed\"} " + stats.getBindFailedCount());
+			}
+		}
+
+		ResponseCache cache = this.cache;
+		if (cache != null) {
+			out.println( "# TYPE zeromqcore_cache_hits_total counter");
+			out.println( "zeromqcore_cache_hits_total " + cache.getHitCount());
+			out.println( "# TYPE zeromqcore_cache_misses_total counter");
+			out.println( "zeromqcore_cache_misses_total " + cache.getMissCount());
+			out.println( "# TYPE zeromqcore_cache_evictions_total counter");
+			out.println( "zeromqcore_cache_evictions_total " + cache.getEvictionCount());
+		}
+		SingleFlight singleFlight = this.singleFlight;
+		if (singleFlight != null) {
+			out.println( "# TYPE zeromqcore_coalesced_total counter");
+			out.println( "zeromqcore_coalesced_total " + singleFlight.getFollowerCount());
+		}
+	}
+
+	private Iterable<RequestMetrics> all() {
+		List<RequestMetrics> all = new ArrayList<RequestMetrics>();
+		for (Map<String,RequestMetrics> types : services.values()) {
+			all.addAll( types.values());
+		}
+		return all;
+	}
+
+	private static void writeHistogram(PrintWriter out, RequestMetrics metrics, String phase, LatencyHistogram histogram) {
+		if (histogram.getCount() == 0) {
+			return;
+		}
+		String labels = labels( metrics) + ",phase=\"" + phase + "\"";
+		/** Bounds at 1 and 1.5 times each power of two microseconds from 64us to 67s, which are bucket bounds */
+		for (int exponent=6; exponent<=26; exponent++) {
+			long bound = 1L << exponent;
+			out.println( "zeromqcore_duration_seconds_bucket{" + labels + ",le=\"" + seconds( bound) + "\"} " + histogram.countBelow( bound));
+			bound += bound >> 1;
+			out.println( "zeromqcore_duration_seconds_bucket{" + labels + ",le=\"" + seconds( bound) + "\"} " + histogram.countBelow( bound));
+		}
+		out.println( "zeromqcore_duration_seconds_bucket{" + labels + ",le=\"+Inf\"} " + histogram.getCount());
+		out.println( "zeromqcore_duration_seconds_sum{" + labels + "} " + seconds( histogram.getSumMicros()));
+		out.println( "zeromqcore_duration_seconds_count{" + labels + "} " + histogram.getCount());
+	}
+
+	private static void writeQuantiles(PrintWriter out, RequestMetrics metrics, String phase, LatencyHistogram histogram) {
+		if (histogram.getCount() == 0) {
+			return;
+		}
+		String labels = labels( metrics) + ",phase=\"" + phase + "\"";
+		for (double quantile : QUANTILES) {
+			out.println( "zeromqcore_duration_quantile_seconds{" + labels + ",quantile=\"" + quantile + "\"} "
+					+ seconds( histogram.quantileMicros( quantile)));
+		}
+		out.println( "zeromqcore_duration_quantile_seconds{" + labels + ",quantile=\"1.0\"} " + seconds( histogram.getMaxMicros()));
+	}
+
+	private static String labels(RequestMetrics metrics) {
+		return "service=\"" + escape( metrics.serviceName) + "\",type=\"" + escape( metrics.requestType) + "\"";
+	}
+
+	private static String seconds(long micros) {
+		return String.valueOf( micros / 1e6);
+	}
+
+	private static String escape(String label) {
+		return label.replace( "\\", "\\\\").replace( "\"", "\\\"").replace( "\n", "\\n");
+	}
+}
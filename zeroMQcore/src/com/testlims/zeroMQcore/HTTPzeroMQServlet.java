@@ -1,25 +1,46 @@
 package com.testlims.zeroMQcore;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import org.zeromq.ZMQ;
 import org.zeromq.ZMQ.Context;
 
+import com.testlims.utilities.BinaryFields;
+import com.testlims.utilities.Envelope;
+import com.testlims.utilities.JsonFields;
+import com.testlims.utilities.LogPublisher;
+import com.testlims.utilities.SocketFactory;
+import com.testlims.utilities.SocketStats;
+import com.testlims.utilities.StackTrace;
+import com.testlims.utilities.TraceContext;
+import com.testlims.utilities.Workers;
 
 /**
  * HTTPzeroMQServlet handles HTTP POST requests, and sends them to zeroMQ request (REQ)
  * socket.  The servlet runs the following step: 
  <ol>
-   <li>Assigns the requestId each request, and adds it to the request JSON object.</li>
+   <li>Assigns the requestId each request, and adds it to the request envelope.</li>
    <li>Logs the request Id and service being requested.</li>
    <li>Send out the request to the zeroMQ broker.</li>
    <li>Logs the request Id and returning response from the zeroMQ broker.</li>
@@ -27,51 +48,174 @@ import org.zeromq.ZMQ.Context;
  *
  * In order to run the servlet both the MessageLogger and the Request/Response zeroMQ modes 
  * need to be running. 
+ * <p>
+ * Each request is sent to the {@link ServiceRoute} for its serviceName, looked up in the 
+ * {@link ServiceRoutes} table built from the route entries in zeroMQcore.properties.  Requests 
+ * whose serviceName has no route, and pass-through requests, go to the default route, and are 
+ * answered with 404 Not Found when there is none. 
+ * <p>
+ * zeroMQ sockets are not thread safe, so each container thread leases a REQ socket to the service 
+ * from a {@link SocketPool}, and a publisher to the logger from the {@link LoggerPool}, for the 
+ * duration of its request.  The servlet starts once the logger has subscribed to its publishers, 
+ * or after loggerReadyTimeout, and messages logged before the logger is ready are kept and sent. 
+ * The servlet's sockets are made in the JVM's shared context by the {@link SocketFactory}, whose 
+ * tuning profiles are set in zeroMQsockets.properties. 
+ * Requests are given a deadline per request type, and those of the idempotent types given retries 
+ * are resent by the {@link LazyPirateRequester} when a reply is late; a request whose deadline 
+ * passes is answered with 504 Gateway Timeout. 
+ * Each route admits at most maxInFlight requests at once, and requests beyond that are answered 
+ * with 503 Service Unavailable and a Retry-After header rather than queued. 
+ * <p>
+ * Requests are sent to the service as an {@link Envelope}:  the requestId, serviceName and 
+ * requestType travel in header frames ahead of the unchanged request body, and the reply body 
+ * is written back byte for byte.  The requestType and serviceName are read from the body with 
+ * {@link JsonFields}, and the body is parsed into a JSONObject only for the cache key of a 
+ * cacheable or coalesced request.  A route whose format is binary is sent the body translated to 
+ * the binary format of {@link BinaryFields}, and its replies are translated back to JSON before 
+ * they are cached or written, so the browser and the cache see the same JSON in either format. 
+ * When <code>passThrough=true</code> the request body is not parsed at all, and the service 
+ * reads the requestType from the body; the serviceName frame names the default route's service, 
+ * so a Broker on that route can still route the request. 
+ * <p>
+ * Replies to the request types listed as cacheable are kept in a {@link ResponseCache}, and 
+ * later requests with the same parameters are answered from it without reaching the service. 
+ * Cacheable replies are stored and sent without their requestId, so a cache hit never carries 
+ * the id of the request that filled the cache.  They carry an ETag, and a request whose 
+ * If-None-Match matches it is answered with 304 Not Modified. 
+ * <p>
+ * Identical requests of the request types listed in coalesce are sent once while one of them is 
+ * in flight, and the others are answered with its reply, see {@link SingleFlight}. 
+ * <p>
+ * Each request's total, body read, service round trip and response write times are recorded 
+ * in the {@link GatewayMetrics} histograms for its serviceName and requestType, and served in 
+ * the Prometheus text format at /metrics. 
+ * <p>
+ * Each request starts a {@link TraceContext} that travels to the service in the envelope and is 
+ * published with every log message about the request, so the gateway's, the service's and the 
+ * logger's lines for one request share a trace Id and can be laid out on one timeline. 
+ * <p>
+ * A JSON array of requests POSTed to /services/batch is run by a {@link ServiceBatch}, with 
+ * up to batch.window of its items in flight at once, and answered with a JSON array of replies. 
+ * With <code>virtualThreads=true</code> and a JVM that has them, each batch item waits for its 
+ * reply on a virtual thread of its own rather than on one of batch.threads platform threads, 
+ * see {@link Workers}. 
+ * <p>
+ * When <code>async=true</code> in zeroMQcore.properties the request is not waited for on the
+ * container thread.  doPost starts an {@link AsyncContext}, hands the request to the 
+ * route's {@link AsyncServiceChannel}, and returns; the response is completed when the reply carrying 
+ * the same requestId comes back, so a few container threads can carry many in-flight requests. 
  *
  * @author Marc Whitlow, Colabrativ, Inc. 
  */
 @WebServlet(
 		description = "HTTP Servlet that connects to zeroMQ MessageLogger and HelloService services", 
-		urlPatterns = { "/services" })
+		urlPatterns = { "/services", "/services/batch" }, 
+		asyncSupported = true)
 public class HTTPzeroMQServlet extends HttpServlet {
 
 	private static final long serialVersionUID = 8363249898405266358L;
 	
+	private static final String	METRICS_ATTRIBUTE	= "com.testlims.zeroMQcore.metrics";
+	private static final String	START_ATTRIBUTE		= "com.testlims.zeroMQcore.start";
+	private static final String	TRACE_ATTRIBUTE		= "com.testlims.zeroMQcore.trace";
+	/** The request body members the request is routed by.  */
+	private static final String[]	ROUTING_FIELDS		= { "requestType", "serviceName" };
+	
 	private Context 	context			= null; 
-	private ZMQ.Socket 	pub2Logger		= null; 
-	private ZMQ.Socket 	reqHelloService	= null; 
+	private LoggerPool 	pub2Logger		= null; 
+	private ServiceRoutes routes		= null; 
+	private RequestTimeouts timeouts	= null; 
+	private ResponseCache cache			= null; 
+	private SingleFlight singleFlight	= null; 
+	private ServiceBatch batch			= null; 
+	private ExecutorService batchThreads = null; 
+	private int			batchMaxItems	= 0; 
+	private boolean		virtualThreads	= false; 
+	private String		retryAfter		= null; 
 	private	String		loggerTopic		= null;
-	private int 		requestId 		= 0; 
+	private long		leaseTimeout	= 0; 
+	private AtomicInteger requestId 	= new AtomicInteger(); 
+	private boolean		passThrough		= false; 
+	private GatewayMetrics metrics		= GatewayMetrics.getInstance(); 
 	
 	/**
 	 * HTTPzeroMQServlet Constructor  */
 	public HTTPzeroMQServlet() {
 		super();
 		
-	//	TODO: The loggerURL, loggerTopic, and helloServiceURL should be read in from a properties file. 
-		String loggerURL		= "tcp://localhost:5556"; 
-		loggerTopic				= "Project_Log"; 
-		String helloServiceURL	= "tcp://localhost:5557";  
-		context = ZMQ.context(1); 
+		GatewayConfig config	= new GatewayConfig(); 
+		String loggerURL		= config.getString( "loggerURL",		"tcp://localhost:5556"); 
+		loggerTopic				= config.getString( "loggerTopic",		"Project_Log"); 
+		context = SocketFactory.acquireContext(); 
 		
-		pub2Logger = context.socket( ZMQ.PUB);
-		pub2Logger.connect( loggerURL); 
+		int poolSize = config.getInt( "poolSize", Runtime.getRuntime().availableProcessors());
+		leaseTimeout = config.getLong( "poolLeaseTimeout", 5000);
+		pub2Logger = new LoggerPool( context, loggerURL, loggerTopic, config.getInt( "loggerPoolSize", poolSize), 
+				config.getInt( "loggerMaxPending", 1000)); 
 			
-		reqHelloService = context.socket( ZMQ.REQ);
-		reqHelloService.connect( helloServiceURL);
+		timeouts = new RequestTimeouts( config);
+		passThrough = config.getBoolean( "passThrough", false);
+		cache = new ResponseCache( config);
+		singleFlight = new SingleFlight( config);
+		retryAfter = config.getString( "retryAfter", "1");
+		if (config.getBoolean( "async", false)) {
+			try {
+				routes = new ServiceRoutes( context, config, timeouts, true);
+			}
+			catch (IOException e) {
+				System.err.print( StackTrace.asString( "HTTPzeroMQServlet ERROR: Failed to start AsyncServiceChannel", e));
+			}
+		}
+		if (routes == null) {
+			try {
+				routes = new ServiceRoutes( context, config, timeouts, false);
+			}
+			catch (IOException e) {
+				throw new IllegalStateException( "REQ service routes threw IOException", e);
+			}
+		}
 		
-		try {
-			Thread.sleep( 20);
-			pub2Logger.send( (loggerTopicIDClassName() + ":PUB socket to MessageLogger connected to " + loggerURL).getBytes());
-			pub2Logger.send( (loggerTopicIDClassName() + ":REQ socket to HelloService connected to " + helloServiceURL).getBytes());
-			
-		} catch (InterruptedException e) {
-			System.err.println( "HTTPzeroMQServlet InterruptedException Thread.sleep( 20)");
+		int batchWindow = config.getInt( "batch.window", 16);
+		batchMaxItems	= config.getInt( "batch.maxItems", 1000);
+		virtualThreads	= config.getBoolean( "virtualThreads", false);
+		batchThreads	= Workers.newExecutor( "ServiceBatch", virtualThreads, config.getInt( "batch.threads", batchWindow));
+		batch = new ServiceBatch( routes, timeouts, cache, batchThreads, batchWindow);
+		metrics.register( routes, cache, singleFlight, pub2Logger);
+		
+		long readyTimeout = config.getLong( "loggerReadyTimeout", 1000);
+		if (!pub2Logger.awaitReady( readyTimeout)) {
+			System.err.println( "HTTPzeroMQServlet: MessageLogger at " + loggerURL + " not subscribed after " 
+					+ readyTimeout + " ms, log messages are kept until it is");
 		}
+		publish( 0, "", "Publishers to MessageLogger connected to " + pub2Logger.stats());
+		publish( 0, "", "Batch items wait on " + Workers.describe( virtualThreads) + " threads");
+		publish( 0, "", "Sockets ioThreads=" + SocketFactory.getInt( "ioThreads", 1) + " " 
+				+ SocketFactory.describe( "request") + " " + SocketFactory.describe( "logger"));
+		for (ServiceRoute route : routes.all()) {
+			publish( 0, "", "Route " + route.stats());
+		}
+	}
+	
+	/** Publish to the logger on a leased publisher; the message is dropped if none is free in time.  */
+	private void publish(int requestId, String requestType, String message) {
+		publish( requestId, requestType, null, message);
 	}
 	
-	private String loggerTopicIDClassName() {
-		return loggerTopic + " " + requestId + ":MockHTTPzeroMQ";
+	/** Publish a log message about a request, with the request's trace.  */
+	private void publish(int requestId, String requestType, TraceContext trace, String message) {
+		LogPublisher publisher = null;
+		try {
+			publisher = pub2Logger.lease( leaseTimeout);
+			if (publisher != null) {
+				publisher.publish( String.valueOf( requestId), "MockHTTPzeroMQ", requestType, trace, message);
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			if (publisher != null) pub2Logger.release( publisher);
+		}
 	}
 	
 	/**
@@ -83,65 +227,499 @@ public class HTTPzeroMQServlet extends HttpServlet {
 	 * @throws IOException if there is an issue reading the request. 
 	 */
 	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
-		Integer httpStatusCode = 200;
-
-		requestId++;
+		final long start = System.nanoTime();
+		if ("/services/batch".equals( request.getServletPath())) {
+			doBatch( request, response, start);
+			return;
+		}
+		final int requestId = this.requestId.incrementAndGet();
+		final TraceContext trace = TraceContext.start().mark( TraceContext.GATEWAY_RECEIVED, start);
+		request.setAttribute( TRACE_ATTRIBUTE, trace);
 		String requestType = null;
+		String metricsType = null;
+		ServiceRoute route = null;
+		String cacheKey = null;
+		String flightKey = null;
+		byte[][] frames = null;
 		// ___________________ Readout Request ___________________ 
-		String line = null;
-		StringBuffer jsonBuffer = new StringBuffer();
-		BufferedReader reader = request.getReader();
-		while ((line = reader.readLine()) != null) {
-			jsonBuffer.append( line);
-		} 
+		byte[] requestBytes = readBody( request);
+		long readNanos = System.nanoTime() - start;
 		
-		try {	
-			JSONObject requestJSON = new JSONObject( jsonBuffer.toString());
-		//	
-			
-			// ___________________ Log the Request ___________________ 
-			requestType = requestJSON.getString( "requestType");
-			pub2Logger.send( (loggerTopicIDClassName() + ":POST:" + requestType + ".request").getBytes());		
-			
-			//                 Send Request to HelloServices
-			// _______________ Send Request to Broker ________________ 
-			requestJSON.put( "requestId", String.valueOf( requestId));
-			reqHelloService.send( requestJSON.toString().getBytes(), 0);
-		}
-		catch(Exception e) { 
-			//             Failed to process as JSON Object
-			// ______________ Log the Request as String ______________ 
-			requestType = jsonBuffer.toString();
-			pub2Logger.send( (loggerTopicIDClassName() + ":POST:" + requestType + ".request").getBytes());		
-			
-			// _______________ Send Request to Broker ________________ 
-			reqHelloService.send( requestType.getBytes(), 0);
+		if (passThrough) {
+			//                  Pass the Body Through
+			// ________ The service reads requestType from the body ________ 
+			requestType = metricsType = "passThrough";
+			route = routes.getDefault();
+			publish( requestId, "", trace, "POST:" + requestType + ".request");
+			frames = Envelope.frames( String.valueOf( requestId), (route == null) ? "" : route.getServiceName(), "", Envelope.FLAG_NONE, 
+					trace.mark( TraceContext.GATEWAY_SENT), requestBytes);
+		}
+		else {
+			try {	
+				String[] routing = JsonFields.read( requestBytes, ROUTING_FIELDS);
+				
+				// ___________________ Log the Request ___________________ 
+				requestType = metricsType = JsonFields.require( routing[0], "requestType");
+				publish( requestId, requestType, trace, "POST:" + requestType + ".request");		
+				
+				//                 Send Request to the Service
+				// _______ The requestId travels in the envelope header _______ 
+				route = routes.get( routing[1]);
+				startMetrics( request, route, metricsType, start, readNanos);
+				if (route != null && cache.isCacheable( requestType)) {
+					cacheKey = ResponseCache.key( route.getServiceName(), requestType, 
+							new JSONObject( new String( requestBytes, ZMQ.CHARSET)));
+					ResponseCache.Entry cached = cache.get( cacheKey);
+					if (cached != null) {
+						complete( request, writeCached( request, response, cached));
+						publish( requestId, requestType, trace, "POST:" + requestType + ".cached");
+						return;
+					}
+				}
+				if (route != null && singleFlight.isCoalesced( requestType)) {
+					flightKey = (cacheKey != null) ? cacheKey : ResponseCache.key( route.getServiceName(), requestType, 
+							new JSONObject( new String( requestBytes, ZMQ.CHARSET)));
+				}
+				boolean binary = route != null && route.isBinary();
+				frames = Envelope.frames( String.valueOf( requestId), (route == null) ? "" : route.getServiceName(), 
+						requestType, binary ? Envelope.FLAG_BINARY : Envelope.FLAG_NONE, trace.mark( TraceContext.GATEWAY_SENT), 
+						binary ? BinaryFields.fromJson( requestBytes) : requestBytes);
+			}
+			catch(Exception e) { 
+				//             Failed to process as JSON Object
+				// ______________ Log the Request as String ______________ 
+				requestType = new String( requestBytes, ZMQ.CHARSET);
+				metricsType = "unparsed";
+				publish( requestId, "", trace, "POST:" + requestType + ".request");		
+				
+				// _______________ Send Request to Broker ________________ 
+				route = routes.getDefault();
+				frames = new byte[][] { requestBytes };
+			}
+		}
+		
+		if (request.getAttribute( METRICS_ATTRIBUTE) == null) {
+			startMetrics( request, route, metricsType, start, readNanos);
+		}
+		if (route == null) {
+			publish( requestId, requestType, trace, "POST:" + requestType + ".noRoute");
+			response.setStatus( HttpServletResponse.SC_NOT_FOUND);
+			complete( request, HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		SingleFlight.Flight flight = null;
+		if (flightKey != null) {
+			flight = singleFlight.join( flightKey, String.valueOf( requestId));
+			if (!flight.isLeader( String.valueOf( requestId))) {
+				follow( request, response, route.isAsync(), flight, requestId, requestType, cacheKey);
+				return;
+			}
+		}
+		if (!route.tryAcquire()) {
+			if (flight != null) singleFlight.land( flight, null);
+			publish( requestId, requestType, trace, "POST:" + requestType + ".rejected");
+			response.setHeader( "Retry-After", retryAfter);
+			response.sendError( HttpServletResponse.SC_SERVICE_UNAVAILABLE, route.getServiceName() + " is saturated");
+			complete( request, HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			return;
+		}
+		if (route.isAsync()) {
+			sendAsync( request, route, requestId, requestType, cacheKey, flight, frames);
+			return;
+		}
+		
+		try {
+			byte[] reply = null;
+			long sent = System.nanoTime();
+			try {
+				reply = route.getRequester().request( requestType, frames);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			metrics( request).backend.record( System.nanoTime() - sent);
+			respond( request, response, requestId, requestType, cacheKey, flight, reply);
+		}
+		finally {
+			route.release();
+			if (flight != null) singleFlight.land( flight, null);
+		}
+	}
+	
+	/**
+	 * Process a POST to /services/batch:  run every request in the JSON array, and write the JSON 
+	 * array of their replies.  A body that is not a JSON array is answered with 400 Bad Request, 
+	 * and one with more than batch.maxItems requests with 413 Payload Too Large. 
+	 */
+	private void doBatch(HttpServletRequest request, HttpServletResponse response, long start) throws IOException {
+		final int batchId = requestId.incrementAndGet();
+		final TraceContext trace = TraceContext.start().mark( TraceContext.GATEWAY_RECEIVED, start);
+		JSONArray items = null;
+		byte[] body = readBody( request);
+		GatewayMetrics.RequestMetrics batchMetrics = metrics.get( "", "batch");
+		batchMetrics.read.record( System.nanoTime() - start);
+		request.setAttribute( METRICS_ATTRIBUTE, batchMetrics);
+		request.setAttribute( START_ATTRIBUTE, start);
+		try {
+			items = new JSONArray( new String( body, ZMQ.CHARSET));
+		}
+		catch (JSONException e) {
+			publish( batchId, "batch", trace, "POST:batch.invalid");
+			response.sendError( HttpServletResponse.SC_BAD_REQUEST, "The batch must be a JSON array of requests");
+			complete( request, HttpServletResponse.SC_BAD_REQUEST);
+			return;
+		}
+		if (items.length() > batchMaxItems) {
+			publish( batchId, "batch", trace, "POST:batch.tooLarge:" + items.length());
+			response.sendError( 413, "The batch may hold at most " + batchMaxItems + " requests");
+			complete( request, 413);
+			return;
+		}
+		
+		publish( batchId, "batch", trace, "POST:batch.request:" + items.length());
+		byte[] replies = null;
+		long sent = System.nanoTime();
+		try {
+			replies = batch.run( items, requestId, trace);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			response.setStatus( HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			complete( request, HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			return;
+		}
+		batchMetrics.backend.record( System.nanoTime() - sent);
+		trace.mark( TraceContext.GATEWAY_REPLIED);
+		long writeStart = System.nanoTime();
+		writeReply( request, response, replies, null);
+		batchMetrics.write.record( System.nanoTime() - writeStart);
+		complete( request, HttpServletResponse.SC_OK);
+		publish( batchId, "batch", trace, "POST:batch.response:" + items.length());
+	}
+	
+	/** Attach the request type's metrics and the start time to the request, and record the body read time.  */
+	private void startMetrics(HttpServletRequest request, ServiceRoute route, String metricsType, long start, long readNanos) {
+		GatewayMetrics.RequestMetrics requestMetrics = metrics.get( (route == null) ? "" : route.getServiceName(), metricsType);
+		requestMetrics.read.record( readNanos);
+		request.setAttribute( METRICS_ATTRIBUTE, requestMetrics);
+		request.setAttribute( START_ATTRIBUTE, start);
+	}
+	
+	/** @return the metrics attached to the request by {@link #startMetrics}. */
+	private static GatewayMetrics.RequestMetrics metrics(HttpServletRequest request) {
+		return (GatewayMetrics.RequestMetrics) request.getAttribute( METRICS_ATTRIBUTE);
+	}
+	
+	/** @return the trace started for the request by doPost, or null for a batch. */
+	private static TraceContext trace(HttpServletRequest request) {
+		return (TraceContext) request.getAttribute( TRACE_ATTRIBUTE);
+	}
+	
+	/** Count the response's status, and record the request's total time.  */
+	private static void complete(HttpServletRequest request, int status) {
+		GatewayMetrics.RequestMetrics requestMetrics = metrics( request);
+		Long start = (Long) request.getAttribute( START_ATTRIBUTE);
+		if (requestMetrics != null && start != null) {
+			requestMetrics.count( status);
+			requestMetrics.total.record( System.nanoTime() - start);
+		}
+	}
+	
+	/**
+	 * Answer a request with the reply from the service:  translate it to JSON if it is in the binary 
+	 * format, store it in the cache if the request type is cacheable, hand it to any coalesced 
+	 * followers, and write it, or 504 if it is null. 
+	 */
+	private void respond(HttpServletRequest request, HttpServletResponse response, int requestId, String requestType, 
+			String cacheKey, SingleFlight.Flight flight, byte[] reply) throws IOException {
+		if (BinaryFields.isBinary( reply)) {
+			reply = BinaryFields.toJson( reply);
+		}
+		ResponseCache.Entry cached = (reply == null || cacheKey == null) ? null : cache.put( cacheKey, reply);
+		if (flight != null) {
+			singleFlight.land( flight, reply);
+		}
+		write( request, response, requestId, requestType, reply, cached, ".response");
+	}
+	
+	/** Write the reply, from the cache if there is a cached entry for it, or 504 if it is null.  */
+	private void write(HttpServletRequest request, HttpServletResponse response, int requestId, String requestType, 
+			byte[] reply, ResponseCache.Entry cached, String outcome) throws IOException {
+		TraceContext trace = trace( request);
+		if (reply == null) {
+			publish( requestId, requestType, trace, "POST:" + requestType + ".timeout");
+			response.setStatus( HttpServletResponse.SC_GATEWAY_TIMEOUT);
+			complete( request, HttpServletResponse.SC_GATEWAY_TIMEOUT);
+			return;
 		}
+		if (trace != null) trace.mark( TraceContext.GATEWAY_REPLIED);
 		
 		// __________________ Log the Response ___________________ 
-		String reply = reqHelloService.recvStr();
-		response.setStatus( httpStatusCode);
-		PrintWriter writer = response.getWriter();
+		long writeStart = System.nanoTime();
+		int status = HttpServletResponse.SC_OK;
+		if (cached == null) {
+			writeReply( request, response, reply, null);
+		}
+		else {
+			status = writeCached( request, response, cached);
+		}
+		metrics( request).write.record( System.nanoTime() - writeStart);
+		complete( request, status);
+		publish( requestId, requestType, trace, "POST:" + requestType + outcome);
+	}
+	
+	/**
+	 * Answer a coalesced follower with the leader's reply, carrying the follower's requestId, or 
+	 * with the cached reply the leader stored.  In asynchronous mode the container thread is 
+	 * released until the leader's reply arrives. 
+	 */
+	private void follow(HttpServletRequest request, HttpServletResponse response, boolean async, 
+			final SingleFlight.Flight flight, final int requestId, final String requestType, final String cacheKey) throws IOException {
+		final long timeout = timeouts.getTimeout( requestType);
+		if (!async) {
+			byte[] reply = null;
+			try {
+				reply = flight.reply( flight.await( timeout), String.valueOf( requestId));
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			write( request, response, requestId, requestType, reply, 
+					(reply == null || cacheKey == null) ? null : cache.get( cacheKey), ".coalesced");
+			return;
+		}
+		
+		final AsyncContext asyncContext = request.startAsync();
+		final AtomicBoolean answered = new AtomicBoolean();
+		final CountDownLatch written = new CountDownLatch( 1);
+		asyncContext.setTimeout( timeout);
+		asyncContext.addListener( new AsyncListener() {
+			public void onTimeout(AsyncEvent event) throws IOException {
+				if (!answered.compareAndSet( false, true)) {
+					awaitWritten( written, timeout);
+					return;
+				}
+				complete( (HttpServletRequest) asyncContext.getRequest(), HttpServletResponse.SC_GATEWAY_TIMEOUT);
+				publish( requestId, requestType, trace( (HttpServletRequest) asyncContext.getRequest()), 
+						"POST:" + requestType + ".timeout");
+				((HttpServletResponse) asyncContext.getResponse()).setStatus( HttpServletResponse.SC_GATEWAY_TIMEOUT);
+				asyncContext.complete();
+			}
+			public void onError(AsyncEvent event)		{ answered.set( true); }
+			public void onComplete(AsyncEvent event)	{ /** Do nothing */ }
+			public void onStartAsync(AsyncEvent event)	{ /** Do nothing */ }
+		});
+		flight.thenAccept( new Consumer<byte[]>() {
+			public void accept(byte[] leaderReply) {
+				if (!answered.compareAndSet( false, true)) {
+					return;
+				}
+				final byte[] reply = flight.reply( leaderReply, String.valueOf( requestId));
+				asyncContext.start( new Runnable() {
+					public void run() {
+						try {
+							write( (HttpServletRequest) asyncContext.getRequest(), (HttpServletResponse) asyncContext.getResponse(), 
+									requestId, requestType, reply, 
+									(reply == null || cacheKey == null) ? null : cache.get( cacheKey), ".coalesced");
+						}
+						catch (Exception e) {
+							System.err.print( StackTrace.asString( "HTTPzeroMQServlet ERROR: Failed to write reply " + requestId, e));
+						}
+						finally {
+							asyncContext.complete();
+							written.countDown();
+						}
+					}
+				});
+			}
+		});
+	}
+	
+	/**
+	 * Hand the request to the AsyncServiceChannel and release the container thread. 
+	 * The response is written on a container thread once the reply arrives, or answered 
+	 * with 504 if no reply arrives before the request type's deadline. 
+	 * <p>
+	 * The reply and the container's time-out can arrive together, so whichever sets done first 
+	 * answers the request.  The route's credit is returned by whichever took the request from 
+	 * the channel:  the reply, or the time-out's cancel. 
+	 */
+	private void sendAsync(HttpServletRequest request, final ServiceRoute route, final int requestId, final String requestType, 
+			final String cacheKey, final SingleFlight.Flight flight, byte[][] frames) {
+		final AsyncServiceChannel asyncChannel = route.getChannel();
+		final String correlationId = String.valueOf( requestId);
+		final AsyncContext asyncContext = request.startAsync();
+		final AtomicBoolean done = new AtomicBoolean();
+		final CountDownLatch written = new CountDownLatch( 1);
+		final long timeout = timeouts.getTimeout( requestType);
+		final long sent = System.nanoTime();
+		asyncContext.setTimeout( timeout);
+		asyncContext.addListener( new AsyncListener() {
+			public void onTimeout(AsyncEvent event) throws IOException {
+				if (!done.compareAndSet( false, true)) {
+					awaitWritten( written, timeout);
+					return;
+				}
+				if (asyncChannel.cancel( correlationId)) {
+					route.release();
+				}
+				metrics( (HttpServletRequest) asyncContext.getRequest()).backend.record( System.nanoTime() - sent);
+				complete( (HttpServletRequest) asyncContext.getRequest(), HttpServletResponse.SC_GATEWAY_TIMEOUT);
+				if (flight != null) singleFlight.land( flight, null);
+				publish( requestId, requestType, trace( (HttpServletRequest) asyncContext.getRequest()), 
+						"POST:" + requestType + ".timeout");
+				((HttpServletResponse) asyncContext.getResponse()).setStatus( HttpServletResponse.SC_GATEWAY_TIMEOUT);
+				asyncContext.complete();
+			}
+			public void onError(AsyncEvent event) { 
+				done.set( true);
+				if (asyncChannel.cancel( correlationId)) {
+					route.release();
+				}
+				if (flight != null) singleFlight.land( flight, null);
+			}
+			public void onComplete(AsyncEvent event)	{ /** Do nothing */ }
+			public void onStartAsync(AsyncEvent event)	{ /** Do nothing */ }
+		});
+		
+		asyncChannel.send( correlationId, frames, new AsyncServiceChannel.ReplyHandler() {
+			public void onReply(final byte[] reply) {
+				route.release();
+				if (!done.compareAndSet( false, true)) {
+					return;
+				}
+				metrics( (HttpServletRequest) asyncContext.getRequest()).backend.record( System.nanoTime() - sent);
+				asyncContext.start( new Runnable() {
+					public void run() {
+						try {
+							respond( (HttpServletRequest) asyncContext.getRequest(), (HttpServletResponse) asyncContext.getResponse(), 
+									requestId, requestType, cacheKey, flight, reply);
+						}
+						catch (Exception e) {
+							System.err.print( StackTrace.asString( "HTTPzeroMQServlet ERROR: Failed to write reply " + requestId, e));
+						}
+						finally {
+							if (flight != null) singleFlight.land( flight, null);
+							asyncContext.complete();
+							written.countDown();
+						}
+					}
+				});
+			}
+		});
+	}
+	
+	/** 
+	 * Called from onTimeout when the reply won the race:  wait for it to be written and the 
+	 * AsyncContext completed on the other thread, since a container error dispatches a request 
+	 * whose onTimeout returns with the request neither completed nor dispatched. 
+	 */
+	private static void awaitWritten(CountDownLatch written, long timeout) {
 		try {
-			JSONObject responseJSON = new JSONObject( reply);
-			response.setContentType( "application/json; charset=utf-8");
-			writer.println( responseJSON.toString());
+			written.await( timeout, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/** Read the whole request body, into an array of exactly Content-Length bytes when the length is known.  */
+	private static byte[] readBody(HttpServletRequest request) throws IOException {
+		InputStream in = request.getInputStream();
+		int length = request.getContentLength();
+		if (length >= 0) {
+			byte[] body = new byte[length];
+			int read = 0;
+			int count;
+			while (read < length && (count = in.read( body, read, length - read)) > 0) {
+				read += count;
+			}
+			if (read == length) {
+				return body;
+			}
+			byte[] truncated = new byte[read];
+			System.arraycopy( body, 0, truncated, 0, read);
+			return truncated;
 		}
-		catch(Exception e) {
-			//             Failed to process as JSON Object
-			// ______________ Log the Request as String ______________ 
-			response.setContentType( "application/text; charset=utf-8");
-			writer.println( reply);
+		
+		ByteArrayOutputStream body = new ByteArrayOutputStream( 1024);
+		byte[] buffer = new byte[4096];
+		int count;
+		while ((count = in.read( buffer)) > 0) {
+			body.write( buffer, 0, count);
 		}
-		pub2Logger.send( (loggerTopicIDClassName() + ":POST:" + requestType + ".response").getBytes());
+		return body.toByteArray();
+	}
+	
+	/** 
+	 * Write the reply bytes unchanged, as JSON when they start with '{' or '[' and as text otherwise. 
+	 * Replies worth compressing are gzip or deflate encoded if the client accepts it; a cached 
+	 * reply supplies the compressed bytes it keeps, so it is only compressed once. 
+	 */
+	private static void writeReply(HttpServletRequest request, HttpServletResponse response, byte[] reply, 
+			ResponseCache.Entry cached) throws IOException {
+		int first = 0;
+		while (first < reply.length && reply[first] <= ' ') first++;
+		String contentType = (first < reply.length && (reply[first] == '{' || reply[first] == '[')) 
+				? "application/json; charset=utf-8" : "application/text; charset=utf-8";
+		
+		response.setStatus( HttpServletResponse.SC_OK);
+		response.setContentType( contentType);
+		if (Compression.isCompressible( contentType, reply.length)) {
+			response.setHeader( "Vary", "Accept-Encoding");
+			String coding = Compression.negotiate( request.getHeader( "Accept-Encoding"));
+			if (coding != null) {
+				reply = (cached == null) ? Compression.encode( coding, reply) : cached.getEncoded( coding);
+				response.setHeader( "Content-Encoding", coding);
+			}
+		}
+		response.setContentLength( reply.length);
+		OutputStream out = response.getOutputStream();
+		out.write( reply);
+	}
+	
+	/** 
+	 * Write a cacheable reply with its ETag, or 304 Not Modified if the client already has it. 
+	 * 
+	 * @return the response status. 
+	 */
+	private static int writeCached(HttpServletRequest request, HttpServletResponse response, ResponseCache.Entry cached) 
+			throws IOException {
+		byte[] body = cached.getBody();
+		String coding = Compression.isCompressible( "application/json", body.length) 
+				? Compression.negotiate( request.getHeader( "Accept-Encoding")) : null;
+		String etag = ResponseCache.etag( cached.getETag(), coding);
+		response.setHeader( "ETag", etag);
+		String ifNoneMatch = request.getHeader( "If-None-Match");
+		if (ifNoneMatch != null && (ifNoneMatch.trim().equals( "*") || ifNoneMatch.contains( etag))) {
+			response.setStatus( HttpServletResponse.SC_NOT_MODIFIED);
+			return HttpServletResponse.SC_NOT_MODIFIED;
+		}
+		writeReply( request, response, body, cached);
+		return HttpServletResponse.SC_OK;
+	}
+	
+	/** Close the sockets when the container takes the servlet out of service.  */
+	public void destroy() {
+		closeAndTerminate();
+		super.destroy();
 	}
 	
 	/** Close publisher to the logger and the request/response and terminate the zero MQ context.  */
 	public void closeAndTerminate() { 
-		pub2Logger.send( loggerTopicIDClassName() + ":request:Close publisher to the logger and the request/response sockets," + 
-						" and terminate the zero MQ context.", 0);
+		publish( requestId.get(), "", "request:Close publisher to the logger and the request/response sockets," + 
+						" and terminate the zero MQ context.");
+		for (ServiceRoute route : routes.all()) {
+			publish( requestId.get(), "", "Route " + route.stats());
+		}
+		batchThreads.shutdownNow();
+		routes.close();
+		publish( requestId.get(), "", "Response cache " + cache.stats());
+		publish( requestId.get(), "", "Single flight " + singleFlight.stats());
+		for (SocketStats stats : SocketFactory.allStats()) {
+			publish( requestId.get(), "", "Socket " + stats);
+		}
 		pub2Logger.close();
-		reqHelloService.close();
-		context.term();
+		SocketFactory.releaseContext();
 	}
 }
@@ -0,0 +1,109 @@
+package com.testlims.zeroMQcore;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram counts latencies in log-linear buckets, in the manner of HdrHistogram:  each
+ * power of two of microseconds is split into 16 equal buckets, so a latency is known to within
+ * about 6% from 1 microsecond up to 19 hours, in a fixed array of 544 counters.
+ * <p>
+ * {@link #record} finds the bucket with a few shifts and increments an AtomicLongArray slot, so
+ * recording takes no lock and allocates nothing, and any number of request threads may record
+ * while the /metrics servlet reads.
+ *
+ * @author Marc Whitlow, Colabrativ, Inc.
+ */
+public class LatencyHistogram {
+
+	static final int	SUB_BITS		= 4;
+	static final int	SUB_BUCKETS		= 1 << SUB_BITS;
+	static final int	MAX_EXPONENT	= 36;
+	static final int	BUCKETS			= SUB_BUCKETS + (MAX_EXPONENT - SUB_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray	counts		= new AtomicLongArray( BUCKETS);
+	private final AtomicLong		count		= new AtomicLong();
+	private final AtomicLong		sumMicros	= new AtomicLong();
+	private final AtomicLong		maxMicros	= new AtomicLong();
+
+	/**
+	 * Record one latency.
+	 *
+	 * @param nanos the latency in nanoseconds, e.g. the difference of two System.nanoTime() calls.
+	 */
+	public void record(long nanos) {
+		long micros = Math.max( 0, nanos / 1000);
+		counts.incrementAndGet( index( micros));
+		count.incrementAndGet();
+		sumMicros.addAndGet( micros);
+		long max;
+		while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet( max, micros)) { /** retry */ }
+	}
+
+	/** @return the bucket holding the number of microseconds. */
+	static int index(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) micros;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros( micros);
+		if (exponent > MAX_EXPONENT) {
+			return BUCKETS - 1;
+		}
+		int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return SUB_BUCKETS + (exponent - SUB_BITS) * SUB_BUCKETS + sub;
+	}
+
+	/** @return one more than the largest number of microseconds the bucket holds. */
+	static long upperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index + 1;
+		}
+		int exponent	= (index - SUB_BUCKETS) / SUB_BUCKETS + SUB_BITS;
+		int sub			= (index - SUB_BUCKETS) % SUB_BUCKETS;
+		return (long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS);
+	}
+
+	/**
+	 * @param quantile the quantile, e.g. 0.99.
+	 *
+	 * @return the latency in microseconds that the quantile of the recorded latencies do not
+	 * exceed, to the bucket's precision, or 0 if nothing has been recorded.
+	 */
+	public long quantileMicros(double quantile) {
+		long total = count.get();
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil( quantile * total);
+		long seen = 0;
+		for (int b=0; b<BUCKETS; b++) {
+			seen += counts.get( b);
+			if (seen >= rank) {
+				return Math.min( upperBound( b) - 1, maxMicros.get());
+			}
+		}
+		return maxMicros.get();
+	}
+
+	/**
+	 * @param micros a bucket bound returned by {@link #upperBound}.
+	 *
+	 * @return the number of recorded latencies below the bound.
+	 */
+	public long countBelow(long micros) {
+		long below = 0;
+		for (int b=0; b<BUCKETS && upperBound( b) <= micros; b++) {
+			below += counts.get( b);
+		}
+		return below;
+	}
+
+	/** @return the number of latencies recorded. */
+	public long getCount()			{ return count.get(); }
+
+	/** @return the sum of the latencies recorded, in microseconds. */
+	public long getSumMicros()		{ return sumMicros.get(); }
+
+	/** @return the largest latency recorded, in microseconds. */
+	public long getMaxMicros()		{ return maxMicros.get(); }
+}
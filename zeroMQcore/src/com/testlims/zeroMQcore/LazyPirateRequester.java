@@ -0,0 +1,101 @@
+package com.testlims.zeroMQcore;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.zeromq.ZMQ;
+
+/**
+ * LazyPirateRequester sends a request on a REQ socket leased from a {@link SocketPool}, and
+ * waits for the reply no longer than the request type's deadline allows.  It follows the
+ * zeroMQ guide's "Lazy Pirate" pattern:
+ <ol>
+   <li>Each attempt waits for the reply with a receive time-out of deadline / (retries + 1), the
+       request type's retries.</li>
+   <li>If no reply arrives, the REQ socket is stuck waiting and can never send again, so it is
+       closed and a freshly connected socket takes its place in the pool.  Closing it also
+       discards the late reply, should one ever arrive.</li>
+   <li>After a random pause of up to retryJitter milliseconds, so that gateways retrying
+       together do not hit a recovering service at the same instant, the request is resent.</li>
+   <li>Once the retries or the deadline are used up, the caller is told the request expired.</li>
+ </ol>
+ * Only idempotent request types are resent, since a request that timed out may still have been
+ * processed:  a request type is sent once unless it has been given retries, see
+ * {@link RequestTimeouts#getRetries}.
+ *
+ * @author Marc Whitlow, Colabrativ, Inc.
+ */
+public class LazyPirateRequester {
+
+	private final SocketPool		pool;
+	private final RequestTimeouts	timeouts;
+
+	/**
+	 * LazyPirateRequester Constructor
+	 *
+	 * @param pool the pool of REQ sockets to the service.
+	 * @param timeouts the per request type deadlines and retry settings.
+	 */
+	public LazyPirateRequester(SocketPool pool, RequestTimeouts timeouts) {
+		this.pool		= pool;
+		this.timeouts	= timeouts;
+	}
+
+	/**
+	 * Send a request and wait for its reply.
+	 *
+	 * @param requestType the request type, used to look up the deadline, or null for the default.
+	 * @param request the request frames, normally just the body.
+	 *
+	 * @return the last frame of the reply, which is the body of an envelope, or null if the 
+	 * deadline passed before a reply arrived.
+	 *
+	 * @throws InterruptedException if the calling thread is interrupted.
+	 */
+	public byte[] request(String requestType, byte[]... request) throws InterruptedException {
+		long timeout	= timeouts.getTimeout( requestType);
+		int  attempts	= timeouts.getRetries( requestType) + 1;
+		long attemptTimeout	= Math.max( 1, timeout / attempts);
+		long deadline	= System.currentTimeMillis() + timeout;
+
+		for (int attempt=0; attempt<attempts; attempt++) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				break;
+			}
+			if (attempt > 0 && timeouts.getRetryJitter() > 0) {
+				Thread.sleep( Math.min( remaining, ThreadLocalRandom.current().nextLong( timeouts.getRetryJitter() + 1)));
+				remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					break;
+				}
+			}
+
+			ZMQ.Socket socket = pool.lease( remaining);
+			if (socket == null) {
+				break;
+			}
+			remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				pool.release( socket);
+				break;
+			}
+
+			socket.setReceiveTimeOut( (int) Math.min( attemptTimeout, remaining));
+			int last = request.length - 1;
+			for (int f=0; f<last; f++) {
+				socket.sendMore( request[f]);
+			}
+			socket.send( request[last], 0);
+			byte[] reply = socket.recv( 0);
+			if (reply != null) {
+				while (socket.hasReceiveMore()) {
+					reply = socket.recv( 0);
+				}
+				pool.release( socket);
+				return reply;
+			}
+			pool.replace( socket);
+		}
+		return null;
+	}
+}
@@ -0,0 +1,165 @@
+package com.testlims.zeroMQcore;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.zeromq.ZMQ.Context;
+
+import com.testlims.utilities.LogPublisher;
+
+/**
+ * LoggerPool is a bounded pool of {@link LogPublisher}s to the MessageLogger, leased by the
+ * servlet threads as a {@link SocketPool} socket is, one thread at a time.
+ * <p>
+ * A publisher keeps the messages published before the logger has subscribed, up to maxPending,
+ * and sends them once it has, so {@link #awaitReady} lets the gateway start as soon as the logger
+ * has acknowledged every publisher rather than after a fixed sleep, and a gateway started before
+ * the logger loses none of its first messages.
+ * <p>
+ * Like SocketPool, the pool counts leases, lease time-outs and the time callers spent waiting.
+ *
+ * @author Marc Whitlow, Colabrativ, Inc.
+ */
+public class LoggerPool {
+
+	private final String		url;
+	private final int			size;
+	private final LogPublisher[] all;
+	private final ArrayBlockingQueue<LogPublisher>	idle;
+	private volatile boolean	closed			= false;
+
+	private final AtomicLong	leaseCount		= new AtomicLong();
+	private final AtomicLong	timeoutCount	= new AtomicLong();
+	private final AtomicLong	waitNanos		= new AtomicLong();
+
+	/**
+	 * LoggerPool Constructor, creates and connects all publishers.
+	 *
+	 * @param context the zeroMQ context the sockets are created in.
+	 * @param url the URL of the message logger.
+	 * @param topic the logger topic, e.g. Project_Log.
+	 * @param size the number of publishers in the pool.
+	 * @param maxPending the number of messages each publisher keeps until the logger is ready.
+	 */
+	public LoggerPool(Context context, String url, String topic, int size, int maxPending) {
+		this.url	= url;
+		this.size	= Math.max( 1, size);
+		all		= new LogPublisher[this.size];
+		idle	= new ArrayBlockingQueue<LogPublisher>( this.size);
+		for (int p=0; p<this.size; p++) {
+			all[p] = new LogPublisher( context, url, topic, maxPending);
+			idle.add( all[p]);
+		}
+	}
+
+	/**
+	 * Wait for the logger to subscribe to every publisher in the pool.  Called before any
+	 * publisher is leased.
+	 *
+	 * @param timeoutMillis the longest time to wait for all of them.
+	 *
+	 * @return true if every publisher is ready, false if some were not ready in time.
+	 */
+	public boolean awaitReady(long timeoutMillis) {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		boolean ready = true;
+		for (LogPublisher publisher : all) {
+			ready &= publisher.awaitReady( Math.max( 0, deadline - System.currentTimeMillis()));
+		}
+		return ready;
+	}
+
+	/**
+	 * Lease a publisher, waiting up to timeoutMillis for one to be returned if none is idle.
+	 *
+	 * @param timeoutMillis maximum time to wait for a publisher.
+	 *
+	 * @return the leased publisher, or null if none became available in time or the pool is closed.
+	 *
+	 * @throws InterruptedException if the calling thread is interrupted while waiting.
+	 */
+	public LogPublisher lease(long timeoutMillis) throws InterruptedException {
+		if (closed) {
+			return null;
+		}
+		LogPublisher publisher = idle.poll();
+		if (publisher == null) {
+			long start = System.nanoTime();
+			publisher = idle.poll( timeoutMillis, TimeUnit.MILLISECONDS);
+			waitNanos.addAndGet( System.nanoTime() - start);
+			if (publisher == null) {
+				timeoutCount.incrementAndGet();
+				return null;
+			}
+		}
+		leaseCount.incrementAndGet();
+		return publisher;
+	}
+
+	/**
+	 * Return a leased publisher to the pool.
+	 *
+	 * @param publisher a publisher obtained from {@link #lease}.
+	 */
+	public void release(LogPublisher publisher) {
+		if (!closed) {
+			idle.offer( publisher);
+		}
+	}
+
+	/** Close every publisher in the pool, including those still leased.  */
+	public void close() {
+		closed = true;
+		idle.clear();
+		for (LogPublisher publisher : all) {
+			publisher.close();
+		}
+	}
+
+	/** @return the URL of the message logger. */
+	public String getUrl()				{ return url; }
+
+	/** @return the number of publishers in the pool. */
+	public int getSize()				{ return size; }
+
+	/** @return total nanoseconds callers spent waiting for a publisher. */
+	public long getTotalWaitNanos()		{ return waitNanos.get(); }
+
+	/** @return the number of publishers the logger had subscribed to when they were last used. */
+	public int getReadyCount() {
+		int ready = 0;
+		for (LogPublisher publisher : all) {
+			if (publisher.wasReady()) ready++;
+		}
+		return ready;
+	}
+
+	/** @return the number of messages kept until the logger is ready, across the pool. */
+	public long getPendingCount() {
+		long pending = 0;
+		for (LogPublisher publisher : all) {
+			pending += publisher.getPendingCount();
+		}
+		return pending;
+	}
+
+	/** @return the number of messages dropped because too many were kept, across the pool. */
+	public long getDroppedCount() {
+		long dropped = 0;
+		for (LogPublisher publisher : all) {
+			dropped += publisher.getDroppedCount();
+		}
+		return dropped;
+	}
+
+	/** @return a one line summary of the pool's size, readiness, leases and kept messages. */
+	public String stats() {
+		long leases = leaseCount.get() + timeoutCount.get();
+		long averageWaitMicros = (leases == 0) ? 0 : waitNanos.get() / leases / 1000;
+		return url + " size=" + size + " ready=" + getReadyCount() + " idle=" + idle.size()
+				+ " leases=" + leaseCount.get() + " timeouts=" + timeoutCount.get()
+				+ " avgWaitMicros=" + averageWaitMicros + " pending=" + getPendingCount()
+				+ " dropped=" + getDroppedCount();
+	}
+}
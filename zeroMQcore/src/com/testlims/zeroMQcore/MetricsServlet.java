@@ -0,0 +1,40 @@
+package com.testlims.zeroMQcore;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * MetricsServlet serves the gateway's {@link GatewayMetrics} at /metrics in the Prometheus 
+ * text format, for a Prometheus server to scrape. 
+ *
+ * @author Marc Whitlow, Colabrativ, Inc. 
+ */
+@WebServlet(
+		description = "Prometheus metrics of the zeroMQ gateway", 
+		urlPatterns = { "/metrics" })
+public class MetricsServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 8363249898405266359L;
+	
+	/**
+	 * Process GET request. 
+	 * 
+	 * @param request 
+	 * @param response the metrics, in the Prometheus text exposition format. 
+	 * 
+	 * @throws IOException if there is an issue writing the response. 
+	 */
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		response.setStatus( HttpServletResponse.SC_OK);
+		response.setContentType( "text/plain; version=0.0.4; charset=utf-8");
+		response.setHeader( "Cache-Control", "no-cache");
+		PrintWriter out = response.getWriter();
+		GatewayMetrics.getInstance().write( out);
+		out.flush();
+	}
+}
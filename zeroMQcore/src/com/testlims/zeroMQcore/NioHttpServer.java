@@ -0,0 +1,459 @@
+package com.testlims.zeroMQcore;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletContext;
+
+import com.testlims.utilities.StackTrace;
+import com.testlims.utilities.Workers;
+
+/**
+ * NioHttpServer is a small HTTP/1.1 server on one selector thread, for running the gateway
+ * without a servlet container, see {@link EmbeddedGateway}.
+ * <p>
+ * The selector thread accepts connections, reads and parses requests, and writes responses;
+ * each request is handed, as a {@link ServletExchange}, to a worker thread that runs the
+ * servlet, so a servlet waiting on a REQ socket holds up no other connection.  Connections are
+ * kept alive between requests, and pipelined requests are run at once, up to http.maxPipelined
+ * per connection, while their responses are written back in the order the requests arrived.
+ * <p>
+ * Request bodies must have a Content-Length; a chunked request is answered with 411 Length
+ * Required.  The settings, in zeroMQcore.properties:
+ <pre>
+http.host=               address to listen on, all addresses when empty
+http.port=8080
+http.threads=200         worker threads, or a virtual thread per request when virtualThreads=true
+http.keepAliveTimeout=20000
+http.maxHeaderBytes=8192
+http.maxBodyBytes=1048576
+http.maxPipelined=16
+</pre>
+ *
+ * @author Marc Whitlow, Colabrativ, Inc.
+ */
+public class NioHttpServer extends Thread {
+
+	private static final byte[]	CONTINUE	= "HTTP/1.1 100 Continue\r\n\r\n".getBytes( StandardCharsets.ISO_8859_1);
+
+	/** Runs a request's servlet on a worker thread.  */
+	public interface Handler {
+		/**
+		 * @param exchange the request, and the response to fill in.
+		 *
+		 * @throws Exception if the servlet fails; the request is answered with 500.
+		 */
+		void service(ServletExchange exchange) throws Exception;
+	}
+
+	/** One client connection, used only by the selector thread.  */
+	private static final class Connection {
+		final SocketChannel		channel;
+		SelectionKey			key;
+		ByteBuffer				in			= ByteBuffer.allocate( 4096);
+		final ArrayDeque<ServletExchange> pending = new ArrayDeque<ServletExchange>();
+		ByteBuffer[]			out			= null;
+		boolean					closeAfterOut = false;
+		boolean					closing		= false;
+		boolean					continueSent = false;
+		long					lastActive	= System.currentTimeMillis();
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+	}
+
+	private final Handler					handler;
+	private final ServletContext			servletContext;
+	private final ServerSocketChannel		acceptor;
+	private final Selector					selector;
+	private final ExecutorService			workers;
+	private final ScheduledExecutorService	timer;
+	private final ConcurrentLinkedQueue<Connection>	ready	= new ConcurrentLinkedQueue<Connection>();
+	private final int						maxHeaderBytes;
+	private final int						maxBodyBytes;
+	private final int						maxPipelined;
+	private final long						keepAliveTimeout;
+	private final String					threads;
+	private volatile boolean				running	= true;
+	private long							lastIdleCheck	= System.currentTimeMillis();
+
+	/**
+	 * NioHttpServer Constructor, binds the listening socket.
+	 *
+	 * @param config the gateway configuration, read for the http. settings and virtualThreads.
+	 * @param handler runs the servlets.
+	 * @param servletContext the context returned by the requests' getServletContext.
+	 *
+	 * @throws IOException if the address cannot be bound.
+	 */
+	public NioHttpServer(GatewayConfig config, Handler handler, ServletContext servletContext) throws IOException {
+		super( "NioHttpServer");
+		this.handler			= handler;
+		this.servletContext		= servletContext;
+		this.maxHeaderBytes		= config.getInt( "http.maxHeaderBytes", 8192);
+		this.maxBodyBytes		= config.getInt( "http.maxBodyBytes", 1048576);
+		this.maxPipelined		= Math.max( 1, config.getInt( "http.maxPipelined", 16));
+		this.keepAliveTimeout	= config.getLong( "http.keepAliveTimeout", 20000);
+		boolean virtualThreads	= config.getBoolean( "virtualThreads", false);
+		this.workers			= Workers.newExecutor( "HTTP worker", virtualThreads, config.getInt( "http.threads", 200));
+		this.threads			= Workers.describe( virtualThreads);
+		this.timer				= Executors.newSingleThreadScheduledExecutor( Workers.threadFactory( "HTTP async timeout", false));
+
+		String host = config.getString( "http.host", "");
+		int port	= config.getInt( "http.port", 8080);
+		selector	= Selector.open();
+		acceptor	= ServerSocketChannel.open();
+		acceptor.bind( host.isEmpty() ? new InetSocketAddress( port) : new InetSocketAddress( host, port), 1024);
+		acceptor.configureBlocking( false);
+		acceptor.register( selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/** @return the address the server listens on. */
+	public InetSocketAddress getAddress() {
+		try {
+			return (InetSocketAddress) acceptor.getLocalAddress();
+		}
+		catch (IOException e) {
+			return null;
+		}
+	}
+
+	/** @return "virtual" or "platform", the kind of threads the servlets run on. */
+	public String getThreads()							{ return threads; }
+
+	ServletContext getServletContext()					{ return servletContext; }
+
+	ExecutorService getWorkers()						{ return workers; }
+
+	ScheduledExecutorService getTimer()					{ return timer; }
+
+	/** Stop accepting and close every connection; requests still running are abandoned.  */
+	public void shutdown() {
+		running = false;
+		selector.wakeup();
+		try {
+			join( 5000);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		workers.shutdownNow();
+		timer.shutdownNow();
+	}
+
+	/** Called on any thread when an exchange's response is ready to be written.  */
+	void completed(ServletExchange exchange) {
+		ready.add( (Connection) exchange.connection);
+		selector.wakeup();
+	}
+
+	/** Run the selector loop until {@link #shutdown}.  */
+	public void run() {
+		try {
+			while (running) {
+				selector.select( 1000);
+				Connection connection;
+				while ((connection = ready.poll()) != null) {
+					if (connection.key != null && connection.key.isValid()) {
+						write( connection);
+					}
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					try {
+						if (!key.isValid()) {
+							continue;
+						}
+						if (key.isAcceptable()) {
+							accept();
+							continue;
+						}
+						connection = (Connection) key.attachment();
+						if (key.isWritable()) {
+							write( connection);
+						}
+						if (key.isValid() && key.isReadable()) {
+							read( connection);
+						}
+					}
+					catch (IOException | CancelledKeyException e) {
+						if (key.attachment() != null) close( (Connection) key.attachment());
+					}
+				}
+				closeIdle();
+			}
+		}
+		catch (IOException e) {
+			System.err.print( StackTrace.asString( "NioHttpServer ERROR: selector failed", e));
+		}
+		finally {
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() != null) close( (Connection) key.attachment());
+			}
+			try {
+				acceptor.close();
+				selector.close();
+			}
+			catch (IOException e) { /** Do nothing */ }
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = acceptor.accept()) != null) {
+			channel.configureBlocking( false);
+			channel.socket().setTcpNoDelay( true);
+			Connection connection = new Connection( channel);
+			connection.key = channel.register( selector, SelectionKey.OP_READ, connection);
+		}
+	}
+
+	private void read(Connection connection) throws IOException {
+		int count = connection.channel.read( connection.in);
+		if (count < 0) {
+			connection.closing = true;
+			if (connection.pending.isEmpty() && connection.out == null) {
+				close( connection);
+			}
+			else {
+				interest( connection);
+			}
+			return;
+		}
+		connection.lastActive = System.currentTimeMillis();
+		parse( connection);
+		interest( connection);
+	}
+
+	/** Parse and dispatch every whole request in the connection's buffer.  */
+	private void parse(Connection connection) throws IOException {
+		while (!connection.closing && connection.pending.size() < maxPipelined) {
+			ByteBuffer in	= connection.in;
+			byte[] bytes	= in.array();
+			int filled		= in.position();
+			int headEnd		= headEnd( bytes, filled);
+			if (headEnd < 0) {
+				if (filled >= maxHeaderBytes) {
+					reject( connection, 431);
+				}
+				else if (filled == in.capacity()) {
+					grow( connection, Math.min( in.capacity() * 2, maxHeaderBytes));
+				}
+				return;
+			}
+
+			String[] lines = new String( bytes, 0, headEnd - 4, StandardCharsets.ISO_8859_1).split( "\r\n");
+			String[] requestLine = lines[0].split( " ");
+			if (requestLine.length != 3 || !requestLine[2].startsWith( "HTTP/1.")) {
+				reject( connection, requestLine.length == 3 ? 505 : 400);
+				return;
+			}
+			Map<String,List<String>> headers = new TreeMap<String,List<String>>( String.CASE_INSENSITIVE_ORDER);
+			for (int l=1; l<lines.length; l++) {
+				int colon = lines[l].indexOf( ':');
+				if (colon <= 0) {
+					reject( connection, 400);
+					return;
+				}
+				String name = lines[l].substring( 0, colon).trim();
+				List<String> values = headers.get( name);
+				if (values == null) {
+					values = new ArrayList<String>( 1);
+					headers.put( name, values);
+				}
+				values.add( lines[l].substring( colon + 1).trim());
+			}
+			if (headers.containsKey( "Transfer-Encoding")) {
+				reject( connection, 411);
+				return;
+			}
+			int contentLength = 0;
+			if (headers.containsKey( "Content-Length")) {
+				try {
+					contentLength = Integer.parseInt( headers.get( "Content-Length").get( 0));
+				}
+				catch (NumberFormatException e) {
+					contentLength = -1;
+				}
+				if (contentLength < 0) {
+					reject( connection, 400);
+					return;
+				}
+				if (contentLength > maxBodyBytes) {
+					reject( connection, 413);
+					return;
+				}
+			}
+
+			int total = headEnd + contentLength;
+			if (filled < total) {
+				if (total > in.capacity()) {
+					grow( connection, total);
+				}
+				if (!connection.continueSent && headers.containsKey( "Expect")
+						&& connection.pending.isEmpty() && connection.out == null) {
+					connection.channel.write( ByteBuffer.wrap( CONTINUE));
+					connection.continueSent = true;
+				}
+				return;
+			}
+
+			byte[] body = new byte[contentLength];
+			System.arraycopy( bytes, headEnd, body, 0, contentLength);
+			if (filled > total) {
+				System.arraycopy( bytes, total, bytes, 0, filled - total);
+			}
+			in.position( filled - total);
+			if (in.capacity() > 65536 && in.position() < 4096) {
+				ByteBuffer smaller = ByteBuffer.allocate( 4096);
+				smaller.put( bytes, 0, in.position());
+				connection.in = smaller;
+			}
+			connection.continueSent = false;
+
+			String protocol		= requestLine[2];
+			List<String> close	= headers.get( "Connection");
+			String options		= (close == null) ? "" : close.toString().toLowerCase();
+			boolean keepAlive	= "HTTP/1.1".equals( protocol) ? !options.contains( "close") : options.contains( "keep-alive");
+			ServletExchange exchange = new ServletExchange( this, connection, requestLine[0], requestLine[1], protocol, headers, body,
+					(InetSocketAddress) connection.channel.getRemoteAddress(), (InetSocketAddress) connection.channel.getLocalAddress(),
+					keepAlive);
+			connection.pending.add( exchange);
+			if (!keepAlive) {
+				connection.closing = true;
+			}
+			dispatch( exchange);
+		}
+	}
+
+	private void dispatch(final ServletExchange exchange) {
+		try {
+			workers.execute( new Runnable() {
+				public void run() {
+					try {
+						handler.service( exchange);
+					}
+					catch (Throwable t) {
+						exchange.failed( t);
+					}
+					finally {
+						exchange.serviced();
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			exchange.failed( e);
+		}
+	}
+
+	/** Answer a request the server cannot take with an error, and close the connection after it.  */
+	private void reject(Connection connection, int status) {
+		connection.closing = true;
+		connection.pending.add( ServletExchange.error( this, connection, status));
+	}
+
+	/** Write completed responses, in request order, until the socket is full or one is still running.  */
+	private void write(Connection connection) throws IOException {
+		while (true) {
+			if (connection.out == null) {
+				ServletExchange head = connection.pending.peek();
+				if (head == null || !head.isCompleted()) {
+					break;
+				}
+				connection.pending.poll();
+				connection.out				= head.getOutput();
+				connection.closeAfterOut	= !head.isKeepAlive();
+			}
+			connection.channel.write( connection.out);
+			if (connection.out[connection.out.length - 1].hasRemaining()) {
+				break;
+			}
+			connection.out = null;
+			connection.lastActive = System.currentTimeMillis();
+			if (connection.closeAfterOut) {
+				close( connection);
+				return;
+			}
+		}
+		if (connection.closing && connection.pending.isEmpty() && connection.out == null) {
+			close( connection);
+			return;
+		}
+		parse( connection);
+		interest( connection);
+	}
+
+	private void interest(Connection connection) {
+		if (!connection.key.isValid()) {
+			return;
+		}
+		int ops = (connection.closing || connection.pending.size() >= maxPipelined) ? 0 : SelectionKey.OP_READ;
+		if (connection.out != null) {
+			ops |= SelectionKey.OP_WRITE;
+		}
+		connection.key.interestOps( ops);
+	}
+
+	private void closeIdle() {
+		long now = System.currentTimeMillis();
+		if (now - lastIdleCheck < 1000) {
+			return;
+		}
+		lastIdleCheck = now;
+		for (SelectionKey key : selector.keys()) {
+			Connection connection = (Connection) key.attachment();
+			if (connection != null && connection.pending.isEmpty() && connection.out == null
+					&& now - connection.lastActive > keepAliveTimeout) {
+				close( connection);
+			}
+		}
+	}
+
+	private static void close(Connection connection) {
+		connection.key.cancel();
+		try {
+			connection.channel.close();
+		}
+		catch (IOException e) { /** Do nothing */ }
+	}
+
+	private static void grow(Connection connection, int capacity) {
+		ByteBuffer larger = ByteBuffer.allocate( capacity);
+		connection.in.flip();
+		larger.put( connection.in);
+		connection.in = larger;
+	}
+
+	/** @return the index just past the blank line ending the request head, or -1 if it has not all arrived. */
+	private static int headEnd(byte[] bytes, int length) {
+		for (int b=3; b<length; b++) {
+			if (bytes[b] == '\n' && bytes[b - 1] == '\r' && bytes[b - 2] == '\n' && bytes[b - 3] == '\r') {
+				return b + 1;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,74 @@
+package com.testlims.zeroMQcore;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * RequestTimeouts holds the time a request may take, per request type, and how many times
+ * it may be retried within that time.  The settings are read from zeroMQcore.properties:
+ <pre>
+timeout=5000                # deadline in milliseconds for request types without their own entry
+timeout.sendHTML=2000       # deadline for sendHTML requests
+retries=0                   # resends allowed after the first attempt times out, for types without their own entry
+retries.sayHello=2          # resends allowed for sayHello requests
+retryJitter=50              # maximum random pause, in milliseconds, before a resend
+</pre>
+ * A request that timed out may still have been processed, so only request types that are safe 
+ * to run twice, such as sayHello and sendHTML, should be given retries; every other type is sent 
+ * once.  The deadline covers every attempt, so each attempt waits at most deadline / (retries + 1), 
+ * e.g. 1667 ms for a 5000 ms deadline with 2 retries. 
+ *
+ * @author Marc Whitlow, Colabrativ, Inc.
+ */
+public class RequestTimeouts {
+
+	private final long					defaultTimeout;
+	private final int					defaultRetries;
+	private final long					retryJitter;
+	private final Map<String,Long>		timeouts	= new HashMap<String,Long>();
+	private final Map<String,Integer>	retries		= new HashMap<String,Integer>();
+
+	/**
+	 * RequestTimeouts Constructor
+	 *
+	 * @param config the gateway configuration.
+	 */
+	public RequestTimeouts(GatewayConfig config) {
+		defaultTimeout	= config.getLong( "timeout", 5000);
+		defaultRetries	= Math.max( 0, config.getInt( "retries", 0));
+		retryJitter		= Math.max( 0, config.getLong( "retryJitter", 50));
+
+		for (String key : config.keys( "timeout.")) {
+			timeouts.put( key.substring( "timeout.".length()), config.getLong( key, defaultTimeout));
+		}
+		for (String key : config.keys( "retries.")) {
+			retries.put( key.substring( "retries.".length()), Math.max( 0, config.getInt( key, defaultRetries)));
+		}
+	}
+
+	/**
+	 * @param requestType the request type, e.g. sayHello.
+	 *
+	 * @return the deadline in milliseconds for a request of this type, including all retries.
+	 */
+	public long getTimeout(String requestType) {
+		Long timeout = (requestType == null) ? null : timeouts.get( requestType);
+		return (timeout == null) ? defaultTimeout : timeout;
+	}
+
+	/**
+	 * @param requestType the request type, e.g. sayHello.
+	 *
+	 * @return the number of resends allowed after the first attempt of a request of this type 
+	 * times out, 0 unless the type has been given retries. 
+	 */
+	public int getRetries(String requestType) {
+		Integer typeRetries = (requestType == null) ? null : retries.get( requestType);
+		return (typeRetries == null) ? defaultRetries : typeRetries;
+	}
+
+	/** @return the maximum random pause, in milliseconds, before a resend. */
+	public long getRetryJitter() {
+		return retryJitter;
+	}
+}
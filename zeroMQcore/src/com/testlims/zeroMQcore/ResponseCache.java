@@ -0,0 +1,285 @@
+package com.testlims.zeroMQcore;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.json.JSONObject;
+import org.zeromq.ZMQ;
+
+/**
+ * ResponseCache keeps the gateway's replies to request types whose reply depends only on the
+ * request's parameters, such as sendHTML, so that repeated requests are answered without a
+ * round trip to the service.  The request types are listed in zeroMQcore.properties:
+ <pre>
+cacheable=sendHTML
+cache.ttl=60000
+cache.maxBytes=1048576
+</pre>
+ * Replies are keyed on serviceName, requestType and the other request parameters in sorted
+ * order, so neither the requestId nor the order of the JSON members splits the cache.  Entries
+ * expire cache.ttl milliseconds after they were stored, and the least recently used entries
+ * are evicted once the cached keys and bodies exceed cache.maxBytes.  The compressed variants
+ * an entry keeps are not counted, since each is smaller than the body it was made from.
+ * <p>
+ * Each entry carries a strong ETag computed from the reply body, which the servlet returns so
+ * a client that sends it back in If-None-Match can be answered with 304 Not Modified.
+ * <p>
+ * A reply is stored with its requestId member removed, since the id is that of the request that
+ * filled the cache and would be a foreign id to every later request.  Every request answered
+ * from an entry, the one that filled it included, is sent the same bytes, which is what lets the
+ * entry keep one strong ETag and compress its body once.
+ *
+ * @author Marc Whitlow, Colabrativ, Inc.
+ */
+public class ResponseCache {
+
+	/** A cached reply body, its ETag, and its compressed variants once a client has asked for them.  */
+	public static final class Entry {
+		private final String	key;
+		private final byte[]	body;
+		private final String	etag;
+		private final long		expires;
+		private volatile byte[]	gzip;
+		private volatile byte[]	deflate;
+
+		private Entry(String key, byte[] body, long expires) {
+			this.key		= key;
+			this.body		= body;
+			this.expires	= expires;
+			this.etag		= etag( body);
+		}
+
+		/** @return the reply body. */
+		public byte[] getBody()		{ return body; }
+
+		/** @return the quoted ETag of the body. */
+		public String getETag()		{ return etag; }
+
+		/**
+		 * The compressed body is built by the first request that needs it and kept with the entry,
+		 * so a cached reply is compressed once rather than on every request.
+		 *
+		 * @param coding Compression.GZIP or Compression.DEFLATE.
+		 *
+		 * @return the body encoded with the coding.
+		 */
+		public byte[] getEncoded(String coding) {
+			if (Compression.GZIP.equals( coding)) {
+				byte[] encoded = gzip;
+				if (encoded == null) gzip = encoded = Compression.encode( coding, body);
+				return encoded;
+			}
+			byte[] encoded = deflate;
+			if (encoded == null) deflate = encoded = Compression.encode( coding, body);
+			return encoded;
+		}
+
+		private long size()			{ return 2L * key.length() + body.length; }
+	}
+
+	private final Set<String>			cacheable	= new HashSet<String>();
+	private final long					ttl;
+	private final long					maxBytes;
+	private final LinkedHashMap<String,Entry>	entries	= new LinkedHashMap<String,Entry>( 16, 0.75f, true);
+	private long						bytes		= 0;
+
+	private final AtomicLong	hitCount		= new AtomicLong();
+	private final AtomicLong	missCount		= new AtomicLong();
+	private final AtomicLong	evictionCount	= new AtomicLong();
+
+	/**
+	 * ResponseCache Constructor
+	 *
+	 * @param config the gateway configuration, read for cacheable, cache.ttl and cache.maxBytes.
+	 */
+	public ResponseCache(GatewayConfig config) {
+		for (String requestType : config.getString( "cacheable", "").split( "\\s*,\\s*")) {
+			if (!requestType.isEmpty()) cacheable.add( requestType);
+		}
+		ttl			= config.getLong( "cache.ttl", 60000);
+		maxBytes	= config.getLong( "cache.maxBytes", 1024 * 1024);
+	}
+
+	/**
+	 * @param body the reply body.
+	 *
+	 * @return a strong, quoted ETag computed from the CRC-32 and the length of the body.
+	 */
+	public static String etag(byte[] body) {
+		CRC32 crc = new CRC32();
+		crc.update( body, 0, body.length);
+		return "\"" + Long.toHexString( crc.getValue()) + "-" + Integer.toHexString( body.length) + "\"";
+	}
+
+	/**
+	 * @param etag the quoted ETag of the uncompressed body.
+	 * @param coding the content coding the body is sent in, or null if it is not compressed.
+	 *
+	 * @return the ETag of the body as sent, which differs for each coding as a strong ETag must.
+	 */
+	public static String etag(String etag, String coding) {
+		return (coding == null) ? etag : etag.substring( 0, etag.length() - 1) + "-" + coding + "\"";
+	}
+
+	/**
+	 * @param requestType the request type.
+	 *
+	 * @return true if replies to the request type may be cached.
+	 */
+	public boolean isCacheable(String requestType) {
+		return requestType != null && cacheable.contains( requestType);
+	}
+
+	/**
+	 * Build the cache key for a request:  the service name, the request type and the remaining
+	 * request parameters in key order, leaving out the requestId.
+	 *
+	 * @param serviceName the service the request is routed to.
+	 * @param requestType the request type.
+	 * @param requestJSON the parsed request body.
+	 *
+	 * @return the cache key.
+	 */
+	public static String key(String serviceName, String requestType, JSONObject requestJSON) {
+		StringBuilder key = new StringBuilder( 64);
+		key.append( serviceName).append( '\u0000').append( requestType);
+		for (String name : new TreeSet<String>( requestJSON.keySet())) {
+			if ("requestId".equals( name) || "serviceName".equals( name) || "requestType".equals( name)) {
+				continue;
+			}
+			key.append( '\u0000').append( name).append( '=').append( String.valueOf( requestJSON.opt( name)));
+		}
+		return key.toString();
+	}
+
+	/**
+	 * @param key a key from {@link #key}.
+	 *
+	 * @return the cached reply, or null if there is none or it has expired.
+	 */
+	public synchronized Entry get(String key) {
+		Entry entry = entries.get( key);
+		if (entry != null && entry.expires <= System.currentTimeMillis()) {
+			remove( key);
+			entry = null;
+		}
+		if (entry == null) {
+			missCount.incrementAndGet();
+		}
+		else {
+			hitCount.incrementAndGet();
+		}
+		return entry;
+	}
+
+	/**
+	 * Store a reply without its requestId, evicting the least recently used replies to stay within
+	 * cache.maxBytes.  A reply larger than cache.maxBytes is not stored.
+	 *
+	 * @param key a key from {@link #key}.
+	 * @param body the reply body.
+	 *
+	 * @return the entry, which carries the body as stored and its ETag whether or not it was stored.
+	 */
+	public synchronized Entry put(String key, byte[] body) {
+		Entry entry = new Entry( key, withoutRequestId( body), System.currentTimeMillis() + ttl);
+		remove( key);
+		if (entry.size() > maxBytes) {
+			return entry;
+		}
+		entries.put( key, entry);
+		bytes += entry.size();
+
+		Iterator<Map.Entry<String,Entry>> eldest = entries.entrySet().iterator();
+		while (bytes > maxBytes && eldest.hasNext()) {
+			bytes -= eldest.next().getValue().size();
+			eldest.remove();
+			evictionCount.incrementAndGet();
+		}
+		return entry;
+	}
+
+	/**
+	 * Remove the first <code>"requestId":"..."</code> member and the comma that separates it from
+	 * its neighbour, the member the services write at the top level of a JSON reply.
+	 *
+	 * @param body a JSON reply body.
+	 *
+	 * @return the body without its requestId, or the body itself if it has none.
+	 */
+	static byte[] withoutRequestId(byte[] body) {
+		byte[] member = "\"requestId\":\"".getBytes( ZMQ.CHARSET);
+		int from = indexOf( body, member);
+		if (from < 0) {
+			return body;
+		}
+		int to = from + member.length;
+		while (to < body.length && body[to] != '"') {
+			if (body[to] == '\\') to++;
+			to++;
+		}
+		if (to >= body.length) {
+			return body;
+		}
+		to++;
+		int next = to;
+		while (next < body.length && body[next] <= ' ') next++;
+		int previous = from - 1;
+		while (previous >= 0 && body[previous] <= ' ') previous--;
+		if (next < body.length && body[next] == ',') {
+			to = next + 1;
+		}
+		else if (previous >= 0 && body[previous] == ',') {
+			from = previous;
+		}
+		byte[] copy = new byte[body.length - (to - from)];
+		System.arraycopy( body, 0, copy, 0, from);
+		System.arraycopy( body, to, copy, from, body.length - to);
+		return copy;
+	}
+
+	private static int indexOf(byte[] bytes, byte[] find) {
+		next:
+		for (int b=0; b<=bytes.length - find.length; b++) {
+			for (int f=0; f<find.length; f++) {
+				if (bytes[b + f] != find[f]) continue next;
+			}
+			return b;
+		}
+		return -1;
+	}
+
+	private void remove(String key) {
+		Entry removed = entries.remove( key);
+		if (removed != null) {
+			bytes -= removed.size();
+		}
+	}
+
+	/** Discard every cached reply.  */
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	/** @return the number of requests answered from the cache. */
+	public long getHitCount()			{ return hitCount.get(); }
+
+	/** @return the number of cacheable requests that had to go to the service. */
+	public long getMissCount()			{ return missCount.get(); }
+
+	/** @return the number of replies evicted to stay within cache.maxBytes. */
+	public long getEvictionCount()		{ return evictionCount.get(); }
+
+	/** @return a one line summary of the cache's size, hits and misses. */
+	public synchronized String stats() {
+		return "cacheable=" + cacheable + " entries=" + entries.size() + " bytes=" + bytes
+				+ " hits=" + hitCount.get() + " misses=" + missCount.get() + " evictions=" + evictionCount.get();
+	}
+}
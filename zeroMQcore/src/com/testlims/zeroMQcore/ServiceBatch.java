@@ -0,0 +1,262 @@
+package com.testlims.zeroMQcore;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import org.zeromq.ZMQ;
+
+import com.testlims.utilities.BinaryFields;
+import com.testlims.utilities.Envelope;
+import com.testlims.utilities.TraceContext;
+
+/**
+ * ServiceBatch runs the requests POSTed to /services/batch as a JSON array, e.g.
+ <pre>[
+  {"serviceName":"HelloService", "requestType":"sayHello", "name":"Ann"},
+  {"serviceName":"HelloService", "requestType":"sayHello", "name":"Bob"}
+]</pre>
+ * Each item is given its own requestId and sent to the route for its serviceName, with up to
+ * batch.window items in flight at once:  on a route's AsyncServiceChannel when the gateway is
+ * asynchronous, and otherwise on a pool of batch threads using the route's REQ sockets.  The
+ * replies are collected in the order they complete, and each one frees its place in the window
+ * for the next item, so a slow item holds up only itself rather than every item after it.
+ * <p>
+ * The reply is a JSON array with one element per item, in the order of the request.  An element
+ * is the service's reply to the item, copied unchanged, or translated to JSON from the binary
+ * format of a route that uses it, or an error object when the item could
+ * not be answered:
+ <pre>{"requestId":"43", "status":504, "error":"timeout"}</pre>
+ * Cacheable items are answered from the {@link ResponseCache} when it holds their reply.  Items
+ * take a credit from their route like any other request, and are answered with a 503 error
+ * object when the route is saturated.  Each item is sent with a span of the batch's trace, so
+ * the services' log lines for every item share the batch's trace Id.
+ *
+ * @author Marc Whitlow, Colabrativ, Inc.
+ */
+public class ServiceBatch {
+
+	private final ServiceRoutes		routes;
+	private final RequestTimeouts	timeouts;
+	private final ResponseCache		cache;
+	private final ExecutorService	executor;
+	private final int				window;
+
+	/**
+	 * ServiceBatch Constructor
+	 *
+	 * @param routes the gateway's routing table.
+	 * @param timeouts the per request type deadlines.
+	 * @param cache the gateway's response cache.
+	 * @param executor the batch threads that wait on REQ sockets for routes that are not asynchronous.
+	 * @param window the maximum number of a batch's items in flight at once.
+	 */
+	public ServiceBatch(ServiceRoutes routes, RequestTimeouts timeouts, ResponseCache cache, ExecutorService executor, int window) {
+		this.routes		= routes;
+		this.timeouts	= timeouts;
+		this.cache		= cache;
+		this.executor	= executor;
+		this.window		= Math.max( 1, window);
+	}
+
+	/** One item of a batch, and its outcome once it is known.  */
+	private static final class Item {
+		String						requestId;
+		String						requestType;
+		long						deadline;
+		String						cacheKey;
+		CompletableFuture<byte[]>	reply;
+		ServiceRoute				route;
+		byte[]						result;
+	}
+
+	/**
+	 * Run every item of the batch, and collect the replies.
+	 *
+	 * @param items the JSON array of requests.
+	 * @param requestIds the gateway's requestId counter.
+	 * @param trace the batch's trace, whose child spans are sent with the items.
+	 *
+	 * @return the JSON array of replies, in the order of the items.
+	 *
+	 * @throws InterruptedException if the calling thread is interrupted.
+	 */
+	public byte[] run(JSONArray items, AtomicInteger requestIds, TraceContext trace) throws InterruptedException {
+		Item[] batch = new Item[items.length()];
+		for (int i=0; i<batch.length; i++) {
+			batch[i] = new Item();
+			batch[i].requestId = String.valueOf( requestIds.incrementAndGet());
+		}
+
+		// Collect the replies as they complete, refilling the window as each item finishes
+		BlockingQueue<Item> completed	= new LinkedBlockingQueue<Item>();
+		List<Item>			inFlight	= new ArrayList<Item>( Math.min( window, batch.length));
+		int sent		= 0;
+		int finished	= 0;
+		while (finished < batch.length) {
+			while (sent < batch.length && inFlight.size() < window) {
+				Item item = batch[sent];
+				send( item, items.opt( sent), trace, completed);
+				sent++;
+				if (item.result != null) {
+					finished++;
+				}
+				else {
+					inFlight.add( item);
+				}
+			}
+			if (inFlight.isEmpty()) {
+				continue;
+			}
+
+			long deadline = Long.MAX_VALUE;
+			for (Item item : inFlight) {
+				deadline = Math.min( deadline, item.deadline);
+			}
+			Item item = completed.poll( Math.max( 0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+			if (item != null) {
+				if (inFlight.remove( item)) {
+					finish( item, item.reply.isCompletedExceptionally() ? null : item.reply.getNow( null));
+					finished++;
+				}
+				continue;
+			}
+			long now = System.currentTimeMillis();
+			for (Iterator<Item> expired = inFlight.iterator(); expired.hasNext(); ) {
+				Item late = expired.next();
+				if (late.deadline <= now) {
+					expired.remove();
+					finish( late, null);
+					finished++;
+				}
+			}
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream( 256 * batch.length + 2);
+		out.write( '[');
+		for (int i=0; i<batch.length; i++) {
+			if (i > 0) out.write( ',');
+			out.write( batch[i].result, 0, batch[i].result.length);
+		}
+		out.write( ']');
+		return out.toByteArray();
+	}
+
+	/**
+	 * Send one item, or record why it cannot be sent.  A sent item is put on the completed queue
+	 * once its reply has come, or its requester has given up.
+	 */
+	private void send(final Item item, Object request, TraceContext trace, final BlockingQueue<Item> completed) {
+		if (!(request instanceof JSONObject)) {
+			item.result = error( item.requestId, 400, "item is not a JSON object");
+			return;
+		}
+		JSONObject requestJSON = (JSONObject) request;
+		item.requestType = requestJSON.optString( "requestType", null);
+		if (item.requestType == null) {
+			item.result = error( item.requestId, 400, "requestType missing");
+			return;
+		}
+		ServiceRoute route = routes.get( requestJSON.optString( "serviceName", null));
+		if (route == null) {
+			item.result = error( item.requestId, 404, "no route to " + requestJSON.optString( "serviceName", ""));
+			return;
+		}
+		if (cache.isCacheable( item.requestType)) {
+			item.cacheKey = ResponseCache.key( route.getServiceName(), item.requestType, requestJSON);
+			ResponseCache.Entry cached = cache.get( item.cacheKey);
+			if (cached != null) {
+				item.result = cached.getBody();
+				return;
+			}
+		}
+
+		if (!route.tryAcquire()) {
+			item.result = error( item.requestId, 503, route.getServiceName() + " is saturated");
+			return;
+		}
+		item.route		= route;
+		item.deadline	= System.currentTimeMillis() + timeouts.getTimeout( item.requestType);
+		item.reply		= new CompletableFuture<byte[]>();
+		byte[] body = requestJSON.toString().getBytes( ZMQ.CHARSET);
+		final byte[][] frames = Envelope.frames( item.requestId, route.getServiceName(), item.requestType,
+				route.isBinary() ? Envelope.FLAG_BINARY : Envelope.FLAG_NONE, trace.child().mark( TraceContext.GATEWAY_SENT),
+				route.isBinary() ? BinaryFields.fromJson( body) : body);
+		if (route.isAsync()) {
+			route.getChannel().send( item.requestId, frames, new AsyncServiceChannel.ReplyHandler() {
+				public void onReply(byte[] reply) {
+					item.route.release();
+					item.reply.complete( reply);
+				}
+			});
+		}
+		else {
+			final LazyPirateRequester requester = route.getRequester();
+			item.reply = CompletableFuture.supplyAsync( new Supplier<byte[]>() {
+				public byte[] get() {
+					try {
+						return requester.request( item.requestType, frames);
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return null;
+					}
+				}
+			}, executor);
+			item.reply.whenComplete( new BiConsumer<byte[],Throwable>() {
+				public void accept(byte[] reply, Throwable t) {
+					item.route.release();
+				}
+			});
+		}
+		item.reply.whenComplete( new BiConsumer<byte[],Throwable>() {
+			public void accept(byte[] reply, Throwable t) {
+				completed.add( item);
+			}
+		});
+	}
+
+	/** Record the outcome of an item from its reply, or as timed out if the reply is null.  */
+	private void finish(Item item, byte[] reply) {
+		if (reply == null) {
+			if (item.route.isAsync() && item.route.getChannel().cancel( item.requestId)) {
+				item.route.release();
+			}
+			item.result = error( item.requestId, 504, "timeout");
+			return;
+		}
+		if (BinaryFields.isBinary( reply)) {
+			reply = BinaryFields.toJson( reply);
+		}
+		if (item.cacheKey != null) {
+			reply = cache.put( item.cacheKey, reply).getBody();
+		}
+		item.result = isJSON( reply) ? reply : JSONObject.quote( new String( reply, ZMQ.CHARSET)).getBytes( ZMQ.CHARSET);
+	}
+
+	private static boolean isJSON(byte[] reply) {
+		int first = 0;
+		while (first < reply.length && reply[first] <= ' ') first++;
+		return first < reply.length && (reply[first] == '{' || reply[first] == '[');
+	}
+
+	private static byte[] error(String requestId, int status, String error) {
+		JSONObject errorJSON = new JSONObject();
+		errorJSON.put( "requestId",	requestId);
+		errorJSON.put( "status",	status);
+		errorJSON.put( "error",		error);
+		return errorJSON.toString().getBytes( ZMQ.CHARSET);
+	}
+}
@@ -0,0 +1,159 @@
+package com.testlims.zeroMQcore;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Context;
+
+/**
+ * ServiceRoute holds the sockets the gateway uses to reach one service:  either a pool of REQ
+ * sockets with a {@link LazyPirateRequester}, or, in asynchronous mode, an
+ * {@link AsyncServiceChannel}.  A route may have several endpoints, i.e. several instances of
+ * the service, and each of its sockets connects to all of them.
+ * <p>
+ * A route admits at most maxInFlight requests to its service at once.  A request takes a credit
+ * with {@link #tryAcquire} before it is sent and returns it with {@link #release} once its reply
+ * arrives or it expires; when no credit is left the gateway turns the request away at once rather
+ * than letting it queue in the zeroMQ buffers behind the ones the service is already working on.
+ * <p>
+ * A route whose format is binary carries request and reply bodies in the binary format of
+ * {@link com.testlims.utilities.BinaryFields} rather than JSON, translated by the gateway.
+ *
+ * @author Marc Whitlow, Colabrativ, Inc.
+ */
+public class ServiceRoute {
+
+	private final String				serviceName;
+	private final String[]				endpoints;
+	private final SocketPool			pool;
+	private final LazyPirateRequester	requester;
+	private final AsyncServiceChannel	channel;
+	private final int					maxInFlight;
+	private final boolean				binary;
+	private final AtomicInteger			inFlight		= new AtomicInteger();
+	private final AtomicInteger			peakInFlight	= new AtomicInteger();
+	private final AtomicLong			admittedCount	= new AtomicLong();
+	private final AtomicLong			rejectedCount	= new AtomicLong();
+
+	/**
+	 * ServiceRoute Constructor, connects the route's sockets.
+	 *
+	 * @param context the zeroMQ context the sockets are created in.
+	 * @param serviceName the service name requests carry, e.g. HelloService.
+	 * @param endpoints the URLs of the service instances.
+	 * @param poolSize the number of REQ sockets, when not asynchronous.
+	 * @param maxInFlight the number of credits, i.e. requests the service may have at once, or 0 for no limit.
+	 * @param timeouts the per request type deadlines and retry settings.
+	 * @param async true to send requests through an AsyncServiceChannel.
+	 * @param binary true to send request bodies to the service in the binary format.
+	 *
+	 * @throws IOException if the AsyncServiceChannel cannot be started.
+	 */
+	public ServiceRoute(Context context, String serviceName, String[] endpoints, int poolSize, int maxInFlight,
+			RequestTimeouts timeouts, boolean async, boolean binary) throws IOException {
+		this.serviceName	= serviceName;
+		this.endpoints		= endpoints.clone();
+		this.maxInFlight	= maxInFlight;
+		this.binary			= binary;
+
+		if (async) {
+			channel		= new AsyncServiceChannel( context, endpoints);
+			channel.start();
+			pool		= null;
+			requester	= null;
+		}
+		else {
+			channel		= null;
+			pool		= new SocketPool( context, ZMQ.REQ, endpoints, poolSize);
+			requester	= new LazyPirateRequester( pool, timeouts);
+		}
+	}
+
+	/** @return the service name requests for this route carry. */
+	public String getServiceName()					{ return serviceName; }
+
+	/** @return the URLs of the service instances. */
+	public String[] getEndpoints()					{ return endpoints.clone(); }
+
+	/** @return true if requests are sent through an AsyncServiceChannel. */
+	public boolean isAsync()						{ return channel != null; }
+
+	/** @return true if request bodies are sent to the service in the binary format rather than JSON. */
+	public boolean isBinary()						{ return binary; }
+
+	/** @return the route's AsyncServiceChannel, or null if it is not asynchronous. */
+	public AsyncServiceChannel getChannel()			{ return channel; }
+
+	/** @return the route's requester, or null if it is asynchronous. */
+	public LazyPirateRequester getRequester()		{ return requester; }
+
+	/** @return the route's REQ socket pool, or null if it is asynchronous. */
+	public SocketPool getPool()						{ return pool; }
+
+	/**
+	 * Take a credit for a request to the service.
+	 *
+	 * @return true if the request may be sent, false if the route is saturated.
+	 */
+	public boolean tryAcquire() {
+		int current;
+		do {
+			current = inFlight.get();
+			if (maxInFlight > 0 && current >= maxInFlight) {
+				rejectedCount.incrementAndGet();
+				return false;
+			}
+		} while (!inFlight.compareAndSet( current, current + 1));
+		
+		admittedCount.incrementAndGet();
+		int peak;
+		while (current + 1 > (peak = peakInFlight.get()) && !peakInFlight.compareAndSet( peak, current + 1)) { /** retry */ }
+		return true;
+	}
+
+	/** Return the credit taken by {@link #tryAcquire}, once the request's reply arrives or it expires.  */
+	public void release() {
+		inFlight.decrementAndGet();
+	}
+
+	/** @return the number of credits, or 0 if there is no limit. */
+	public int getMaxInFlight()				{ return maxInFlight; }
+
+	/** @return the number of credits in use, i.e. requests sent and not yet answered or expired. */
+	public int getInFlight()				{ return inFlight.get(); }
+
+	/** @return the most credits in use at once. */
+	public int getPeakInFlight()			{ return peakInFlight.get(); }
+
+	/** @return the number of requests admitted. */
+	public long getAdmittedCount()			{ return admittedCount.get(); }
+
+	/** @return the number of requests turned away because the route was saturated. */
+	public long getRejectedCount()			{ return rejectedCount.get(); }
+
+	/** @return a one line summary of the route, its credits and its sockets. */
+	public String stats() {
+		return serviceName + (binary ? " binary" : "") + " credits=" + inFlight.get() + "/" + ((maxInFlight > 0) ? String.valueOf( maxInFlight) : "unlimited")
+				+ " peak=" + peakInFlight.get() + " admitted=" + admittedCount.get() + " rejected=" + rejectedCount.get()
+				+ ((channel != null) 
+						? " DEALER " + String.join( ",", endpoints) + " inFlight=" + channel.inFlightCount() 
+						: " REQ " + pool.stats());
+	}
+
+	/** Close the route's sockets.  */
+	public void close() {
+		if (channel != null) {
+			channel.close();
+			try {
+				channel.join( 1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (pool != null) {
+			pool.close();
+		}
+	}
+}
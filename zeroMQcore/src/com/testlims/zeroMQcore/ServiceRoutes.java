@@ -0,0 +1,118 @@
+package com.testlims.zeroMQcore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.zeromq.ZMQ.Context;
+
+/**
+ * ServiceRoutes is the gateway's routing table, mapping the serviceName in a request to the 
+ * {@link ServiceRoute} that reaches the service.  The table is built once, when the servlet 
+ * starts, from the route entries in zeroMQcore.properties:
+ <pre>
+route.HelloService=tcp://localhost:5557
+route.OtherService=tcp://host1:5560,tcp://host2:5560
+route.OtherService.poolSize=16
+route.OtherService.maxInFlight=128
+route.OtherService.format=binary
+defaultRoute=HelloService
+</pre>
+ * If there are no route entries, a single HelloService route to helloServiceURL is used.  A
+ * route's format, json or binary, is the body format its requests are sent in, and defaults to
+ * the format entry, which defaults to json. 
+ * <p>
+ * A route may lead to a Broker rather than to the service itself, e.g. 
+ * <code>route.HelloService=tcp://localhost:5565</code>.  The broker hands each request to a worker 
+ * registered for the request's serviceName, so instances of the service are added by starting them 
+ * against the broker, with no change to the routes. 
+ * <p>
+ * The table is never changed after it is built, so {@link #get} is a plain HashMap lookup 
+ * with no locking or allocation on the request path. 
+ *
+ * @author Marc Whitlow, Colabrativ, Inc.
+ */
+public class ServiceRoutes {
+
+	private final Map<String,ServiceRoute>	routes	= new HashMap<String,ServiceRoute>();
+	private final ServiceRoute				defaultRoute;
+
+	/**
+	 * ServiceRoutes Constructor, builds every route and connects its sockets.
+	 *
+	 * @param context the zeroMQ context the sockets are created in.
+	 * @param config the gateway configuration.
+	 * @param timeouts the per request type deadlines and retry settings.
+	 * @param async true to send requests through an AsyncServiceChannel per route.
+	 *
+	 * @throws IOException if a route's AsyncServiceChannel cannot be started; the routes 
+	 * already built are closed.
+	 */
+	public ServiceRoutes(Context context, GatewayConfig config, RequestTimeouts timeouts, boolean async) throws IOException {
+		int poolSize	= config.getInt( "poolSize", Runtime.getRuntime().availableProcessors());
+		int maxInFlight	= config.getInt( "maxInFlight", 64);
+		String format	= config.getString( "format", "json");
+
+		List<String> serviceNames = new ArrayList<String>();
+		for (String key : config.keys( "route.")) {
+			String serviceName = key.substring( "route.".length());
+			if (serviceName.indexOf( '.') < 0) {
+				serviceNames.add( serviceName);
+			}
+		}
+
+		try {
+			if (serviceNames.isEmpty()) {
+				String helloServiceURL = config.getString( "helloServiceURL", "tcp://localhost:5557");
+				routes.put( "HelloService", new ServiceRoute( context, "HelloService", new String[] { helloServiceURL }, 
+						poolSize, maxInFlight, timeouts, async, "binary".equalsIgnoreCase( format)));
+			}
+			for (String serviceName : serviceNames) {
+				String[] endpoints = config.getString( "route." + serviceName, "").split( "\\s*,\\s*");
+				int routePoolSize  = config.getInt( "route." + serviceName + ".poolSize", poolSize);
+				int routeMaxInFlight = config.getInt( "route." + serviceName + ".maxInFlight", maxInFlight);
+				String routeFormat = config.getString( "route." + serviceName + ".format", format);
+				routes.put( serviceName, new ServiceRoute( context, serviceName, endpoints, routePoolSize, routeMaxInFlight, 
+						timeouts, async, "binary".equalsIgnoreCase( routeFormat)));
+			}
+		}
+		catch (IOException e) {
+			close();
+			routes.clear();
+			throw e;
+		}
+
+		defaultRoute = routes.get( config.getString( "defaultRoute", ""));
+	}
+
+	/**
+	 * @param serviceName the serviceName from the request.
+	 *
+	 * @return the route for the service, or the default route if there is none for the service, 
+	 * or null if there is no default route either. 
+	 */
+	public ServiceRoute get(String serviceName) {
+		ServiceRoute route = (serviceName == null) ? null : routes.get( serviceName);
+		return (route == null) ? defaultRoute : route;
+	}
+
+	/** @return the default route, or null if none is configured. */
+	public ServiceRoute getDefault() {
+		return defaultRoute;
+	}
+
+	/** @return every route in the table. */
+	public Collection<ServiceRoute> all() {
+		return routes.values();
+	}
+
+	/** Close every route's sockets.  */
+	public void close() {
+		for (ServiceRoute route : routes.values()) {
+			route.close();
+		}
+	}
+}
@@ -0,0 +1,810 @@
+package com.testlims.zeroMQcore;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.testlims.utilities.StackTrace;
+
+/**
+ * ServletExchange is one HTTP request read by the {@link NioHttpServer}, and its response,
+ * presented to the gateway's servlets and filter as an HttpServletRequest and an
+ * HttpServletResponse, so they run unchanged outside a servlet container.
+ * <p>
+ * The request body has been read in full before the servlet is called, and the response body
+ * is buffered until the exchange completes:  when the servlet returns, or, once it has called
+ * startAsync, when it calls {@link AsyncContext#complete} or its AsyncContext times out.  The
+ * response is then written with a Content-Length, so the connection can be kept alive.
+ * <p>
+ * The request, response and AsyncContext are dynamic proxies over this exchange.  They support
+ * the methods the gateway's servlets, HttpServlet and {@link CompressionFilter} use; sessions,
+ * request dispatching, and other container services throw UnsupportedOperationException.
+ *
+ * @author Marc Whitlow, Colabrativ, Inc.
+ */
+public class ServletExchange {
+
+	private static final DateTimeFormatter	DATE_FORMAT	= DateTimeFormatter.RFC_1123_DATE_TIME;
+	private static volatile long			dateSecond	= 0;
+	private static volatile String			dateText	= "";
+
+	private final NioHttpServer		server;
+	final Object					connection;
+	private final String			method;
+	private final String			requestURI;
+	private final String			queryString;
+	private final String			protocol;
+	private final Map<String,List<String>>	headers;
+	private final byte[]			body;
+	private final InetSocketAddress	remote;
+	private final InetSocketAddress	local;
+	private boolean					keepAlive;
+
+	private String					servletPath		= "";
+	private String					requestEncoding	= null;
+	private Map<String,String[]>	parameters		= null;
+	private final ConcurrentHashMap<String,Object>	attributes	= new ConcurrentHashMap<String,Object>();
+
+	private int						status			= HttpServletResponse.SC_OK;
+	private final Map<String,List<String>>	responseHeaders	= new TreeMap<String,List<String>>( String.CASE_INSENSITIVE_ORDER);
+	private String					contentType		= null;
+	private String					responseEncoding = null;
+	private long					contentLength	= -1;
+	private final ByteArrayOutputStream	responseBody	= new ByteArrayOutputStream( 1024);
+	private ServletOutputStream		outputStream	= null;
+	private PrintWriter				writer			= null;
+	private boolean					committed		= false;
+
+	private volatile boolean		asyncStarted	= false;
+	private volatile long			asyncTimeout	= 30000;
+	private volatile ScheduledFuture<?>	timeout		= null;
+	private final List<AsyncListener>	listeners	= new CopyOnWriteArrayList<AsyncListener>();
+	private final AtomicBoolean		completed		= new AtomicBoolean();
+	private volatile ByteBuffer[]	output			= null;
+
+	private final HttpServletRequest	request;
+	private final HttpServletResponse	response;
+	private AsyncContext				asyncContext	= null;
+
+	/**
+	 * ServletExchange Constructor
+	 *
+	 * @param server the server that read the request.
+	 * @param connection the server's connection the response is written to.
+	 * @param method the request method, e.g. POST.
+	 * @param target the request target, the path and any query string.
+	 * @param protocol the request protocol, e.g. HTTP/1.1.
+	 * @param headers the request headers, with case insensitive names.
+	 * @param body the request body.
+	 * @param remote the client's address.
+	 * @param local the server's address.
+	 * @param keepAlive true if the connection stays open after the response.
+	 */
+	ServletExchange(NioHttpServer server, Object connection, String method, String target, String protocol,
+			Map<String,List<String>> headers, byte[] body, InetSocketAddress remote, InetSocketAddress local, boolean keepAlive) {
+		this.server			= server;
+		this.connection		= connection;
+		this.method			= method;
+		int query			= target.indexOf( '?');
+		this.requestURI		= (query < 0) ? target : target.substring( 0, query);
+		this.queryString	= (query < 0) ? null : target.substring( query + 1);
+		this.protocol		= protocol;
+		this.headers		= headers;
+		this.body			= body;
+		this.remote			= remote;
+		this.local			= local;
+		this.keepAlive		= keepAlive;
+		this.requestEncoding = charsetOf( header( "Content-Type"));
+
+		request = proxy( HttpServletRequest.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				return request( proxy, method, args);
+			}
+		});
+		response = proxy( HttpServletResponse.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				return response( proxy, method, args);
+			}
+		});
+	}
+
+	/**
+	 * An exchange the server answers itself, without reading the rest of the connection.
+	 *
+	 * @return a completed exchange with the status and an empty body, after which the connection is closed.
+	 */
+	static ServletExchange error(NioHttpServer server, Object connection, int status) {
+		Map<String,List<String>> noHeaders = new TreeMap<String,List<String>>( String.CASE_INSENSITIVE_ORDER);
+		ServletExchange exchange = new ServletExchange( server, connection, "GET", "/", "HTTP/1.1", noHeaders,
+				new byte[0], null, null, false);
+		exchange.status = status;
+		exchange.complete();
+		return exchange;
+	}
+
+	/** @return the request, for the servlet. */
+	public HttpServletRequest getRequest()		{ return request; }
+
+	/** @return the response, for the servlet. */
+	public HttpServletResponse getResponse()	{ return response; }
+
+	/** @return the request path, without the query string. */
+	public String getRequestURI()				{ return requestURI; }
+
+	/** @param servletPath the part of the path the servlet is mapped to, the whole path for static files. */
+	public void setServletPath(String servletPath)	{ this.servletPath = servletPath; }
+
+	/** @return true once the response is ready to be written. */
+	boolean isCompleted()						{ return output != null; }
+
+	/** @return true if the connection stays open after the response. */
+	boolean isKeepAlive()						{ return keepAlive; }
+
+	/** @return the response head and body, once the exchange has completed. */
+	ByteBuffer[] getOutput()					{ return output; }
+
+	/**
+	 * Called when the servlet returns:  complete the exchange, unless the servlet started
+	 * asynchronous processing, in which case its AsyncContext timeout starts now.
+	 */
+	void serviced() {
+		if (!asyncStarted) {
+			complete();
+			return;
+		}
+		long timeoutMillis = asyncTimeout;
+		if (timeoutMillis > 0 && !completed.get()) {
+			timeout = server.getTimer().schedule( new Runnable() {
+				public void run() {
+					timedOut();
+				}
+			}, timeoutMillis, TimeUnit.MILLISECONDS);
+			if (completed.get()) {
+				timeout.cancel( false);
+			}
+		}
+	}
+
+	/**
+	 * Called when the servlet threw:  answer 500 Internal Server Error, unless the response is
+	 * already complete.
+	 */
+	void failed(Throwable t) {
+		System.err.print( StackTrace.asString( "ServletExchange ERROR: " + method + " " + requestURI + " failed", t));
+		if (!completed.get()) {
+			status = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+			responseBody.reset();
+			complete();
+		}
+	}
+
+	private void timedOut() {
+		if (completed.get()) {
+			return;
+		}
+		AsyncEvent event = new AsyncEvent( asyncContext, request, response);
+		for (AsyncListener listener : listeners) {
+			try {
+				listener.onTimeout( event);
+			}
+			catch (IOException | RuntimeException e) {
+				System.err.print( StackTrace.asString( "ServletExchange ERROR: AsyncListener.onTimeout failed", e));
+			}
+		}
+		if (!completed.get()) {
+			status = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+			complete();
+		}
+	}
+
+	/** Build the response and hand it to the server to write; only the first call has any effect.  */
+	void complete() {
+		if (!completed.compareAndSet( false, true)) {
+			return;
+		}
+		ScheduledFuture<?> timeout = this.timeout;
+		if (timeout != null) {
+			timeout.cancel( false);
+		}
+		if (writer != null) {
+			writer.flush();
+		}
+		if (asyncStarted) {
+			AsyncEvent event = new AsyncEvent( asyncContext, request, response);
+			for (AsyncListener listener : listeners) {
+				try {
+					listener.onComplete( event);
+				}
+				catch (IOException | RuntimeException e) {
+					System.err.print( StackTrace.asString( "ServletExchange ERROR: AsyncListener.onComplete failed", e));
+				}
+			}
+		}
+		output = serialize();
+		server.completed( this);
+	}
+
+	private ByteBuffer[] serialize() {
+		List<String> connectionHeader = responseHeaders.get( "Connection");
+		if (connectionHeader != null && connectionHeader.contains( "close")) {
+			keepAlive = false;
+		}
+		boolean noBody = (status < 200 || status == HttpServletResponse.SC_NO_CONTENT
+				|| status == HttpServletResponse.SC_NOT_MODIFIED);
+		boolean head = "HEAD".equals( method);
+		StringBuilder text = new StringBuilder( 256);
+		text.append( "HTTP/1.1 ").append( status).append( ' ').append( reason( status)).append( "\r\n");
+		text.append( "Date: ").append( date()).append( "\r\n");
+		if (contentType != null && !noBody) {
+			text.append( "Content-Type: ").append( contentTypeHeader()).append( "\r\n");
+		}
+		for (Map.Entry<String,List<String>> header : responseHeaders.entrySet()) {
+			if (header.getKey().equalsIgnoreCase( "Connection") || header.getKey().equalsIgnoreCase( "Content-Length")) {
+				continue;
+			}
+			for (String value : header.getValue()) {
+				text.append( header.getKey()).append( ": ").append( value).append( "\r\n");
+			}
+		}
+		if (!noBody) {
+			long length = (head && contentLength >= 0) ? contentLength : responseBody.size();
+			text.append( "Content-Length: ").append( length).append( "\r\n");
+		}
+		if (!keepAlive) {
+			text.append( "Connection: close\r\n");
+		}
+		else if ("HTTP/1.0".equals( protocol)) {
+			text.append( "Connection: keep-alive\r\n");
+		}
+		text.append( "\r\n");
+		ByteBuffer headBuffer = ByteBuffer.wrap( text.toString().getBytes( StandardCharsets.ISO_8859_1));
+		if (noBody || head || responseBody.size() == 0) {
+			return new ByteBuffer[] { headBuffer };
+		}
+		return new ByteBuffer[] { headBuffer, ByteBuffer.wrap( responseBody.toByteArray()) };
+	}
+
+	private String contentTypeHeader() {
+		if (responseEncoding == null || contentType.toLowerCase( Locale.ROOT).contains( "charset=")) {
+			return contentType;
+		}
+		return contentType + ";charset=" + responseEncoding;
+	}
+
+	/** @return the current time in the Date header format, formatted at most once a second. */
+	private static String date() {
+		long second = System.currentTimeMillis() / 1000;
+		if (second != dateSecond) {
+			dateText	= DATE_FORMAT.format( ZonedDateTime.now( ZoneOffset.UTC));
+			dateSecond	= second;
+		}
+		return dateText;
+	}
+
+	/** @return the reason phrase of the HTTP status code. */
+	static String reason(int status) {
+		switch (status) {
+			case 100:	return "Continue";
+			case 200:	return "OK";
+			case 204:	return "No Content";
+			case 301:	return "Moved Permanently";
+			case 302:	return "Found";
+			case 304:	return "Not Modified";
+			case 400:	return "Bad Request";
+			case 403:	return "Forbidden";
+			case 404:	return "Not Found";
+			case 405:	return "Method Not Allowed";
+			case 411:	return "Length Required";
+			case 413:	return "Payload Too Large";
+			case 431:	return "Request Header Fields Too Large";
+			case 500:	return "Internal Server Error";
+			case 501:	return "Not Implemented";
+			case 503:	return "Service Unavailable";
+			case 504:	return "Gateway Timeout";
+			case 505:	return "HTTP Version Not Supported";
+			default:	return "Status " + status;
+		}
+	}
+
+	// _____________________________ HttpServletRequest _____________________________
+
+	private Object request(Object proxy, Method method, Object[] args) throws IOException {
+		switch (method.getName()) {
+			case "getMethod":				return this.method;
+			case "getProtocol":				return protocol;
+			case "getScheme":				return "http";
+			case "isSecure":				return false;
+			case "getRequestURI":			return requestURI;
+			case "getRequestURL":			return new StringBuffer( "http://").append( host()).append( requestURI);
+			case "getQueryString":			return queryString;
+			case "getContextPath":			return "";
+			case "getServletPath":			return servletPath;
+			case "getPathInfo":				return null;
+			case "getPathTranslated":		return null;
+			case "getHeader":				return header( (String) args[0]);
+			case "getHeaders":				return Collections.enumeration( headerValues( (String) args[0]));
+			case "getHeaderNames":			return Collections.enumeration( headers.keySet());
+			case "getIntHeader":			return intHeader( (String) args[0]);
+			case "getDateHeader":			return dateHeader( (String) args[0]);
+			case "getContentLength":		return body.length;
+			case "getContentLengthLong":	return (long) body.length;
+			case "getContentType":			return header( "Content-Type");
+			case "getCharacterEncoding":	return requestEncoding;
+			case "setCharacterEncoding":	requestEncoding = (String) args[0];	return null;
+			case "getInputStream":			return inputStream();
+			case "getReader":				return new BufferedReader( new InputStreamReader( new ByteArrayInputStream( body),
+													charset( requestEncoding, StandardCharsets.ISO_8859_1)));
+			case "getParameter":			return parameter( (String) args[0]);
+			case "getParameterValues":		return parameters().get( args[0]);
+			case "getParameterNames":		return Collections.enumeration( parameters().keySet());
+			case "getParameterMap":			return Collections.unmodifiableMap( parameters());
+			case "getAttribute":			return attributes.get( args[0]);
+			case "getAttributeNames":		return Collections.enumeration( attributes.keySet());
+			case "setAttribute":			setAttribute( (String) args[0], args[1]);	return null;
+			case "removeAttribute":			attributes.remove( args[0]);	return null;
+			case "getRemoteAddr":			return (remote == null) ? null : remote.getAddress().getHostAddress();
+			case "getRemoteHost":			return (remote == null) ? null : remote.getAddress().getHostAddress();
+			case "getRemotePort":			return (remote == null) ? 0 : remote.getPort();
+			case "getLocalAddr":			return (local == null) ? null : local.getAddress().getHostAddress();
+			case "getLocalName":			return (local == null) ? null : local.getHostString();
+			case "getLocalPort":			return (local == null) ? 0 : local.getPort();
+			case "getServerName":			return serverName();
+			case "getServerPort":			return (local == null) ? 0 : local.getPort();
+			case "getLocale":				return Locale.getDefault();
+			case "getLocales":				return Collections.enumeration( Collections.singleton( Locale.getDefault()));
+			case "getServletContext":		return server.getServletContext();
+			case "getDispatcherType":		return DispatcherType.REQUEST;
+			case "isAsyncSupported":		return true;
+			case "isAsyncStarted":			return asyncStarted && !completed.get();
+			case "startAsync":				return startAsync();
+			case "getAsyncContext":			return getAsyncContext();
+			case "getSession":				return session( method, args);
+			case "getCookies":				return null;
+			case "getAuthType":				return null;
+			case "getRemoteUser":			return null;
+			case "getUserPrincipal":		return null;
+			case "getRequestedSessionId":	return null;
+			case "isUserInRole":			return false;
+			case "isRequestedSessionIdValid":		return false;
+			case "isRequestedSessionIdFromCookie":	return false;
+			case "isRequestedSessionIdFromURL":		return false;
+			case "isRequestedSessionIdFromUrl":		return false;
+			case "getHttpServletMapping":	return null;
+			case "newPushBuilder":			return null;
+			case "getTrailerFields":		return Collections.emptyMap();
+			case "isTrailerFieldsReady":	return true;
+			default:						return objectMethod( proxy, method, args);
+		}
+	}
+
+	private String header(String name) {
+		List<String> values = headers.get( name);
+		return (values == null || values.isEmpty()) ? null : values.get( 0);
+	}
+
+	private List<String> headerValues(String name) {
+		List<String> values = headers.get( name);
+		return (values == null) ? Collections.<String>emptyList() : values;
+	}
+
+	private int intHeader(String name) {
+		String value = header( name);
+		return (value == null) ? -1 : Integer.parseInt( value.trim());
+	}
+
+	private long dateHeader(String name) {
+		String value = header( name);
+		if (value == null) {
+			return -1;
+		}
+		try {
+			return ZonedDateTime.parse( value.trim(), DATE_FORMAT).toInstant().toEpochMilli();
+		}
+		catch (RuntimeException e) {
+			throw new IllegalArgumentException( name + " is not a date: " + value);
+		}
+	}
+
+	private String host() {
+		String host = header( "Host");
+		return (host != null) ? host : (local == null) ? "localhost" : local.getHostString() + ":" + local.getPort();
+	}
+
+	private String serverName() {
+		String host = host();
+		int colon = host.lastIndexOf( ':');
+		return (colon > 0 && host.indexOf( ']') < colon) ? host.substring( 0, colon) : host;
+	}
+
+	private void setAttribute(String name, Object value) {
+		if (value == null) {
+			attributes.remove( name);
+		}
+		else {
+			attributes.put( name, value);
+		}
+	}
+
+	private String parameter(String name) {
+		String[] values = parameters().get( name);
+		return (values == null) ? null : values[0];
+	}
+
+	/** @return the query string parameters, decoded on first use. */
+	private Map<String,String[]> parameters() {
+		if (parameters != null) {
+			return parameters;
+		}
+		Map<String,String[]> decoded = new LinkedHashMap<String,String[]>();
+		if (queryString != null) {
+			for (String pair : queryString.split( "&")) {
+				if (pair.isEmpty()) continue;
+				int equals = pair.indexOf( '=');
+				try {
+					String name		= URLDecoder.decode( (equals < 0) ? pair : pair.substring( 0, equals), "UTF-8");
+					String value	= (equals < 0) ? "" : URLDecoder.decode( pair.substring( equals + 1), "UTF-8");
+					String[] values	= decoded.get( name);
+					if (values == null) {
+						values = new String[] { value };
+					}
+					else {
+						String[] more = new String[values.length + 1];
+						System.arraycopy( values, 0, more, 0, values.length);
+						more[values.length] = value;
+						values = more;
+					}
+					decoded.put( name, values);
+				}
+				catch (UnsupportedEncodingException | IllegalArgumentException e) {
+					/** Skip a parameter that is not URL encoded */
+				}
+			}
+		}
+		parameters = decoded;
+		return parameters;
+	}
+
+	private ServletInputStream inputStream() {
+		final ByteArrayInputStream in = new ByteArrayInputStream( body);
+		return new ServletInputStream() {
+			public int read()										{ return in.read(); }
+			public int read(byte[] bytes, int offset, int length)	{ return in.read( bytes, offset, length); }
+			public int available()									{ return in.available(); }
+			public boolean isFinished()								{ return in.available() == 0; }
+			public boolean isReady()								{ return true; }
+			public void setReadListener(ReadListener readListener) {
+				try {
+					if (in.available() > 0) readListener.onDataAvailable();
+					readListener.onAllDataRead();
+				}
+				catch (IOException e) {
+					readListener.onError( e);
+				}
+			}
+		};
+	}
+
+	private Object session(Method method, Object[] args) {
+		if (args != null && args.length == 1 && Boolean.FALSE.equals( args[0])) {
+			return null;
+		}
+		throw unsupported( method);
+	}
+
+	// _____________________________ AsyncContext _____________________________
+
+	private synchronized AsyncContext startAsync() {
+		if (completed.get()) {
+			throw new IllegalStateException( "The response is already complete");
+		}
+		asyncStarted = true;
+		if (asyncContext == null) {
+			asyncContext = proxy( AsyncContext.class, new InvocationHandler() {
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+					return async( proxy, method, args);
+				}
+			});
+		}
+		return asyncContext;
+	}
+
+	private synchronized AsyncContext getAsyncContext() {
+		if (!asyncStarted) {
+			throw new IllegalStateException( "startAsync has not been called");
+		}
+		return asyncContext;
+	}
+
+	private Object async(Object proxy, Method method, Object[] args) throws ReflectiveOperationException {
+		switch (method.getName()) {
+			case "getRequest":				return request;
+			case "getResponse":				return response;
+			case "hasOriginalRequestAndResponse":	return true;
+			case "complete":				complete();	return null;
+			case "start":					server.getWorkers().execute( (Runnable) args[0]);	return null;
+			case "addListener":				listeners.add( (AsyncListener) args[0]);	return null;
+			case "setTimeout":				asyncTimeout = (Long) args[0];	return null;
+			case "getTimeout":				return asyncTimeout;
+			case "createListener":			return ((Class<?>) args[0]).newInstance();
+			default:						return objectMethod( proxy, method, args);
+		}
+	}
+
+	// _____________________________ HttpServletResponse _____________________________
+
+	private Object response(Object proxy, Method method, Object[] args) throws IOException {
+		switch (method.getName()) {
+			case "setStatus":				status = (Integer) args[0];	return null;
+			case "getStatus":				return status;
+			case "sendError":				sendError( (Integer) args[0], (args.length > 1) ? (String) args[1] : null);	return null;
+			case "sendRedirect":			sendRedirect( (String) args[0]);	return null;
+			case "setHeader":				setHeader( (String) args[0], (String) args[1]);	return null;
+			case "addHeader":				addHeader( (String) args[0], (String) args[1]);	return null;
+			case "setIntHeader":			setHeader( (String) args[0], String.valueOf( args[1]));	return null;
+			case "addIntHeader":			addHeader( (String) args[0], String.valueOf( args[1]));	return null;
+			case "setDateHeader":			setHeader( (String) args[0], httpDate( (Long) args[1]));	return null;
+			case "addDateHeader":			addHeader( (String) args[0], httpDate( (Long) args[1]));	return null;
+			case "containsHeader":			return responseHeaders.containsKey( args[0]) || isContentHeader( (String) args[0]);
+			case "getHeader":				return responseHeader( (String) args[0]);
+			case "getHeaders":				return responseHeaderValues( (String) args[0]);
+			case "getHeaderNames":			return new ArrayList<String>( responseHeaders.keySet());
+			case "setContentType":			setContentType( (String) args[0]);	return null;
+			case "getContentType":			return (contentType == null) ? null : contentTypeHeader();
+			case "setCharacterEncoding":	if (writer == null) responseEncoding = (String) args[0];	return null;
+			case "getCharacterEncoding":	return (responseEncoding == null) ? "ISO-8859-1" : responseEncoding;
+			case "setContentLength":		contentLength = (Integer) args[0];	return null;
+			case "setContentLengthLong":	contentLength = (Long) args[0];	return null;
+			case "getOutputStream":			return outputStream();
+			case "getWriter":				return writer();
+			case "isCommitted":				return committed;
+			case "flushBuffer":				if (writer != null) writer.flush();	committed = true;	return null;
+			case "reset":					reset();	return null;
+			case "resetBuffer":				resetBuffer();	return null;
+			case "setBufferSize":			return null;
+			case "getBufferSize":			return responseBody.size();
+			case "setLocale":				return null;
+			case "getLocale":				return Locale.getDefault();
+			case "encodeURL":				return args[0];
+			case "encodeUrl":				return args[0];
+			case "encodeRedirectURL":		return args[0];
+			case "encodeRedirectUrl":		return args[0];
+			case "setTrailerFields":		throw unsupported( method);
+			case "getTrailerFields":		return null;
+			default:						return objectMethod( proxy, method, args);
+		}
+	}
+
+	private boolean isContentHeader(String name) {
+		return (name.equalsIgnoreCase( "Content-Type") && contentType != null)
+				|| (name.equalsIgnoreCase( "Content-Length") && contentLength >= 0);
+	}
+
+	private String responseHeader(String name) {
+		if (name.equalsIgnoreCase( "Content-Type")) {
+			return (contentType == null) ? null : contentTypeHeader();
+		}
+		List<String> values = responseHeaders.get( name);
+		return (values == null || values.isEmpty()) ? null : values.get( 0);
+	}
+
+	private List<String> responseHeaderValues(String name) {
+		List<String> values = responseHeaders.get( name);
+		return (values == null) ? Collections.<String>emptyList() : new ArrayList<String>( values);
+	}
+
+	private void setHeader(String name, String value) {
+		if (committed) return;
+		if (name.equalsIgnoreCase( "Content-Type")) {
+			setContentType( value);
+			return;
+		}
+		if (name.equalsIgnoreCase( "Content-Length")) {
+			contentLength = (value == null) ? -1 : Long.parseLong( value.trim());
+			return;
+		}
+		if (value == null) {
+			responseHeaders.remove( name);
+			return;
+		}
+		List<String> values = new ArrayList<String>( 1);
+		values.add( value);
+		responseHeaders.put( name, values);
+	}
+
+	private void addHeader(String name, String value) {
+		if (committed || value == null) return;
+		if (name.equalsIgnoreCase( "Content-Type") || name.equalsIgnoreCase( "Content-Length")) {
+			setHeader( name, value);
+			return;
+		}
+		List<String> values = responseHeaders.get( name);
+		if (values == null) {
+			values = new ArrayList<String>( 1);
+			responseHeaders.put( name, values);
+		}
+		values.add( value);
+	}
+
+	private void setContentType(String type) {
+		if (committed) return;
+		contentType = type;
+		String charset = charsetOf( type);
+		if (charset != null && writer == null) {
+			responseEncoding = charset;
+		}
+	}
+
+	private void sendError(int code, String message) throws IOException {
+		if (committed) {
+			throw new IllegalStateException( "The response is already committed");
+		}
+		status = code;
+		responseBody.reset();
+		setContentType( "text/html;charset=utf-8");
+		String text = "<html><head><title>" + code + " " + reason( code) + "</title></head><body><h1>"
+				+ code + " " + reason( code) + "</h1>" + ((message == null) ? "" : "<p>" + escapeHTML( message) + "</p>")
+				+ "</body></html>";
+		responseBody.write( text.getBytes( StandardCharsets.UTF_8));
+		committed = true;
+	}
+
+	private void sendRedirect(String location) throws IOException {
+		if (committed) {
+			throw new IllegalStateException( "The response is already committed");
+		}
+		status = HttpServletResponse.SC_FOUND;
+		setHeader( "Location", location);
+		responseBody.reset();
+		committed = true;
+	}
+
+	private ServletOutputStream outputStream() {
+		if (writer != null) {
+			throw new IllegalStateException( "getWriter has already been called");
+		}
+		if (outputStream == null) {
+			outputStream = new ServletOutputStream() {
+				public void write(int b)									{ if (!completed.get()) responseBody.write( b); }
+				public void write(byte[] bytes, int offset, int length)		{ if (!completed.get()) responseBody.write( bytes, offset, length); }
+				public boolean isReady()									{ return true; }
+				public void setWriteListener(WriteListener writeListener) {
+					try {
+						writeListener.onWritePossible();
+					}
+					catch (IOException e) {
+						writeListener.onError( e);
+					}
+				}
+			};
+		}
+		return outputStream;
+	}
+
+	private PrintWriter writer() {
+		if (outputStream != null) {
+			throw new IllegalStateException( "getOutputStream has already been called");
+		}
+		if (writer == null) {
+			if (responseEncoding == null) {
+				responseEncoding = "ISO-8859-1";
+			}
+			writer = new PrintWriter( new OutputStreamWriter( responseBody, charset( responseEncoding, StandardCharsets.ISO_8859_1)));
+		}
+		return writer;
+	}
+
+	private void reset() {
+		if (committed) {
+			throw new IllegalStateException( "The response is already committed");
+		}
+		status = HttpServletResponse.SC_OK;
+		responseHeaders.clear();
+		contentType		= null;
+		contentLength	= -1;
+		resetBuffer();
+	}
+
+	private void resetBuffer() {
+		if (committed) {
+			throw new IllegalStateException( "The response is already committed");
+		}
+		if (writer != null) {
+			writer.flush();
+		}
+		responseBody.reset();
+	}
+
+	// _____________________________ Proxies _____________________________
+
+	/** @return a proxy implementing the interface with the handler. */
+	static <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return type.cast( Proxy.newProxyInstance( ServletExchange.class.getClassLoader(), new Class<?>[] { type }, handler));
+	}
+
+	/** @return the result of equals, hashCode or toString on the proxy; any other method is unsupported. */
+	static Object objectMethod(Object proxy, Method method, Object[] args) {
+		switch (method.getName()) {
+			case "equals":		return proxy == args[0];
+			case "hashCode":	return System.identityHashCode( proxy);
+			case "toString":	return method.getDeclaringClass().getSimpleName() + "@" + Integer.toHexString( System.identityHashCode( proxy));
+			default:			throw unsupported( method);
+		}
+	}
+
+	static UnsupportedOperationException unsupported(Method method) {
+		return new UnsupportedOperationException( method.getDeclaringClass().getSimpleName() + "." + method.getName()
+				+ " is not supported by the embedded server");
+	}
+
+	/** @return the charset parameter of a Content-Type, or null. */
+	private static String charsetOf(String contentType) {
+		if (contentType == null) {
+			return null;
+		}
+		int at = contentType.toLowerCase( Locale.ROOT).indexOf( "charset=");
+		if (at < 0) {
+			return null;
+		}
+		String charset = contentType.substring( at + 8);
+		int end = charset.indexOf( ';');
+		charset = ((end < 0) ? charset : charset.substring( 0, end)).trim();
+		return charset.replace( "\"", "");
+	}
+
+	private static Charset charset(String name, Charset defaultCharset) {
+		try {
+			return (name == null) ? defaultCharset : Charset.forName( name);
+		}
+		catch (IllegalArgumentException e) {
+			return defaultCharset;
+		}
+	}
+
+	private static String httpDate(long millis) {
+		return DATE_FORMAT.format( ZonedDateTime.ofInstant( Instant.ofEpochMilli( millis), ZoneOffset.UTC));
+	}
+
+	private static String escapeHTML(String text) {
+		return text.replace( "&", "&amp;").replace( "<", "&lt;").replace( ">", "&gt;");
+	}
+}
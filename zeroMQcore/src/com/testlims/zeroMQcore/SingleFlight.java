@@ -0,0 +1,180 @@
+package com.testlims.zeroMQcore;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.zeromq.ZMQ;
+
+/**
+ * SingleFlight coalesces identical requests that arrive while one of them is already on its way
+ * to the service.  The first request with a key, the leader, is sent as usual; requests with the
+ * same key that arrive before its reply, the followers, are not sent at all but wait for the
+ * leader's reply, so a burst of page loads costs the service one sendHTML rather than one each.
+ * <p>
+ * Coalescing is opt-in per request type, in zeroMQcore.properties:
+ <pre>
+coalesce=sendHTML,sayHello
+</pre>
+ * Requests are keyed the same way as the {@link ResponseCache}.  Nothing is kept once the leader's
+ * reply arrives, so unlike the cache a coalesced request type can never be answered with a
+ * stale reply.  Each follower's copy of the reply has the leader's requestId replaced by its own,
+ * see {@link Flight#reply}.  If the leader's deadline passes, every follower is answered with
+ * 504 as well.
+ *
+ * @author Marc Whitlow, Colabrativ, Inc.
+ */
+public class SingleFlight {
+
+	/** A request in flight; completes with the leader's reply, or null if the leader timed out.  */
+	public static final class Flight extends CompletableFuture<byte[]> {
+		private final String	key;
+		private final String	leaderId;
+
+		private Flight(String key, String leaderId) {
+			this.key		= key;
+			this.leaderId	= leaderId;
+		}
+
+		/**
+		 * @param requestId a request Id.
+		 *
+		 * @return true if the request is the one sent to the service.
+		 */
+		public boolean isLeader(String requestId) {
+			return leaderId.equals( requestId);
+		}
+
+		/**
+		 * Wait for the leader's reply.
+		 *
+		 * @param timeoutMillis maximum time to wait.
+		 *
+		 * @return the leader's reply, or null if it did not arrive in time.
+		 *
+		 * @throws InterruptedException if the calling thread is interrupted.
+		 */
+		public byte[] await(long timeoutMillis) throws InterruptedException {
+			try {
+				return get( timeoutMillis, TimeUnit.MILLISECONDS);
+			}
+			catch (ExecutionException | TimeoutException e) {
+				return null;
+			}
+		}
+
+		/**
+		 * The leader's reply with the first <code>"requestId":"leaderId"</code> member, as written
+		 * by the services, changed to the follower's requestId.  A reply without that member is
+		 * returned unchanged.
+		 *
+		 * @param reply the leader's reply.
+		 * @param requestId the follower's request Id.
+		 *
+		 * @return the follower's copy of the reply.
+		 */
+		public byte[] reply(byte[] reply, String requestId) {
+			if (reply == null || leaderId.equals( requestId)) {
+				return reply;
+			}
+			byte[] member	= ("\"requestId\":\"" + leaderId + "\"").getBytes( ZMQ.CHARSET);
+			int at			= indexOf( reply, member);
+			if (at < 0) {
+				return reply;
+			}
+			byte[] id		= requestId.getBytes( ZMQ.CHARSET);
+			int idAt		= at + member.length - 1 - leaderId.length();
+			byte[] copy		= new byte[reply.length - leaderId.length() + id.length];
+			System.arraycopy( reply, 0, copy, 0, idAt);
+			System.arraycopy( id, 0, copy, idAt, id.length);
+			System.arraycopy( reply, idAt + leaderId.length(), copy, idAt + id.length, reply.length - idAt - leaderId.length());
+			return copy;
+		}
+
+		private static int indexOf(byte[] bytes, byte[] find) {
+			next:
+			for (int b=0; b<=bytes.length - find.length; b++) {
+				for (int f=0; f<find.length; f++) {
+					if (bytes[b + f] != find[f]) continue next;
+				}
+				return b;
+			}
+			return -1;
+		}
+	}
+
+	private final Set<String>	coalesced	= new HashSet<String>();
+	private final ConcurrentHashMap<String,Flight>	flights	= new ConcurrentHashMap<String,Flight>();
+
+	private final AtomicLong	leaderCount		= new AtomicLong();
+	private final AtomicLong	followerCount	= new AtomicLong();
+
+	/**
+	 * SingleFlight Constructor
+	 *
+	 * @param config the gateway configuration, read for coalesce.
+	 */
+	public SingleFlight(GatewayConfig config) {
+		for (String requestType : config.getString( "coalesce", "").split( "\\s*,\\s*")) {
+			if (!requestType.isEmpty()) coalesced.add( requestType);
+		}
+	}
+
+	/**
+	 * @param requestType the request type.
+	 *
+	 * @return true if identical requests of the type are coalesced.
+	 */
+	public boolean isCoalesced(String requestType) {
+		return requestType != null && coalesced.contains( requestType);
+	}
+
+	/**
+	 * Join the flight for a key, starting one if none is in flight.
+	 *
+	 * @param key the request key, from {@link ResponseCache#key}.
+	 * @param requestId the request Id.
+	 *
+	 * @return the flight; if {@link Flight#isLeader isLeader(requestId)} the caller must send
+	 * the request and pass its outcome to {@link #land}, otherwise it waits for the flight.
+	 */
+	public Flight join(String key, String requestId) {
+		Flight flight	= new Flight( key, requestId);
+		Flight inFlight	= flights.putIfAbsent( key, flight);
+		if (inFlight == null) {
+			leaderCount.incrementAndGet();
+			return flight;
+		}
+		followerCount.incrementAndGet();
+		return inFlight;
+	}
+
+	/**
+	 * Complete a flight with the leader's reply, and let the next request with the key start a
+	 * new one.  Only the first call for a flight has any effect.
+	 *
+	 * @param flight the flight returned to the leader by {@link #join}.
+	 * @param reply the leader's reply, or null if it timed out.
+	 */
+	public void land(Flight flight, byte[] reply) {
+		flights.remove( flight.key, flight);
+		flight.complete( reply);
+	}
+
+	/** @return the number of requests sent to a service. */
+	public long getLeaderCount()		{ return leaderCount.get(); }
+
+	/** @return the number of requests answered with another request's reply. */
+	public long getFollowerCount()		{ return followerCount.get(); }
+
+	/** @return a one line summary of the coalesced requests. */
+	public String stats() {
+		return "coalesce=" + coalesced + " inFlight=" + flights.size() + " leaders=" + leaderCount.get()
+				+ " followers=" + followerCount.get();
+	}
+}
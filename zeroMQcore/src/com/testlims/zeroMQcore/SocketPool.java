@@ -0,0 +1,193 @@
+package com.testlims.zeroMQcore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Context;
+
+import com.testlims.utilities.SocketFactory;
+
+/**
+ * SocketPool is a bounded pool of zeroMQ sockets of one type, all connected to the same URLs.
+ * When there is more than one URL each socket connects to all of them, and zeroMQ spreads
+ * the requests sent on it across the endpoints.
+ * <p>
+ * zeroMQ sockets must not be used by two threads at once, so a servlet thread leases a socket,
+ * uses it for one request, and returns it with {@link #release}.  Handing a socket over
+ * through the pool's queue gives the memory barrier zeroMQ needs when a socket changes threads.
+ * <p>
+ * All sockets are created and connected up front, so the connect cost is paid once when the pool 
+ * is built rather than on a request.  They are made by the {@link SocketFactory} with the request 
+ * tuning profile. 
+ * <p>
+ * The pool counts leases, lease time-outs and the time callers spent waiting for a socket,
+ * which is the figure to watch when sizing the pool.
+ *
+ * @author Marc Whitlow, Colabrativ, Inc.
+ */
+public class SocketPool {
+
+	private final Context		context;
+	private final int			socketType;
+	private final String[]		urls;
+	private final int			size;
+	private final ArrayBlockingQueue<ZMQ.Socket>	idle;
+	private final List<ZMQ.Socket>					all		= new ArrayList<ZMQ.Socket>();
+	private volatile boolean	closed					= false;
+
+	private final AtomicLong	leaseCount		= new AtomicLong();
+	private final AtomicLong	timeoutCount	= new AtomicLong();
+	private final AtomicLong	waitNanos		= new AtomicLong();
+	private final AtomicLong	maxWaitNanos	= new AtomicLong();
+
+	/**
+	 * SocketPool Constructor, creates and connects all sockets.
+	 *
+	 * @param context the zeroMQ context the sockets are created in.
+	 * @param socketType the zeroMQ socket type, e.g. ZMQ.REQ.
+	 * @param url the URL every socket connects to.
+	 * @param size the number of sockets in the pool.
+	 */
+	public SocketPool(Context context, int socketType, String url, int size) {
+		this( context, socketType, new String[] { url }, size);
+	}
+
+	/**
+	 * SocketPool Constructor, creates and connects all sockets.
+	 *
+	 * @param context the zeroMQ context the sockets are created in.
+	 * @param socketType the zeroMQ socket type, e.g. ZMQ.REQ.
+	 * @param urls the URLs every socket connects to.
+	 * @param size the number of sockets in the pool.
+	 */
+	public SocketPool(Context context, int socketType, String[] urls, int size) {
+		this.context	= context;
+		this.socketType	= socketType;
+		this.urls		= urls.clone();
+		this.size		= Math.max( 1, size);
+		idle = new ArrayBlockingQueue<ZMQ.Socket>( this.size);
+
+		for (int s=0; s<this.size; s++) {
+			idle.add( newSocket());
+		}
+	}
+
+	private ZMQ.Socket newSocket() {
+		ZMQ.Socket socket = SocketFactory.socket( context, socketType, "request", "SocketPool " + getUrl());
+		for (String url : urls) {
+			socket.connect( SocketFactory.endpoint( url));
+		}
+		synchronized (all) {
+			all.add( socket);
+		}
+		return socket;
+	}
+
+	/**
+	 * Lease a socket, waiting up to timeoutMillis for one to be returned if none is idle.
+	 *
+	 * @param timeoutMillis maximum time to wait for a socket.
+	 *
+	 * @return the leased socket, or null if none became available in time or the pool is closed.
+	 *
+	 * @throws InterruptedException if the calling thread is interrupted while waiting.
+	 */
+	public ZMQ.Socket lease(long timeoutMillis) throws InterruptedException {
+		if (closed) {
+			return null;
+		}
+		ZMQ.Socket socket = idle.poll();
+		if (socket == null) {
+			long start = System.nanoTime();
+			socket = idle.poll( timeoutMillis, TimeUnit.MILLISECONDS);
+			long waited = System.nanoTime() - start;
+			waitNanos.addAndGet( waited);
+			long max;
+			while (waited > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet( max, waited)) { /** retry */ }
+
+			if (socket == null) {
+				timeoutCount.incrementAndGet();
+				return null;
+			}
+		}
+		leaseCount.incrementAndGet();
+		return socket;
+	}
+
+	/**
+	 * Return a leased socket to the pool.
+	 *
+	 * @param socket a socket obtained from {@link #lease}.
+	 */
+	public void release(ZMQ.Socket socket) {
+		if (closed || !idle.offer( socket)) {
+			close( socket);
+		}
+	}
+
+	/**
+	 * Close a leased socket that can no longer be used, e.g. a REQ socket left waiting
+	 * for a reply that never came, and put a freshly connected socket in its place.
+	 *
+	 * @param socket a socket obtained from {@link #lease}.
+	 */
+	public void replace(ZMQ.Socket socket) {
+		close( socket);
+		if (!closed) {
+			release( newSocket());
+		}
+	}
+
+	private void close(ZMQ.Socket socket) {
+		synchronized (all) {
+			all.remove( socket);
+		}
+		SocketFactory.close( socket);
+	}
+
+	/** Close every socket in the pool, including those still leased.  */
+	public void close() {
+		closed = true;
+		synchronized (all) {
+			for (ZMQ.Socket socket : all) {
+				SocketFactory.close( socket);
+			}
+			all.clear();
+		}
+		idle.clear();
+	}
+
+	/** @return the URLs the pool's sockets connect to, separated by commas. */
+	public String getUrl()				{ return String.join( ",", urls); }
+
+	/** @return the number of sockets in the pool. */
+	public int getSize()				{ return size; }
+
+	/** @return the number of sockets not currently leased. */
+	public int getIdleCount()			{ return idle.size(); }
+
+	/** @return the number of successful leases. */
+	public long getLeaseCount()			{ return leaseCount.get(); }
+
+	/** @return the number of leases that timed out waiting for a socket. */
+	public long getTimeoutCount()		{ return timeoutCount.get(); }
+
+	/** @return total nanoseconds callers spent waiting for a socket. */
+	public long getTotalWaitNanos()		{ return waitNanos.get(); }
+
+	/** @return the longest wait for a socket, in nanoseconds. */
+	public long getMaxWaitNanos()		{ return maxWaitNanos.get(); }
+
+	/** @return a one line summary of the pool's size, leases and wait times. */
+	public String stats() {
+		long leases = leaseCount.get() + timeoutCount.get();
+		long averageWaitMicros = (leases == 0) ? 0 : waitNanos.get() / leases / 1000;
+		return getUrl() + " size=" + size + " idle=" + idle.size() + " leases=" + leaseCount.get()
+				+ " timeouts=" + timeoutCount.get() + " avgWaitMicros=" + averageWaitMicros
+				+ " maxWaitMicros=" + (maxWaitNanos.get() / 1000);
+	}
+}
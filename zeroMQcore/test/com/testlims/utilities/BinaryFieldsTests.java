@@ -0,0 +1,132 @@
+package com.testlims.utilities;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.json.JSONException;
+import org.junit.*;
+
+/**
+ * Unit tests of the binary body format:  BinaryWriter writing an object, BinaryFields reading its
+ * members back, and the translation between it and JSON.
+ */
+public class BinaryFieldsTests
+{
+	/**
+	 * Test that an object written with a BinaryWriter and translated to JSON has the same bytes as
+	 * the object written with a JsonWriter, whatever its strings hold.
+	 */
+	@Test
+	public void toJsonShouldMatchJsonWriter() {
+		BinaryWriter	binary	= new BinaryWriter( 16);
+		JsonWriter		json	= new JsonWriter( 16);
+		for (String value : JsonFieldsTests.AWKWARD) {
+			write( binary.reset(), value);
+			write( json.reset(), value);
+
+			// ____________________ Check Results _____________________
+			assertTrue( BinaryFields.isBinary( binary.toByteArray()));
+			assertEquals( json.toString(),	new String( BinaryFields.toJson( binary.toByteArray()), StandardCharsets.UTF_8));
+		}
+	}
+
+	private static void write(FieldWriter writer, String value) {
+		writer.beginObject()
+				.member( "requestId",	"7")
+				.member( "value",		value)
+				.literal( "count",		"12")
+				.literal( "list",		"[1,\"two\",{\"three\":3}]")
+				.member( "none",		null)
+				.endObject();
+	}
+
+	/**
+	 * Test that members are read back as written, as JsonFields reads them:  strings as their text,
+	 * literals as their JSON text, null or absent members as null, and the first of two duplicates.
+	 */
+	@Test
+	public void membersShouldRoundTrip() {
+		byte[] binary = new BinaryWriter().beginObject()
+				.member( "requestId",			"42")
+				.member( "na\u00efve name",		"caf\u00e9")
+				.member( "fixed",				"pre-encoded \u4e16".getBytes( StandardCharsets.UTF_8))
+				.literal( "ok",					"true")
+				.member( "missing",				(String) null)
+				.member( "requestId",			"43")
+				.endObject().toByteArray();
+		String[] values = BinaryFields.read( binary, "ok", "na\u00efve name", "requestId", "fixed", "missing", "absent");
+
+		// ____________________ Check Results _____________________
+		assertArrayEquals( new String[] { "true", "caf\u00e9", "42", "pre-encoded \u4e16", null, null },	values);
+		assertArrayEquals( new String[0],	BinaryFields.read( new byte[] { BinaryFields.MAGIC }));
+	}
+
+	/**
+	 * Test that a JSON object translated to the binary format and back is the original, compact
+	 * object, including values long enough to need lengths of two and three bytes.
+	 */
+	@Test
+	public void jsonShouldRoundTrip() {
+		char[] filler = new char[20000];
+		Arrays.fill( filler, 'x');
+		String[] objects = {
+			"{}",
+			"{\"requestType\":\"sayHello\",\"name\":\"Tess \\\"T\\\"\",\"count\":3,\"ok\":false,\"none\":null}",
+			"{\"medium\":\"" + new String( filler, 0, 200) + "\",\"long\":\"" + new String( filler) + "\"}",
+			"{\"html\":\"<form class=\\\"helloForm\\\">caf\u00e9<\\/form>\",\"nested\":{\"a\":[1,2,{\"b\":null}]}}" };
+		for (String object : objects) {
+			byte[] json		= object.getBytes( StandardCharsets.UTF_8);
+			byte[] binary	= BinaryFields.fromJson( json);
+
+			// ____________________ Check Results _____________________
+			assertTrue( object,		BinaryFields.isBinary( binary));
+			assertFalse( object,	BinaryFields.isBinary( json));
+			assertEquals( object,	new String( BinaryFields.toJson( binary), StandardCharsets.UTF_8));
+		}
+		assertEquals( 20000,	BinaryFields.read( BinaryFields.fromJson( objects[2].getBytes( StandardCharsets.UTF_8)), "long")[0].length());
+		assertFalse( BinaryFields.isBinary( new byte[0]));
+		assertFalse( BinaryFields.isBinary( null));
+	}
+
+	/**
+	 * Test that a body that is not in the binary format, has an unknown member kind, is cut
+	 * short, or has a length too large is rejected with a JSONException.
+	 */
+	@Test
+	public void readShouldRejectBadBodies() {
+		byte[] good = new BinaryWriter().beginObject().member( "name", "Tess").endObject().toByteArray();
+		byte[][] bad = {
+			"{\"name\":\"Tess\"}".getBytes( StandardCharsets.UTF_8),
+			new byte[0],
+			new byte[] { BinaryFields.MAGIC, 'X', 1, 'a', 1, 'b' },
+			Arrays.copyOf( good, good.length - 1),
+			Arrays.copyOf( good, 3),
+			new byte[] { BinaryFields.MAGIC, 'S', (byte) 0x80 },
+			new byte[] { BinaryFields.MAGIC, 'S', (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0x7F } };
+		for (int b=0; b<bad.length; b++) {
+			try {
+				BinaryFields.read( bad[b], "name");
+				fail( "Accepted bad body " + b);
+			}
+			catch (JSONException e) {
+				// Expected
+			}
+			try {
+				BinaryFields.toJson( bad[b]);
+				fail( "Translated bad body " + b);
+			}
+			catch (JSONException e) {
+				// Expected
+			}
+		}
+		assertEquals( "Tess",	BinaryFields.read( good, "name")[0]);
+		assertNull( BinaryFields.read( good, "other")[0]);
+	}
+}
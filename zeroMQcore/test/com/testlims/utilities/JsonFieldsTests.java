@@ -0,0 +1,131 @@
+package com.testlims.utilities;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.*;
+
+/**
+ * Unit tests of the streaming JSON codec:  JsonWriter writing an object, and JsonFields reading
+ * its members back, checked against org.json.
+ */
+public class JsonFieldsTests
+{
+	/** Strings that need escaping, or that are multi-byte in UTF-8.  */
+	static final String[]	AWKWARD	= { "", "plain", "quote \" and backslash \\", "</script> and a slash /",
+			"new\nline, tab\t, return\r, \b and \f", "control \u0001 and \u001f", "caf\u00e9 \u00fcber \u4e16\u754c",
+			"surrogate pair \ud83d\ude00", "delete \u007f and \u0080", "line \u2028 separator" };
+
+	/**
+	 * Test that JsonWriter escapes strings as org.json's JSONObject.quote does, and that JsonFields
+	 * reads each of them back unchanged.
+	 */
+	@Test
+	public void stringsShouldRoundTrip() {
+		JsonWriter writer = new JsonWriter( 16);
+		for (String value : AWKWARD) {
+			writer.reset().beginObject().member( "value", value).endObject();
+			byte[] json = writer.toByteArray();
+
+			// ____________________ Check Results _____________________
+			assertEquals( "{\"value\":" + JSONObject.quote( value) + "}",	writer.toString());
+			assertEquals( value,			JsonFields.read( json, "value"));
+			assertEquals( value,			new JSONObject( writer.toString()).getString( "value"));
+		}
+	}
+
+	/**
+	 * Test that an object of members of each kind is read back as written:  strings as their
+	 * text, literals as their JSON text, and null or absent members as null.
+	 */
+	@Test
+	public void membersShouldRoundTrip() {
+		byte[] json = new JsonWriter().beginObject()
+				.member( "requestId",	"42")
+				.member( "name",		"Tess \"T\" O'Brien")
+				.literal( "count",		"-12.5e3")
+				.literal( "ok",			"true")
+				.literal( "nested",		"{\"a\":[1,{\"b\":\"}\"}],\"c\":null}")
+				.member( "missing",		null)
+				.endObject().toByteArray();
+		String[] values = JsonFields.read( json, "nested", "name", "requestId", "count", "ok", "missing", "absent");
+
+		// ____________________ Check Results _____________________
+		assertEquals( "{\"a\":[1,{\"b\":\"}\"}],\"c\":null}",	values[0]);
+		assertEquals( "Tess \"T\" O'Brien",	values[1]);
+		assertEquals( "42",					values[2]);
+		assertEquals( "-12.5e3",			values[3]);
+		assertEquals( "true",				values[4]);
+		assertNull( values[5]);
+		assertNull( values[6]);
+		JSONObject parsed = new JSONObject( new String( json, StandardCharsets.UTF_8));
+		assertEquals( "42",					parsed.getString( "requestId"));
+		assertEquals( -12500,				parsed.getDouble( "count"), 0);
+		assertEquals( 2,					parsed.getJSONObject( "nested").getJSONArray( "a").length());
+	}
+
+	/**
+	 * Test that members are read from part of an array and from a ByteBuffer, with whitespace,
+	 * escaped names and duplicate names, of which the first is read.
+	 */
+	@Test
+	public void readShouldHandleOffsetsWhitespaceAndDuplicates() {
+		String object = " { \"na\\u006De\" : \"Ann\" ,\n\t\"name\":\"Bob\", \"id\" : 7 } ";
+		byte[] framed = ("xx" + object + "yy").getBytes( StandardCharsets.UTF_8);
+		int length = object.getBytes( StandardCharsets.UTF_8).length;
+		ByteBuffer buffer = ByteBuffer.wrap( framed, 2, length).slice();
+
+		// ____________________ Check Results _____________________
+		assertArrayEquals( new String[] { "Ann", "7" },	JsonFields.read( framed, 2, length, "name", "id"));
+		assertArrayEquals( new String[] { "Ann", "7" },	JsonFields.read( buffer, "name", "id"));
+		assertNull( JsonFields.read( "{}".getBytes( StandardCharsets.UTF_8), "name"));
+	}
+
+	/**
+	 * Test that JsonFields.copy writes the members of an object to a JsonWriter so that the
+	 * object written is the original, compact object.
+	 */
+	@Test
+	public void copyShouldRewriteTheObject() {
+		String object = "{\"requestType\":\"sayHello\",\"name\":\"caf\u00e9 \\\"quoted\\\"\",\"count\":3,\"list\":[1,2],\"none\":null}";
+		JsonWriter writer = new JsonWriter().beginObject();
+		JsonFields.copy( object.getBytes( StandardCharsets.UTF_8), writer);
+		writer.endObject();
+
+		// ____________________ Check Results _____________________
+		assertEquals( object,	writer.toString());
+	}
+
+	/**
+	 * Test that anything that is not a JSON object is rejected with a JSONException, and that
+	 * require rejects a missing member.
+	 */
+	@Test
+	public void readShouldRejectWhatIsNotAnObject() {
+		String[] bad = { "", "[1,2]", "\"text\"", "{name:\"Ann\"}", "{\"name\" \"Ann\"}", "{\"name\":\"Ann\"",
+				"{\"name\":\"Ann\";}", "{\"name\":\"Ann", "{\"a\":[1,2}" };
+		for (String json : bad) {
+			try {
+				JsonFields.read( json.getBytes( StandardCharsets.UTF_8), "name");
+				fail( "Accepted " + json);
+			}
+			catch (JSONException e) {
+				// Expected
+			}
+		}
+		try {
+			JsonFields.require( null, "requestType");
+			fail( "Accepted a missing member");
+		}
+		catch (JSONException e) {
+			assertEquals( "JSONObject[\"requestType\"] not found.",	e.getMessage());
+		}
+	}
+}
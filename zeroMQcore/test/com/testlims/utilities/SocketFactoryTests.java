@@ -0,0 +1,79 @@
+package com.testlims.utilities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.*;
+
+import org.zeromq.ZMQ;
+
+/**
+ * Unit tests of the SocketFactory's tuning profiles.
+ */
+public class SocketFactoryTests
+{
+	private final List<String>	properties	= new ArrayList<String>();
+
+	@After
+	public void clearProperties() {
+		for (String property : properties) {
+			System.clearProperty( property);
+		}
+	}
+
+	/** Set a socket setting for this test, as a system property overriding zeroMQsockets.properties.  */
+	private void set(String key, String value) {
+		properties.add( SocketFactory.SYSTEM_PREFIX + key);
+		System.setProperty( SocketFactory.SYSTEM_PREFIX + key, value);
+	}
+
+	/**
+	 * Test that a profile's int options are applied to the socket, and that a value that is not
+	 * an int, or does not fit in one, is reported and leaves the option at the zeroMQ default.
+	 */
+	@Test
+	public void profileShouldApplyIntOptionsAndReportBadValues() {
+		set( "profile.parse.sndhwm",			"5000");
+		set( "profile.parse.rcvbuf",			"65536");
+		set( "profile.parse.reconnectIvlMax",	"4000");
+		set( "profile.parse.rcvhwm",			"many");
+		set( "profile.parse.linger",			"99999999999");
+		set( "profile.parse.backlog",			"12.5");
+
+		ZMQ.Context context = ZMQ.context( 1);
+		ByteArrayOutputStream errors = new ByteArrayOutputStream();
+		PrintStream err = System.err;
+		System.setErr( new PrintStream( errors, true));
+		ZMQ.Socket parsed;
+		try {
+			parsed = SocketFactory.socket( context, ZMQ.DEALER, "parse", "parse test", false);
+		}
+		finally {
+			System.setErr( err);
+		}
+		ZMQ.Socket defaults = SocketFactory.socket( context, ZMQ.DEALER, "default", "default test", false);
+		String describe = SocketFactory.describe( "parse");
+
+		// ____________________ Check Results _____________________
+		assertEquals( 5000,						parsed.getSndHWM());
+		assertEquals( 65536,					parsed.getReceiveBufferSize());
+		assertEquals( 4000,						parsed.getReconnectIVLMax());
+		assertEquals( defaults.getRcvHWM(),		parsed.getRcvHWM());
+		assertEquals( defaults.getLinger(),		parsed.getLinger());
+		assertEquals( defaults.getBacklog(),	parsed.getBacklog());
+		String reported = errors.toString();
+		assertTrue( reported, reported.contains( "profile parse option rcvhwm=many is not an int"));
+		assertTrue( reported, reported.contains( "profile parse option linger=99999999999 is not an int"));
+		assertTrue( reported, reported.contains( "profile parse option backlog=12.5 is not an int"));
+		assertTrue( describe, describe.startsWith( "parse{sndhwm=5000, rcvhwm=many, rcvbuf=65536, linger=99999999999,"));
+
+		SocketFactory.close( parsed);
+		SocketFactory.close( defaults);
+		context.term();
+	}
+}
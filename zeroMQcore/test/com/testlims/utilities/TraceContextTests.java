@@ -0,0 +1,97 @@
+package com.testlims.utilities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.*;
+
+/**
+ * Unit tests of TraceContext:  its Ids and timestamps, and the trace frame it travels in.
+ */
+public class TraceContextTests
+{
+	/**
+	 * Test that a trace read from its frame has the same Ids and timestamps, including more
+	 * timestamps than the trace first has room for, and writes the same frame.
+	 */
+	@Test
+	public void frameShouldRoundTrip() {
+		TraceContext trace = TraceContext.start()
+				.mark( TraceContext.GATEWAY_RECEIVED,	1000)
+				.mark( TraceContext.GATEWAY_SENT,		42000)
+				.mark( TraceContext.SERVICE_RECEIVED,	-5)
+				.mark( TraceContext.SERVICE_SENT,		Long.MAX_VALUE)
+				.mark( TraceContext.GATEWAY_REPLIED,	Long.MIN_VALUE)
+				.mark( TraceContext.PUBLISHED,			7)
+				.mark( "extra.one",						8);
+		byte[] frame = trace.toFrame( null);
+		TraceContext read = TraceContext.fromFrame( frame);
+
+		// ____________________ Check Results _____________________
+		assertEquals( trace.getTraceId(),			read.getTraceId());
+		assertEquals( trace.getSpanId(),			read.getSpanId());
+		assertEquals( "0000000000000000",			read.getParentSpanId());
+		assertEquals( 32,							read.getTraceId().length());
+		assertEquals( 16,							read.getSpanId().length());
+		assertEquals( 1000,							read.get( TraceContext.GATEWAY_RECEIVED));
+		assertEquals( -5,							read.get( TraceContext.SERVICE_RECEIVED));
+		assertEquals( Long.MAX_VALUE,				read.get( TraceContext.SERVICE_SENT));
+		assertEquals( Long.MIN_VALUE,				read.get( TraceContext.GATEWAY_REPLIED));
+		assertEquals( 8,							read.get( "extra.one"));
+		assertEquals( -1,							read.get( "absent"));
+		assertEquals( 41,							read.micros( TraceContext.GATEWAY_RECEIVED, TraceContext.GATEWAY_SENT));
+		assertEquals( -1,							read.micros( TraceContext.GATEWAY_RECEIVED, "absent"));
+		assertEquals( new String( frame, StandardCharsets.UTF_8),	new String( read.toFrame( null), StandardCharsets.UTF_8));
+		assertEquals( trace.toString(),				read.toString());
+	}
+
+	/**
+	 * Test that a child span keeps the trace Id and timestamps, has its parent's span as its
+	 * parent, and that timestamps added to the child or to a frame only leave the parent as it was.
+	 */
+	@Test
+	public void childAndExtraMarkShouldLeaveTheParent() {
+		TraceContext parent	= TraceContext.start().mark( TraceContext.GATEWAY_RECEIVED, 10);
+		TraceContext child	= parent.child().mark( TraceContext.SERVICE_RECEIVED, 20);
+		long before = System.nanoTime();
+		TraceContext published = TraceContext.fromFrame( child.toFrame( TraceContext.PUBLISHED));
+
+		// ____________________ Check Results _____________________
+		assertEquals( parent.getTraceId(),		child.getTraceId());
+		assertEquals( parent.getSpanId(),		child.getParentSpanId());
+		assertNotEquals( parent.getSpanId(),	child.getSpanId());
+		assertEquals( 10,						child.get( TraceContext.GATEWAY_RECEIVED));
+		assertEquals( -1,						parent.get( TraceContext.SERVICE_RECEIVED));
+		assertEquals( -1,						child.get( TraceContext.PUBLISHED));
+		assertEquals( child.getParentSpanId(),	published.getParentSpanId());
+		assertEquals( 20,						published.get( TraceContext.SERVICE_RECEIVED));
+		assertTrue( published.get( TraceContext.PUBLISHED) >= before);
+		assertNotEquals( TraceContext.start().getTraceId(),	parent.getTraceId());
+	}
+
+	/**
+	 * Test that a frame that is not a trace frame is read as no trace, and that a timestamp
+	 * without a name is skipped.
+	 */
+	@Test
+	public void fromFrameShouldRejectWhatIsNotATrace() {
+		String ids = "0123456789abcdef0123456789abcdef-00000000000000ff-fedcba9876543210";
+		String[] bad = { "", "not a trace", "0123456789abcdef-00000000000000ff-0000000000000000",
+				"0123456789abcdef0123456789abcdef-00000000000000ff", "0123456789abcdeg0123456789abcdef-00-00",
+				ids + ";gw.recv=soon", ids + ";gw.recv=" };
+		for (String frame : bad) {
+			// ____________________ Check Results _____________________
+			assertNull( frame,	TraceContext.fromFrame( frame.getBytes( StandardCharsets.UTF_8)));
+		}
+		TraceContext trace = TraceContext.fromFrame( (ids + ";=5;gw.recv=3").getBytes( StandardCharsets.UTF_8));
+		assertEquals( "0123456789abcdef0123456789abcdef",	trace.getTraceId());
+		assertEquals( "00000000000000ff",	trace.getSpanId());
+		assertEquals( "fedcba9876543210",	trace.getParentSpanId());
+		assertEquals( 3,					trace.get( TraceContext.GATEWAY_RECEIVED));
+		assertEquals( "trace=0123456789abcdef0123456789abcdef/00000000000000ff gw.recv=0",	trace.toString());
+	}
+}
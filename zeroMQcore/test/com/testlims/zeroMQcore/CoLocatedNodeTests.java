@@ -0,0 +1,198 @@
+package com.testlims.zeroMQcore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.*;
+
+import org.zeromq.ZMQ;
+
+import com.testlims.utilities.Envelope;
+import com.testlims.utilities.SocketFactory;
+
+/**
+ * Unit tests of the CoLocatedNode:  the MessageLogger, HelloService and gateway started in this JVM
+ * over inproc endpoints.  The MessageLogger and HelloService classes are put on the test classpath by
+ * the colocated profile, which is active once those projects have been compiled.
+ */
+public class CoLocatedNodeTests
+{
+	static final String 	LOGGER_URL			= "tcp://localhost:5590";
+	static final String 	SERVICE_URL			= "tcp://localhost:5591";
+
+	private final List<String>	properties	= new ArrayList<String>();
+	private CoLocatedNode		node		= null;
+	private File				logFile		= null;
+
+	@Before
+	public void configure() throws IOException {
+		logFile = File.createTempFile( "colocated", ".log");
+		set( "loggerURL",			LOGGER_URL);
+		set( "loggerTopic",			"CoLocated_Log");
+		set( "route.HelloService",	SERVICE_URL);
+		set( "http.port",			"0");
+		set( "http.webContent",		"WebContent");
+		set( "colocated.logFile",	logFile.getPath());
+	}
+
+	@After
+	public void stopNode() {
+		if (node != null) {
+			node.stop();
+		}
+		for (String property : properties) {
+			System.clearProperty( property);
+		}
+		logFile.delete();
+	}
+
+	/** Set a gateway setting for this test, as a system property overriding zeroMQcore.properties.  */
+	private void set(String key, String value) {
+		properties.add( GatewayConfig.SYSTEM_PREFIX + key);
+		System.setProperty( GatewayConfig.SYSTEM_PREFIX + key, value);
+	}
+
+	/**
+	 * Test that a CoLocatedNode answers a sayHello through its gateway, with the service and the
+	 * logger bound to the inproc endpoints of their configured ports rather than to TCP, and that
+	 * stopping the node clears the transport setting it made.
+	 */
+	@Test
+	public void coLocatedNodeShouldServeOverInproc() throws Exception {
+		assertNull( "transport already set", System.getProperty( CoLocatedNode.TRANSPORT_PROPERTY));
+		node = new CoLocatedNode( new GatewayConfig());
+		node.start();
+		String transport = System.getProperty( CoLocatedNode.TRANSPORT_PROPERTY);
+
+		HttpURLConnection post = sayHello( node, "Tess");
+		String reply = new String( read( post.getInputStream()), ZMQ.CHARSET);
+
+		// The service answers on the inproc endpoint of its port, in the node's shared context
+		String serviceEndpoint = SocketFactory.endpoint( SERVICE_URL);
+		ZMQ.Context context = SocketFactory.acquireContext();
+		ZMQ.Socket request = context.socket( ZMQ.REQ);
+		request.setReceiveTimeOut( 2000);
+		request.connect( "inproc://localhost:5591");
+		new Envelope( "2", "HelloService", "sayHello", Envelope.FLAG_NONE, "{\"name\":\"Ann\"}".getBytes( ZMQ.CHARSET)).send( request);
+		Envelope direct = Envelope.recv( request);
+		request.close();
+		SocketFactory.releaseContext();
+		boolean serviceOnTcp = listening( 5591);
+		boolean loggerOnTcp = listening( 5590);
+
+		node.stop();
+		node = null;
+		String log = new String( Files.readAllBytes( logFile.toPath()), ZMQ.CHARSET);
+
+		// ____________________ Check Results _____________________
+		assertEquals( "inproc",					transport);
+		assertEquals( 200,						post.getResponseCode());
+		assertTrue( reply, reply.contains( "\"response\":\"Hello Tess\""));
+		assertEquals( "inproc://localhost:5591",	serviceEndpoint);
+		assertNotNull( direct);
+		assertEquals( "Hello Ann",				direct.readFields( "response")[0]);
+		assertFalse( "HelloService bound TCP",	serviceOnTcp);
+		assertFalse( "MessageLogger bound TCP",	loggerOnTcp);
+		assertTrue( log, log.contains( "sayHello"));
+		assertNull( System.getProperty( CoLocatedNode.TRANSPORT_PROPERTY));
+		assertEquals( SERVICE_URL,				SocketFactory.endpoint( SERVICE_URL));
+	}
+
+	/**
+	 * Test that a transport set before the node starts is kept, and that a node whose gateway cannot
+	 * bind its port stops the logger and service it had started, so their endpoints are free for the
+	 * next node, and clears the transport.
+	 */
+	@Test
+	public void coLocatedNodeShouldCleanUpAFailedStart() throws Exception {
+		System.setProperty( CoLocatedNode.TRANSPORT_PROPERTY, "tcp");
+		String kept;
+		try {
+			CoLocatedNode tcpNode = new CoLocatedNode( new GatewayConfig());
+			tcpNode.start();
+			tcpNode.stop();
+			kept = System.getProperty( CoLocatedNode.TRANSPORT_PROPERTY);
+		}
+		finally {
+			System.clearProperty( CoLocatedNode.TRANSPORT_PROPERTY);
+		}
+
+		ServerSocket taken = new ServerSocket( 0);
+		set( "http.port",			String.valueOf( taken.getLocalPort()));
+		CoLocatedNode failed = new CoLocatedNode( new GatewayConfig());
+		Exception failure = null;
+		try {
+			failed.start();
+		}
+		catch (Exception e) {
+			failure = e;
+		}
+		finally {
+			taken.close();
+		}
+		String transport = System.getProperty( CoLocatedNode.TRANSPORT_PROPERTY);
+
+		set( "http.port",			"0");
+		node = new CoLocatedNode( new GatewayConfig());
+		node.start();
+		HttpURLConnection post = sayHello( node, "Bob");
+		String reply = new String( read( post.getInputStream()), ZMQ.CHARSET);
+
+		// ____________________ Check Results _____________________
+		assertEquals( "tcp",					kept);
+		assertTrue( String.valueOf( failure),	failure instanceof BindException);
+		assertNull( transport);
+		assertEquals( 200,						post.getResponseCode());
+		assertTrue( reply, reply.contains( "\"response\":\"Hello Bob\""));
+	}
+
+	/** @return the gateway's connection for a sayHello POST to the node. */
+	private static HttpURLConnection sayHello(CoLocatedNode node, String name) throws IOException {
+		String address = node.getAddress();
+		HttpURLConnection post = (HttpURLConnection) new URL( "http://localhost:"
+				+ address.substring( address.lastIndexOf( ':') + 1) + "/services").openConnection();
+		post.setRequestMethod( "POST");
+		post.setDoOutput( true);
+		post.getOutputStream().write( ("{\"serviceName\":\"HelloService\",\"requestType\":\"sayHello\",\"name\":\"" + name + "\"}").getBytes( ZMQ.CHARSET));
+		return post;
+	}
+
+	/** @return true if something accepts TCP connections on the port on this host. */
+	private static boolean listening(int port) throws IOException {
+		try {
+			new Socket( "localhost", port).close();
+			return true;
+		}
+		catch (ConnectException e) {
+			return false;
+		}
+	}
+
+	private static byte[] read(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int count;
+		while ((count = in.read( buffer)) > 0) {
+			bytes.write( buffer, 0, count);
+		}
+		in.close();
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,730 @@
+package com.testlims.zeroMQcore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.*;
+
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Context;
+
+import com.testlims.utilities.Envelope;
+
+/**
+ * Unit tests of the gateway:  the HTTPzeroMQServlet, run on the MockHttpServletRequest and
+ * MockHttpServletResponse, in front of a FakeService that answers like HelloService.  No
+ * MessageLogger is needed; the servlet keeps its log messages for a logger that never subscribes.
+ */
+public class GatewayTests
+{
+	static final String 	SERVICE_URL			= "tcp://localhost:5580";
+	static final String 	OTHER_URL			= "tcp://localhost:5581";
+	static final String 	LOGGER_URL			= "tcp://localhost:5589";
+
+	private final List<String>	properties	= new ArrayList<String>();
+	private FakeService			service		= null;
+	private HTTPzeroMQServlet	servlet		= null;
+
+	@Before
+	public void startService() throws InterruptedException {
+		set( "loggerURL",			LOGGER_URL);
+		set( "loggerReadyTimeout",	"0");
+		set( "route.HelloService",	SERVICE_URL);
+		set( "timeout",				"1000");
+		set( "timeout.sayHello",	"1000");
+		set( "timeout.sendHTML",	"1000");
+		set( "retries.sayHello",	"0");
+		service = new FakeService( SERVICE_URL, "HelloService");
+		service.start();
+		service.awaitBound();
+	}
+
+	@After
+	public void stopService() throws InterruptedException {
+		if (servlet != null) {
+			servlet.closeAndTerminate();
+		}
+		service.close();
+		for (String property : properties) {
+			System.clearProperty( property);
+		}
+	}
+
+	/** Set a gateway setting for this test, as a system property overriding zeroMQcore.properties.  */
+	private void set(String key, String value) {
+		properties.add( GatewayConfig.SYSTEM_PREFIX + key);
+		System.setProperty( GatewayConfig.SYSTEM_PREFIX + key, value);
+	}
+
+	/**
+	 * Test that each request goes to the service in an envelope carrying the requestId, serviceName,
+	 * requestType and a trace, and that the reply body is written back unchanged.
+	 */
+	@Test
+	public void servletShouldSendRequestsInAnEnvelope() throws Exception {
+		servlet = new HTTPzeroMQServlet();
+		MockHttpServletResponse response = post( "{\"serviceName\":\"HelloService\",\"requestType\":\"sayHello\",\"name\":\"Tess\"}");
+
+		// ____________________ Check Results _____________________
+		assertEquals( 200,									response.getStatus());
+		assertEquals( "application/json; charset=utf-8",	response.getContentType());
+		assertEquals( "{\"requestType\":\"sayHello\",\"requestId\":\"1\",\"response\":\"Hello Tess\",\"serviceName\":\"HelloService\"}",
+				response.getBodyString());
+		Envelope request = service.requests.get( 0);
+		assertEquals( "1",						request.getRequestId());
+		assertEquals( "HelloService",			request.getServiceName());
+		assertEquals( "sayHello",				request.getRequestType());
+		assertNotNull( request.getTrace());
+	}
+
+	/**
+	 * Test that with passThrough=true the body is sent unparsed to the default route, with an
+	 * empty requestType for the service to read from the body.
+	 */
+	@Test
+	public void servletShouldPassBodiesThrough() throws Exception {
+		set( "passThrough",	"true");
+		servlet = new HTTPzeroMQServlet();
+		String body = "{\"requestType\":\"sayHello\", \"name\":\"Tess\"}";
+		MockHttpServletResponse response = post( body);
+
+		// ____________________ Check Results _____________________
+		assertEquals( 200,						response.getStatus());
+		assertTrue( response.getBodyString(), response.getBodyString().contains( "\"response\":\"Hello Tess\""));
+		Envelope request = service.requests.get( 0);
+		assertEquals( "",						request.getRequestType());
+		assertEquals( "HelloService",			request.getServiceName());
+		assertEquals( body,						request.getBodyString());
+	}
+
+	/**
+	 * Test that requests are routed by serviceName, and that a request for a service with no
+	 * route is answered with 404 when there is no default route.
+	 */
+	@Test
+	public void servletShouldRouteByServiceName() throws Exception {
+		FakeService other = new FakeService( OTHER_URL, "OtherService");
+		other.start();
+		other.awaitBound();
+		set( "route.OtherService",	OTHER_URL);
+		set( "defaultRoute",		"");
+		servlet = new HTTPzeroMQServlet();
+		MockHttpServletResponse response1 = post( "{\"serviceName\":\"OtherService\",\"requestType\":\"sayHello\",\"name\":\"Ann\"}");
+		MockHttpServletResponse response2 = post( "{\"serviceName\":\"HelloService\",\"requestType\":\"sayHello\",\"name\":\"Bob\"}");
+		MockHttpServletResponse response3 = post( "{\"serviceName\":\"NoService\",\"requestType\":\"sayHello\",\"name\":\"Cy\"}");
+		other.close();
+
+		// ____________________ Check Results _____________________
+		assertEquals( 200,						response1.getStatus());
+		assertTrue( response1.getBodyString(), response1.getBodyString().contains( "\"serviceName\":\"OtherService\""));
+		assertEquals( 200,						response2.getStatus());
+		assertTrue( response2.getBodyString(), response2.getBodyString().contains( "\"serviceName\":\"HelloService\""));
+		assertEquals( 404,						response3.getStatus());
+		assertEquals( 1,						other.requests.size());
+		assertEquals( 1,						service.requests.size());
+	}
+
+	/**
+	 * Test that concurrent requests share the route's pool of REQ sockets:  every request is
+	 * answered, but no more than poolSize of them are at the service at once.
+	 */
+	@Test
+	public void servletShouldLeaseSocketsFromThePool() throws Exception {
+		set( "poolSize",	"2");
+		servlet = new HTTPzeroMQServlet();
+		final MockHttpServletResponse[] responses = new MockHttpServletResponse[6];
+		Thread[] threads = new Thread[responses.length];
+		long start = System.currentTimeMillis();
+		for (int t=0; t<threads.length; t++) {
+			final int r = t;
+			threads[t] = new Thread() {
+				public void run() {
+					responses[r] = post( "{\"serviceName\":\"HelloService\",\"requestType\":\"sayHello\",\"name\":\"T" + r + "\",\"delay\":200}");
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join( 5000);
+		}
+		long elapsed = System.currentTimeMillis() - start;
+
+		// ____________________ Check Results _____________________
+		for (MockHttpServletResponse response : responses) {
+			assertNotNull( response);
+			assertEquals( 200,					response.getStatus());
+		}
+		assertEquals( 2,						service.maxConcurrent);
+		assertTrue( "elapsed " + elapsed, elapsed >= 3 * 200 - 50);
+	}
+
+	/**
+	 * Test that a request the service never answers is answered with 504 once its deadline passes.
+	 */
+	@Test
+	public void servletShouldAnswerTimeoutWith504() throws Exception {
+		set( "timeout.sayHello",	"600");
+		servlet = new HTTPzeroMQServlet();
+		long start = System.currentTimeMillis();
+		MockHttpServletResponse response = post( "{\"serviceName\":\"HelloService\",\"requestType\":\"sayHello\",\"name\":\"Tess\",\"drops\":9}");
+		long elapsed = System.currentTimeMillis() - start;
+
+		// ____________________ Check Results _____________________
+		assertEquals( 504,						response.getStatus());
+		assertEquals( 0,						response.getBody().length);
+		assertTrue( "elapsed " + elapsed, elapsed >= 550 && elapsed < 1500);
+	}
+
+	/**
+	 * Test that a late reply is retried within the deadline for a request type given retries,
+	 * and that a request type without retries is sent once.
+	 */
+	@Test
+	public void servletShouldRetryOnlyIdempotentTypes() throws Exception {
+		set( "retries.sayHello",	"2");
+		set( "timeout.sayHello",	"900");
+		servlet = new HTTPzeroMQServlet();
+		MockHttpServletResponse retried = post( "{\"serviceName\":\"HelloService\",\"requestType\":\"sayHello\",\"name\":\"Tess\",\"drops\":1}");
+		int sayHelloAttempts = service.requests.size();
+		MockHttpServletResponse sentOnce = post( "{\"serviceName\":\"HelloService\",\"requestType\":\"addName\",\"name\":\"Tess\",\"drops\":1}");
+		Thread.sleep( 200);
+
+		// ____________________ Check Results _____________________
+		assertEquals( 200,						retried.getStatus());
+		assertTrue( retried.getBodyString(), retried.getBodyString().contains( "\"requestId\":\"1\""));
+		assertEquals( 2,						sayHelloAttempts);
+		assertEquals( 504,						sentOnce.getStatus());
+		assertEquals( 3,						service.requests.size());
+	}
+
+	/**
+	 * Test that in asynchronous mode a request whose AsyncContext times out is answered with 504
+	 * once, and that its late reply is dropped.
+	 */
+	@Test
+	public void asyncServletShouldAnswerTimeoutWith504() throws Exception {
+		set( "async",	"true");
+		servlet = new HTTPzeroMQServlet();
+		MockHttpServletRequest request = new MockHttpServletRequest(
+				"{\"serviceName\":\"HelloService\",\"requestType\":\"sayHello\",\"name\":\"Tess\",\"delay\":300}");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		servlet.doPost( request.asServletRequest( response), response.asServletResponse());
+		service.awaitReceived( 1, 2000);
+		request.timeout();
+		Thread.sleep( 500);
+		MockHttpServletResponse next = post( "{\"serviceName\":\"HelloService\",\"requestType\":\"sayHello\",\"name\":\"Bob\"}");
+
+		// ____________________ Check Results _____________________
+		assertEquals( 1000,						request.getAsyncTimeout());
+		assertEquals( 504,						response.getStatus());
+		assertEquals( 0,						response.getBody().length);
+		assertEquals( 1,						request.getCompletions());
+		assertFalse( request.isErrorDispatched());
+		assertEquals( 200,						next.getStatus());
+	}
+
+	/**
+	 * Test that in asynchronous mode a reply that arrives just before the AsyncContext times out
+	 * is written once:  the time-out, finding the reply being written, waits for it to complete
+	 * the request rather than leave the container to error dispatch it.
+	 */
+	@Test
+	public void asyncServletShouldFinishReplyThatBeatsTimeout() throws Exception {
+		set( "async",	"true");
+		servlet = new HTTPzeroMQServlet();
+		final MockHttpServletRequest request = new MockHttpServletRequest(
+				"{\"serviceName\":\"HelloService\",\"requestType\":\"sayHello\",\"name\":\"Tess\"}");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		request.holdAsyncStarts();
+		servlet.doPost( request.asServletRequest( response), response.asServletResponse());
+		assertTrue( "reply not received", request.awaitHeldStart( 2000));
+		Thread timeout = new Thread() {
+			public void run() {
+				try {
+					request.timeout();
+				}
+				catch (IOException e) {
+					throw new IllegalStateException( e);
+				}
+			}
+		};
+		timeout.start();
+		timeout.join( 200);
+		boolean waited = timeout.isAlive();
+		request.runHeldStarts();
+		timeout.join( 2000);
+
+		// ____________________ Check Results _____________________
+		assertTrue( request.awaitComplete( 2000));
+		assertTrue( "onTimeout did not wait for the reply", waited);
+		assertEquals( 200,						response.getStatus());
+		assertTrue( response.getBodyString(), response.getBodyString().contains( "\"requestId\":\"1\""));
+		assertEquals( 1,						request.getCompletions());
+		assertFalse( request.isErrorDispatched());
+	}
+
+	/**
+	 * Test that an AsyncServiceChannel sends every request handed to it by many threads at once
+	 * to a slow service, and that a request sent once the channel has gone quiet is still sent
+	 * at once rather than waiting for the poll to time out.
+	 */
+	@Test
+	public void asyncChannelShouldSendEveryConcurrentRequest() throws Exception {
+		final int threads = 8;
+		final int perThread = 50;
+		Context context = ZMQ.context( 1);
+		final AsyncServiceChannel channel = new AsyncServiceChannel( context, SERVICE_URL);
+		channel.start();
+		final AtomicInteger mismatched = new AtomicInteger();
+		long[] quiet = new long[10];
+		for (int round=0; round<quiet.length; round++) {
+			final int first = round * threads * perThread;
+			final CountDownLatch replies = new CountDownLatch( threads * perThread);
+			for (int t=0; t<threads; t++) {
+				final int offset = first + t * perThread;
+				new Thread() {
+					public void run() {
+						for (int r=offset; r<offset + perThread; r++) {
+							send( channel, Integer.toString( r), 20, replies, mismatched);
+							Thread.yield();
+						}
+					}
+				}.start();
+			}
+			assertTrue( "round " + round + " lost " + replies.getCount() + " replies", replies.await( 10, TimeUnit.SECONDS));
+
+			Thread.sleep( 50);
+			CountDownLatch last = new CountDownLatch( 1);
+			long start = System.nanoTime();
+			send( channel, "last" + round, 0, last, mismatched);
+			last.await( 5, TimeUnit.SECONDS);
+			quiet[round] = (System.nanoTime() - start) / 1000000;
+		}
+		channel.close();
+		channel.join( 2000);
+		context.term();
+
+		// ____________________ Check Results _____________________
+		assertEquals( 0,						mismatched.get());
+		assertEquals( 0,						channel.inFlightCount());
+		for (int round=0; round<quiet.length; round++) {
+			assertTrue( "round " + round + " quiet request took " + quiet[round] + " ms", quiet[round] < AsyncServiceChannel.POLL_TIMEOUT / 2);
+		}
+	}
+
+	private static void send(AsyncServiceChannel channel, final String requestId, int delay,
+			final CountDownLatch replies, final AtomicInteger mismatched) {
+		byte[] body = ("{\"name\":\"Tess\",\"delay\":" + delay + "}").getBytes( ZMQ.CHARSET);
+		channel.send( requestId, Envelope.frames( requestId, "HelloService", "sayHello", Envelope.FLAG_NONE, body),
+				new AsyncServiceChannel.ReplyHandler() {
+			public void onReply(byte[] reply) {
+				if (!new String( reply, ZMQ.CHARSET).contains( "\"requestId\":\"" + requestId + "\"")) {
+					mismatched.incrementAndGet();
+				}
+				replies.countDown();
+			}
+		});
+	}
+
+	/**
+	 * Test that a route with maxInFlight requests in flight answers the next one with 503 and
+	 * Retry-After rather than queueing it.
+	 */
+	@Test
+	public void servletShouldRejectRequestsBeyondMaxInFlight() throws Exception {
+		set( "maxInFlight",	"1");
+		servlet = new HTTPzeroMQServlet();
+		final MockHttpServletResponse[] slow = new MockHttpServletResponse[1];
+		Thread thread = new Thread() {
+			public void run() {
+				slow[0] = post( "{\"serviceName\":\"HelloService\",\"requestType\":\"sayHello\",\"name\":\"Slow\",\"delay\":500}");
+			}
+		};
+		thread.start();
+		service.awaitReceived( 1, 2000);
+		MockHttpServletResponse rejected = post( "{\"serviceName\":\"HelloService\",\"requestType\":\"sayHello\",\"name\":\"Fast\"}");
+		thread.join( 2000);
+		MockHttpServletResponse after = post( "{\"serviceName\":\"HelloService\",\"requestType\":\"sayHello\",\"name\":\"After\"}");
+
+		// ____________________ Check Results _____________________
+		assertEquals( 503,						rejected.getStatus());
+		assertEquals( "1",						rejected.getHeader( "Retry-After"));
+		assertEquals( 200,						slow[0].getStatus());
+		assertEquals( 200,						after.getStatus());
+		assertEquals( 2,						service.requests.size());
+	}
+
+	/**
+	 * Test that a request that expires without a reply returns its credit, so that a route with
+	 * maxInFlight=1 admits the next request rather than answering 503 from then on.
+	 */
+	@Test
+	public void servletShouldReturnCreditOfExpiredRequest() throws Exception {
+		set( "maxInFlight",			"1");
+		set( "timeout.sayHello",	"400");
+		servlet = new HTTPzeroMQServlet();
+		MockHttpServletResponse expired = post( "{\"serviceName\":\"HelloService\",\"requestType\":\"sayHello\",\"name\":\"Lost\",\"drops\":9}");
+		MockHttpServletResponse next = post( "{\"serviceName\":\"HelloService\",\"requestType\":\"sayHello\",\"name\":\"Next\"}");
+
+		// ____________________ Check Results _____________________
+		assertEquals( 504,						expired.getStatus());
+		assertEquals( 200,						next.getStatus());
+		assertTrue( next.getBodyString(), next.getBodyString().contains( "\"response\":\"Hello Next\""));
+		assertEquals( 2,						service.requests.size());
+	}
+
+	/**
+	 * Test that identical coalesced requests in flight together are sent to the service once,
+	 * and that each is answered with its own requestId.
+	 */
+	@Test
+	public void servletShouldCoalesceIdenticalRequests() throws Exception {
+		set( "coalesce",	"sayHello");
+		servlet = new HTTPzeroMQServlet();
+		final String body = "{\"serviceName\":\"HelloService\",\"requestType\":\"sayHello\",\"name\":\"Tess\",\"delay\":300}";
+		final MockHttpServletResponse[] leader = new MockHttpServletResponse[1];
+		Thread thread = new Thread() {
+			public void run() {
+				leader[0] = post( body);
+			}
+		};
+		thread.start();
+		service.awaitReceived( 1, 2000);
+		MockHttpServletResponse follower = post( body);
+		thread.join( 2000);
+
+		// ____________________ Check Results _____________________
+		assertEquals( 1,						service.requests.size());
+		assertEquals( 200,						leader[0].getStatus());
+		assertEquals( 200,						follower.getStatus());
+		assertTrue( leader[0].getBodyString(),	leader[0].getBodyString().contains( "\"requestId\":\"1\""));
+		assertTrue( follower.getBodyString(),	follower.getBodyString().contains( "\"requestId\":\"2\""));
+	}
+
+	/**
+	 * Test that a cacheable reply is stored without the requestId of the request that filled the
+	 * cache, so a later request answered from the cache is not sent a foreign id, and that a
+	 * request whose If-None-Match carries the ETag is answered with 304.
+	 */
+	@Test
+	public void servletShouldAnswerFromCacheWithoutForeignRequestId() throws Exception {
+		set( "cacheable",	"sendHTML");
+		servlet = new HTTPzeroMQServlet();
+		String body = "{\"serviceName\":\"HelloService\",\"requestType\":\"sendHTML\",\"name\":\"Tess\"}";
+		MockHttpServletResponse filled = post( body);
+		MockHttpServletResponse hit = post( body);
+		MockHttpServletRequest conditional = new MockHttpServletRequest( body);
+		conditional.setHeader( "If-None-Match", filled.getHeader( "ETag"));
+		MockHttpServletResponse notModified = post( conditional);
+
+		// ____________________ Check Results _____________________
+		assertEquals( 1,						service.requests.size());
+		assertEquals( "1",						service.requests.get( 0).getRequestId());
+		assertEquals( 200,						filled.getStatus());
+		assertEquals( "{\"requestType\":\"sendHTML\",\"response\":\"Hello Tess\",\"serviceName\":\"HelloService\"}",
+												filled.getBodyString());
+		assertEquals( 200,						hit.getStatus());
+		assertEquals( filled.getBodyString(),	hit.getBodyString());
+		assertNotNull( filled.getHeader( "ETag"));
+		assertEquals( filled.getHeader( "ETag"),	hit.getHeader( "ETag"));
+		assertEquals( 304,						notModified.getStatus());
+		assertEquals( 0,						notModified.getBody().length);
+	}
+
+	/**
+	 * Test that a batch takes a requestId of its own and gives each item a distinct one, that the
+	 * replies come back in the order of the items, and that they are collected as they complete:
+	 * a slow first item holds only its own place in the window while the fast items cycle
+	 * through the other.
+	 */
+	@Test
+	public void servletShouldCollectBatchRepliesAsTheyComplete() throws Exception {
+		set( "batch.window",	"2");
+		set( "poolSize",		"2");
+		servlet = new HTTPzeroMQServlet();
+		StringBuilder items = new StringBuilder( "[{\"serviceName\":\"HelloService\",\"requestType\":\"sayHello\",\"name\":\"Slow\",\"delay\":800}");
+		for (int i=1; i<=4; i++) {
+			items.append( ",{\"serviceName\":\"HelloService\",\"requestType\":\"sayHello\",\"name\":\"Fast" + i + "\",\"delay\":200}");
+		}
+		MockHttpServletRequest request = new MockHttpServletRequest( items.append( "]").toString());
+		request.setPath( "/services/batch", null);
+		long start = System.currentTimeMillis();
+		MockHttpServletResponse response = post( request);
+		long elapsed = System.currentTimeMillis() - start;
+		MockHttpServletResponse next = post( "{\"serviceName\":\"HelloService\",\"requestType\":\"sayHello\",\"name\":\"Tess\"}");
+
+		// ____________________ Check Results _____________________
+		assertEquals( 200,						response.getStatus());
+		JSONArray replies = new JSONArray( response.getBodyString());
+		assertEquals( 5,						replies.length());
+		assertEquals( "Hello Slow",				replies.getJSONObject( 0).getString( "response"));
+		List<String> ids = new ArrayList<String>();
+		for (int i=0; i<replies.length(); i++) {
+			if (i > 0) assertEquals( "Hello Fast" + i,	replies.getJSONObject( i).getString( "response"));
+			ids.add( replies.getJSONObject( i).getString( "requestId"));
+		}
+		assertEquals( "[2, 3, 4, 5, 6]",		ids.toString());
+		assertTrue( next.getBodyString(), next.getBodyString().contains( "\"requestId\":\"7\""));
+		assertEquals( 2,						service.maxConcurrent);
+		assertTrue( "elapsed " + elapsed, elapsed < 1200);
+	}
+
+	/**
+	 * Test that every answered request is recorded in the histograms served at /metrics.
+	 */
+	@Test
+	public void servletShouldRecordMetrics() throws Exception {
+		servlet = new HTTPzeroMQServlet();
+		post( "{\"serviceName\":\"HelloService\",\"requestType\":\"sayHello\",\"name\":\"Tess\"}");
+		MockHttpServletRequest request = new MockHttpServletRequest( "");
+		request.setMethod( "GET");
+		request.setPath( "/metrics", null);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		new MetricsServlet().doGet( request.asServletRequest( response), response.asServletResponse());
+		String metrics = response.getBodyString();
+
+		// ____________________ Check Results _____________________
+		assertEquals( 200,						response.getStatus());
+		assertTrue( metrics, metrics.contains( "zeromqcore_duration_seconds_count{service=\"HelloService\",type=\"sayHello\",phase=\"total\"} "));
+		assertTrue( metrics, metrics.contains( "zeromqcore_duration_seconds_count{service=\"HelloService\",type=\"sayHello\",phase=\"backend\"} "));
+		assertTrue( metrics, metrics.contains( "zeromqcore_responses_total{service=\"HelloService\",type=\"sayHello\",status=\"200\"} "));
+	}
+
+	/**
+	 * Test the EmbeddedGateway over HTTP:  a /services POST, and the compressed welcome page.
+	 */
+	@Test
+	public void embeddedGatewayShouldServeOverHttp() throws Exception {
+		set( "http.port",		"0");
+		set( "http.webContent",	"WebContent");
+		GatewayConfig config	= new GatewayConfig();
+		EmbeddedGateway gateway	= new EmbeddedGateway( config);
+		NioHttpServer server	= new NioHttpServer( config, gateway, gateway.getServletContext());
+		server.start();
+		String base = "http://localhost:" + server.getAddress().getPort();
+		try {
+			HttpURLConnection post = (HttpURLConnection) new URL( base + "/services").openConnection();
+			post.setRequestMethod( "POST");
+			post.setDoOutput( true);
+			post.getOutputStream().write( "{\"serviceName\":\"HelloService\",\"requestType\":\"sayHello\",\"name\":\"Tess\"}".getBytes( ZMQ.CHARSET));
+			String reply = new String( read( post.getInputStream()), ZMQ.CHARSET);
+
+			HttpURLConnection get = (HttpURLConnection) new URL( base + "/").openConnection();
+			get.setRequestProperty( "Accept-Encoding", "gzip");
+			byte[] page = read( new GZIPInputStream( get.getInputStream()));
+
+			// ____________________ Check Results _____________________
+			assertEquals( 200,					post.getResponseCode());
+			assertTrue( reply, reply.contains( "\"response\":\"Hello Tess\""));
+			assertEquals( 200,					get.getResponseCode());
+			assertEquals( "gzip",				get.getHeaderField( "Content-Encoding"));
+			assertNotNull( get.getHeaderField( "ETag"));
+			assertTrue( new String( page, ZMQ.CHARSET).contains( "<html"));
+		}
+		finally {
+			server.shutdown();
+			gateway.destroy();
+		}
+	}
+
+	/**
+	 * Test that the CompressionFilter answers a request for / with the compressed welcome file,
+	 * whether the container maps it to servlet path / or to path info /.
+	 */
+	@Test
+	public void compressionFilterShouldServeWelcomeFileForSlash() throws Exception {
+		set( "http.webContent",	"WebContent");
+		EmbeddedGateway gateway	= new EmbeddedGateway( new GatewayConfig());
+		final ServletContext servletContext = gateway.getServletContext();
+		CompressionFilter filter = new CompressionFilter();
+		filter.init( ServletExchange.proxy( FilterConfig.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				return "getServletContext".equals( method.getName()) ? servletContext : ServletExchange.objectMethod( proxy, method, args);
+			}
+		}));
+		final int[] passedOn = new int[1];
+		FilterChain chain = new FilterChain() {
+			public void doFilter(ServletRequest request, ServletResponse response) {
+				passedOn[0]++;
+			}
+		};
+		MockHttpServletResponse[] responses = new MockHttpServletResponse[2];
+		String[][] paths = { { "/", null }, { "", "/" } };
+		try {
+			for (int p=0; p<paths.length; p++) {
+				MockHttpServletRequest request = new MockHttpServletRequest( "");
+				request.setMethod( "GET");
+				request.setPath( paths[p][0], paths[p][1]);
+				request.setHeader( "Accept-Encoding", "gzip");
+				responses[p] = new MockHttpServletResponse();
+				filter.doFilter( request.asServletRequest( responses[p]), responses[p].asServletResponse(), chain);
+			}
+		}
+		finally {
+			filter.destroy();
+			gateway.destroy();
+		}
+
+		// ____________________ Check Results _____________________
+		assertEquals( 0,						passedOn[0]);
+		for (MockHttpServletResponse response : responses) {
+			assertEquals( 200,					response.getStatus());
+			assertEquals( "gzip",				response.getHeader( "Content-Encoding"));
+			assertEquals( "text/html",			response.getContentType());
+			String page = new String( read( new GZIPInputStream( new ByteArrayInputStream( response.getBody()))), ZMQ.CHARSET);
+			assertTrue( page, page.contains( "<html"));
+		}
+	}
+
+	/** POST a body to /services, and wait for the response to complete.  */
+	MockHttpServletResponse post(String body) {
+		return post( new MockHttpServletRequest( body));
+	}
+
+	/** POST a request, and wait for the response to complete.  */
+	MockHttpServletResponse post(MockHttpServletRequest request) {
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		try {
+			servlet.doPost( request.asServletRequest( response), response.asServletResponse());
+			assertTrue( "response not completed", request.awaitComplete( 5000));
+		}
+		catch (Exception e) {
+			throw new IllegalStateException( e);
+		}
+		return response;
+	}
+
+	private static byte[] read(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int count;
+		while ((count = in.read( buffer)) > 0) {
+			bytes.write( buffer, 0, count);
+		}
+		in.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * A service that answers each request as HelloService answers sayHello, on a ROUTER socket so
+	 * that it can hold many requests at once.  The request body may ask for the reply to be
+	 * delayed, <code>"delay":ms</code>, or for its first attempts to go unanswered,
+	 * <code>"drops":n</code>.
+	 */
+	static final class FakeService extends Thread {
+		/** A reply waiting for its delay to pass.  */
+		private static final class Pending implements Comparable<Pending> {
+			final long		due;
+			final Envelope	request;
+			final byte[]	reply;
+
+			Pending(long due, Envelope request, byte[] reply) {
+				this.due		= due;
+				this.request	= request;
+				this.reply		= reply;
+			}
+
+			public int compareTo(Pending other) {
+				return Long.compare( due, other.due);
+			}
+		}
+
+		final List<Envelope>			requests	= new CopyOnWriteArrayList<Envelope>();
+		volatile int					maxConcurrent	= 0;
+		private final String			url;
+		private final String			serviceName;
+		private final Map<String,Integer>	attempts	= new HashMap<String,Integer>();
+		private final PriorityQueue<Pending>	pending	= new PriorityQueue<Pending>();
+		private final CountDownLatch	bound		= new CountDownLatch( 1);
+		private volatile boolean		running		= true;
+
+		FakeService(String url, String serviceName) {
+			super( "FakeService-" + serviceName);
+			this.url			= url;
+			this.serviceName	= serviceName;
+		}
+
+		void awaitBound() throws InterruptedException {
+			bound.await();
+		}
+
+		void awaitReceived(int count, long timeout) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + timeout;
+			while (requests.size() < count && System.currentTimeMillis() < deadline) {
+				Thread.sleep( 5);
+			}
+		}
+
+		void close() throws InterruptedException {
+			running = false;
+			join( 2000);
+		}
+
+		public void run() {
+			Context context = ZMQ.context(1);
+			ZMQ.Socket router = context.socket( ZMQ.ROUTER);
+			router.setLinger( 0);
+			router.setReceiveTimeOut( 5);
+			router.bind( url);
+			bound.countDown();
+			while (running) {
+				Envelope request = Envelope.recvRouted( router, 0);
+				if (request != null) {
+					receive( request);
+				}
+				long now = System.currentTimeMillis();
+				while (!pending.isEmpty() && pending.peek().due <= now) {
+					Pending reply = pending.poll();
+					reply.request.reply( router, Envelope.FLAG_NONE, reply.reply);
+				}
+			}
+			router.close();
+			context.term();
+		}
+
+		private void receive(Envelope request) {
+			requests.add( request);
+			JSONObject body = new JSONObject( request.getBodyString());
+			Integer attempt = attempts.get( request.getRequestId());
+			attempt = (attempt == null) ? 1 : attempt + 1;
+			attempts.put( request.getRequestId(), attempt);
+			if (attempt <= body.optInt( "drops", 0)) {
+				return;
+			}
+			String requestType = request.getRequestType().isEmpty() ? body.optString( "requestType") : request.getRequestType();
+			String reply = "{\"requestType\":\"" + requestType + "\",\"requestId\":\"" + request.getRequestId()
+					+ "\",\"response\":\"Hello " + body.optString( "name") + "\",\"serviceName\":\"" + serviceName + "\"}";
+			pending.add( new Pending( System.currentTimeMillis() + body.optLong( "delay", 0), request, reply.getBytes( ZMQ.CHARSET)));
+			maxConcurrent = Math.max( maxConcurrent, pending.size());
+		}
+	}
+}
@@ -9,6 +9,9 @@ import org.json.JSONObject;
 import org.zeromq.ZMQ;
 import org.zeromq.ZMQ.Context;
 
+import com.testlims.utilities.Envelope;
+import com.testlims.utilities.LogPublisher;
+
 /**
  * MockHTTPzeroMQ is a mock of HTTP POST request being sent out as a zeroMQ message.  
  * Normally the javax.servlet.http.HTTPServlet would assign the next requestId, and 
@@ -20,6 +23,8 @@ import org.zeromq.ZMQ.Context;
    <li>Logs the request Id and returning response from the zeroMQ broker.</li>
  </ol>
  *
+ * Like the servlet, the mock sends requests, and publishes log messages, as an {@link Envelope}, 
+ * and is ready once the logger has subscribed to its {@link LogPublisher}. 
  * In order to run a MockHTTPzeroMQ the MessageLogger and HelloService need to be running. 
  *
  * @author Marc Whitlow, Colabrativ, Inc. 
@@ -27,7 +32,7 @@ import org.zeromq.ZMQ.Context;
 public class MockHTTPzeroMQ extends Thread {
 
 	private Context 	context					= null; 
-	private ZMQ.Socket 	pub2Logger				= null; 
+	private LogPublisher pub2Logger				= null; 
 	private ZMQ.Socket 	reqHelloService			= null; 
 //	private	String		loggerTopicAndClassName	= null;
 	private	String		loggerTopic	= null;
@@ -45,17 +50,17 @@ public class MockHTTPzeroMQ extends Thread {
 		this.loggerTopic = loggerTopic;
 		context = ZMQ.context(1); 
 		
-		pub2Logger = context.socket( ZMQ.PUB);
-		pub2Logger.connect( loggerURL); 
-		pub2Logger.send( (loggerTopicIDClassName() + ":PUB socket to MessageLogger connected to " + loggerURL).getBytes());
+		pub2Logger = new LogPublisher( context, loggerURL, loggerTopic, 1000);
+		pub2Logger.awaitReady( 1000);
+		publish( "", "Publisher to MessageLogger connected to " + pub2Logger.stats());
 			
 		reqHelloService = context.socket( ZMQ.REQ);
 		reqHelloService.connect( socketURL);
-		pub2Logger.send( (loggerTopicIDClassName() + ":REQ socket to HelloService connected to " + socketURL).getBytes());
+		publish( "", "REQ socket to HelloService connected to " + socketURL);
 	}
 
-	private String loggerTopicIDClassName() {
-		return loggerTopic + " " + requestId + ":MockHTTPzeroMQ";
+	private void publish(String requestType, String message) {
+		pub2Logger.publish( String.valueOf( requestId), "MockHTTPzeroMQ", requestType, message);
 	}
 	
 	/**
@@ -85,18 +90,19 @@ public class MockHTTPzeroMQ extends Thread {
 			
 			// ___________________ Log the Request ___________________ 
 			requestType = requestJSON.getString( "requestType");
-			pub2Logger.send( (loggerTopicIDClassName() + ":POST:" + requestType + ".request").getBytes());		
+			publish( requestType, "POST:" + requestType + ".request");		
 			
 			//                 
 			// ___________ Send Request to HelloServices _____________ 
-			requestJSON.put( "requestId", String.valueOf( requestId));
-			reqHelloService.send( requestJSON.toString().getBytes(), 0);
+			Envelope envelope = new Envelope( String.valueOf( requestId), requestJSON.optString( "serviceName", "HelloService"), 
+					requestType, Envelope.FLAG_NONE, jsonBuffer.toString().getBytes());
+			envelope.send( reqHelloService);
 		}
 		catch(Exception e) {
 			//             Failed to process as JSON Object
 			// ______________ Log the Request as String ______________ 
 			requestType = jsonBuffer.toString();
-			pub2Logger.send( (loggerTopicIDClassName() + ":POST:" + requestType + ".request").getBytes());		
+			publish( "", "POST:" + requestType + ".request");		
 			
 			// _______________ Send Request to Broker ________________ 
 			reqHelloService.send( requestType.getBytes(), 0);
@@ -105,7 +111,7 @@ public class MockHTTPzeroMQ extends Thread {
 		// __________________ Log the Response ___________________ 
 		response.setStatus( httpStatusCode);
 		PrintWriter writer = response.getWriter();
-		String reply = reqHelloService.recvStr();
+		String reply = Envelope.recv( reqHelloService).getBodyString();
 		try {
 			JSONObject responseJSON = new JSONObject( reply);
 			response.setContentType( "application/json; charset=utf-8");
@@ -117,7 +123,7 @@ public class MockHTTPzeroMQ extends Thread {
 			response.setContentType( "application/text; charset=utf-8");
 			writer.println( reply);
 		}
-		pub2Logger.send( (loggerTopicIDClassName() + ":POST:" + requestType + ".response").getBytes());
+		publish( requestType, "POST:" + requestType + ".response");
 	}
 	
 	/** 
@@ -125,7 +131,7 @@ public class MockHTTPzeroMQ extends Thread {
 	 * @throws InterruptedException if there in an issue putting this thread to sleep. 
 	 */
 	public void closeAndTerminate() throws InterruptedException { 
-		pub2Logger.send( loggerTopicIDClassName() + ":request: Close and terminate", 0);
+		publish( "", "request: Close and terminate");
 		sleep(20);
 		pub2Logger.close();
 		reqHelloService.close();
@@ -18,6 +18,7 @@ import org.junit.*;
 import org.zeromq.ZMQ;
 import org.zeromq.ZMQ.Context;
 
+import com.testlims.utilities.LogPublisher;
 import com.testlims.utilities.StackTrace;
 
 /**
@@ -55,11 +56,10 @@ public class MockHTTPzeroMQTests
 	public void archiveLogFile() throws InterruptedException {
 		// Archive Log file
 		Context context = ZMQ.context(1);
-		ZMQ.Socket pub2Logger = context.socket( ZMQ.PUB); 
-		pub2Logger.connect( LOGGER_URL); 
+		LogPublisher pub2Logger = new LogPublisher( context, LOGGER_URL, LOGGER_TOPIC, 0); 
 		
-		Thread.sleep( 20);
-		pub2Logger.send( LOGGER_TOPIC + " " + "ARCIVE_LOG_FILE", 0);
+		assertTrue( "MessageLogger did not subscribe", pub2Logger.awaitReady( 1000));
+		pub2Logger.getSocket().send( LOGGER_TOPIC + " " + "ARCIVE_LOG_FILE", 0);
 		pub2Logger.close();
 		context.close();
 
@@ -70,7 +70,7 @@ public class MockHTTPzeroMQTests
 	/**
      * Test of HelloService's sendHTML method. 
      * <p>
-     * Note that it takes about 20 milliseconds before the HelloService is ready to receive requests. 
+     * The MockHTTPzeroMQ is ready to send requests once its constructor returns. 
 	 */
 	@Test
     public void helloServiceShouldReturnHTML() {
@@ -78,7 +78,6 @@ public class MockHTTPzeroMQTests
 		try {
 			// Start MockHTTPzeroMQ
 			MockHTTPzeroMQ mockHTTPzeroMQ = new MockHTTPzeroMQ( SOCKET_URL, LOGGER_URL, LOGGER_TOPIC);
-			Thread.sleep(25);
 			
 			String requestId 	= "1";
 			String serviceName	= "HelloService";
@@ -123,7 +122,6 @@ public class MockHTTPzeroMQTests
     public void helloServiceShouldReturnHelloName() throws InterruptedException, IOException {
 		// Start MockHTTPzeroMQ
 		MockHTTPzeroMQ mockHTTPzeroMQ = new MockHTTPzeroMQ( SOCKET_URL, LOGGER_URL, LOGGER_TOPIC);
-		Thread.sleep(25);
 		
 		// Send a HTTP request and response to the MockHTTPzeroMQ 
 		String serviceName	= "HelloService";
@@ -147,7 +145,7 @@ public class MockHTTPzeroMQTests
 	/**
      * Check the logging of HelloService using Mock HTTP request
      * <p>
-     * Note that it takes about 20 milliseconds before the HelloService is ready to receive requests. 
+     * The MockHTTPzeroMQ is ready to send requests once its constructor returns. 
 	 * 
 	 * @throws InterruptedException 
 	 * @throws IOException 
@@ -158,7 +156,6 @@ public class MockHTTPzeroMQTests
 		
 		// Start MockHTTPzeroMQ
 		MockHTTPzeroMQ mockHTTPzeroMQ = new MockHTTPzeroMQ( SOCKET_URL, LOGGER_URL, LOGGER_TOPIC);
-		Thread.sleep(25);
 		
 		// Send a HTTP request and response to the MockHTTPzeroMQ 
 		String serviceName	= "HelloService";
@@ -206,27 +203,33 @@ public class MockHTTPzeroMQTests
 				assertTrue( line.contains( "0:MessageLogging:Log file /var/log/zeroMQcore/project.log opened."));
 			}
 			else if (lineNumber == 1) { 
-				assertTrue( line.contains( "1:MockHTTPzeroMQ:POST:sendHTML.request")); 
+				assertTrue( line.contains( "0:MockHTTPzeroMQ:Publisher to MessageLogger connected")); 
 			}
 			else if (lineNumber == 2) { 
-				assertTrue( line.contains( "1:HelloService:sendHTML.request")); 
+				assertTrue( line.contains( "0:MockHTTPzeroMQ:REQ socket to HelloService connected")); 
 			}
 			else if (lineNumber == 3) { 
-				assertTrue( line.contains( "1:HelloService:sendHTML.response")); 
+				assertTrue( line.contains( "1:MockHTTPzeroMQ:POST:sendHTML.request")); 
 			}
 			else if (lineNumber == 4) { 
-				assertTrue( line.contains( "1:MockHTTPzeroMQ:POST:sendHTML.response")); 
+				assertTrue( line.contains( "1:HelloService:sendHTML.request")); 
 			}
 			else if (lineNumber == 5) { 
-				assertTrue( line.contains( "2:MockHTTPzeroMQ:POST:sayHello.request")); 
+				assertTrue( line.contains( "1:HelloService:sendHTML.response")); 
 			}
 			else if (lineNumber == 6) { 
-				assertTrue( line.contains( "2:HelloService:sayHello.request:Tess")); 
+				assertTrue( line.contains( "1:MockHTTPzeroMQ:POST:sendHTML.response")); 
 			}
 			else if (lineNumber == 7) { 
-				assertTrue( line.contains( "2:HelloService:sayHello.response:Hello Tess")); 
+				assertTrue( line.contains( "2:MockHTTPzeroMQ:POST:sayHello.request")); 
 			}
 			else if (lineNumber == 8) { 
+				assertTrue( line.contains( "2:HelloService:sayHello.request:Tess")); 
+			}
+			else if (lineNumber == 9) { 
+				assertTrue( line.contains( "2:HelloService:sayHello.response:Hello Tess")); 
+			}
+			else if (lineNumber == 10) { 
 				assertTrue( line.contains( "2:MockHTTPzeroMQ:POST:sayHello.response")); 
 			}
 			else {	
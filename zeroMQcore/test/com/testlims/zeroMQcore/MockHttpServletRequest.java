@@ -1,17 +1,243 @@
 package com.testlims.zeroMQcore;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.StringReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+
+import org.zeromq.ZMQ;
+
+/**
+ * MockHttpServletRequest is a mock HTTP request.  The MockHTTPzeroMQ reads it through
+ * {@link #getReader()}; the gateway's servlets and filter are handed the HttpServletRequest
+ * of {@link #asServletRequest}, which plays the part of the container, asynchronous requests
+ * included:  {@link #timeout()} fires the AsyncContext's time-out as a container would, and
+ * {@link #holdAsyncStarts()} keeps the runnables passed to AsyncContext.start until
+ * {@link #runHeldStarts()}, so a test can order the reply against the time-out.
+ */
 public class MockHttpServletRequest {
 	private String request = null;
-	
+	private String method			= "POST";
+	private String servletPath		= "/services";
+	private String pathInfo			= null;
+	private final Map<String,String>	headers		= new TreeMap<String,String>( String.CASE_INSENSITIVE_ORDER);
+	private final Map<String,Object>	attributes	= new ConcurrentHashMap<String,Object>();
+	private final List<AsyncListener>	listeners	= new CopyOnWriteArrayList<AsyncListener>();
+	private final List<Runnable>		held		= new ArrayList<Runnable>();
+	private boolean						holdStarts	= false;
+	private final CountDownLatch		completed	= new CountDownLatch( 1);
+	private final AtomicInteger			completions	= new AtomicInteger();
+	private volatile boolean			errorDispatched	= false;
+	private volatile long				asyncTimeout	= 30000;
+	private HttpServletRequest			servletRequest	= null;
+	private AsyncContext				asyncContext	= null;
+
 	public MockHttpServletRequest(String request) {
 		this.request = request;
 	}
-	
+
 	public BufferedReader getReader() {
 		BufferedReader reader = new BufferedReader( new StringReader(request));
 		return reader;
 	}
+
+	public void setMethod(String method) {
+		this.method = method;
+	}
+
+	public void setPath(String servletPath, String pathInfo) {
+		this.servletPath	= servletPath;
+		this.pathInfo		= pathInfo;
+	}
+
+	public void setHeader(String name, String value) {
+		headers.put( name, value);
+	}
+
+	/**
+	 * @param response the response the servlet writes to.
+	 *
+	 * @return the request as the servlet sees it.
+	 */
+	public HttpServletRequest asServletRequest(final MockHttpServletResponse response) {
+		final byte[] body = request.getBytes( ZMQ.CHARSET);
+		servletRequest = ServletExchange.proxy( HttpServletRequest.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				return request( proxy, method, args, body, response);
+			}
+		});
+		return servletRequest;
+	}
+
+	private Object request(Object proxy, Method method, Object[] args, byte[] body, MockHttpServletResponse response) {
+		switch (method.getName()) {
+			case "getMethod":				return this.method;
+			case "getServletPath":			return servletPath;
+			case "getPathInfo":				return pathInfo;
+			case "getRequestURI":			return servletPath + ((pathInfo == null) ? "" : pathInfo);
+			case "getHeader":				return headers.get( (String) args[0]);
+			case "getHeaders":				return Collections.enumeration( headers.containsKey( (String) args[0])
+													? Collections.singletonList( headers.get( (String) args[0])) : Collections.<String>emptyList());
+			case "getContentType":			return "application/json";
+			case "getCharacterEncoding":	return "UTF-8";
+			case "getContentLength":		return body.length;
+			case "getContentLengthLong":	return (long) body.length;
+			case "getInputStream":			return inputStream( body);
+			case "getReader":				return getReader();
+			case "getAttribute":			return attributes.get( (String) args[0]);
+			case "setAttribute":			attributes.put( (String) args[0], args[1]);	return null;
+			case "removeAttribute":			attributes.remove( (String) args[0]);	return null;
+			case "getDispatcherType":		return DispatcherType.REQUEST;
+			case "isAsyncSupported":		return true;
+			case "isAsyncStarted":			return asyncContext != null && completions.get() == 0;
+			case "startAsync":				return startAsync( response);
+			case "getAsyncContext":			return asyncContext;
+			default:						return ServletExchange.objectMethod( proxy, method, args);
+		}
+	}
+
+	private static ServletInputStream inputStream(byte[] body) {
+		final ByteArrayInputStream in = new ByteArrayInputStream( body);
+		return new ServletInputStream() {
+			public int read()								{ return in.read(); }
+			public int read(byte[] bytes, int offset, int length)	{ return in.read( bytes, offset, length); }
+			public boolean isFinished()						{ return in.available() == 0; }
+			public boolean isReady()						{ return true; }
+			public void setReadListener(ReadListener listener)	{ throw new UnsupportedOperationException( "setReadListener"); }
+		};
+	}
+
+	private AsyncContext startAsync(final MockHttpServletResponse response) {
+		if (asyncContext == null) {
+			asyncContext = ServletExchange.proxy( AsyncContext.class, new InvocationHandler() {
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+					switch (method.getName()) {
+						case "getRequest":		return servletRequest;
+						case "getResponse":		return response.asServletResponse();
+						case "setTimeout":		asyncTimeout = (Long) args[0];	return null;
+						case "getTimeout":		return asyncTimeout;
+						case "addListener":		listeners.add( (AsyncListener) args[0]);	return null;
+						case "start":			start( (Runnable) args[0]);	return null;
+						case "complete":		complete();	return null;
+						default:				return ServletExchange.objectMethod( proxy, method, args);
+					}
+				}
+			});
+		}
+		return asyncContext;
+	}
+
+	private void start(Runnable runnable) {
+		synchronized (held) {
+			if (holdStarts) {
+				held.add( runnable);
+				held.notifyAll();
+				return;
+			}
+		}
+		new Thread( runnable, "MockHttpServletRequest-async").start();
+	}
+
+	/** Complete the request as a container does, which throws if it is already complete.  */
+	private void complete() {
+		if (completions.incrementAndGet() > 1) {
+			throw new IllegalStateException( "The request is already complete");
+		}
+		completed.countDown();
+	}
+
+	/** Keep the runnables passed to AsyncContext.start until {@link #runHeldStarts()}.  */
+	public void holdAsyncStarts() {
+		synchronized (held) {
+			holdStarts = true;
+		}
+	}
+
+	/**
+	 * @param timeout milliseconds to wait.
+	 *
+	 * @return true if a runnable has been passed to AsyncContext.start and is being held.
+	 * @throws InterruptedException if the thread is interrupted.
+	 */
+	public boolean awaitHeldStart(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized (held) {
+			while (held.isEmpty() && System.currentTimeMillis() < deadline) {
+				held.wait( Math.max( 1, deadline - System.currentTimeMillis()));
+			}
+			return !held.isEmpty();
+		}
+	}
+
+	/** Start the held runnables, and any later ones, at once.  */
+	public void runHeldStarts() {
+		List<Runnable> runnables;
+		synchronized (held) {
+			holdStarts	= false;
+			runnables	= new ArrayList<Runnable>( held);
+			held.clear();
+		}
+		for (Runnable runnable : runnables) {
+			new Thread( runnable, "MockHttpServletRequest-async").start();
+		}
+	}
+
+	/**
+	 * Fire the AsyncContext's time-out as a container does:  call each listener's onTimeout, and
+	 * error dispatch the request if none of them completed it before returning.
+	 */
+	public void timeout() throws IOException {
+		AsyncEvent event = new AsyncEvent( asyncContext, servletRequest, null);
+		for (AsyncListener listener : listeners) {
+			listener.onTimeout( event);
+		}
+		if (completions.get() == 0) {
+			errorDispatched = true;
+		}
+	}
+
+	/** @return the AsyncContext timeout the servlet set, in milliseconds. */
+	public long getAsyncTimeout() {
+		return asyncTimeout;
+	}
+
+	/**
+	 * @param timeout milliseconds to wait.
+	 *
+	 * @return true if the servlet returned without starting asynchronous processing, or completed it in time.
+	 * @throws InterruptedException if the thread is interrupted.
+	 */
+	public boolean awaitComplete(long timeout) throws InterruptedException {
+		return asyncContext == null || completed.await( timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/** @return the number of times AsyncContext.complete was called. */
+	public int getCompletions() {
+		return completions.get();
+	}
+
+	/** @return true if {@link #timeout()} found the request neither completed nor being completed. */
+	public boolean isErrorDispatched() {
+		return errorDispatched;
+	}
 }
@@ -2,19 +2,38 @@ package com.testlims.zeroMQcore;
 
 import static org.junit.Assert.assertEquals;
 
+import java.io.ByteArrayOutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.TreeMap;
 
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+
+import org.zeromq.ZMQ;
+
+/**
+ * MockHttpServletResponse is a mock HTTP response.  The MockHTTPzeroMQ writes it directly; the
+ * gateway's servlets and filter write the HttpServletResponse of {@link #asServletResponse()},
+ * whose status, headers and body bytes are then read back with the getters.
+ */
 public class MockHttpServletResponse {
 	private PrintWriter		printWriter		= null;
 	private StringWriter	stringWriter	= null;
 	private String 			contentType		= null;
 	private Integer 		httpStatusCode	= null;
+	private final Map<String,String>	headers	= new TreeMap<String,String>( String.CASE_INSENSITIVE_ORDER);
+	private final ByteArrayOutputStream	body	= new ByteArrayOutputStream();
+	private HttpServletResponse			servletResponse	= null;
 
 	public void setContentType(String contentType) {
 		this.contentType = contentType;
 	}
-	
+
 	public void assertEqualsContentType(String string2Check) {
 		assertEquals( string2Check, contentType);
 	}
@@ -26,14 +45,94 @@ public class MockHttpServletResponse {
 	public void assertEqualsStatus(Integer code2Check) {
 		assertEquals( code2Check, httpStatusCode);
 	}
-	
+
 	public PrintWriter getWriter() {
 		stringWriter = new StringWriter();
 		printWriter	 = new PrintWriter( stringWriter);
 		return printWriter;
 	}
-	
+
 	public void assertEqualsResponse(String string2Check) {
 		assertEquals( string2Check, stringWriter.toString().trim());
 	}
+
+	/** @return the response as the servlet sees it. */
+	public synchronized HttpServletResponse asServletResponse() {
+		if (servletResponse == null) {
+			servletResponse = ServletExchange.proxy( HttpServletResponse.class, new InvocationHandler() {
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+					return response( proxy, method, args);
+				}
+			});
+		}
+		return servletResponse;
+	}
+
+	private Object response(Object proxy, Method method, Object[] args) {
+		switch (method.getName()) {
+			case "setStatus":				setStatus( (Integer) args[0]);	return null;
+			case "getStatus":				return getStatus();
+			case "sendError":				setStatus( (Integer) args[0]);	return null;
+			case "setHeader":
+			case "addHeader":				headers.put( (String) args[0], (String) args[1]);	return null;
+			case "setIntHeader":			headers.put( (String) args[0], String.valueOf( args[1]));	return null;
+			case "getHeader":				return headers.get( (String) args[0]);
+			case "containsHeader":			return headers.containsKey( (String) args[0]);
+			case "setContentType":			setContentType( (String) args[0]);	return null;
+			case "getContentType":			return contentType;
+			case "setContentLength":
+			case "setContentLengthLong":	headers.put( "Content-Length", String.valueOf( args[0]));	return null;
+			case "setCharacterEncoding":	return null;
+			case "getCharacterEncoding":	return "UTF-8";
+			case "isCommitted":				return false;
+			case "flushBuffer":				return null;
+			case "getOutputStream":			return outputStream();
+			case "getWriter":				return getWriter();
+			default:						return ServletExchange.objectMethod( proxy, method, args);
+		}
+	}
+
+	private ServletOutputStream outputStream() {
+		return new ServletOutputStream() {
+			public void write(int b)								{ synchronized (body) { body.write( b); } }
+			public void write(byte[] bytes, int offset, int length)	{ synchronized (body) { body.write( bytes, offset, length); } }
+			public boolean isReady()								{ return true; }
+			public void setWriteListener(WriteListener listener)	{ throw new UnsupportedOperationException( "setWriteListener"); }
+		};
+	}
+
+	/** @return the status set by the servlet, 200 if none was set. */
+	public int getStatus() {
+		return (httpStatusCode == null) ? HttpServletResponse.SC_OK : httpStatusCode;
+	}
+
+	/** @return the content type set by the servlet. */
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * @param name a header name.
+	 *
+	 * @return the header set by the servlet, or null.
+	 */
+	public String getHeader(String name) {
+		return headers.get( name);
+	}
+
+	/** @return the bytes written to the output stream. */
+	public byte[] getBody() {
+		synchronized (body) {
+			return body.toByteArray();
+		}
+	}
+
+	/** @return the bytes written to the output stream, or the text written to the writer. */
+	public String getBodyString() {
+		if (stringWriter != null) {
+			printWriter.flush();
+			return stringWriter.toString();
+		}
+		return new String( getBody(), ZMQ.CHARSET);
+	}
 }